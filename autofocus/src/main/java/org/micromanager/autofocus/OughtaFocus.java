@@ -40,6 +40,15 @@ import ij.process.ShortProcessor;
 
 import java.awt.Rectangle;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.swing.SwingUtilities;
 
 import mmcorej.CMMCore;
@@ -91,6 +100,13 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
       "MedianEdges", "Tenengrad", "FFTBandpass"};
    private final static String FFT_UPPER_CUTOFF = "FFTUpperCutoff(%)";
    private final static String FFT_LOWER_CUTOFF = "FFTLowerCutoff(%)";
+   private static final String SEARCH_METHOD = "SearchMethod";
+   private static final String BRENT = "Brent";
+   private static final String GRID_THEN_BRENT = "CoarseGridThenBrent";
+   private static final String[] SEARCHMETHODS = {BRENT, GRID_THEN_BRENT};
+   // Number of intervals the search range is divided into by the coarse
+   // grid (unless that would make them smaller than the tolerance).
+   private static final int NUM_GRID_INTERVALS = 10;
 
    // Note on the tolerance settings for the Brent optimizer:
    //
@@ -143,12 +159,79 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
    private double exposure = 100;
    private String show = "No";
    private String scoringMethod = "Edges";
+   private String searchMethod = BRENT;
    private double fftUpperCutoff = 14;
    private double fftLowerCutoff = 2.5;
    private int imageCount_;
    private long startTimeMs_;
    private double startZUm_;
    private boolean liveModeOn_;
+   private final List<FocusMeasurement> measurements_ =
+      new ArrayList<FocusMeasurement>();
+   // Threads that compute focus scores while the stage and camera acquire
+   // the next image. Created on first use.
+   private ThreadPoolExecutor scoringExecutor_;
+
+   /**
+    * Timings and result for a single image taken during autofocus.
+    */
+   public static final class FocusMeasurement {
+      private final int imageIndex_;
+      private final double z_;
+      private final double score_;
+      private final long zMoveMs_;
+      private final long imageMs_;
+      private final long scoreMs_;
+      private final long elapsedMs_;
+
+      public FocusMeasurement(int imageIndex, double z, double score,
+            long zMoveMs, long imageMs, long scoreMs, long elapsedMs) {
+         imageIndex_ = imageIndex;
+         z_ = z;
+         score_ = score;
+         zMoveMs_ = zMoveMs;
+         imageMs_ = imageMs;
+         scoreMs_ = scoreMs;
+         elapsedMs_ = elapsedMs;
+      }
+
+      /** Order in which the image was acquired, starting from 0. */
+      public int getImageIndex() {
+         return imageIndex_;
+      }
+
+      /** Z position of the image, in microns. */
+      public double getZ() {
+         return z_;
+      }
+
+      public double getScore() {
+         return score_;
+      }
+
+      /** Time to move the stage to the Z position ("Tz" in the log). */
+      public long getZMoveMs() {
+         return zMoveMs_;
+      }
+
+      /** Time to acquire the image ("Ti" in the log). */
+      public long getImageMs() {
+         return imageMs_;
+      }
+
+      /** Time to compute the focus score ("Tc" in the log). */
+      public long getScoreMs() {
+         return scoreMs_;
+      }
+
+      /**
+       * Time from the start of the autofocus run until the score was
+       * known.
+       */
+      public long getElapsedMs() {
+         return elapsedMs_;
+      }
+   }
 
    public OughtaFocus() {
       super.createProperty(SEARCH_RANGE, NumberUtils.doubleToDisplayString(searchRange));
@@ -159,6 +242,7 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
       super.createProperty(FFT_UPPER_CUTOFF, NumberUtils.doubleToDisplayString(fftUpperCutoff));
       super.createProperty(SHOW_IMAGES, show, SHOWVALUES);
       super.createProperty(SCORING_METHOD, scoringMethod, SCORINGMETHODS);
+      super.createProperty(SEARCH_METHOD, searchMethod, SEARCHMETHODS);
       super.createProperty(CHANNEL, "");
    }
 
@@ -177,6 +261,7 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
          fftUpperCutoff = clip(0.0, fftUpperCutoff, 100.0);
          show = getPropertyValue(SHOW_IMAGES);
          scoringMethod = getPropertyValue(SCORING_METHOD);
+         searchMethod = getPropertyValue(SEARCH_METHOD);
 
       } catch (MMException ex) {
          studio_.logs().logError(ex);
@@ -267,20 +352,147 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
          new BrentOptimizer(BRENT_RELATIVE_TOLERANCE, absTolerance);
 
       imageCount_ = 0;
+      synchronized(measurements_) {
+         measurements_.clear();
+      }
 
       CMMCore core = studio_.getCMMCore();
       double z = core.getPosition(core.getFocusDevice());
       startZUm_ = z;
-      
+
+      double minZ = z - searchRange / 2;
+      double maxZ = z + searchRange / 2;
+      double gridZ = Double.NaN;
+      double gridScore = Double.NEGATIVE_INFINITY;
+      if (searchMethod.contentEquals(GRID_THEN_BRENT)) {
+         // Find the best point on a coarse grid, then refine it with Brent's
+         // method in the grid intervals on either side.
+         double step = Math.max(absTolerance,
+               searchRange / NUM_GRID_INTERVALS);
+         double[] zs = new double[(int) Math.floor(searchRange / step) + 1];
+         for (int i = 0; i < zs.length; ++i) {
+            zs[i] = minZ + (searchRange - step * (zs.length - 1)) / 2 +
+               i * step;
+         }
+         double[] scores = measureFocusScoresPipelined(zs);
+         for (int i = 0; i < zs.length; ++i) {
+            if (scores[i] > gridScore) {
+               gridScore = scores[i];
+               gridZ = zs[i];
+            }
+         }
+         minZ = Math.max(minZ, gridZ - step);
+         maxZ = Math.min(maxZ, gridZ + step);
+      }
+
       UnivariatePointValuePair result = brentOptimizer.optimize(uof, 
               GoalType.MAXIMIZE,
               new MaxEval(100),
-              new SearchInterval(z - searchRange / 2, z + searchRange / 2));
+              new SearchInterval(minZ, maxZ));
+      double bestZ = result.getPoint();
+      if (gridScore > result.getValue()) {
+         // The refinement didn't find anything better than the grid did.
+         bestZ = gridZ;
+      }
       studio_.logs().logMessage("OughtaFocus Iterations: " + brentOptimizer.getIterations()
-              + ", z=" + TextUtils.FMT2.format(result.getPoint())
-              + ", dz=" + TextUtils.FMT2.format(result.getPoint() - startZUm_)
+              + ", z=" + TextUtils.FMT2.format(bestZ)
+              + ", dz=" + TextUtils.FMT2.format(bestZ - startZUm_)
               + ", t=" + (System.currentTimeMillis() - startTimeMs_));
-      return result.getPoint();
+      return bestZ;
+   }
+
+   /**
+    * Measure the focus score at each of the provided Z positions. Each image
+    * is scored on scoringExecutor_ while the stage moves to, and the camera
+    * acquires, the next position.
+    */
+   private double[] measureFocusScoresPipelined(double[] zs) throws Exception {
+      CMMCore core = studio_.getCMMCore();
+      ArrayList<Future<Double>> futures = new ArrayList<Future<Double>>();
+      try {
+         for (final double z : zs) {
+            final long start = System.currentTimeMillis();
+            setZPosition(z);
+            final long tZ = System.currentTimeMillis() - start;
+            TaggedImage img = acquireImage();
+            final long tI = System.currentTimeMillis() - start - tZ;
+            final ImageProcessor proc = makeMonochromeProcessor(core,
+                  getMonochromePixels(img));
+            final int imageIndex = imageCount_++;
+            futures.add(getScoringExecutor().submit(new Callable<Double>() {
+               @Override
+               public Double call() {
+                  long scoreStart = System.currentTimeMillis();
+                  double score = computeScore(proc);
+                  long tC = System.currentTimeMillis() - scoreStart;
+                  recordMeasurement(imageIndex, z, score, tZ, tI, tC);
+                  return score;
+               }
+            }));
+         }
+         double[] result = new double[zs.length];
+         for (int i = 0; i < zs.length; ++i) {
+            result[i] = futures.get(i).get();
+         }
+         return result;
+      }
+      catch (ExecutionException e) {
+         studio_.logs().logError(e);
+         if (e.getCause() instanceof Exception) {
+            throw (Exception) e.getCause();
+         }
+         throw e;
+      }
+      finally {
+         for (Future<Double> future : futures) {
+            future.cancel(false);
+         }
+      }
+   }
+
+   private synchronized ThreadPoolExecutor getScoringExecutor() {
+      if (scoringExecutor_ == null) {
+         int numThreads = Math.max(1,
+               Runtime.getRuntime().availableProcessors() - 1);
+         scoringExecutor_ = new ThreadPoolExecutor(numThreads, numThreads,
+               30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+               new ThreadFactory() {
+                  private int count_ = 0;
+                  @Override
+                  public synchronized Thread newThread(Runnable r) {
+                     Thread thread = new Thread(r,
+                           "OughtaFocus scoring " + (count_++));
+                     thread.setDaemon(true);
+                     return thread;
+                  }
+               });
+         scoringExecutor_.allowCoreThreadTimeOut(true);
+      }
+      return scoringExecutor_;
+   }
+
+   private void recordMeasurement(int imageIndex, double z, double score,
+         long tZ, long tI, long tC) {
+      long elapsed = System.currentTimeMillis() - startTimeMs_;
+      synchronized(measurements_) {
+         measurements_.add(new FocusMeasurement(imageIndex, z, score, tZ,
+                  tI, tC, elapsed));
+      }
+      studio_.logs().logMessage("OughtaFocus: image=" + imageIndex
+              + ", t=" + elapsed
+              + ", z=" + TextUtils.FMT2.format(z)
+              + ", score=" + TextUtils.FMT2.format(score)
+              + ", Tz=" + tZ + ", Ti=" + tI + ", Tc=" + tC);
+   }
+
+   /**
+    * Return the images taken during the most recent autofocus run, in the
+    * order in which their scores were computed, with their timings.
+    */
+   public List<FocusMeasurement> getMeasurements() {
+      synchronized(measurements_) {
+         return new ArrayList<FocusMeasurement>(measurements_);
+      }
    }
 
    private void setZPosition(double z) throws Exception {
@@ -326,47 +538,49 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
    }
 
 
+   /**
+    * Snap an image at the current position (or, in live mode, take the most
+    * recent one), and display it if requested.
+    */
+   private TaggedImage acquireImage() throws Exception {
+      CMMCore core = studio_.getCMMCore();
+      if (liveModeOn_) {
+         return core.getLastTaggedImage();
+      }
+      core.waitForDevice(core.getCameraDevice());
+      core.snapImage();
+      final TaggedImage img = core.getTaggedImage();
+      if (show.contentEquals("Yes")) {
+         SwingUtilities.invokeLater(new Runnable() {
+
+            @Override
+            public void run() {
+               try {
+                  studio_.live().displayImage(studio_.data().convertTaggedImage(img));
+               }
+               catch (JSONException e) {
+                  studio_.logs().showError(e);
+               } catch (IllegalArgumentException e) {
+                  studio_.logs().showError(e);
+               }
+            }
+         });
+      }
+      return img;
+   }
+
    public double measureFocusScore(double z) throws Exception {
       CMMCore core = studio_.getCMMCore();
       long start = System.currentTimeMillis();
       try {
          setZPosition(z);
          long tZ = System.currentTimeMillis() - start;
-
-         TaggedImage img;
-         if (liveModeOn_) {
-            img = core.getLastTaggedImage();
-         } else {
-            core.waitForDevice(core.getCameraDevice());
-            core.snapImage();
-            final TaggedImage img1 = core.getTaggedImage();
-            img = img1;
-            if (show.contentEquals("Yes")) {
-               SwingUtilities.invokeLater(new Runnable() {
-
-                  @Override
-                  public void run() {
-                     try {
-                        studio_.live().displayImage(studio_.data().convertTaggedImage(img1));
-                     }
-                     catch (JSONException e) {
-                        studio_.logs().showError(e);
-                     } catch (IllegalArgumentException e) {
-                        studio_.logs().showError(e);
-                     }
-                  }
-               });
-            }
-         }
+         TaggedImage img = acquireImage();
          long tI = System.currentTimeMillis() - start - tZ;
          ImageProcessor proc = makeMonochromeProcessor(core, getMonochromePixels(img));
          double score = computeScore(proc);
          long tC = System.currentTimeMillis() - start - tZ - tI;
-         studio_.logs().logMessage("OughtaFocus: image=" + imageCount_++
-                 + ", t=" + (System.currentTimeMillis() - startTimeMs_)
-                 + ", z=" + TextUtils.FMT2.format(z)
-                 + ", score=" + TextUtils.FMT2.format(score)
-                 + ", Tz=" + tZ + ", Ti=" + tI + ", Tc=" + tC);
+         recordMeasurement(imageCount_++, z, score, tZ, tI, tC);
          return score;
       } catch (Exception e) {
          studio_.logs().logError(e);
@@ -384,9 +598,26 @@ public class OughtaFocus extends AutofocusBase implements AutofocusPlugin, SciJa
       return imageCount_;
    }
 
+   /**
+    * Summarize the timings of the most recent autofocus run; see
+    * getMeasurements() for details.
+    */
    @Override
    public String getVerboseStatus() {
-      throw new UnsupportedOperationException("Not supported yet.");
+      List<FocusMeasurement> measurements = getMeasurements();
+      long zMoveMs = 0;
+      long imageMs = 0;
+      long scoreMs = 0;
+      long elapsedMs = 0;
+      for (FocusMeasurement measurement : measurements) {
+         zMoveMs += measurement.getZMoveMs();
+         imageMs += measurement.getImageMs();
+         scoreMs += measurement.getScoreMs();
+         elapsedMs = Math.max(elapsedMs, measurement.getElapsedMs());
+      }
+      return "OughtaFocus (" + searchMethod + "): images=" +
+         measurements.size() + ", t=" + elapsedMs + ", Tz=" + zMoveMs +
+         ", Ti=" + imageMs + ", Tc=" + scoreMs;
    }
 
    @Override
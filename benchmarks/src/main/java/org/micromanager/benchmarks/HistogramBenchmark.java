@@ -0,0 +1,81 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Benchmarks
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.display.HistogramData;
+import org.micromanager.display.internal.ContrastCalculator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures histogram and contrast calculation, which the display performs
+ * for every image it shows (and which therefore limits the rate at which
+ * live mode and acquisitions can be displayed).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class HistogramBenchmark {
+   private static final int NUM_IMAGES = 16;
+
+   @Param({"1", "2"})
+   public int bytesPerPixel;
+
+   @Param({"512", "2048"})
+   public int width;
+
+   @Param({"true", "false"})
+   public boolean shouldCalcStdDev;
+
+   private DefaultImage[] images_;
+   private int bitDepth_;
+   private int index_;
+
+   @Setup(Level.Trial)
+   public void createImages() {
+      images_ = SyntheticImages.makeImages(NUM_IMAGES, width, bytesPerPixel);
+      bitDepth_ = images_[0].getMetadata().getBitDepth();
+   }
+
+   @Benchmark
+   public HistogramData calculateHistogram() {
+      // Same parameters as the display uses by default: 256 bins over the
+      // camera's bit depth, ignoring .1% of pixels for the contrast limits.
+      HistogramData result = ContrastCalculator.calculateHistogram(
+            images_[index_], null, 0, 8, bitDepth_, .1, shouldCalcStdDev,
+            false);
+      index_ = (index_ + 1) % NUM_IMAGES;
+      return result;
+   }
+}
@@ -0,0 +1,104 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Benchmarks
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.internal.DefaultImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures converting the TaggedImages produced by the core into
+ * DefaultImages, which happens for every image of an acquisition before it
+ * enters the pipeline. For small images this is dominated by metadata
+ * handling rather than by copying pixels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class ImageConversionBenchmark {
+   private static final int NUM_IMAGES = 64;
+
+   @Param({"2"})
+   public int bytesPerPixel;
+
+   @Param({"64", "512", "2048"})
+   public int width;
+
+   private TaggedImage[] taggedImages_;
+   private int index_;
+
+   @Setup(Level.Trial)
+   public void createImages() throws JSONException {
+      taggedImages_ = new TaggedImage[NUM_IMAGES];
+      for (int i = 0; i < NUM_IMAGES; ++i) {
+         taggedImages_[i] = SyntheticImages.makeTaggedImage(width,
+               bytesPerPixel, i);
+      }
+   }
+
+   private TaggedImage nextImage() {
+      TaggedImage result = taggedImages_[index_];
+      index_ = (index_ + 1) % NUM_IMAGES;
+      return result;
+   }
+
+   /**
+    * Conversion as done by DataManager.convertTaggedImage(), which parses
+    * all of the tags immediately.
+    */
+   @Benchmark
+   public DefaultImage convert() throws JSONException {
+      return new DefaultImage(nextImage());
+   }
+
+   /**
+    * Conversion as done during acquisitions, where the tags are only parsed
+    * if the image's metadata is needed.
+    */
+   @Benchmark
+   public DefaultImage wrap() throws JSONException {
+      return DefaultImage.wrapCameraImage(nextImage());
+   }
+
+   /**
+    * As wrap(), followed by accessing the metadata, as most consumers of
+    * acquired images eventually do.
+    */
+   @Benchmark
+   public Metadata wrapAndGetMetadata() throws JSONException {
+      return DefaultImage.wrapCameraImage(nextImage()).getMetadata();
+   }
+}
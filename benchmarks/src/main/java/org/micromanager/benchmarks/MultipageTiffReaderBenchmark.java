@@ -0,0 +1,135 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Benchmarks
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.benchmarks;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.internal.DefaultDatastore;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultSummaryMetadata;
+import org.micromanager.data.internal.multipagetiff.MultipageTiffReader;
+import org.micromanager.data.internal.multipagetiff.StorageMultipageTiff;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading images back from a saved multipage TIFF dataset, as when
+ * scrolling through a dataset that has been opened from disk. The dataset
+ * is small enough to be in the OS's file cache, so this measures our own
+ * overhead rather than the disk's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class MultipageTiffReaderBenchmark {
+   private static final int NUM_IMAGES = 64;
+
+   @Param({"512", "2048"})
+   public int width;
+
+   @Param({"true", "false"})
+   public boolean useMemoryMapping;
+
+   private DefaultImage[] images_;
+   private File dir_;
+   private DefaultDatastore store_;
+   private MultipageTiffReader reader_;
+   private int index_;
+
+   @Setup(Level.Trial)
+   public void writeDataset() throws IOException {
+      images_ = SyntheticImages.makeImages(NUM_IMAGES, width, 2);
+      dir_ = Files.createTempDir();
+      String path = new File(dir_, "bench").getAbsolutePath();
+      DefaultDatastore writeStore = new DefaultDatastore();
+      StorageMultipageTiff writer = new StorageMultipageTiff(writeStore,
+            path, true, false, false);
+      writeStore.setStorage(writer);
+      writer.setSummaryMetadata(new DefaultSummaryMetadata.Builder()
+            .prefix("bench").build());
+      for (DefaultImage image : images_) {
+         writer.putImage(image);
+      }
+      writer.finished();
+      writer.close();
+
+      store_ = new DefaultDatastore();
+      StorageMultipageTiff storage = new StorageMultipageTiff(store_, path,
+            false, false, false);
+      store_.setStorage(storage);
+      reader_ = new MultipageTiffReader(storage, findTiff(new File(path)));
+      reader_.setUseMemoryMapping(useMemoryMapping);
+      index_ = 0;
+   }
+
+   private static File findTiff(File dir) throws IOException {
+      File[] files = dir.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            if (file.getName().endsWith(".tif")) {
+               return file;
+            }
+         }
+      }
+      throw new IOException("No TIFF file written to " + dir);
+   }
+
+   @TearDown(Level.Trial)
+   public void deleteDataset() throws IOException {
+      reader_.close();
+      store_.close();
+      SyntheticImages.deleteRecursively(dir_);
+   }
+
+   @Benchmark
+   public DefaultImage readImage() {
+      DefaultImage result = reader_.readImage(images_[index_].getCoords());
+      index_ = (index_ + 1) % NUM_IMAGES;
+      return result;
+   }
+
+   /**
+    * As readImage(), but also accesses the image metadata, as the display
+    * does for its metadata and histogram panels.
+    */
+   @Benchmark
+   public Metadata readImageAndMetadata() {
+      Metadata result = reader_.readImage(
+            images_[index_].getCoords()).getMetadata();
+      index_ = (index_ + 1) % NUM_IMAGES;
+      return result;
+   }
+}
@@ -0,0 +1,100 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Benchmarks
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.benchmarks;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.data.internal.DefaultDatastore;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultSummaryMetadata;
+import org.micromanager.data.internal.multipagetiff.StorageMultipageTiff;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of handing images to StorageMultipageTiff, from
+ * putImage() through to the bytes being queued for (and, once the writing
+ * queue is full, actually written to) disk. Run with "-prof gc" to see the
+ * number of bytes allocated per image.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class MultipageTiffWriterBenchmark {
+   // Number of distinct images (timepoints) to cycle through.
+   private static final int NUM_IMAGES = 64;
+
+   @Param({"1", "2"})
+   public int bytesPerPixel;
+
+   @Param({"512", "2048"})
+   public int width;
+
+   private DefaultImage[] images_;
+   private File dir_;
+   private DefaultDatastore store_;
+   private StorageMultipageTiff storage_;
+   private int index_;
+
+   @Setup(Level.Trial)
+   public void createImages() {
+      images_ = SyntheticImages.makeImages(NUM_IMAGES, width, bytesPerPixel);
+   }
+
+   @Setup(Level.Iteration)
+   public void createStorage() throws IOException {
+      dir_ = Files.createTempDir();
+      store_ = new DefaultDatastore();
+      storage_ = new StorageMultipageTiff(store_,
+            new File(dir_, "bench").getAbsolutePath(), true, false, false);
+      store_.setStorage(storage_);
+      storage_.setSummaryMetadata(new DefaultSummaryMetadata.Builder()
+            .prefix("bench").build());
+      index_ = 0;
+   }
+
+   @TearDown(Level.Iteration)
+   public void closeStorage() {
+      storage_.finished();
+      storage_.close();
+      SyntheticImages.deleteRecursively(dir_);
+   }
+
+   @Benchmark
+   public void putImage() {
+      storage_.putImage(images_[index_]);
+      index_ = (index_ + 1) % NUM_IMAGES;
+   }
+}
@@ -0,0 +1,120 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Benchmarks
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.data.DatastoreFrozenException;
+import org.micromanager.data.DatastoreRewriteException;
+import org.micromanager.data.Image;
+import org.micromanager.data.PipelineErrorException;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultRewritableDatastore;
+import org.micromanager.data.internal.StorageRAM;
+import org.micromanager.data.internal.pipeline.DefaultPipeline;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the overhead of passing images through a DefaultPipeline into a
+ * RAM-backed Datastore. The processors do nothing but pass their input
+ * along, so this measures the cost of the pipeline machinery itself (and,
+ * for asynchronous pipelines, of handing images between threads).
+ *
+ * Asynchronous pipelines have bounded queues, so once they fill up,
+ * insertImage() runs at the rate the pipeline can drain images.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+   // Images are inserted at these timepoints over and over, so memory use
+   // stays constant.
+   private static final int NUM_IMAGES = 64;
+
+   /**
+    * Passes images through unchanged.
+    */
+   private static class PassThroughProcessor extends Processor {
+      @Override
+      public void processImage(Image image, ProcessorContext context) {
+         context.outputImage(image);
+      }
+   }
+
+   @Param({"0", "1", "2", "3"})
+   public int numProcessors;
+
+   @Param({"true", "false"})
+   public boolean isSynchronous;
+
+   @Param({"512"})
+   public int width;
+
+   private DefaultImage[] images_;
+   private DefaultRewritableDatastore store_;
+   private DefaultPipeline pipeline_;
+   private int index_;
+
+   @Setup(Level.Trial)
+   public void createImages() {
+      images_ = SyntheticImages.makeImages(NUM_IMAGES, width, 2);
+   }
+
+   @Setup(Level.Iteration)
+   public void createPipeline() {
+      store_ = new DefaultRewritableDatastore();
+      store_.setStorage(new StorageRAM(store_));
+      ArrayList<Processor> processors = new ArrayList<Processor>();
+      for (int i = 0; i < numProcessors; ++i) {
+         processors.add(new PassThroughProcessor());
+      }
+      pipeline_ = new DefaultPipeline(processors, store_, isSynchronous);
+      index_ = 0;
+   }
+
+   @TearDown(Level.Iteration)
+   public void haltPipeline() {
+      pipeline_.halt();
+      store_.close();
+   }
+
+   @Benchmark
+   public void insertImage() throws DatastoreFrozenException,
+         DatastoreRewriteException, PipelineErrorException {
+      pipeline_.insertImage(images_[index_]);
+      index_ = (index_ + 1) % NUM_IMAGES;
+   }
+}
@@ -0,0 +1,108 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Benchmarks
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.micromanager.data.Image;
+import org.micromanager.data.RewritableStorage;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultRewritableDatastore;
+import org.micromanager.data.internal.StorageOffHeapRAM;
+import org.micromanager.data.internal.StorageRAM;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures storing images in, and retrieving them from, the RAM-based
+ * storage used for unsaved acquisitions and live mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class RAMStorageBenchmark {
+   // Images are stored at these timepoints over and over, so memory use
+   // stays constant.
+   private static final int NUM_IMAGES = 64;
+
+   @Param({"StorageRAM", "StorageOffHeapRAM"})
+   public String storageType;
+
+   @Param({"512", "2048"})
+   public int width;
+
+   private DefaultImage[] images_;
+   private DefaultRewritableDatastore store_;
+   private RewritableStorage storage_;
+   private int index_;
+
+   @Setup(Level.Trial)
+   public void createImages() {
+      images_ = SyntheticImages.makeImages(NUM_IMAGES, width, 2);
+   }
+
+   @Setup(Level.Iteration)
+   public void createStorage() {
+      store_ = new DefaultRewritableDatastore();
+      if (storageType.equals("StorageRAM")) {
+         storage_ = new StorageRAM(store_);
+      }
+      else {
+         // Large enough that images are never moved to disk.
+         storage_ = new StorageOffHeapRAM(store_,
+               4L * NUM_IMAGES * width * width);
+      }
+      store_.setStorage(storage_);
+      for (DefaultImage image : images_) {
+         storage_.putImage(image);
+      }
+      index_ = 0;
+   }
+
+   @TearDown(Level.Iteration)
+   public void closeStorage() {
+      store_.close();
+   }
+
+   @Benchmark
+   public void putImage() {
+      storage_.putImage(images_[index_]);
+      index_ = (index_ + 1) % NUM_IMAGES;
+   }
+
+   @Benchmark
+   public Image getImage() {
+      Image result = storage_.getImage(images_[index_].getCoords());
+      index_ = (index_ + 1) % NUM_IMAGES;
+      return result;
+   }
+}
@@ -0,0 +1,140 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Benchmarks
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.benchmarks;
+
+import java.io.File;
+import mmcorej.TaggedImage;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultMetadata;
+import org.micromanager.internal.utils.MDUtils;
+
+/**
+ * Synthetic image sources shared by the benchmarks. Pixel values look like
+ * camera data (a background level plus noise, within a limited bit depth), so
+ * that histogram and compression costs are realistic, and tags look like
+ * what the core produces (including a large number of device properties), so
+ * that metadata handling costs are realistic. Nothing here requires a
+ * running Micro-Manager or any hardware.
+ */
+final class SyntheticImages {
+   // Number of device properties in the system state cache of a typical
+   // configuration.
+   static final int NUM_SCOPE_PROPERTIES = 200;
+
+   private SyntheticImages() {}
+
+   /**
+    * Generate pixel data for a single image.
+    * @param seed Varies the noise from image to image.
+    * @return byte[] for 1 byte per pixel, short[] for 2.
+    */
+   static Object makePixels(int width, int height, int bytesPerPixel,
+         int seed) {
+      int numPixels = width * height;
+      int bitDepth = bytesPerPixel == 1 ? 8 : 12;
+      int mask = (1 << bitDepth) - 1;
+      int background = 1 << (bitDepth - 3);
+      // Simple LCG; we only want noise, not good randomness.
+      int state = seed * 2654435 + 1;
+      if (bytesPerPixel == 1) {
+         byte[] bytes = new byte[numPixels];
+         for (int i = 0; i < numPixels; ++i) {
+            state = state * 1103515245 + 12345;
+            bytes[i] = (byte) ((background + ((state >>> 16) & 0x3f)) & mask);
+         }
+         return bytes;
+      }
+      short[] shorts = new short[numPixels];
+      for (int i = 0; i < numPixels; ++i) {
+         state = state * 1103515245 + 12345;
+         shorts[i] = (short) ((background + ((state >>> 16) & 0x1ff)) & mask);
+      }
+      return shorts;
+   }
+
+   /**
+    * Generate the given number of images, one per timepoint.
+    */
+   static DefaultImage[] makeImages(int count, int width, int bytesPerPixel) {
+      DefaultImage[] result = new DefaultImage[count];
+      Metadata metadata = new DefaultMetadata.Builder()
+         .bitDepth(bytesPerPixel == 1 ? 8 : 12).exposureMs(10.0).build();
+      for (int i = 0; i < count; ++i) {
+         result[i] = new DefaultImage(
+               makePixels(width, width, bytesPerPixel, i), width, width,
+               bytesPerPixel, 1, makeCoords(i), metadata);
+      }
+      return result;
+   }
+
+   static Coords makeCoords(int time) {
+      return new DefaultCoords.Builder().time(time).channel(0).z(0)
+         .stagePosition(0).build();
+   }
+
+   /**
+    * Generate a TaggedImage as the core would produce it during an
+    * acquisition, including system state cache values.
+    */
+   static TaggedImage makeTaggedImage(int width, int bytesPerPixel,
+         int index) throws JSONException {
+      JSONObject tags = new JSONObject();
+      MDUtils.setWidth(tags, width);
+      MDUtils.setHeight(tags, width);
+      MDUtils.setPixelTypeFromByteDepth(tags, bytesPerPixel);
+      MDUtils.setBitDepth(tags, bytesPerPixel == 1 ? 8 : 12);
+      MDUtils.setBinning(tags, 1);
+      MDUtils.setExposureMs(tags, 10.0);
+      MDUtils.setElapsedTimeMs(tags, index * 10.0);
+      MDUtils.setFrameIndex(tags, index);
+      MDUtils.setSliceIndex(tags, 0);
+      MDUtils.setChannelIndex(tags, 0);
+      MDUtils.setPositionIndex(tags, 0);
+      MDUtils.setPositionName(tags, "Pos0");
+      tags.put("Camera", "Camera");
+      tags.put("Core-Camera", "Camera");
+      JSONArray scopeKeys = new JSONArray();
+      for (int i = 0; i < NUM_SCOPE_PROPERTIES; ++i) {
+         String key = "Device" + (i / 10) + "-Property" + (i % 10);
+         scopeKeys.put(key);
+         // A few properties change from image to image (e.g. stage
+         // positions); most are constant.
+         tags.put(key, i < 3 ? Double.toString(index * .1 + i) : "Value" + i);
+      }
+      tags.put("StateCache-keys", scopeKeys);
+      return new TaggedImage(makePixels(width, width, bytesPerPixel, index),
+            tags);
+   }
+
+   static void deleteRecursively(File file) {
+      File[] children = file.listFiles();
+      if (children != null) {
+         for (File child : children) {
+            deleteRecursively(child);
+         }
+      }
+      file.delete();
+   }
+}
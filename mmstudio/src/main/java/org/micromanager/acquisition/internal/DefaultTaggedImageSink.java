@@ -61,7 +61,7 @@ public final class DefaultTaggedImageSink  {
                      }
                      try {
                         ++imageCount;
-                        DefaultImage image = new DefaultImage(tagged);
+                        DefaultImage image = DefaultImage.wrapCameraImage(tagged);
                         try {
                            pipeline_.insertImage(image);
                         }
@@ -52,7 +52,8 @@ import org.micromanager.data.Storage;
 import org.micromanager.data.internal.CommentsHelper;
 import org.micromanager.data.internal.DefaultDatastore;
 import org.micromanager.data.internal.DefaultSummaryMetadata;
-import org.micromanager.data.internal.StorageRAM;
+import org.micromanager.data.internal.StorageChunked;
+import org.micromanager.data.internal.StorageOffHeapRAM;
 import org.micromanager.data.internal.StorageSinglePlaneTiffSeries;
 import org.micromanager.data.internal.multipagetiff.StorageMultipageTiff;
 import org.micromanager.display.ControlsFactory;
@@ -108,7 +109,7 @@ public final class MMAcquisition {
                eng.stop(true);
             }
          } else {
-            store_.setStorage(new StorageRAM(store_));
+            store_.setStorage(StorageOffHeapRAM.createRAMStorage(store_));
          }
       }
       catch (JSONException e) {
@@ -362,6 +363,9 @@ public final class MMAcquisition {
       else if (mode == Datastore.SaveMode.MULTIPAGE_TIFF) {
          return new StorageMultipageTiff(store, path, isNew);
       }
+      else if (mode == Datastore.SaveMode.CHUNKED) {
+         return new StorageChunked(store, path, isNew);
+      }
       else {
          ReportingUtils.logError("Unrecognized save mode " + mode);
          return null;
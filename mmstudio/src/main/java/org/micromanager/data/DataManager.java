@@ -128,6 +128,21 @@ public interface DataManager {
     */
    public Datastore createSinglePlaneTIFFSeriesDatastore(String directory) throws IOException;
 
+   /**
+    * Generate a new, "blank" Datastore whose Storage is a directory of
+    * losslessly-compressed, chunked image planes (see
+    * Datastore.SaveMode.CHUNKED). As with the other file-backed Datastores,
+    * it is not managed by Micro-Manager by default, and its freeze() method
+    * must be called once all data has been added, so that all images are
+    * written to disk.
+    *
+    * @param directory Location on disk to store the files.
+    * @return an empty Datastore backed by disk in the form of compressed,
+    *         chunked files.
+    * @throws IOException If the directory already exists.
+    */
+   public Datastore createChunkedDatastore(String directory) throws IOException;
+
    /**
     * Given a path string, create a unique string with that name.  In short,
     * when creating a disk-backed datastore, you should use this method to
@@ -285,11 +300,13 @@ public interface DataManager {
     *        will block until the input Image has been "fully consumed" by
     *        the pipeline (any result Image(s) have been added to the Datastore
     *        the Pipeline is connected to). If false, then a separate thread
-    *        is created for each Processor in the Pipeline, in which that
-    *        Processor's work is done, and any call to Pipeline.insertImage()
-    *        will return as soon as the first processor in the pipeline begins
-    *        processing the image. The output images from the pipeline will
-    *        arrive in the Datastore at some indeterminate later time.
+    *        (or several, see Processor.getMaxThreads()) is created for each
+    *        Processor in the Pipeline, in which that Processor's work is
+    *        done, and any call to Pipeline.insertImage() will return as soon
+    *        as the first processor in the pipeline has room in its queue (see
+    *        Processor.getQueueDepth()) for the image. The output images from
+    *        the pipeline will arrive in the Datastore at some indeterminate
+    *        later time, in the order the input images were inserted.
     * @return a Pipeline containing Processors as specified by the input
     *         factories.
     */
@@ -269,13 +269,17 @@ public interface Datastore extends Closeable {
     * separate file; 
     * MULTIPAGE_TIFF saves all images together in a single file (up to a 
     * limit of 4GB/file, after which point the images will be split into 
-    * a second file).
+    * a second file);
+    * CHUNKED saves each 2D image plane as a separate file, divided into
+    * independently-compressed chunks, which allows sub-regions of images to
+    * be read efficiently.
     * 
     * This enum will likely be expanded in the future
     */
    public enum SaveMode {
       SINGLEPLANE_TIFF_SERIES,
-      MULTIPAGE_TIFF
+      MULTIPAGE_TIFF,
+      CHUNKED
    }
 
    /**
@@ -140,4 +140,58 @@ public interface Pipeline {
     * Return the list of Processors used by this Pipeline.
     */
    public List<Processor> getProcessors();
+
+   /**
+    * Performance statistics for a single stage of a Pipeline (i.e. a single
+    * Processor and the queue of images waiting for it).
+    */
+   public interface StageStats {
+      /**
+       * @return the Processor for this stage
+       */
+      public Processor getProcessor();
+
+      /**
+       * @return the number of images this stage has finished processing
+       */
+      public long getNumImagesProcessed();
+
+      /**
+       * @return the mean time spent processing each image, in milliseconds
+       */
+      public double getMeanLatencyMs();
+
+      /**
+       * @return the longest time taken by a single call to processImage()
+       *         or processImages(), in milliseconds
+       */
+      public double getMaxLatencyMs();
+
+      /**
+       * @return the number of images currently waiting to be processed.
+       *         Always 0 for synchronous Pipelines.
+       */
+      public int getQueueSize();
+
+      /**
+       * @return the maximum number of images that may wait to be processed.
+       *         Always 0 for synchronous Pipelines.
+       */
+      public int getQueueCapacity();
+
+      /**
+       * @return the number of threads processing images for this stage.
+       *         Always 0 for synchronous Pipelines, where images are
+       *         processed on the thread that inserts them.
+       */
+      public int getNumThreads();
+   }
+
+   /**
+    * Return performance statistics for each stage of the Pipeline, in the
+    * same order as getProcessors(). The statistics are a snapshot taken when
+    * this method is called.
+    * @return list of statistics, one per Processor
+    */
+   public List<StageStats> getStageStats();
 }
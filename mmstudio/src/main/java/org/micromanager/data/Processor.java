@@ -20,6 +20,8 @@
 
 package org.micromanager.data;
 
+import java.util.List;
+
 /**
  * Processors manipulate images before they are added to a Datastore. They
  * are arranged into a sequence by a Pipeline.
@@ -52,6 +54,60 @@ public abstract class Processor {
     */
    public abstract void processImage(Image image, ProcessorContext context);
 
+   /**
+    * Process several Images at once. This is only called in asynchronous
+    * Pipelines, and only if getMaxBatchSize() returns more than 1; it
+    * receives whichever images are waiting to be processed, in the order
+    * they were inserted, up to that many. Processors that can work more
+    * efficiently on groups of images (e.g. by amortizing per-call overhead)
+    * can override this method. The default implementation calls
+    * processImage() on each image in turn.
+    * @param images input Images, in order
+    * @param context ProcessorContext to be used to hand the processed images
+    *        to
+    */
+   public void processImages(List<Image> images, ProcessorContext context) {
+      for (Image image : images) {
+         processImage(image, context);
+      }
+   }
+
+   /**
+    * Return the maximum number of images to pass to a single call to
+    * processImages(). The default implementation returns 1, so
+    * processImage() is always used.
+    * @return maximum number of images to process in one call
+    */
+   public int getMaxBatchSize() {
+      return 1;
+   }
+
+   /**
+    * Return the maximum number of threads that may call processImage() (or
+    * processImages()) concurrently, in asynchronous Pipelines. Processors
+    * that are stateless (each output image depends only on the image being
+    * processed) and thread-safe can return a number greater than 1 to have
+    * their work spread across several threads; the Pipeline still outputs
+    * images in the order that their inputs were received. The default
+    * implementation returns 1.
+    * @return maximum number of threads to use for this Processor
+    */
+   public int getMaxThreads() {
+      return 1;
+   }
+
+   /**
+    * Return the number of images that may be waiting to be processed by this
+    * Processor in asynchronous Pipelines, before inserting further images
+    * blocks. A larger queue lets the Pipeline absorb bursts of images when
+    * processing is slow, at the cost of memory. The default implementation
+    * returns 1.
+    * @return maximum number of images waiting for this Processor
+    */
+   public int getQueueDepth() {
+      return 1;
+   }
+
    /**
     * Clean up when processing is finished. At this time no more images are
     * going to be sent to the processImage method. The ProcessorContext is
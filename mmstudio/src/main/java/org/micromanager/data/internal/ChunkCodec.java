@@ -0,0 +1,136 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API implementation
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.data.internal;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Lossless compression for the chunks stored by StorageChunked. Multi-byte
+ * samples are first "shuffled" so that all of their low bytes come first,
+ * followed by all of their high bytes; for typical camera images the high
+ * bytes are nearly constant, so this makes the data much more compressible.
+ * The result is then compressed with deflate at its fastest setting.
+ *
+ * Instances are not thread-safe, as they hold on to their Deflater, Inflater,
+ * and scratch space between calls.
+ */
+final class ChunkCodec {
+   // Codec IDs as stored in the chunk table.
+   static final int RAW = 0;
+   static final int SHUFFLE_DEFLATE = 1;
+
+   private final Deflater deflater_ = new Deflater(Deflater.BEST_SPEED);
+   private final Inflater inflater_ = new Inflater();
+   private byte[] scratch_ = new byte[0];
+
+   /**
+    * Compress the first length bytes of input into output.
+    * @param elementSize Size, in bytes, of each sample.
+    * @return Number of bytes of output used, or -1 if the data does not
+    *         compress to less than its original size (in which case it
+    *         should be stored RAW).
+    */
+   int compress(byte[] input, int length, int elementSize, byte[] output) {
+      byte[] source = input;
+      if (elementSize > 1) {
+         source = getScratch(length);
+         shuffle(input, source, length, elementSize);
+      }
+      deflater_.reset();
+      deflater_.setInput(source, 0, length);
+      deflater_.finish();
+      int limit = Math.min(length, output.length);
+      int numBytes = 0;
+      while (!deflater_.finished() && numBytes < limit) {
+         numBytes += deflater_.deflate(output, numBytes, limit - numBytes);
+      }
+      if (!deflater_.finished()) {
+         return -1;
+      }
+      return numBytes;
+   }
+
+   /**
+    * Reverse compress().
+    * @param length Number of bytes of compressed input.
+    * @param outputLength Number of bytes expected after decompression.
+    */
+   void decompress(byte[] input, int length, int elementSize,
+         byte[] output, int outputLength) throws DataFormatException {
+      byte[] dest = output;
+      if (elementSize > 1) {
+         dest = getScratch(outputLength);
+      }
+      inflater_.reset();
+      inflater_.setInput(input, 0, length);
+      int numBytes = 0;
+      while (numBytes < outputLength) {
+         int count = inflater_.inflate(dest, numBytes,
+               outputLength - numBytes);
+         if (count == 0 && (inflater_.finished() ||
+                  inflater_.needsInput() || inflater_.needsDictionary())) {
+            throw new DataFormatException("Chunk decompressed to " +
+                  numBytes + " bytes; expected " + outputLength);
+         }
+         numBytes += count;
+      }
+      if (elementSize > 1) {
+         unshuffle(dest, output, outputLength, elementSize);
+      }
+   }
+
+   private byte[] getScratch(int length) {
+      if (scratch_.length < length) {
+         scratch_ = new byte[length];
+      }
+      return scratch_;
+   }
+
+   /**
+    * Reorder bytes so that byte i of every element comes before byte i + 1
+    * of any element. Any trailing partial element is copied as-is.
+    */
+   static void shuffle(byte[] input, byte[] output, int length,
+         int elementSize) {
+      int numElements = length / elementSize;
+      for (int b = 0; b < elementSize; ++b) {
+         int dest = b * numElements;
+         for (int i = b; i < numElements * elementSize; i += elementSize) {
+            output[dest++] = input[i];
+         }
+      }
+      int tail = numElements * elementSize;
+      System.arraycopy(input, tail, output, tail, length - tail);
+   }
+
+   static void unshuffle(byte[] input, byte[] output, int length,
+         int elementSize) {
+      int numElements = length / elementSize;
+      for (int b = 0; b < elementSize; ++b) {
+         int src = b * numElements;
+         for (int i = b; i < numElements * elementSize; i += elementSize) {
+            output[i] = input[src++];
+         }
+      }
+      int tail = numElements * elementSize;
+      System.arraycopy(input, tail, output, tail, length - tail);
+   }
+}
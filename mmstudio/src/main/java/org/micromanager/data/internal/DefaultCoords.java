@@ -21,10 +21,9 @@
 package org.micromanager.data.internal;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.data.Coords;
@@ -34,18 +33,96 @@ import org.micromanager.internal.utils.ReportingUtils;
 /**
  * DefaultCoords indicate the position of a given image within a dataset.
  * They are immutable, constructed using a Builder pattern.
+ *
+ * Since Coords are created for every image and are the keys of our image
+ * storage, they are kept compact: axes are referred to by number, from a
+ * registry of all axis names in use, and the axis numbers and indices are
+ * kept in arrays sorted by axis name.
  */
 public final class DefaultCoords implements Coords, Comparable<DefaultCoords> {
 
+   /**
+    * Largest index along each of the standard axes that fits in a packed
+    * key (see getPackedKey()).
+    */
+   public static final int MAX_PACKABLE_INDEX = 0xfffe - 1;
+   /**
+    * Returned by getPackedKey() for Coords that can't be packed. Equal to
+    * -1, which no packable Coords has as its key.
+    */
+   public static final long NOT_PACKABLE = -1L;
+
+   // Axis names, in the order that they were first used. Axes are only ever
+   // added, and axisNames_ is replaced rather than modified, so it can be
+   // read without locking.
+   private static final ConcurrentHashMap<String, Integer> AXIS_IDS =
+      new ConcurrentHashMap<String, Integer>();
+   private static volatile String[] axisNames_ = new String[0];
+
+   private static final int CHANNEL_ID = getAxisId(Coords.CHANNEL);
+   private static final int Z_ID = getAxisId(Coords.Z);
+   private static final int TIME_ID = getAxisId(Coords.TIME);
+   private static final int STAGE_POSITION_ID = getAxisId(Coords.STAGE_POSITION);
+
+   private static int getAxisId(String axis) {
+      Integer id = AXIS_IDS.get(axis);
+      if (id != null) {
+         return id;
+      }
+      synchronized (AXIS_IDS) {
+         id = AXIS_IDS.get(axis);
+         if (id == null) {
+            id = axisNames_.length;
+            String[] names = Arrays.copyOf(axisNames_, id + 1);
+            names[id] = axis;
+            axisNames_ = names;
+            AXIS_IDS.put(axis, id);
+         }
+         return id;
+      }
+   }
+
+   /**
+    * Insert axis into the name-sorted arrays of axis IDs and indices, which
+    * have room for one more entry, and return the position that it was
+    * inserted at, or return the position of the axis if it is already
+    * present.
+    */
+   private static int findOrInsert(int[] axisIds, int[] indices,
+         int numAxes, int axisId) {
+      String[] names = axisNames_;
+      String axis = names[axisId];
+      int i = 0;
+      for (; i < numAxes; ++i) {
+         if (axisIds[i] == axisId) {
+            return i;
+         }
+         if (names[axisIds[i]].compareTo(axis) > 0) {
+            break;
+         }
+      }
+      System.arraycopy(axisIds, i, axisIds, i + 1, numAxes - i);
+      System.arraycopy(indices, i, indices, i + 1, numAxes - i);
+      axisIds[i] = axisId;
+      return i;
+   }
+
    public static class Builder implements Coords.CoordsBuilder {
-      // Maps axis labels to our index along those axes.
-      private HashMap<String, Integer> axisToPos_;
-      // Convenience/optimization: we maintain a sorted list of our axes.
-      private ArrayList<String> sortedAxes_;
+      // Axis IDs and our indices along those axes, sorted by axis name.
+      private int[] axisIds_;
+      private int[] indices_;
+      private int numAxes_;
 
       public Builder() {
-         axisToPos_ = new HashMap<String, Integer>();
-         sortedAxes_ = new ArrayList<String>();
+         axisIds_ = new int[4];
+         indices_ = new int[4];
+         numAxes_ = 0;
+      }
+
+      private Builder(DefaultCoords coords) {
+         numAxes_ = coords.axisIds_.length;
+         axisIds_ = Arrays.copyOf(coords.axisIds_, numAxes_ + 1);
+         indices_ = Arrays.copyOf(coords.indices_, numAxes_ + 1);
       }
 
       @Override
@@ -55,46 +132,60 @@ public final class DefaultCoords implements Coords, Comparable<DefaultCoords> {
 
       @Override
       public CoordsBuilder time(int time) {
-         return index(Coords.TIME, time);
+         return index(TIME_ID, time);
       }
 
       @Override
       public CoordsBuilder channel(int channel) {
-         return index(Coords.CHANNEL, channel);
+         return index(CHANNEL_ID, channel);
       }
 
       @Override
       public CoordsBuilder stagePosition(int stagePosition) {
-         return index(Coords.STAGE_POSITION, stagePosition);
+         return index(STAGE_POSITION_ID, stagePosition);
       }
 
       @Override
       public CoordsBuilder z(int z) {
-         return index(Coords.Z, z);
+         return index(Z_ID, z);
       }
       
       @Override
       public CoordsBuilder index(String axis, int index) {
-         if (index < 0 && axisToPos_.containsKey(axis)) {
+         return index(getAxisId(axis), index);
+      }
+
+      private CoordsBuilder index(int axisId, int index) {
+         int pos = indexOf(axisId);
+         if (index < 0 && pos >= 0) {
             // Delete the axis instead.
-            axisToPos_.remove(axis);
-            sortedAxes_.remove(axis);
+            System.arraycopy(axisIds_, pos + 1, axisIds_, pos, numAxes_ - pos - 1);
+            System.arraycopy(indices_, pos + 1, indices_, pos, numAxes_ - pos - 1);
+            numAxes_--;
             return this;
          }
 
-         axisToPos_.put(axis, new Integer(index));
-         if (!sortedAxes_.contains(axis)) {
-            sortedAxes_.add(axis);
-            try {
-               Collections.sort(sortedAxes_);
-            }
-            catch (UnsupportedOperationException e) {
-               ReportingUtils.logError(e, "Unable to sort coordinate axes");
+         if (pos < 0) {
+            if (numAxes_ == axisIds_.length) {
+               axisIds_ = Arrays.copyOf(axisIds_, 2 * numAxes_);
+               indices_ = Arrays.copyOf(indices_, 2 * numAxes_);
             }
+            pos = findOrInsert(axisIds_, indices_, numAxes_, axisId);
+            numAxes_++;
          }
+         indices_[pos] = index;
          return this;
       }
 
+      private int indexOf(int axisId) {
+         for (int i = 0; i < numAxes_; ++i) {
+            if (axisIds_[i] == axisId) {
+               return i;
+            }
+         }
+         return -1;
+      }
+
       @Override
       public CoordsBuilder removeAxis(String axis) {
          return index(axis, -1);
@@ -102,63 +193,109 @@ public final class DefaultCoords implements Coords, Comparable<DefaultCoords> {
 
       @Override
       public CoordsBuilder offset(String axis, int offset) throws IllegalArgumentException {
-         if (!axisToPos_.containsKey(axis)) {
+         int pos = indexOf(getAxisId(axis));
+         if (pos < 0) {
             throw new IllegalArgumentException("Axis " + axis + " is not a part of this CoordsBuilder.");
          }
-         int curVal = axisToPos_.get(axis);
+         int curVal = indices_[pos];
          if (curVal + offset < 0) {
             throw new IllegalArgumentException("Adding offset " + offset + " to current index " + curVal + " for axis " + axis + " would result in a negative index.");
          }
-         index(axis, curVal + offset);
+         indices_[pos] = curVal + offset;
          return this;
       }
    }
 
-   // Maps axis labels to our index along those axes.
-   private HashMap<String, Integer> axisToPos_;
-   // Convenience/optimization: we maintain a sorted list of our axes.
-   private ArrayList<String> sortedAxes_;
+   // Axis IDs and our indices along those axes, sorted by axis name.
+   private final int[] axisIds_;
+   private final int[] indices_;
+   // Cached, since we are used as a hash key.
+   private final int hashCode_;
+   private final long packedKey_;
 
    public DefaultCoords(Builder builder) {
-      axisToPos_ = new HashMap<String, Integer>(builder.axisToPos_);
-      sortedAxes_ = new ArrayList<String>(builder.sortedAxes_);
+      axisIds_ = Arrays.copyOf(builder.axisIds_, builder.numAxes_);
+      indices_ = Arrays.copyOf(builder.indices_, builder.numAxes_);
+      String[] names = axisNames_;
+      int result = 0;
+      int multiplier = 23; // Semi-randomly-chosen prime number
+      for (int i = 0; i < axisIds_.length; ++i) {
+         result = result * multiplier + names[axisIds_[i]].hashCode();
+         result = result * multiplier + indices_[i];
+      }
+      hashCode_ = result;
+      packedKey_ = packKey(getIndex(CHANNEL_ID), getIndex(Z_ID),
+            getIndex(TIME_ID), getIndex(STAGE_POSITION_ID), axisIds_.length);
+   }
+
+   private int getIndex(int axisId) {
+      for (int i = 0; i < axisIds_.length; ++i) {
+         if (axisIds_[i] == axisId) {
+            return indices_[i];
+         }
+      }
+      return -1;
    }
    
    @Override
    public int getIndex(String axis) {
-      if (axisToPos_.containsKey(axis)) {
-         return axisToPos_.get(axis);
+      Integer axisId = AXIS_IDS.get(axis);
+      if (axisId == null) {
+         // No Coords has ever had this axis.
+         return -1;
       }
-      return -1;
+      return getIndex(axisId.intValue());
    }
 
    @Override
    public int getChannel() {
-      return getIndex(Coords.CHANNEL);
+      return getIndex(CHANNEL_ID);
    }
    
    @Override
    public int getTime() {
-      return getIndex(Coords.TIME);
+      return getIndex(TIME_ID);
    }
 
    @Override
    public int getZ() {
-      return getIndex(Coords.Z);
+      return getIndex(Z_ID);
    }
 
    @Override
    public int getStagePosition() {
-      return getIndex(Coords.STAGE_POSITION);
+      return getIndex(STAGE_POSITION_ID);
    }
    
    @Override
    public List<String> getAxes() {
-      return new ArrayList<String>(sortedAxes_);
+      String[] names = axisNames_;
+      ArrayList<String> result = new ArrayList<String>(axisIds_.length);
+      for (int axisId : axisIds_) {
+         result.add(names[axisId]);
+      }
+      return result;
+   }
+
+   /**
+    * @return the number of axes, without building the list that getAxes()
+    * returns
+    */
+   public int getNumAxes() {
+      return axisIds_.length;
    }
 
    @Override
    public boolean matches(Coords alt) {
+      if (alt instanceof DefaultCoords) {
+         DefaultCoords other = (DefaultCoords) alt;
+         for (int i = 0; i < other.axisIds_.length; ++i) {
+            if (getIndex(other.axisIds_[i]) != other.indices_[i]) {
+               return false;
+            }
+         }
+         return true;
+      }
       for (String axis : alt.getAxes()) {
          if (getIndex(axis) != alt.getIndex(axis)) {
             return false;
@@ -169,11 +306,71 @@ public final class DefaultCoords implements Coords, Comparable<DefaultCoords> {
 
    @Override
    public CoordsBuilder copy() {
-      Builder result = new Builder();
-      for (String axis : axisToPos_.keySet()) {
-         result.index(axis, axisToPos_.get(axis));
+      return new Builder(this);
+   }
+
+   /**
+    * Return our channel, z, time, and stage position indices packed into a
+    * long, 16 bits each (in that order, channel in the high bits), for
+    * storage that wants to index images without keeping Coords around.
+    * Each index is offset by 1, so that 0 means the axis is absent.
+    * @return the packed key, or NOT_PACKABLE if we have axes other than the
+    * standard four, or an index greater than MAX_PACKABLE_INDEX
+    */
+   public long getPackedKey() {
+      return packedKey_;
+   }
+
+   /**
+    * As getPackedKey(), for any Coords.
+    */
+   public static long packKey(Coords coords) {
+      if (coords instanceof DefaultCoords) {
+         return ((DefaultCoords) coords).packedKey_;
       }
-      return result;
+      return packKey(coords.getChannel(), coords.getZ(), coords.getTime(),
+            coords.getStagePosition(), coords.getAxes().size());
+   }
+
+   private static long packKey(int channel, int z, int time,
+         int stagePosition, int numAxes) {
+      int numStandardAxes = (channel >= 0 ? 1 : 0) + (z >= 0 ? 1 : 0) +
+         (time >= 0 ? 1 : 0) + (stagePosition >= 0 ? 1 : 0);
+      if (numStandardAxes != numAxes) {
+         // Coords has axes that can't be packed.
+         return NOT_PACKABLE;
+      }
+      return packKey(channel, z, time, stagePosition);
+   }
+
+   /**
+    * Pack the given indices, any of which may be -1 for an absent axis, as
+    * getPackedKey() does.
+    */
+   public static long packKey(int channel, int z, int time, int stagePosition) {
+      if (channel > MAX_PACKABLE_INDEX || z > MAX_PACKABLE_INDEX ||
+            time > MAX_PACKABLE_INDEX || stagePosition > MAX_PACKABLE_INDEX) {
+         return NOT_PACKABLE;
+      }
+      return ((long) (Math.max(channel, -1) + 1) << 48) |
+         ((long) (Math.max(z, -1) + 1) << 32) |
+         ((long) (Math.max(time, -1) + 1) << 16) |
+         (Math.max(stagePosition, -1) + 1);
+   }
+
+   /**
+    * Inverse of getPackedKey().
+    */
+   public static DefaultCoords fromPackedKey(long key) {
+      Builder builder = new Builder();
+      int[] axisIds = new int[] {CHANNEL_ID, Z_ID, TIME_ID, STAGE_POSITION_ID};
+      for (int i = 0; i < 4; ++i) {
+         int index = (int) ((key >>> (48 - 16 * i)) & 0xffff) - 1;
+         if (index >= 0) {
+            builder.index(axisIds[i], index);
+         }
+      }
+      return builder.build();
    }
 
    /**
@@ -184,9 +381,9 @@ public final class DefaultCoords implements Coords, Comparable<DefaultCoords> {
     */
    @Override
    public int compareTo(DefaultCoords alt) {
-      for (String axis : sortedAxes_) {
-         int ourPosition = getIndex(axis);
-         int altPosition = alt.getIndex(axis);
+      for (int i = 0; i < axisIds_.length; ++i) {
+         int ourPosition = indices_[i];
+         int altPosition = alt.getIndex(axisIds_[i]);
          if (altPosition == -1) {
             // They have no index along this axis, so we come first.
             return -1;
@@ -207,13 +404,7 @@ public final class DefaultCoords implements Coords, Comparable<DefaultCoords> {
     */
    @Override
    public int hashCode() {
-      int result = 0;
-      int multiplier = 23; // Semi-randomly-chosen prime number
-      for (String axis : sortedAxes_) {
-         result = result * multiplier + axis.hashCode();
-         result = result * multiplier + getIndex(axis);
-      }
-      return result;
+      return hashCode_;
    }
 
    /**
@@ -221,14 +412,17 @@ public final class DefaultCoords implements Coords, Comparable<DefaultCoords> {
     */
    @Override
    public boolean equals(Object alt) {
-      if (!(alt instanceof DefaultCoords) || 
-            compareTo((DefaultCoords) alt) != 0) {
+      if (alt == this) {
+         return true;
+      }
+      if (!(alt instanceof DefaultCoords)) {
          return false;
       }
-      // Manually verify that we have the same set of axes.
-      HashSet<String> ourAxes = new HashSet<String>(sortedAxes_);
-      HashSet<String> altAxes = new HashSet<String>(((DefaultCoords) alt).getAxes());
-      return ourAxes.equals(altAxes);
+      DefaultCoords other = (DefaultCoords) alt;
+      // Axes are sorted, so equal Coords have identical arrays.
+      return hashCode_ == other.hashCode_ &&
+         Arrays.equals(axisIds_, other.axisIds_) &&
+         Arrays.equals(indices_, other.indices_);
    }
 
    /**
@@ -237,12 +431,13 @@ public final class DefaultCoords implements Coords, Comparable<DefaultCoords> {
    public String toString() {
       String result = "<";
       boolean isFirst = true;
-      for (String axis : sortedAxes_) {
+      String[] names = axisNames_;
+      for (int i = 0; i < axisIds_.length; ++i) {
          if (!isFirst) {
             result += ", ";
          }
          isFirst = false;
-         result += String.format("%s: %d", axis, getIndex(axis));
+         result += String.format("%s: %d", names[axisIds_[i]], indices_[i]);
       }
       result += ">";
       return result;
@@ -297,10 +492,10 @@ public final class DefaultCoords implements Coords, Comparable<DefaultCoords> {
     */
    public String toNormalizedString() {
       String result = "";
-      ArrayList<String> axes = new ArrayList<String>(axisToPos_.keySet());
-      Collections.sort(axes);
-      for (String axis : axes) {
-         result += String.format("%s=%d,", axis, axisToPos_.get(axis));
+      String[] names = axisNames_;
+      // Our axes are already sorted.
+      for (int i = 0; i < axisIds_.length; ++i) {
+         result += String.format("%s=%d,", names[axisIds_[i]], indices_[i]);
       }
       return result;
    }
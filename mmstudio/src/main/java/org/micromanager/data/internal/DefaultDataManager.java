@@ -107,6 +107,13 @@ public final class DefaultDataManager implements DataManager {
       return result;
    }
 
+   @Override
+   public Datastore createChunkedDatastore(String directory) throws IOException {
+      DefaultDatastore result = new DefaultDatastore();
+      result.setStorage(new StorageChunked(result, directory, true));
+      return result;
+   }
+
    @Override
    public String getUniqueSaveDirectory(String path) {
       if (path == null) {
@@ -168,10 +175,13 @@ public final class DefaultDataManager implements DataManager {
       }
       DefaultDatastore result = new DefaultDatastore();
       // TODO: future additional file formats will need to be handled here.
-      // For now we just choose between StorageMultipageTiff and
-      // StorageSinglePlaneTiffSeries.
+      // For now we just choose between StorageChunked, StorageMultipageTiff,
+      // and StorageSinglePlaneTiffSeries.
       boolean isMultipageTiff = MultipageTiffReader.isMMMultipageTiff(directory);
-      if (isMultipageTiff) {
+      if (StorageChunked.isChunkedDataset(directory)) {
+         result.setStorage(new StorageChunked(result, directory, false));
+      }
+      else if (isMultipageTiff) {
          result.setStorage(new StorageMultipageTiff(result, directory, false));
       }
       else {
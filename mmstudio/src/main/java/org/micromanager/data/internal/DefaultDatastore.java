@@ -65,11 +65,14 @@ public class DefaultDatastore implements Datastore {
 
    private static final String SINGLEPLANE_TIFF_SERIES = "Separate Image Files";
    private static final String MULTIPAGE_TIFF = "Image Stack File";
+   private static final String CHUNKED = "Compressed Chunked Files";
    // FileFilters for saving.
    private static final FileFilter singleplaneFilter_ = new SaveFileFilter(
          SINGLEPLANE_TIFF_SERIES);
    private static final FileFilter multipageFilter_ = new SaveFileFilter(
          MULTIPAGE_TIFF);
+   private static final FileFilter chunkedFilter_ = new SaveFileFilter(
+         CHUNKED);
 
    private static final String PREFERRED_SAVE_FORMAT = "default format for saving data";
    protected Storage storage_ = null;
@@ -116,6 +119,14 @@ public class DefaultDatastore implements Datastore {
       storage_ = storage;
    }
 
+   /**
+    * Return the Storage that holds our images, e.g. so that callers can tell
+    * whether retrieving images requires disk access.
+    */
+   public Storage getStorage() {
+      return storage_;
+   }
+
    /**
     * Registers objects at default priority levels.
     */
@@ -128,6 +139,24 @@ public class DefaultDatastore implements Datastore {
       bus_.register(obj, priority);
    }
 
+   /**
+    * Registers an object with the specified delivery mode. Objects that do
+    * slow work in response to events (such as updating the display) should
+    * use one of the asynchronous modes, so that they don't slow down the
+    * thread that is adding images.
+    */
+   public void registerForEvents(Object obj, int priority,
+         PrioritizedEventBus.Delivery delivery) {
+      bus_.register(obj, priority, delivery);
+   }
+
+   /**
+    * @return statistics on how long each subscriber takes to handle events
+    */
+   public List<PrioritizedEventBus.SubscriberStats> getEventStats() {
+      return bus_.getSubscriberStats();
+   }
+
    @Override
    public void unregisterForEvents(Object obj) {
       bus_.unregister(obj);
@@ -339,9 +368,13 @@ public class DefaultDatastore implements Datastore {
       chooser.setAcceptAllFileFilterUsed(false);
       chooser.addChoosableFileFilter(singleplaneFilter_);
       chooser.addChoosableFileFilter(multipageFilter_);
+      chooser.addChoosableFileFilter(chunkedFilter_);
       if (getPreferredSaveMode().equals(Datastore.SaveMode.MULTIPAGE_TIFF)) {
          chooser.setFileFilter(multipageFilter_);
       }
+      else if (getPreferredSaveMode().equals(Datastore.SaveMode.CHUNKED)) {
+         chooser.setFileFilter(chunkedFilter_);
+      }
       else {
          chooser.setFileFilter(singleplaneFilter_);
       }
@@ -364,6 +397,9 @@ public class DefaultDatastore implements Datastore {
       else if (filter == multipageFilter_) {
          mode = Datastore.SaveMode.MULTIPAGE_TIFF;
       }
+      else if (filter == chunkedFilter_) {
+         mode = Datastore.SaveMode.CHUNKED;
+      }
       else {
          ReportingUtils.logError("Unrecognized file format filter " +
                filter.getDescription());
@@ -401,6 +437,9 @@ public class DefaultDatastore implements Datastore {
          else if (mode == Datastore.SaveMode.SINGLEPLANE_TIFF_SERIES) {
             saver = new StorageSinglePlaneTiffSeries(duplicate, path, true);
          }
+         else if (mode == Datastore.SaveMode.CHUNKED) {
+            saver = new StorageChunked(duplicate, path, true);
+         }
          else {
             throw new IllegalArgumentException("Unrecognized mode parameter " + mode);
          }
@@ -493,6 +532,9 @@ public class DefaultDatastore implements Datastore {
       else if (modeStr.equals(SINGLEPLANE_TIFF_SERIES)) {
          return Datastore.SaveMode.SINGLEPLANE_TIFF_SERIES;
       }
+      else if (modeStr.equals(CHUNKED)) {
+         return Datastore.SaveMode.CHUNKED;
+      }
       else {
          ReportingUtils.logError("Unrecognized save mode " + modeStr);
          return null;
@@ -507,6 +549,9 @@ public class DefaultDatastore implements Datastore {
       else if (mode == Datastore.SaveMode.SINGLEPLANE_TIFF_SERIES) {
          modeStr = SINGLEPLANE_TIFF_SERIES;
       }
+      else if (mode == Datastore.SaveMode.CHUNKED) {
+         modeStr = CHUNKED;
+      }
       else {
          ReportingUtils.logError("Unrecognized save mode " + mode);
       }
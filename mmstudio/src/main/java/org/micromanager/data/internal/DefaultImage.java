@@ -20,6 +20,7 @@
 
 package org.micromanager.data.internal;
 
+import com.google.common.base.Supplier;
 import ij.ImagePlus;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
@@ -58,7 +59,10 @@ import org.micromanager.internal.utils.ReportingUtils;
 public final class DefaultImage implements Image {
    private static final String COORDS_TAG = "completeCoords";
 
-   private final DefaultMetadata metadata_;
+   // Null until first requested, for images created with a metadata
+   // Supplier; see getMetadata().
+   private volatile DefaultMetadata metadata_;
+   private Supplier<? extends Metadata> metadataSupplier_;
    private final Coords coords_;
 
    // A buffer containing the pixel data. For now, only the following formats
@@ -69,6 +73,8 @@ public final class DefaultImage implements Image {
    //           sample order BGRA (A component not used)
    // At this time, this RGB format matches what MMCore produces.
    private final Buffer rawPixels_;
+   // The same pixel data as rawPixels_, viewed as (native-order) bytes.
+   private final ByteBuffer rawPixelBytes_;
 
    // Width of the image, in pixels
    int pixelWidth_;
@@ -107,24 +113,44 @@ public final class DefaultImage implements Image {
     */
    public DefaultImage(TaggedImage tagged, Coords coords, Metadata metadata)
          throws JSONException, IllegalArgumentException {
+      this(tagged, coords, metadata, null);
+   }
+
+   /**
+    * Generate a DefaultImage from a TaggedImage that the camera has just
+    * produced. Unlike the TaggedImage constructor, the tags are not converted
+    * into Metadata until getMetadata() is first called, so images that are
+    * only displayed, or stored without their metadata being examined, never
+    * pay for that conversion. The tags must not be modified afterwards.
+    */
+   public static DefaultImage wrapCameraImage(TaggedImage tagged)
+         throws JSONException, IllegalArgumentException {
+      final JSONObject tags = tagged.tags;
+      // The current camera must be determined now, as it may be different
+      // by the time the metadata is requested.
+      final String camera = getCurrentCameraIfMissing(tags);
+      return new DefaultImage(tagged, null, null, new Supplier<Metadata>() {
+         @Override
+         public Metadata get() {
+            return metadataFromTags(tags, camera);
+         }
+      });
+   }
+
+   private DefaultImage(TaggedImage tagged, Coords coords, Metadata metadata,
+         Supplier<? extends Metadata> metadataSupplier)
+         throws JSONException, IllegalArgumentException {
       JSONObject tags = tagged.tags;
-      if (metadata == null) {
-         metadata = DefaultMetadata.legacyFromJSON(tags);
-         // HACK: assume that this Image was generated by the current hardware,
-         // and attempt to recover the scopeData and Camera properties (which
-         // depends on the current device adapters).
-         // HACK: assume all remaining properties are user data.
-         // TODO: this means that the data layer depends on MMStudio.
-         DefaultPropertyMap scopeData = (DefaultPropertyMap) MDUtils.extractScopeData(tags);
-         PropertyMap userData = MDUtils.extractUserData(tags,
-               scopeData.getKeys());
-         String camera = metadata.getCamera();
-         if (camera == null) {
-            camera = MMStudio.getInstance().getCore().getCameraDevice();
+      if (metadataSupplier != null) {
+         metadataSupplier_ = metadataSupplier;
+      }
+      else {
+         if (metadata == null) {
+            metadata = metadataFromTags(tags,
+                  getCurrentCameraIfMissing(tags));
          }
-         metadata = metadata.copy().scopeData(scopeData).userData(userData).camera(camera).build();
+         metadata_ = (DefaultMetadata) metadata;
       }
-      metadata_ = (DefaultMetadata) metadata;
 
       if (coords == null) {
          DefaultCoords.Builder cBuilder = new DefaultCoords.Builder();
@@ -148,7 +174,8 @@ public final class DefaultImage implements Image {
       }
       coords_ = coords;
 
-      rawPixels_ = DirectBuffers.bufferFromArray(tagged.pix);
+      rawPixelBytes_ = DirectBuffers.byteBufferFromArray(tagged.pix);
+      rawPixels_ = DirectBuffers.typedView(rawPixelBytes_, tagged.pix);
       if (rawPixels_.capacity() == 0) {
          throw new IllegalArgumentException("Pixel data has length 0.");
       }
@@ -159,6 +186,38 @@ public final class DefaultImage implements Image {
       numComponents_ = MDUtils.getNumberOfComponents(tags);
    }
 
+   /**
+    * Return the current camera if the tags do not specify a camera (using
+    * the same logic as DefaultMetadata.legacyFromJSON()), or null otherwise.
+    */
+   private static String getCurrentCameraIfMissing(JSONObject tags) {
+      if ((tags.has("Camera") && tags.optString("Camera").length() > 0) ||
+            tags.has("Core-Camera")) {
+         return null;
+      }
+      return MMStudio.getInstance().getCore().getCameraDevice();
+   }
+
+   /**
+    * Convert the tags of a TaggedImage into Metadata.
+    * @param camera Camera to use if the tags do not specify one.
+    */
+   private static Metadata metadataFromTags(JSONObject tags, String camera) {
+      Metadata metadata = DefaultMetadata.legacyFromJSON(tags);
+      // HACK: assume that this Image was generated by the current hardware,
+      // and attempt to recover the scopeData and Camera properties (which
+      // depends on the current device adapters).
+      // HACK: assume all remaining properties are user data.
+      // TODO: this means that the data layer depends on MMStudio.
+      DefaultPropertyMap scopeData = (DefaultPropertyMap) MDUtils.extractScopeData(tags);
+      PropertyMap userData = MDUtils.extractUserData(tags,
+            scopeData.getKeys());
+      if (metadata.getCamera() != null) {
+         camera = metadata.getCamera();
+      }
+      return metadata.copy().scopeData(scopeData).userData(userData).camera(camera).build();
+   }
+
    /**
     * @param pixels Assumed to be a Java array of either bytes or shorts.
     */
@@ -174,7 +233,8 @@ public final class DefaultImage implements Image {
       }
       coords_ = coords;
 
-      rawPixels_ = DirectBuffers.bufferFromArray(pixels);
+      rawPixelBytes_ = DirectBuffers.byteBufferFromArray(pixels);
+      rawPixels_ = DirectBuffers.typedView(rawPixelBytes_, pixels);
       if (rawPixels_ == null || rawPixels_.capacity() < width * height) {
          throw new IllegalArgumentException("Invalid pixel data " + pixels);
       }
@@ -185,15 +245,56 @@ public final class DefaultImage implements Image {
       numComponents_ = numComponents;
    }
 
+   /**
+    * Create an image around existing pixel data, without copying it, and
+    * whose metadata is only generated when getMetadata() is first called.
+    * This is used when reading saved data, where most images are displayed
+    * or processed without their metadata ever being examined.
+    * @param pixels Pixel data in native byte order; positions 0 through
+    *        capacity() are used. May be read-only (e.g. a view of a memory-
+    *        mapped file), and must not be modified afterwards.
+    * @param metadataSupplier Source of the image's metadata. get() will be
+    *        called at most once by this image, possibly on a different
+    *        thread (storage may also call it, see
+    *        getPendingMetadataSupplier()).
+    */
+   public DefaultImage(ByteBuffer pixels, int width, int height,
+         int bytesPerPixel, int numComponents, Coords coords,
+         Supplier<? extends Metadata> metadataSupplier)
+         throws IllegalArgumentException {
+      metadataSupplier_ = metadataSupplier;
+      coords_ = coords;
+
+      rawPixelBytes_ = pixels.order(DirectBuffers.NATIVE_ORDER);
+      int bytesPerComponent = bytesPerPixel / numComponents;
+      if (bytesPerComponent == 2) {
+         rawPixels_ = rawPixelBytes_.asShortBuffer();
+      }
+      else {
+         rawPixels_ = rawPixelBytes_;
+      }
+      if (rawPixels_.capacity() < width * height) {
+         throw new IllegalArgumentException("Invalid pixel data " + pixels);
+      }
+      pixelWidth_ = width;
+      pixelHeight_ = height;
+      bytesPerPixel_ = bytesPerPixel;
+      setBytesPerComponent();
+      numComponents_ = numComponents;
+   }
+
    public DefaultImage(Image source, Coords coords, Metadata metadata) {
       metadata_ = (DefaultMetadata) metadata;
       coords_ = coords;
       if (source instanceof DefaultImage) {
          // Just copy their Buffer over directly.
-         rawPixels_ = ((DefaultImage) source).getPixelBuffer();
+         rawPixels_ = ((DefaultImage) source).rawPixels_;
+         rawPixelBytes_ = ((DefaultImage) source).rawPixelBytes_;
       }
       else {
-         rawPixels_ = DirectBuffers.bufferFromArray(source.getRawPixels());
+         Object pixels = source.getRawPixels();
+         rawPixelBytes_ = DirectBuffers.byteBufferFromArray(pixels);
+         rawPixels_ = DirectBuffers.typedView(rawPixelBytes_, pixels);
       }
       if (rawPixels_.capacity() == 0) {
          throw new IllegalArgumentException("Pixel data has length 0.");
@@ -219,7 +320,37 @@ public final class DefaultImage implements Image {
 
    @Override
    public Metadata getMetadata() {
-      return metadata_;
+      return getDefaultMetadata();
+   }
+
+   /**
+    * Return the source of this image's metadata if the metadata has not been
+    * built yet, or null if it has. The source does not refer to the pixels,
+    * so storage can keep it without keeping this image.
+    */
+   Supplier<? extends Metadata> getPendingMetadataSupplier() {
+      synchronized (this) {
+         return metadata_ == null ? metadataSupplier_ : null;
+      }
+   }
+
+   private DefaultMetadata getDefaultMetadata() {
+      DefaultMetadata result = metadata_;
+      if (result == null) {
+         synchronized (this) {
+            if (metadata_ == null && metadataSupplier_ != null) {
+               Metadata metadata = metadataSupplier_.get();
+               if (metadata == null) {
+                  // Don't allow images with null metadata.
+                  metadata = new DefaultMetadata.Builder().build();
+               }
+               metadata_ = (DefaultMetadata) metadata;
+               metadataSupplier_ = null;
+            }
+            result = metadata_;
+         }
+      }
+      return result;
    }
 
    @Override
@@ -229,7 +360,7 @@ public final class DefaultImage implements Image {
 
    @Override
    public Image copyAtCoords(Coords coords) {
-      return new DefaultImage(this, coords, metadata_);
+      return new DefaultImage(this, coords, getDefaultMetadata());
    }
 
    @Override
@@ -282,6 +413,17 @@ public final class DefaultImage implements Image {
       return rawPixels_;
    }
 
+   /**
+    * Return a read-only view of the pixel data as bytes in native order,
+    * without copying it. The view has its own position and limit, so it can
+    * safely be handed to e.g. a FileChannel on another thread.
+    */
+   public ByteBuffer getPixelBufferAsBytes() {
+      ByteBuffer result = rawPixelBytes_.asReadOnlyBuffer();
+      result.clear();
+      return result.order(DirectBuffers.NATIVE_ORDER);
+   }
+
    // This is a bit ugly, due to needing to examine the type of rawPixels_,
    // but what else can we do?
    @Override
@@ -399,7 +541,7 @@ public final class DefaultImage implements Image {
          Image newImage = new DefaultImage(pixels, pixelWidth_, pixelHeight_,
                bytesPerPixel_ / numComponents_, 1,
                coords_.copy().channel(coords_.getChannel() + i).build(),
-               metadata_);
+               getDefaultMetadata());
          result.add(newImage);
       }
       return result;
@@ -423,7 +565,15 @@ public final class DefaultImage implements Image {
     * For backwards compatibility, convert to TaggedImage.
     */
    public TaggedImage legacyToTaggedImage() {
-      JSONObject tags = metadata_.toJSON();
+      return new TaggedImage(getRawPixels(), legacyToTags());
+   }
+
+   /**
+    * As legacyToTaggedImage(), but only generates the metadata, without
+    * making a copy of the pixel data.
+    */
+   public JSONObject legacyToTags() {
+      JSONObject tags = getDefaultMetadata().toJSON();
       // Fill in fields that we know about and that our metadata doesn't.
       try {
          MDUtils.setFrameIndex(tags, coords_.getTime());
@@ -444,7 +594,7 @@ public final class DefaultImage implements Image {
       catch (JSONException e) {
          ReportingUtils.logError("Unable to set image indices: " + e);
       }
-      return new TaggedImage(getRawPixels(), tags);
+      return tags;
    }
 
    /**
@@ -25,6 +25,8 @@ import com.google.common.io.BaseEncoding;
 import com.google.common.io.Files;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
@@ -429,6 +431,14 @@ public final class DefaultPropertyMap implements PropertyMap {
       public void putProperty(String key, PropertyValue val) {
          propMap_.put(key, val);
       }
+
+      /**
+       * Used by MetadataCodec to apply per-image differences to a shared
+       * map.
+       */
+      void removeProperty(String key) {
+         propMap_.remove(key);
+      }
    }
 
    private HashMap<String, PropertyValue> propMap_;
@@ -869,6 +879,184 @@ public final class DefaultPropertyMap implements PropertyMap {
       }
    }
 
+   /**
+    * Return true if both maps have the same value for the given key.
+    */
+   boolean hasSameProperty(String key, DefaultPropertyMap alt) {
+      PropertyValue val = propMap_.get(key);
+      return val != null && val.equals(alt.propMap_.get(key));
+   }
+
+   /**
+    * Write a single property in the compact binary form used by
+    * MetadataCodec. Keys are always interned by the codec (as long as it
+    * has room for them).
+    * @param shouldInternValues If true, String values are interned as well;
+    *        this is appropriate for values that are likely to recur in
+    *        other images (like scope data).
+    */
+   void writeBinaryProperty(String key, DataOutputStream out,
+         MetadataCodec codec, boolean shouldInternValues) throws IOException {
+      PropertyValue prop = propMap_.get(key);
+      Class<?> type = prop.getType();
+      Object val = prop.getVal();
+      codec.writeString(out, key, true);
+      if (type == String.class) {
+         out.writeByte(MetadataCodec.STRING);
+         codec.writeString(out, (String) val, shouldInternValues);
+      }
+      else if (type == String[].class) {
+         out.writeByte(MetadataCodec.STRING_ARRAY);
+         String[] vals = (String[]) val;
+         out.writeInt(vals.length);
+         for (String s : vals) {
+            codec.writeString(out, s, shouldInternValues);
+         }
+      }
+      else if (type == Integer.class) {
+         out.writeByte(MetadataCodec.INTEGER);
+         out.writeInt((Integer) val);
+      }
+      else if (type == Integer[].class) {
+         out.writeByte(MetadataCodec.INTEGER_ARRAY);
+         Integer[] vals = (Integer[]) val;
+         out.writeInt(vals.length);
+         for (Integer i : vals) {
+            out.writeInt(i);
+         }
+      }
+      else if (type == Long.class) {
+         out.writeByte(MetadataCodec.LONG);
+         out.writeLong((Long) val);
+      }
+      else if (type == Long[].class) {
+         out.writeByte(MetadataCodec.LONG_ARRAY);
+         Long[] vals = (Long[]) val;
+         out.writeInt(vals.length);
+         for (Long l : vals) {
+            out.writeLong(l);
+         }
+      }
+      else if (type == Double.class) {
+         out.writeByte(MetadataCodec.DOUBLE);
+         out.writeDouble((Double) val);
+      }
+      else if (type == Double[].class) {
+         out.writeByte(MetadataCodec.DOUBLE_ARRAY);
+         Double[] vals = (Double[]) val;
+         out.writeInt(vals.length);
+         for (Double d : vals) {
+            out.writeDouble(d);
+         }
+      }
+      else if (type == Boolean.class) {
+         out.writeByte(MetadataCodec.BOOLEAN);
+         out.writeBoolean((Boolean) val);
+      }
+      else if (type == Boolean[].class) {
+         out.writeByte(MetadataCodec.BOOLEAN_ARRAY);
+         Boolean[] vals = (Boolean[]) val;
+         out.writeInt(vals.length);
+         for (Boolean b : vals) {
+            out.writeBoolean(b);
+         }
+      }
+      else if (type == PropertyMap.class) {
+         out.writeByte(MetadataCodec.PROPERTY_MAP);
+         DefaultPropertyMap map = (DefaultPropertyMap) val;
+         out.writeInt(map.propMap_.size());
+         for (String subKey : map.propMap_.keySet()) {
+            map.writeBinaryProperty(subKey, out, codec, shouldInternValues);
+         }
+      }
+      else if (type == byte[].class) {
+         out.writeByte(MetadataCodec.OBJECT);
+         byte[] bytes = (byte[]) val;
+         out.writeInt(bytes.length);
+         out.write(bytes);
+      }
+      else {
+         throw new IOException("Unrecognized property type " + type);
+      }
+   }
+
+   /**
+    * Read a property as written by writeBinaryProperty() into the builder.
+    */
+   static void readBinaryProperty(DataInputStream in, MetadataCodec codec,
+         Builder builder) throws IOException {
+      String key = codec.readString(in);
+      byte type = in.readByte();
+      int length;
+      switch (type) {
+         case MetadataCodec.STRING:
+            builder.putString(key, codec.readString(in));
+            break;
+         case MetadataCodec.STRING_ARRAY:
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; ++i) {
+               strings[i] = codec.readString(in);
+            }
+            builder.putStringArray(key, strings);
+            break;
+         case MetadataCodec.INTEGER:
+            builder.putInt(key, in.readInt());
+            break;
+         case MetadataCodec.INTEGER_ARRAY:
+            Integer[] ints = new Integer[in.readInt()];
+            for (int i = 0; i < ints.length; ++i) {
+               ints[i] = in.readInt();
+            }
+            builder.putIntArray(key, ints);
+            break;
+         case MetadataCodec.LONG:
+            builder.putLong(key, in.readLong());
+            break;
+         case MetadataCodec.LONG_ARRAY:
+            Long[] longs = new Long[in.readInt()];
+            for (int i = 0; i < longs.length; ++i) {
+               longs[i] = in.readLong();
+            }
+            builder.putLongArray(key, longs);
+            break;
+         case MetadataCodec.DOUBLE:
+            builder.putDouble(key, in.readDouble());
+            break;
+         case MetadataCodec.DOUBLE_ARRAY:
+            Double[] doubles = new Double[in.readInt()];
+            for (int i = 0; i < doubles.length; ++i) {
+               doubles[i] = in.readDouble();
+            }
+            builder.putDoubleArray(key, doubles);
+            break;
+         case MetadataCodec.BOOLEAN:
+            builder.putBoolean(key, in.readBoolean());
+            break;
+         case MetadataCodec.BOOLEAN_ARRAY:
+            Boolean[] bools = new Boolean[in.readInt()];
+            for (int i = 0; i < bools.length; ++i) {
+               bools[i] = in.readBoolean();
+            }
+            builder.putBooleanArray(key, bools);
+            break;
+         case MetadataCodec.PROPERTY_MAP:
+            length = in.readInt();
+            Builder subBuilder = new Builder();
+            for (int i = 0; i < length; ++i) {
+               readBinaryProperty(in, codec, subBuilder);
+            }
+            builder.putPropertyMap(key, subBuilder.build());
+            break;
+         case MetadataCodec.OBJECT:
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            builder.putProperty(key, new PropertyValue(bytes));
+            break;
+         default:
+            throw new IOException("Unrecognized property type " + type);
+      }
+   }
+
    @Override
    public String toString() {
       try {
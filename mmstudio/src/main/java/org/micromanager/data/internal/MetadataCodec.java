@@ -0,0 +1,452 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API implementation
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.micromanager.data.Metadata;
+import org.micromanager.internal.utils.ReportingUtils;
+
+/**
+ * Converts Metadata to and from a compact binary form, for holding the
+ * metadata of many images in memory (or writing it to disk) at a fraction of
+ * the cost of JSON.
+ *
+ * Consecutive images almost always have the same, or nearly the same, scope
+ * data, which makes up the bulk of their metadata. Each codec therefore keeps
+ * a list of "base" scope data maps; an encoded image refers to the closest of
+ * the recently used ones and only stores the properties that differ from it.
+ * Property names (and a few other strings that tend to recur, like position
+ * names) are interned, so that each distinct string is only stored once.
+ * Decoding an image whose scope data matches its base exactly returns the
+ * shared base map itself. The number of bases and interned strings is
+ * limited; past that, images are encoded against existing bases and strings
+ * are stored inline, which takes more space per image but no more memory in
+ * the codec.
+ *
+ * Encoded metadata can only be decoded by the codec that encoded it, so the
+ * codec must live as long as the encoded data (typically the codec belongs to
+ * a Storage). This class is thread-safe; any number of threads can decode at
+ * the same time.
+ */
+public final class MetadataCodec {
+   private static final byte VERSION = 1;
+
+   // Property types used by DefaultPropertyMap.writeBinaryProperty().
+   static final byte STRING = 0;
+   static final byte STRING_ARRAY = 1;
+   static final byte INTEGER = 2;
+   static final byte INTEGER_ARRAY = 3;
+   static final byte LONG = 4;
+   static final byte LONG_ARRAY = 5;
+   static final byte DOUBLE = 6;
+   static final byte DOUBLE_ARRAY = 7;
+   static final byte BOOLEAN = 8;
+   static final byte BOOLEAN_ARRAY = 9;
+   static final byte PROPERTY_MAP = 10;
+   static final byte OBJECT = 11;
+
+   // Bits of the mask indicating which Metadata fields are present.
+   private static final int UUID_BIT = 1;
+   private static final int BIT_DEPTH_BIT = 1 << 1;
+   private static final int EXPOSURE_BIT = 1 << 2;
+   private static final int ELAPSED_TIME_BIT = 1 << 3;
+   private static final int BINNING_BIT = 1 << 4;
+   private static final int IMAGE_NUMBER_BIT = 1 << 5;
+   private static final int POSITION_NAME_BIT = 1 << 6;
+   private static final int X_POSITION_BIT = 1 << 7;
+   private static final int Y_POSITION_BIT = 1 << 8;
+   private static final int Z_POSITION_BIT = 1 << 9;
+   private static final int PIXEL_SIZE_BIT = 1 << 10;
+   private static final int CAMERA_BIT = 1 << 11;
+   private static final int RECEIVED_TIME_BIT = 1 << 12;
+   private static final int ROI_BIT = 1 << 13;
+   private static final int PIXEL_ASPECT_BIT = 1 << 14;
+   private static final int SCOPE_DATA_BIT = 1 << 15;
+   private static final int USER_DATA_BIT = 1 << 16;
+
+   // Marks a string that is stored inline instead of interned.
+   private static final int INLINE_STRING = -1;
+
+   // If more than this fraction of an image's scope data differs from the
+   // closest recent base, that scope data becomes a new base.
+   private static final double MAX_DELTA_FRACTION = .25;
+   // Number of most recently used bases to compare new scope data with, so
+   // that scope data alternating between a few states (e.g. per channel)
+   // doesn't keep making new bases.
+   private static final int NUM_RECENT_BASES = 4;
+   static final int MAX_SCOPE_BASES = 256;
+   static final int MAX_INTERNED_STRINGS = 65536;
+
+   // Encoding changes the tables below, decoding only reads them.
+   private final ReentrantReadWriteLock lock_ = new ReentrantReadWriteLock();
+   private final ArrayList<String> strings_ = new ArrayList<String>();
+   private final HashMap<String, Integer> stringToId_ =
+      new HashMap<String, Integer>();
+   private final ArrayList<DefaultPropertyMap> scopeBases_ =
+      new ArrayList<DefaultPropertyMap>();
+   // Indices into scopeBases_, most recently used first.
+   private final LinkedList<Integer> recentBases_ = new LinkedList<Integer>();
+
+   /**
+    * Convert the given Metadata to binary form.
+    */
+   public byte[] encode(Metadata metadata) {
+      lock_.writeLock().lock();
+      try {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+         DataOutputStream out = new DataOutputStream(bytes);
+         int mask = 0;
+         mask |= metadata.getUUID() != null ? UUID_BIT : 0;
+         mask |= metadata.getBitDepth() != null ? BIT_DEPTH_BIT : 0;
+         mask |= metadata.getExposureMs() != null ? EXPOSURE_BIT : 0;
+         mask |= metadata.getElapsedTimeMs() != null ? ELAPSED_TIME_BIT : 0;
+         mask |= metadata.getBinning() != null ? BINNING_BIT : 0;
+         mask |= metadata.getImageNumber() != null ? IMAGE_NUMBER_BIT : 0;
+         mask |= metadata.getPositionName() != null ? POSITION_NAME_BIT : 0;
+         mask |= metadata.getXPositionUm() != null ? X_POSITION_BIT : 0;
+         mask |= metadata.getYPositionUm() != null ? Y_POSITION_BIT : 0;
+         mask |= metadata.getZPositionUm() != null ? Z_POSITION_BIT : 0;
+         mask |= metadata.getPixelSizeUm() != null ? PIXEL_SIZE_BIT : 0;
+         mask |= metadata.getCamera() != null ? CAMERA_BIT : 0;
+         mask |= metadata.getReceivedTime() != null ? RECEIVED_TIME_BIT : 0;
+         mask |= metadata.getROI() != null ? ROI_BIT : 0;
+         mask |= metadata.getPixelAspect() != null ? PIXEL_ASPECT_BIT : 0;
+         mask |= metadata.getScopeData() != null ? SCOPE_DATA_BIT : 0;
+         mask |= metadata.getUserData() != null ? USER_DATA_BIT : 0;
+         out.writeByte(VERSION);
+         out.writeInt(mask);
+         if ((mask & UUID_BIT) != 0) {
+            out.writeLong(metadata.getUUID().getMostSignificantBits());
+            out.writeLong(metadata.getUUID().getLeastSignificantBits());
+         }
+         if ((mask & BIT_DEPTH_BIT) != 0) {
+            out.writeInt(metadata.getBitDepth());
+         }
+         if ((mask & EXPOSURE_BIT) != 0) {
+            out.writeDouble(metadata.getExposureMs());
+         }
+         if ((mask & ELAPSED_TIME_BIT) != 0) {
+            out.writeDouble(metadata.getElapsedTimeMs());
+         }
+         if ((mask & BINNING_BIT) != 0) {
+            out.writeInt(metadata.getBinning());
+         }
+         if ((mask & IMAGE_NUMBER_BIT) != 0) {
+            out.writeLong(metadata.getImageNumber());
+         }
+         if ((mask & POSITION_NAME_BIT) != 0) {
+            writeString(out, metadata.getPositionName(), true);
+         }
+         if ((mask & X_POSITION_BIT) != 0) {
+            out.writeDouble(metadata.getXPositionUm());
+         }
+         if ((mask & Y_POSITION_BIT) != 0) {
+            out.writeDouble(metadata.getYPositionUm());
+         }
+         if ((mask & Z_POSITION_BIT) != 0) {
+            out.writeDouble(metadata.getZPositionUm());
+         }
+         if ((mask & PIXEL_SIZE_BIT) != 0) {
+            out.writeDouble(metadata.getPixelSizeUm());
+         }
+         if ((mask & CAMERA_BIT) != 0) {
+            writeString(out, metadata.getCamera(), true);
+         }
+         if ((mask & RECEIVED_TIME_BIT) != 0) {
+            writeString(out, metadata.getReceivedTime(), false);
+         }
+         if ((mask & ROI_BIT) != 0) {
+            Rectangle roi = metadata.getROI();
+            out.writeInt(roi.x);
+            out.writeInt(roi.y);
+            out.writeInt(roi.width);
+            out.writeInt(roi.height);
+         }
+         if ((mask & PIXEL_ASPECT_BIT) != 0) {
+            out.writeDouble(metadata.getPixelAspect());
+         }
+         if ((mask & SCOPE_DATA_BIT) != 0) {
+            writeScopeData(out, (DefaultPropertyMap) metadata.getScopeData());
+         }
+         if ((mask & USER_DATA_BIT) != 0) {
+            DefaultPropertyMap userData = (DefaultPropertyMap) metadata.getUserData();
+            out.writeInt(userData.getKeys().size());
+            for (String key : userData.getKeys()) {
+               userData.writeBinaryProperty(key, out, this, false);
+            }
+         }
+         out.flush();
+         return bytes.toByteArray();
+      }
+      catch (IOException e) {
+         // Can't happen when writing to a ByteArrayOutputStream, barring
+         // unrecognized property types.
+         throw new IllegalArgumentException("Unable to encode metadata", e);
+      }
+      finally {
+         lock_.writeLock().unlock();
+      }
+   }
+
+   /**
+    * Write scope data as a reference to a base map plus differences from it,
+    * making a new base if the differences are too great.
+    */
+   private void writeScopeData(DataOutputStream out,
+         DefaultPropertyMap scopeData) throws IOException {
+      int baseIndex = -1;
+      ArrayList<String> changed = new ArrayList<String>();
+      ArrayList<String> removed = new ArrayList<String>();
+      for (Integer candidate : recentBases_) {
+         ArrayList<String> candidateChanged = new ArrayList<String>();
+         ArrayList<String> candidateRemoved = new ArrayList<String>();
+         DefaultPropertyMap base = scopeBases_.get(candidate);
+         for (String key : scopeData.getKeys()) {
+            if (!scopeData.hasSameProperty(key, base)) {
+               candidateChanged.add(key);
+            }
+         }
+         for (String key : base.getKeys()) {
+            if (!scopeData.containsKey(key)) {
+               candidateRemoved.add(key);
+            }
+         }
+         if (baseIndex < 0 || candidateChanged.size() + candidateRemoved.size() <
+               changed.size() + removed.size()) {
+            baseIndex = candidate;
+            changed = candidateChanged;
+            removed = candidateRemoved;
+            if (changed.isEmpty() && removed.isEmpty()) {
+               break;
+            }
+         }
+      }
+      if ((baseIndex < 0 || changed.size() + removed.size() >
+            MAX_DELTA_FRACTION * scopeData.getKeys().size()) &&
+            scopeBases_.size() < MAX_SCOPE_BASES) {
+         // Start a new base. PropertyMaps are immutable, so we can keep it.
+         scopeBases_.add(scopeData);
+         baseIndex = scopeBases_.size() - 1;
+         changed.clear();
+         removed.clear();
+      }
+      recentBases_.remove((Integer) baseIndex);
+      recentBases_.addFirst(baseIndex);
+      if (recentBases_.size() > NUM_RECENT_BASES) {
+         recentBases_.removeLast();
+      }
+      out.writeInt(baseIndex);
+      out.writeInt(changed.size());
+      for (String key : changed) {
+         // Values that differ from the base are mostly ones that change
+         // from image to image, so they are not worth interning.
+         scopeData.writeBinaryProperty(key, out, this, false);
+      }
+      out.writeInt(removed.size());
+      for (String key : removed) {
+         writeString(out, key, true);
+      }
+   }
+
+   /**
+    * Reconstruct Metadata from the output of encode(). Returns empty
+    * metadata (and logs an error) if the data is corrupt.
+    */
+   public Metadata decode(byte[] encoded) {
+      DefaultMetadata.Builder builder = new DefaultMetadata.Builder();
+      lock_.readLock().lock();
+      try {
+         DataInputStream in = new DataInputStream(
+               new ByteArrayInputStream(encoded));
+         byte version = in.readByte();
+         if (version != VERSION) {
+            throw new IOException("Unsupported encoded metadata version " + version);
+         }
+         int mask = in.readInt();
+         if ((mask & UUID_BIT) != 0) {
+            builder.uuid(new UUID(in.readLong(), in.readLong()));
+         }
+         if ((mask & BIT_DEPTH_BIT) != 0) {
+            builder.bitDepth(in.readInt());
+         }
+         if ((mask & EXPOSURE_BIT) != 0) {
+            builder.exposureMs(in.readDouble());
+         }
+         if ((mask & ELAPSED_TIME_BIT) != 0) {
+            builder.elapsedTimeMs(in.readDouble());
+         }
+         if ((mask & BINNING_BIT) != 0) {
+            builder.binning(in.readInt());
+         }
+         if ((mask & IMAGE_NUMBER_BIT) != 0) {
+            builder.imageNumber(in.readLong());
+         }
+         if ((mask & POSITION_NAME_BIT) != 0) {
+            builder.positionName(readString(in));
+         }
+         if ((mask & X_POSITION_BIT) != 0) {
+            builder.xPositionUm(in.readDouble());
+         }
+         if ((mask & Y_POSITION_BIT) != 0) {
+            builder.yPositionUm(in.readDouble());
+         }
+         if ((mask & Z_POSITION_BIT) != 0) {
+            builder.zPositionUm(in.readDouble());
+         }
+         if ((mask & PIXEL_SIZE_BIT) != 0) {
+            builder.pixelSizeUm(in.readDouble());
+         }
+         if ((mask & CAMERA_BIT) != 0) {
+            builder.camera(readString(in));
+         }
+         if ((mask & RECEIVED_TIME_BIT) != 0) {
+            builder.receivedTime(readString(in));
+         }
+         if ((mask & ROI_BIT) != 0) {
+            builder.ROI(new Rectangle(in.readInt(), in.readInt(),
+                     in.readInt(), in.readInt()));
+         }
+         if ((mask & PIXEL_ASPECT_BIT) != 0) {
+            builder.pixelAspect(in.readDouble());
+         }
+         if ((mask & SCOPE_DATA_BIT) != 0) {
+            builder.scopeData(readScopeData(in));
+         }
+         if ((mask & USER_DATA_BIT) != 0) {
+            int numProperties = in.readInt();
+            DefaultPropertyMap.Builder userData = new DefaultPropertyMap.Builder();
+            for (int i = 0; i < numProperties; ++i) {
+               DefaultPropertyMap.readBinaryProperty(in, this, userData);
+            }
+            builder.userData(userData.build());
+         }
+      }
+      catch (IOException e) {
+         ReportingUtils.logError(e, "Unable to decode image metadata");
+         return new DefaultMetadata.Builder().build();
+      }
+      finally {
+         lock_.readLock().unlock();
+      }
+      return builder.build();
+   }
+
+   private DefaultPropertyMap readScopeData(DataInputStream in)
+         throws IOException {
+      DefaultPropertyMap base = scopeBases_.get(in.readInt());
+      int numChanged = in.readInt();
+      DefaultPropertyMap.Builder builder = null;
+      if (numChanged > 0) {
+         builder = (DefaultPropertyMap.Builder) base.copy();
+         for (int i = 0; i < numChanged; ++i) {
+            DefaultPropertyMap.readBinaryProperty(in, this, builder);
+         }
+      }
+      int numRemoved = in.readInt();
+      if (builder == null) {
+         if (numRemoved == 0) {
+            // Identical to the base; share it.
+            return base;
+         }
+         builder = (DefaultPropertyMap.Builder) base.copy();
+      }
+      for (int i = 0; i < numRemoved; ++i) {
+         builder.removeProperty(readString(in));
+      }
+      return (DefaultPropertyMap) builder.build();
+   }
+
+   /**
+    * For testing: return the number of scope data bases made so far.
+    */
+   int getNumScopeBases() {
+      lock_.readLock().lock();
+      try {
+         return scopeBases_.size();
+      }
+      finally {
+         lock_.readLock().unlock();
+      }
+   }
+
+   /**
+    * Return the id of an interned string, interning it if there is room.
+    * @return the id, or INLINE_STRING if the string can't be interned
+    */
+   private int internString(String s) {
+      Integer id = stringToId_.get(s);
+      if (id == null) {
+         if (strings_.size() >= MAX_INTERNED_STRINGS) {
+            return INLINE_STRING;
+         }
+         id = strings_.size();
+         strings_.add(s);
+         stringToId_.put(s, id);
+      }
+      return id;
+   }
+
+   /**
+    * Write a string, either as a reference to an interned string or
+    * inline. Null strings are written inline. Must be called while encoding.
+    */
+   void writeString(DataOutputStream out, String s, boolean shouldIntern)
+         throws IOException {
+      int id = (shouldIntern && s != null) ? internString(s) : INLINE_STRING;
+      if (id != INLINE_STRING) {
+         out.writeInt(id);
+         return;
+      }
+      out.writeInt(INLINE_STRING);
+      if (s == null) {
+         out.writeInt(-1);
+         return;
+      }
+      byte[] bytes = s.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   /**
+    * Read a string written by writeString(). Must be called while decoding.
+    */
+   String readString(DataInputStream in) throws IOException {
+      int id = in.readInt();
+      if (id != INLINE_STRING) {
+         return strings_.get(id);
+      }
+      int length = in.readInt();
+      if (length < 0) {
+         return null;
+      }
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return new String(bytes, "UTF-8");
+   }
+}
@@ -0,0 +1,824 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API implementation
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.data.internal;
+
+import com.google.common.base.Supplier;
+import com.google.common.eventbus.Subscribe;
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.NewSummaryMetadataEvent;
+import org.micromanager.data.RewritableStorage;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.internal.utils.DirectBuffers;
+import org.micromanager.internal.utils.ReportingUtils;
+import org.micromanager.internal.utils.TextUtils;
+
+/**
+ * This class provides Image storage as losslessly-compressed, chunked
+ * arrays, in a directory layout similar to that of N5 or Zarr: the dataset
+ * directory holds an attributes file (containing the summary metadata) and
+ * one file per image plane. Each plane is divided into chunks of
+ * (by default) 512x512 pixels, which are compressed independently (see
+ * ChunkCodec) and stored together in the plane's file along with a table of
+ * their locations (similar to a Zarr "shard"). This means that individual
+ * planes can be rewritten or deleted, and that sub-regions of a plane can be
+ * read without reading or decompressing the whole plane; see
+ * getImageRegion().
+ *
+ * Compression is done on a pool of worker threads. Images remain available
+ * from memory until they have been written.
+ *
+ * Plane file layout (all values in the byte order given by the first two
+ * bytes, as in TIFF):
+ * 0: byte order mark, version, magic number (8 bytes)
+ * 8: width, height, bytes per pixel, number of components, chunk width,
+ *    chunk height, number of chunks, coords length, metadata length, and
+ *    a reserved int (40 bytes)
+ * 48: for each chunk, in row-major order: its offset in the file (8 bytes),
+ *    its stored length (4 bytes), and its codec (4 bytes)
+ * then the image Coords (as per DefaultCoords.toNormalizedString()) and
+ * Metadata (as JSON), both UTF-8, followed by the chunk data.
+ */
+public final class StorageChunked implements RewritableStorage {
+   public static final String ATTRIBUTES_FILENAME = "attributes.json";
+   public static final int DEFAULT_CHUNK_SIZE = 512;
+   private static final String PLANE_EXTENSION = ".mmchunks";
+   private static final String FORMAT_KEY = "MicroManagerChunkedVersion";
+   private static final int FORMAT_VERSION = 1;
+   private static final int MAGIC = 0x4d4d434b;
+   private static final int HEADER_SIZE = 48;
+   private static final int CHUNK_ENTRY_SIZE = 16;
+   private static final ByteOrder BYTE_ORDER = ByteOrder.nativeOrder();
+
+   private final DefaultDatastore store_;
+   private final File dir_;
+   private final int chunkWidth_;
+   private final int chunkHeight_;
+   private volatile boolean isWritable_;
+   private SummaryMetadata summaryMetadata_ = (new DefaultSummaryMetadata.Builder()).build();
+   // All coords we have images for, whether or not they have been written.
+   private final HashSet<Coords> coords_ = new HashSet<Coords>();
+   private Coords maxIndex_ = new DefaultCoords.Builder().build();
+   // Images that have not been written yet.
+   private final ConcurrentHashMap<Coords, Image> coordsToPendingImage_ =
+      new ConcurrentHashMap<Coords, Image>();
+   private ThreadPoolExecutor compressionExecutor_;
+   private final AtomicLong numRawBytes_ = new AtomicLong(0);
+   private final AtomicLong numStoredBytes_ = new AtomicLong(0);
+   private final ThreadLocal<ChunkCodec> codecs_ =
+      new ThreadLocal<ChunkCodec>() {
+         @Override
+         protected ChunkCodec initialValue() {
+            return new ChunkCodec();
+         }
+      };
+
+   public StorageChunked(DefaultDatastore store, String directory,
+         boolean newDataSet) throws IOException {
+      this(store, directory, newDataSet, DEFAULT_CHUNK_SIZE,
+            DEFAULT_CHUNK_SIZE);
+   }
+
+   /**
+    * @param chunkWidth Width of the chunks that new images are divided
+    *        into. Ignored when reading existing data, as each file records
+    *        its own chunk size.
+    * @param chunkHeight Height of the chunks; as above.
+    */
+   public StorageChunked(DefaultDatastore store, String directory,
+         boolean newDataSet, int chunkWidth, int chunkHeight)
+         throws IOException {
+      store_ = store;
+      dir_ = new File(directory);
+      chunkWidth_ = chunkWidth;
+      chunkHeight_ = chunkHeight;
+      isWritable_ = newDataSet;
+      store_.setSavePath(directory);
+      if (isWritable_) {
+         if (dir_.exists()) {
+            throw new IOException("Directory at " + dir_ + " already exists");
+         }
+         dir_.mkdirs();
+         if (!dir_.canWrite()) {
+            throw new IOException("Insufficient permission to write to " + dir_);
+         }
+         final int numThreads = Math.max(1,
+               Runtime.getRuntime().availableProcessors() - 1);
+         // Once the queue is full, the thread calling putImage() does the
+         // compression itself, which limits the number of pending images.
+         compressionExecutor_ = new ThreadPoolExecutor(numThreads,
+               numThreads, 0, TimeUnit.NANOSECONDS,
+               new ArrayBlockingQueue<Runnable>(2 * numThreads),
+               new ThreadFactory() {
+                  private int count_ = 0;
+                  @Override
+                  public synchronized Thread newThread(Runnable r) {
+                     return new Thread(r, "Chunked storage compression " +
+                           (count_++));
+                  }
+               },
+               new ThreadPoolExecutor.CallerRunsPolicy());
+      }
+      else {
+         openExistingDataSet();
+      }
+      // Must be informed of events before traditional consumers, so that we
+      // can provide images on request.
+      store_.registerForEvents(this, 0);
+   }
+
+   /**
+    * Return true if the given directory holds a dataset saved by this class.
+    */
+   public static boolean isChunkedDataset(String directory) {
+      File file = new File(directory, ATTRIBUTES_FILENAME);
+      if (!file.exists()) {
+         return false;
+      }
+      try {
+         return new JSONObject(TextUtils.readTextFile(file.getPath()))
+            .has(FORMAT_KEY);
+      }
+      catch (IOException e) {
+         return false;
+      }
+      catch (JSONException e) {
+         return false;
+      }
+   }
+
+   @Override
+   public void putImage(final Image image) {
+      if (!isWritable_) {
+         ReportingUtils.logError("Attempted to add an image to a read-only dataset");
+         return;
+      }
+      Coords coords = image.getCoords();
+      synchronized (this) {
+         coordsToPendingImage_.put(coords, image);
+         coords_.add(coords);
+         for (String axis : coords.getAxes()) {
+            if (maxIndex_.getIndex(axis) < coords.getIndex(axis)) {
+               maxIndex_ = maxIndex_.copy()
+                     .index(axis, coords.getIndex(axis))
+                     .build();
+            }
+         }
+      }
+      compressionExecutor_.execute(new Runnable() {
+         @Override
+         public void run() {
+            writePlane(image);
+         }
+      });
+   }
+
+   /**
+    * Write the image to a temporary file, then move it into place, unless
+    * it has been overwritten or deleted in the meantime.
+    */
+   private void writePlane(Image image) {
+      Coords coords = image.getCoords();
+      File file = getFile(coords);
+      File tmpFile = null;
+      try {
+         tmpFile = File.createTempFile(file.getName(), ".tmp", dir_);
+         long numBytes = writePlaneFile(image, tmpFile);
+         synchronized (this) {
+            if (coordsToPendingImage_.get(coords) != image) {
+               tmpFile.delete();
+               return;
+            }
+            if (file.exists() && !file.delete()) {
+               throw new IOException("Unable to replace " + file);
+            }
+            if (!tmpFile.renameTo(file)) {
+               throw new IOException("Unable to rename " + tmpFile + " to " + file);
+            }
+            coordsToPendingImage_.remove(coords);
+         }
+         numRawBytes_.addAndGet(((long) image.getWidth()) *
+               image.getHeight() * image.getBytesPerPixel());
+         numStoredBytes_.addAndGet(numBytes);
+      }
+      catch (IOException e) {
+         // The image stays in memory, so is not lost until we're closed.
+         ReportingUtils.logError(e, "Unable to write image at " + coords);
+         if (tmpFile != null) {
+            tmpFile.delete();
+         }
+      }
+   }
+
+   /**
+    * Compress the image and write it to the given file.
+    * @return The size of the file.
+    */
+   private long writePlaneFile(Image image, File file) throws IOException {
+      int width = image.getWidth();
+      int height = image.getHeight();
+      int bytesPerPixel = image.getBytesPerPixel();
+      int elementSize = bytesPerPixel / image.getNumComponents();
+      ByteBuffer pixels = getPixelBytes(image);
+      int chunksX = (width + chunkWidth_ - 1) / chunkWidth_;
+      int chunksY = (height + chunkHeight_ - 1) / chunkHeight_;
+      int numChunks = chunksX * chunksY;
+      byte[] coordsBytes = getBytes(
+            ((DefaultCoords) image.getCoords()).toNormalizedString());
+      byte[] metadataBytes = getBytes(
+            ((DefaultMetadata) image.getMetadata()).toJSON().toString());
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE +
+            numChunks * CHUNK_ENTRY_SIZE + coordsBytes.length +
+            metadataBytes.length).order(BYTE_ORDER);
+      header.putChar(0, BYTE_ORDER.equals(ByteOrder.BIG_ENDIAN) ?
+            (char) 0x4d4d : (char) 0x4949);
+      header.putChar(2, (char) FORMAT_VERSION);
+      header.putInt(4, MAGIC);
+      header.putInt(8, width);
+      header.putInt(12, height);
+      header.putInt(16, bytesPerPixel);
+      header.putInt(20, image.getNumComponents());
+      header.putInt(24, chunkWidth_);
+      header.putInt(28, chunkHeight_);
+      header.putInt(32, numChunks);
+      header.putInt(36, coordsBytes.length);
+      header.putInt(40, metadataBytes.length);
+
+      ChunkCodec codec = codecs_.get();
+      int maxChunkBytes = chunkWidth_ * chunkHeight_ * bytesPerPixel;
+      byte[] raw = new byte[maxChunkBytes];
+      byte[] compressed = new byte[maxChunkBytes];
+      ByteArrayOutputStream data = new ByteArrayOutputStream(
+            width * height * bytesPerPixel);
+      long offset = header.capacity();
+      for (int i = 0; i < numChunks; ++i) {
+         Rectangle chunk = getChunkBounds(i % chunksX, i / chunksX,
+               width, height, chunkWidth_, chunkHeight_);
+         int length = copyRegion(pixels, width, chunk, ByteBuffer.wrap(raw),
+               chunk.width, 0, 0, bytesPerPixel);
+         int numBytes = codec.compress(raw, length, elementSize, compressed);
+         int codecId = ChunkCodec.SHUFFLE_DEFLATE;
+         if (numBytes < 0) {
+            numBytes = length;
+            codecId = ChunkCodec.RAW;
+            data.write(raw, 0, length);
+         }
+         else {
+            data.write(compressed, 0, numBytes);
+         }
+         int entry = HEADER_SIZE + i * CHUNK_ENTRY_SIZE;
+         header.putLong(entry, offset);
+         header.putInt(entry + 8, numBytes);
+         header.putInt(entry + 12, codecId);
+         offset += numBytes;
+      }
+      header.position(HEADER_SIZE + numChunks * CHUNK_ENTRY_SIZE);
+      header.put(coordsBytes);
+      header.put(metadataBytes);
+      header.rewind();
+
+      FileOutputStream stream = new FileOutputStream(file);
+      try {
+         FileChannel channel = stream.getChannel();
+         while (header.hasRemaining()) {
+            channel.write(header);
+         }
+         data.writeTo(stream);
+      }
+      finally {
+         stream.close();
+      }
+      return offset;
+   }
+
+   private static ByteBuffer getPixelBytes(Image image) {
+      if (image instanceof DefaultImage) {
+         return ((DefaultImage) image).getPixelBufferAsBytes();
+      }
+      return DirectBuffers.byteBufferFromArray(image.getRawPixels());
+   }
+
+   private static Rectangle getChunkBounds(int chunkX, int chunkY,
+         int width, int height, int chunkWidth, int chunkHeight) {
+      int x = chunkX * chunkWidth;
+      int y = chunkY * chunkHeight;
+      return new Rectangle(x, y, Math.min(chunkWidth, width - x),
+            Math.min(chunkHeight, height - y));
+   }
+
+   /**
+    * Copy a rectangle of pixels from one buffer to another. Positions of the
+    * buffers are ignored.
+    * @return Number of bytes copied.
+    */
+   private static int copyRegion(ByteBuffer source, int sourceWidth,
+         Rectangle region, ByteBuffer dest, int destWidth, int destX,
+         int destY, int bytesPerPixel) {
+      int rowBytes = region.width * bytesPerPixel;
+      source = source.duplicate();
+      dest = dest.duplicate();
+      for (int row = 0; row < region.height; ++row) {
+         source.limit(source.capacity());
+         source.position(((region.y + row) * sourceWidth + region.x) *
+               bytesPerPixel);
+         source.limit(source.position() + rowBytes);
+         dest.position(((destY + row) * destWidth + destX) * bytesPerPixel);
+         dest.put(source);
+      }
+      return rowBytes * region.height;
+   }
+
+   private static byte[] getBytes(String s) {
+      try {
+         return s.getBytes("UTF-8");
+      }
+      catch (UnsupportedEncodingException e) {
+         // UTF-8 is always supported.
+         throw new RuntimeException(e);
+      }
+   }
+
+   private static String getString(byte[] bytes) {
+      try {
+         return new String(bytes, "UTF-8");
+      }
+      catch (UnsupportedEncodingException e) {
+         throw new RuntimeException(e);
+      }
+   }
+
+   /**
+    * Generate a filename based on the coordinates of an image, as per
+    * StorageSinglePlaneTiffSeries.
+    */
+   private File getFile(Coords coords) {
+      List<String> axes = new ArrayList<String>(coords.getAxes());
+      Collections.sort(axes);
+      StringBuilder name = new StringBuilder("img");
+      for (String axis : axes) {
+         String precision = axis.equals(Coords.TIME) ? "%09d" : "%03d";
+         name.append(String.format("_%s" + precision, axis,
+                  coords.getIndex(axis)));
+      }
+      return new File(dir_, name.append(PLANE_EXTENSION).toString());
+   }
+
+   /**
+    * The header, chunk table, and coords and metadata strings of a plane
+    * file.
+    */
+   private static final class PlaneHeader {
+      ByteOrder order;
+      int width;
+      int height;
+      int bytesPerPixel;
+      int numComponents;
+      int chunkWidth;
+      int chunkHeight;
+      long[] chunkOffsets;
+      int[] chunkLengths;
+      int[] chunkCodecs;
+      Coords coords;
+      byte[] metadataBytes;
+   }
+
+   private static PlaneHeader readPlaneHeader(RandomAccessFile raFile,
+         File file) throws IOException {
+      byte[] headerBytes = new byte[HEADER_SIZE];
+      raFile.seek(0);
+      raFile.readFully(headerBytes);
+      ByteBuffer buffer = ByteBuffer.wrap(headerBytes);
+      PlaneHeader result = new PlaneHeader();
+      char bom = buffer.getChar(0);
+      if (bom == 0x4949) {
+         result.order = ByteOrder.LITTLE_ENDIAN;
+      }
+      else if (bom == 0x4d4d) {
+         result.order = ByteOrder.BIG_ENDIAN;
+      }
+      else {
+         throw new IOException("Not a chunked image file: " + file);
+      }
+      buffer.order(result.order);
+      if (buffer.getInt(4) != MAGIC) {
+         throw new IOException("Not a chunked image file: " + file);
+      }
+      if (buffer.getChar(2) != FORMAT_VERSION) {
+         throw new IOException("Unsupported chunked image file version " +
+               (int) buffer.getChar(2) + " in " + file);
+      }
+      result.width = buffer.getInt(8);
+      result.height = buffer.getInt(12);
+      result.bytesPerPixel = buffer.getInt(16);
+      result.numComponents = buffer.getInt(20);
+      result.chunkWidth = buffer.getInt(24);
+      result.chunkHeight = buffer.getInt(28);
+      int numChunks = buffer.getInt(32);
+      int coordsLength = buffer.getInt(36);
+      int metadataLength = buffer.getInt(40);
+
+      byte[] tableBytes = new byte[numChunks * CHUNK_ENTRY_SIZE +
+         coordsLength + metadataLength];
+      raFile.readFully(tableBytes);
+      ByteBuffer table = ByteBuffer.wrap(tableBytes).order(result.order);
+      result.chunkOffsets = new long[numChunks];
+      result.chunkLengths = new int[numChunks];
+      result.chunkCodecs = new int[numChunks];
+      for (int i = 0; i < numChunks; ++i) {
+         result.chunkOffsets[i] = table.getLong(i * CHUNK_ENTRY_SIZE);
+         result.chunkLengths[i] = table.getInt(i * CHUNK_ENTRY_SIZE + 8);
+         result.chunkCodecs[i] = table.getInt(i * CHUNK_ENTRY_SIZE + 12);
+      }
+      int position = numChunks * CHUNK_ENTRY_SIZE;
+      byte[] coordsBytes = new byte[coordsLength];
+      System.arraycopy(tableBytes, position, coordsBytes, 0, coordsLength);
+      result.coords = DefaultCoords.fromNormalizedString(
+            getString(coordsBytes));
+      result.metadataBytes = new byte[metadataLength];
+      System.arraycopy(tableBytes, position + coordsLength,
+            result.metadataBytes, 0, metadataLength);
+      return result;
+   }
+
+   @Override
+   public void freeze() {
+      if (!isWritable_) {
+         return;
+      }
+      compressionExecutor_.shutdown();
+      try {
+         while (!compressionExecutor_.awaitTermination(1, TimeUnit.SECONDS)) {
+            // Keep waiting until everything is written.
+         }
+      }
+      catch (InterruptedException e) {
+         ReportingUtils.logError(e, "Interrupted while waiting for images to be written");
+      }
+      writeAttributes();
+      isWritable_ = false;
+      if (numStoredBytes_.get() > 0) {
+         ReportingUtils.logMessage(String.format(
+                  "Chunked storage wrote %d bytes of pixel data as %d bytes (%.2fx)",
+                  numRawBytes_.get(), numStoredBytes_.get(),
+                  ((double) numRawBytes_.get()) / numStoredBytes_.get()));
+      }
+   }
+
+   private synchronized void writeAttributes() {
+      File file = new File(dir_, ATTRIBUTES_FILENAME);
+      try {
+         JSONObject attributes = new JSONObject();
+         attributes.put(FORMAT_KEY, FORMAT_VERSION);
+         attributes.put("ChunkWidth", chunkWidth_);
+         attributes.put("ChunkHeight", chunkHeight_);
+         attributes.put("Compression", "shuffle+deflate");
+         attributes.put("Summary",
+               ((DefaultSummaryMetadata) summaryMetadata_).toJSON());
+         Writer writer = new FileWriter(file);
+         try {
+            writer.write(attributes.toString(2));
+         }
+         finally {
+            writer.close();
+         }
+      }
+      catch (JSONException e) {
+         ReportingUtils.logError(e, "Unable to generate dataset attributes");
+      }
+      catch (IOException e) {
+         ReportingUtils.logError(e, "Unable to write " + file);
+      }
+   }
+
+   private void openExistingDataSet() throws IOException {
+      if (!isChunkedDataset(dir_.getPath())) {
+         throw new IOException("Unable to find dataset at " + dir_);
+      }
+      try {
+         JSONObject attributes = new JSONObject(TextUtils.readTextFile(
+                  new File(dir_, ATTRIBUTES_FILENAME).getPath()));
+         if (attributes.has("Summary")) {
+            summaryMetadata_ = DefaultSummaryMetadata.legacyFromJSON(
+                  attributes.getJSONObject("Summary"));
+         }
+      }
+      catch (JSONException e) {
+         ReportingUtils.logError(e, "Unable to read summary metadata for " + dir_);
+      }
+      File[] files = dir_.listFiles();
+      if (files == null) {
+         throw new IOException("Unable to list files in " + dir_);
+      }
+      for (File file : files) {
+         if (!file.getName().endsWith(PLANE_EXTENSION)) {
+            continue;
+         }
+         RandomAccessFile raFile = new RandomAccessFile(file, "r");
+         try {
+            Coords coords = readPlaneHeader(raFile, file).coords;
+            coords_.add(coords);
+            for (String axis : coords.getAxes()) {
+               if (maxIndex_.getIndex(axis) < coords.getIndex(axis)) {
+                  maxIndex_ = maxIndex_.copy()
+                        .index(axis, coords.getIndex(axis))
+                        .build();
+               }
+            }
+         }
+         catch (IOException e) {
+            ReportingUtils.logError(e, "Skipping unreadable file " + file);
+         }
+         catch (IllegalArgumentException e) {
+            ReportingUtils.logError(e, "Skipping file with invalid coords " + file);
+         }
+         finally {
+            raFile.close();
+         }
+      }
+   }
+
+   @Override
+   public Image getImage(Coords coords) {
+      if (!hasImage(coords)) {
+         return null;
+      }
+      return getImageRegion(coords, null);
+   }
+
+   /**
+    * Retrieve part of an image, reading and decompressing only the chunks
+    * that overlap the requested region.
+    * @param coords Coordinates of the image.
+    * @param region Region of the image to read, in pixels. Will be clipped
+    *        to the bounds of the image. If null, the entire image is read.
+    * @return An image containing just the requested region, with the
+    *         original image's coords and metadata, or null if there is no
+    *         image at those coords, the region does not overlap the image,
+    *         or the image could not be read.
+    */
+   public Image getImageRegion(Coords coords, Rectangle region) {
+      File file = getFile(coords);
+      IOException error = null;
+      // The file may be replaced by a rewrite while we read it. In that case
+      // the new image is pending by the time the read fails, or has been
+      // moved into place, so we look again once before giving up.
+      for (int attempt = 0; attempt < 2; ++attempt) {
+         Image pending = coordsToPendingImage_.get(coords);
+         if (pending != null) {
+            return cropImage(pending, region);
+         }
+         try {
+            return readRegion(file, coords, region);
+         }
+         catch (IOException e) {
+            error = e;
+         }
+         catch (DataFormatException e) {
+            ReportingUtils.logError(e, "Corrupt image data at " + coords + " in " + file);
+            return null;
+         }
+      }
+      ReportingUtils.logError(error, "Unable to read image at " + coords + " from " + file);
+      return null;
+   }
+
+   private Image readRegion(File file, Coords coords, Rectangle region)
+         throws IOException, DataFormatException {
+      RandomAccessFile raFile = new RandomAccessFile(file, "r");
+      try {
+         PlaneHeader header = readPlaneHeader(raFile, file);
+         return readRegion(raFile, header, coords, region);
+      }
+      finally {
+         try {
+            raFile.close();
+         }
+         catch (IOException e) {
+            ReportingUtils.logError(e, "Error closing " + file);
+         }
+      }
+   }
+
+   private Image readRegion(RandomAccessFile raFile, final PlaneHeader header,
+         Coords coords, Rectangle region)
+         throws IOException, DataFormatException {
+      Rectangle bounds = new Rectangle(0, 0, header.width, header.height);
+      if (region != null) {
+         bounds = bounds.intersection(region);
+         if (bounds.isEmpty()) {
+            return null;
+         }
+      }
+      int bytesPerPixel = header.bytesPerPixel;
+      int elementSize = bytesPerPixel / header.numComponents;
+      ByteBuffer result = ByteBuffer.allocateDirect(
+            bounds.width * bounds.height * bytesPerPixel);
+      int chunksX = (header.width + header.chunkWidth - 1) / header.chunkWidth;
+      int maxChunkBytes = header.chunkWidth * header.chunkHeight * bytesPerPixel;
+      byte[] stored = new byte[maxChunkBytes];
+      byte[] raw = new byte[maxChunkBytes];
+      ChunkCodec codec = codecs_.get();
+      for (int i = 0; i < header.chunkOffsets.length; ++i) {
+         Rectangle chunk = getChunkBounds(i % chunksX, i / chunksX,
+               header.width, header.height, header.chunkWidth,
+               header.chunkHeight);
+         Rectangle overlap = chunk.intersection(bounds);
+         if (overlap.isEmpty()) {
+            continue;
+         }
+         int length = header.chunkLengths[i];
+         raFile.seek(header.chunkOffsets[i]);
+         raFile.readFully(stored, 0, length);
+         int rawLength = chunk.width * chunk.height * bytesPerPixel;
+         if (header.chunkCodecs[i] == ChunkCodec.RAW) {
+            System.arraycopy(stored, 0, raw, 0, length);
+         }
+         else if (header.chunkCodecs[i] == ChunkCodec.SHUFFLE_DEFLATE) {
+            codec.decompress(stored, length, elementSize, raw, rawLength);
+         }
+         else {
+            throw new DataFormatException("Unknown codec " +
+                  header.chunkCodecs[i]);
+         }
+         overlap.translate(-chunk.x, -chunk.y);
+         copyRegion(ByteBuffer.wrap(raw), chunk.width, overlap, result,
+               bounds.width, chunk.x + overlap.x - bounds.x,
+               chunk.y + overlap.y - bounds.y, bytesPerPixel);
+      }
+      if (elementSize == 2 && !header.order.equals(DirectBuffers.NATIVE_ORDER)) {
+         for (int i = 0; i < result.capacity(); i += 2) {
+            result.putShort(i, Short.reverseBytes(result.getShort(i)));
+         }
+      }
+      return new DefaultImage(result, bounds.width, bounds.height,
+            bytesPerPixel, header.numComponents, coords,
+            new Supplier<Metadata>() {
+               @Override
+               public Metadata get() {
+                  try {
+                     return DefaultMetadata.legacyFromJSON(new JSONObject(
+                              getString(header.metadataBytes)));
+                  }
+                  catch (JSONException e) {
+                     ReportingUtils.logError(e, "Unable to parse image metadata");
+                     return new DefaultMetadata.Builder().build();
+                  }
+               }
+            });
+   }
+
+   private static Image cropImage(Image image, Rectangle region) {
+      Rectangle bounds = new Rectangle(0, 0, image.getWidth(),
+            image.getHeight());
+      if (region == null || region.contains(bounds)) {
+         return image;
+      }
+      bounds = bounds.intersection(region);
+      if (bounds.isEmpty()) {
+         return null;
+      }
+      int bytesPerPixel = image.getBytesPerPixel();
+      ByteBuffer result = ByteBuffer.allocateDirect(
+            bounds.width * bounds.height * bytesPerPixel);
+      copyRegion(getPixelBytes(image), image.getWidth(), bounds, result,
+            bounds.width, 0, 0, bytesPerPixel);
+      final Metadata metadata = image.getMetadata();
+      return new DefaultImage(result, bounds.width, bounds.height,
+            bytesPerPixel, image.getNumComponents(), image.getCoords(),
+            new Supplier<Metadata>() {
+               @Override
+               public Metadata get() {
+                  return metadata;
+               }
+            });
+   }
+
+   @Override
+   public synchronized Image getAnyImage() {
+      if (coords_.isEmpty()) {
+         return null;
+      }
+      return getImage(coords_.iterator().next());
+   }
+
+   @Override
+   public synchronized Iterable<Coords> getUnorderedImageCoords() {
+      return new ArrayList<Coords>(coords_);
+   }
+
+   @Override
+   public List<Image> getImagesMatching(Coords coords) {
+      ArrayList<Image> results = new ArrayList<Image>();
+      for (Coords imageCoords : getUnorderedImageCoords()) {
+         if (imageCoords.matches(coords)) {
+            Image image = getImage(imageCoords);
+            if (image != null) {
+               results.add(image);
+            }
+         }
+      }
+      return results;
+   }
+
+   @Override
+   public synchronized boolean hasImage(Coords coords) {
+      return coords_.contains(coords);
+   }
+
+   @Override
+   public synchronized Integer getMaxIndex(String axis) {
+      return maxIndex_.getIndex(axis);
+   }
+
+   @Override
+   public synchronized List<String> getAxes() {
+      return maxIndex_.getAxes();
+   }
+
+   @Override
+   public synchronized Coords getMaxIndices() {
+      return maxIndex_;
+   }
+
+   @Override
+   public synchronized int getNumImages() {
+      return coords_.size();
+   }
+
+   @Override
+   public SummaryMetadata getSummaryMetadata() {
+      return summaryMetadata_;
+   }
+
+   @Subscribe
+   public void onNewSummaryMetadata(NewSummaryMetadataEvent event) {
+      summaryMetadata_ = event.getSummaryMetadata();
+      if (isWritable_) {
+         writeAttributes();
+      }
+   }
+
+   @Override
+   public synchronized void deleteImage(Coords coords) throws IllegalArgumentException {
+      if (!coords_.contains(coords)) {
+         throw new IllegalArgumentException("Storage does not contain image at " + coords);
+      }
+      coords_.remove(coords);
+      // Any in-progress write will see that it is out of date and discard
+      // its output.
+      coordsToPendingImage_.remove(coords);
+      File file = getFile(coords);
+      if (file.exists() && !file.delete()) {
+         ReportingUtils.logError("Unable to delete " + file);
+      }
+   }
+
+   @Override
+   public void close() {
+      // Make certain that everything we were given is on disk.
+      freeze();
+   }
+}
@@ -0,0 +1,464 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API implementation
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.eventbus.Subscribe;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.NewSummaryMetadataEvent;
+import org.micromanager.data.RewritableStorage;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.internal.utils.DefaultUserProfile;
+import org.micromanager.internal.utils.DirectBuffers;
+import org.micromanager.internal.utils.ReportingUtils;
+
+/**
+ * RAM-based storage that keeps pixel data outside of the Java heap, in
+ * direct buffers, up to a configurable number of bytes. Once that limit is
+ * exceeded, the oldest images are moved ("spilled") into a temporary file
+ * which is memory-mapped, so that they remain available without counting
+ * against the limit; the operating system pages them in and out as needed.
+ *
+ * Image lookups do not take any locks. Coords are indexed by the position of
+ * each axis, so getImagesMatching() only examines images that share the
+ * least-common axis position of the requested coords, rather than every
+ * image.
+ *
+ * Space in the spill file is not reused when images are deleted or
+ * overwritten, as Images we have handed out may still refer to it; it is
+ * released when the storage is closed. Metadata is held in the compact
+ * binary form produced by MetadataCodec; metadata that has not been built
+ * yet (e.g. for images straight from the camera) is left alone until it is
+ * asked for or the image is moved to disk. Every call to getImage() returns
+ * a new Image sharing the stored pixels, so that metadata decoded for one
+ * caller is not kept around for the life of the storage.
+ */
+public final class StorageOffHeapRAM implements RewritableStorage {
+   private static final String SHOULD_USE_OFF_HEAP_RAM = "store unsaved images outside of Java memory";
+   private static final String OFF_HEAP_RAM_LIMIT = "memory limit in MB for unsaved images before moving them to disk";
+   // Size of each memory-mapped region of the spill file.
+   private static final long SPILL_SEGMENT_SIZE = 256L * 1024 * 1024;
+
+   /**
+    * Bookkeeping for a single image.
+    */
+   private static final class Plane {
+      final Coords coords_;
+      final int numBytes_;
+      final int width_;
+      final int height_;
+      final int bytesPerPixel_;
+      final int numComponents_;
+      final PlaneMetadata metadata_;
+      // Replaced by a view of the spill file when the plane is spilled.
+      volatile ByteBuffer pixels_;
+
+      Plane(Coords coords, ByteBuffer pixels, Image image,
+            PlaneMetadata metadata) {
+         coords_ = coords;
+         numBytes_ = pixels.capacity();
+         width_ = image.getWidth();
+         height_ = image.getHeight();
+         bytesPerPixel_ = image.getBytesPerPixel();
+         numComponents_ = image.getNumComponents();
+         metadata_ = metadata;
+         pixels_ = pixels;
+      }
+
+      Image toImage() {
+         return new DefaultImage(pixels_.duplicate(), width_, height_,
+               bytesPerPixel_, numComponents_, coords_, metadata_);
+      }
+   }
+
+   /**
+    * The metadata of a single image, encoded with the storage's codec.
+    * Metadata that has not been built yet is only encoded once it is built.
+    */
+   private final class PlaneMetadata implements Supplier<Metadata> {
+      // Guarded by this; exactly one of these is non-null.
+      private Supplier<? extends Metadata> source_;
+      private byte[] encoded_;
+
+      PlaneMetadata(Supplier<? extends Metadata> source) {
+         source_ = source;
+      }
+
+      @Override
+      public Metadata get() {
+         byte[] encoded;
+         synchronized (this) {
+            if (encoded_ == null) {
+               Metadata metadata = source_.get();
+               encoded_ = metadataCodec_.encode(metadata);
+               source_ = null;
+               return metadata;
+            }
+            encoded = encoded_;
+         }
+         return metadataCodec_.decode(encoded);
+      }
+
+      /**
+       * Build and encode the metadata now, so that it takes little memory.
+       */
+      synchronized void encode() {
+         if (encoded_ == null) {
+            encoded_ = metadataCodec_.encode(source_.get());
+            source_ = null;
+         }
+      }
+   }
+
+   private final long limitBytes_;
+   private final ConcurrentHashMap<Coords, Plane> coordsToPlane_ =
+      new ConcurrentHashMap<Coords, Plane>();
+   // Maps axis to axis position to all coords with that position.
+   private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Set<Coords>>> axisToPositionToCoords_ =
+      new ConcurrentHashMap<String, ConcurrentHashMap<Integer, Set<Coords>>>();
+   // Planes that have not been spilled, oldest first. Guarded by this.
+   private final LinkedHashMap<Coords, Plane> residentPlanes_ =
+      new LinkedHashMap<Coords, Plane>();
+   private long residentBytes_ = 0;
+   private volatile Coords maxIndex_;
+   private volatile SummaryMetadata summaryMetadata_;
+
+   // Spill file state; guarded by this.
+   private File spillFile_ = null;
+   private RandomAccessFile spillRAFile_ = null;
+   private long spillFileLength_ = 0;
+   private MappedByteBuffer spillSegment_ = null;
+   private boolean haveSpillError_ = false;
+   private final MetadataCodec metadataCodec_ = new MetadataCodec();
+
+   public StorageOffHeapRAM(Datastore store) {
+      this(store, ((long) getMemoryLimitMB()) * 1024 * 1024);
+   }
+
+   /**
+    * @param limitBytes Number of bytes of pixel data to keep in memory
+    *        before spilling images to disk.
+    */
+   public StorageOffHeapRAM(Datastore store, long limitBytes) {
+      limitBytes_ = limitBytes;
+      maxIndex_ = new DefaultCoords.Builder().build();
+      summaryMetadata_ = (new DefaultSummaryMetadata.Builder()).build();
+      // It is imperative that we be notified of new images before anyone who
+      // wants to retrieve the images from the store is notified.
+      ((DefaultDatastore) store).registerForEvents(this, 0);
+   }
+
+   /**
+    * Create whichever kind of RAM-based storage the user prefers.
+    */
+   public static RewritableStorage createRAMStorage(Datastore store) {
+      if (getShouldUseOffHeapRAM()) {
+         return new StorageOffHeapRAM(store);
+      }
+      return new StorageRAM(store);
+   }
+
+   @Override
+   public synchronized void putImage(Image image) {
+      Coords coords = image.getCoords();
+      ByteBuffer pixels = null;
+      Supplier<? extends Metadata> pendingMetadata = null;
+      if (image instanceof DefaultImage) {
+         pixels = ((DefaultImage) image).getPixelBufferAsBytes();
+         pendingMetadata = ((DefaultImage) image).getPendingMetadataSupplier();
+      }
+      PlaneMetadata metadata;
+      if (pendingMetadata != null) {
+         // Leave building the metadata until somebody wants it.
+         metadata = new PlaneMetadata(pendingMetadata);
+      }
+      else {
+         metadata = new PlaneMetadata(Suppliers.ofInstance(image.getMetadata()));
+         metadata.encode();
+      }
+      if (pixels == null || !pixels.isDirect()) {
+         // Copy the pixels out of the Java heap.
+         pixels = DirectBuffers.byteBufferFromArray(image.getRawPixels());
+      }
+      Plane plane = new Plane(coords, pixels, image, metadata);
+
+      Plane oldPlane = coordsToPlane_.put(coords, plane);
+      if (oldPlane != null && residentPlanes_.remove(coords) != null) {
+         residentBytes_ -= oldPlane.numBytes_;
+      }
+      if (oldPlane == null) {
+         addToIndex(coords);
+      }
+      residentPlanes_.put(coords, plane);
+      residentBytes_ += plane.numBytes_;
+      spillIfNecessary();
+   }
+
+   private void addToIndex(Coords coords) {
+      Coords maxIndex = maxIndex_;
+      for (String axis : coords.getAxes()) {
+         int position = coords.getIndex(axis);
+         ConcurrentHashMap<Integer, Set<Coords>> positionToCoords =
+            axisToPositionToCoords_.get(axis);
+         if (positionToCoords == null) {
+            positionToCoords = new ConcurrentHashMap<Integer, Set<Coords>>();
+            axisToPositionToCoords_.put(axis, positionToCoords);
+         }
+         Set<Coords> matches = positionToCoords.get(position);
+         if (matches == null) {
+            matches = Collections.newSetFromMap(
+                  new ConcurrentHashMap<Coords, Boolean>());
+            positionToCoords.put(position, matches);
+         }
+         matches.add(coords);
+         if (maxIndex.getIndex(axis) < position) {
+            // Either this image is further along on this axis, or we have
+            // no index for this axis yet.
+            maxIndex = maxIndex.copy().index(axis, position).build();
+         }
+      }
+      maxIndex_ = maxIndex;
+   }
+
+   private void removeFromIndex(Coords coords) {
+      for (String axis : coords.getAxes()) {
+         ConcurrentHashMap<Integer, Set<Coords>> positionToCoords =
+            axisToPositionToCoords_.get(axis);
+         Set<Coords> matches = positionToCoords.get(coords.getIndex(axis));
+         matches.remove(coords);
+      }
+   }
+
+   /**
+    * Move the oldest images into the spill file until we are within our
+    * memory limit. The newest image is always kept in memory.
+    */
+   private void spillIfNecessary() {
+      while (residentBytes_ > limitBytes_ && residentPlanes_.size() > 1 &&
+            !haveSpillError_) {
+         Iterator<Plane> iter = residentPlanes_.values().iterator();
+         Plane plane = iter.next();
+         try {
+            spill(plane);
+         }
+         catch (IOException e) {
+            ReportingUtils.logError(e, "Unable to move images to disk; keeping all images in memory");
+            haveSpillError_ = true;
+            return;
+         }
+         iter.remove();
+         residentBytes_ -= plane.numBytes_;
+      }
+   }
+
+   private void spill(Plane plane) throws IOException {
+      if (spillRAFile_ == null) {
+         spillFile_ = File.createTempFile("mmimages", ".tmp");
+         spillFile_.deleteOnExit();
+         spillRAFile_ = new RandomAccessFile(spillFile_, "rw");
+         ReportingUtils.logMessage("Over the " + limitBytes_ +
+               "-byte memory limit; moving older images to " + spillFile_);
+      }
+      if (spillSegment_ == null ||
+            spillSegment_.remaining() < plane.numBytes_) {
+         long size = Math.max(SPILL_SEGMENT_SIZE, plane.numBytes_);
+         spillRAFile_.setLength(spillFileLength_ + size);
+         spillSegment_ = spillRAFile_.getChannel().map(
+               FileChannel.MapMode.READ_WRITE, spillFileLength_, size);
+         spillFileLength_ += size;
+      }
+      ByteBuffer pixels = plane.pixels_.duplicate();
+      pixels.clear();
+      ByteBuffer dest = spillSegment_.slice();
+      dest.limit(plane.numBytes_);
+      dest.put(pixels);
+      dest.flip();
+      spillSegment_.position(spillSegment_.position() + plane.numBytes_);
+      plane.pixels_ = dest.asReadOnlyBuffer();
+      plane.metadata_.encode();
+   }
+
+   @Override
+   public void freeze() {
+      // The Datastore handles making certain writes don't occur, and we don't
+      // do anything special to "finish" storing data, so this is a no-op.
+   }
+
+   @Override
+   public Image getImage(Coords coords) {
+      Plane plane = coordsToPlane_.get(coords);
+      if (plane == null) {
+         return null;
+      }
+      return plane.toImage();
+   }
+
+   @Override
+   public Image getAnyImage() {
+      Iterator<Plane> iter = coordsToPlane_.values().iterator();
+      if (iter.hasNext()) {
+         return iter.next().toImage();
+      }
+      return null;
+   }
+
+   @Override
+   public List<Image> getImagesMatching(Coords coords) {
+      // Find the axis position shared by the fewest images.
+      Iterable<Coords> candidates = coordsToPlane_.keySet();
+      int numCandidates = Integer.MAX_VALUE;
+      for (String axis : coords.getAxes()) {
+         ConcurrentHashMap<Integer, Set<Coords>> positionToCoords =
+            axisToPositionToCoords_.get(axis);
+         Set<Coords> matches = null;
+         if (positionToCoords != null) {
+            matches = positionToCoords.get(coords.getIndex(axis));
+         }
+         if (matches == null) {
+            return new ArrayList<Image>();
+         }
+         if (matches.size() < numCandidates) {
+            candidates = matches;
+            numCandidates = matches.size();
+         }
+      }
+      ArrayList<Image> results = new ArrayList<Image>();
+      for (Coords candidate : candidates) {
+         if (candidate.matches(coords)) {
+            Plane plane = coordsToPlane_.get(candidate);
+            if (plane != null) {
+               results.add(plane.toImage());
+            }
+         }
+      }
+      return results;
+   }
+
+   @Override
+   public Iterable<Coords> getUnorderedImageCoords() {
+      return coordsToPlane_.keySet();
+   }
+
+   @Override
+   public boolean hasImage(Coords coords) {
+      return coordsToPlane_.containsKey(coords);
+   }
+
+   @Override
+   public Integer getMaxIndex(String axis) {
+      return maxIndex_.getIndex(axis);
+   }
+
+   @Override
+   public List<String> getAxes() {
+      return maxIndex_.getAxes();
+   }
+
+   @Override
+   public Coords getMaxIndices() {
+      return maxIndex_;
+   }
+
+   @Override
+   public SummaryMetadata getSummaryMetadata() {
+      return summaryMetadata_;
+   }
+
+   @Subscribe
+   public void onNewSummary(NewSummaryMetadataEvent event) {
+      summaryMetadata_ = event.getSummaryMetadata();
+   }
+
+   @Override
+   public int getNumImages() {
+      return coordsToPlane_.size();
+   }
+
+   @Override
+   public synchronized void deleteImage(Coords coords) throws IllegalArgumentException {
+      Plane plane = coordsToPlane_.remove(coords);
+      if (plane == null) {
+         throw new IllegalArgumentException("Storage does not contain image at " + coords);
+      }
+      removeFromIndex(coords);
+      if (residentPlanes_.remove(coords) != null) {
+         residentBytes_ -= plane.numBytes_;
+      }
+   }
+
+   @Override
+   public synchronized void close() {
+      // Images in memory get GC'd automatically when all references are
+      // gone; we just need to get rid of the spill file. Existing mappings
+      // of it remain valid until they are GC'd as well.
+      if (spillRAFile_ != null) {
+         try {
+            spillRAFile_.close();
+         }
+         catch (IOException e) {
+            ReportingUtils.logError(e, "Error closing " + spillFile_);
+         }
+         // On some platforms the file cannot be deleted while it is
+         // mapped; in that case deleteOnExit() takes care of it.
+         spillFile_.delete();
+         spillRAFile_ = null;
+         spillSegment_ = null;
+      }
+   }
+
+   public static boolean getShouldUseOffHeapRAM() {
+      return DefaultUserProfile.getInstance().getBoolean(
+            StorageOffHeapRAM.class, SHOULD_USE_OFF_HEAP_RAM, false);
+   }
+
+   public static void setShouldUseOffHeapRAM(boolean shouldUse) {
+      DefaultUserProfile.getInstance().setBoolean(
+            StorageOffHeapRAM.class, SHOULD_USE_OFF_HEAP_RAM, shouldUse);
+   }
+
+   public static int getMemoryLimitMB() {
+      // By default, allow half as much as the Java heap may use, as direct
+      // memory is by default limited to the same size as the heap.
+      int defaultVal = (int) (Runtime.getRuntime().maxMemory() / 1024 / 1024 / 2);
+      return DefaultUserProfile.getInstance().getInt(
+            StorageOffHeapRAM.class, OFF_HEAP_RAM_LIMIT, defaultVal);
+   }
+
+   public static void setMemoryLimitMB(int limit) {
+      DefaultUserProfile.getInstance().setInt(
+            StorageOffHeapRAM.class, OFF_HEAP_RAM_LIMIT, limit);
+   }
+}
@@ -22,6 +22,7 @@ package org.micromanager.data.internal.multipagetiff;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
@@ -58,16 +59,18 @@ class FileSet {
    private boolean expectedImageOrder_ = true;
    private int ifdCount_ = 0;
    private StorageMultipageTiff masterStorage_;
+   private WritingLane writingLane_;
    int nextExpectedChannel_ = 0, nextExpectedSlice_ = 0, nextExpectedFrame_ = 0;
    int currentFrame_ = 0;
 
    
    public FileSet(JSONObject firstImageTags, StorageMultipageTiff masterStorage,
-         OMEMetadata omeMetadata,
+         WritingLane writingLane, OMEMetadata omeMetadata,
          boolean splitByXYPosition, boolean separateMetadataFile)
       throws IOException {
       tiffWriters_ = new LinkedList<MultipageTiffWriter>();  
       masterStorage_ = masterStorage;
+      writingLane_ = writingLane;
       omeMetadata_ = omeMetadata;
       splitByXYPosition_ = splitByXYPosition;
       separateMetadataFile_ = separateMetadataFile;
@@ -78,7 +81,7 @@ class FileSet {
       currentTiffUUID_ = "urn:uuid:" + UUID.randomUUID().toString();
       //make first writer
       tiffWriters_.add(new MultipageTiffWriter(masterStorage_,
-            firstImageTags, currentTiffFilename_));
+            writingLane_, firstImageTags, currentTiffFilename_));
 
       try {
          if (separateMetadataFile_) {
@@ -134,6 +137,10 @@ class FileSet {
       }
    }
 
+   public WritingLane getWritingLane() {
+      return writingLane_;
+   }
+
    public MultipageTiffReader getCurrentReader() {
       return tiffWriters_.getLast().getReader();
    }
@@ -143,6 +150,14 @@ class FileSet {
    }
 
    public void writeImage(TaggedImage img) throws IOException {
+      writeImage(img, null);
+   }
+
+   /**
+    * @param pixels If not null, pixel data to write in place of img.pix; see
+    *        MultipageTiffWriter.writeImage().
+    */
+   public void writeImage(TaggedImage img, ByteBuffer pixels) throws IOException {
       //check if current writer is out of space, if so, make a new one
       if (!tiffWriters_.getLast().hasSpaceToWrite(img, SPACE_FOR_PARTIAL_OME_MD)) {
          //write index map here but still need to call close() at end of acq
@@ -152,7 +167,7 @@ class FileSet {
          currentTiffUUID_ = "urn:uuid:" + UUID.randomUUID().toString();
          ifdCount_ = 0;
          tiffWriters_.add(new MultipageTiffWriter(masterStorage_,
-               img.tags, currentTiffFilename_));
+               writingLane_, img.tags, currentTiffFilename_));
       }      
 
       //Add filename to image tags
@@ -163,7 +178,7 @@ class FileSet {
       }
 
       //write image
-      tiffWriters_.getLast().writeImage(img);  
+      tiffWriters_.getLast().writeImage(img, pixels);
 
       if (expectedImageOrder_) {
          if (splitByXYPosition_) {
@@ -21,6 +21,7 @@
 //
 package org.micromanager.data.internal.multipagetiff;
 
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -29,10 +30,12 @@ import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import javax.swing.SwingUtilities;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
@@ -49,6 +52,7 @@ import org.micromanager.data.internal.DefaultPropertyMap;
 import org.micromanager.data.internal.DefaultSummaryMetadata;
 import org.micromanager.display.internal.DefaultDisplaySettings;
 import org.micromanager.display.internal.DefaultDisplayWindow;
+import org.micromanager.internal.utils.DirectBuffers;
 import org.micromanager.internal.utils.MDUtils;
 import org.micromanager.internal.utils.ProgressBar;
 import org.micromanager.internal.utils.ReportingUtils;
@@ -70,7 +74,16 @@ public final class MultipageTiffReader {
    // map entry, 20 bytes) and update those locations.
    public static final ImmutableList<String> ALLOWED_AXES = ImmutableList.of("channel", "z", "time", "position");
 
+   // When memory mapping is enabled, the file is mapped in windows that
+   // start every MAP_WINDOW_STRIDE bytes and overlap by MAP_WINDOW_OVERLAP
+   // bytes, so any region no larger than the overlap lies entirely within a
+   // single window. Larger regions are read through the FileChannel.
+   private static final long MAP_WINDOW_STRIDE = 256L * 1024 * 1024;
+   private static final long MAP_WINDOW_OVERLAP = 64L * 1024 * 1024;
+
    private ByteOrder byteOrder_;  
+   // True if the file is a BigTIFF (64-bit offsets) rather than classic TIFF.
+   private boolean isBigTiff_ = false;
    private File file_;
    private RandomAccessFile raFile_;
    private FileChannel fileChannel_;
@@ -81,6 +94,13 @@ public final class MultipageTiffReader {
    private int byteDepth_ = 0;
    private boolean rgb_;
    private boolean writingFinished_;
+   // Image dimensions according to the summary metadata, or 0 if unknown.
+   private int imageWidth_ = 0;
+   private int imageHeight_ = 0;
+
+   private volatile boolean useMemoryMapping_ = false;
+   // Lazily created; guarded by this for writes.
+   private volatile AtomicReferenceArray<MappedByteBuffer> mapWindows_;
 
    private HashMap<Coords, Long> coordsToOffset_;
 
@@ -93,11 +113,12 @@ public final class MultipageTiffReader {
     */
    public MultipageTiffReader(StorageMultipageTiff masterStorage,
          SummaryMetadata summaryMD, JSONObject summaryJSON,
-         JSONObject firstImageTags) {
+         JSONObject firstImageTags, boolean isBigTiff) {
       masterStorage_ = masterStorage;
       summaryMetadata_ = summaryMD;
       summaryJSON_ = summaryJSON;
       byteOrder_ = MultipageTiffWriter.BYTE_ORDER;
+      isBigTiff_ = isBigTiff;
       getRGBAndByteDepth(firstImageTags);
       writingFinished_ = false;
    }
@@ -114,6 +135,17 @@ public final class MultipageTiffReader {
     * This constructor is used for opening datasets that have already been saved
     */
    public MultipageTiffReader(StorageMultipageTiff masterStorage, File file) throws IOException, InvalidIndexMapException {
+      this(masterStorage, file, true);
+   }
+
+   /**
+    * As above, but optionally skips reading the file's index map, for when
+    * image locations are known from elsewhere (i.e. a SidecarIndex). In
+    * that case getIndexKeys() is empty and images must be read with
+    * readImage(Coords, long).
+    */
+   public MultipageTiffReader(StorageMultipageTiff masterStorage, File file,
+         boolean shouldReadIndexMap) throws IOException, InvalidIndexMapException {
       masterStorage_ = masterStorage;
       file_ = file;
       try {
@@ -127,7 +159,12 @@ public final class MultipageTiffReader {
       summaryMetadata_ = DefaultSummaryMetadata.legacyFromJSON(summaryJSON_);
 
       try {
-         readIndexMap();
+         if (shouldReadIndexMap) {
+            readIndexMap();
+         }
+         else {
+            coordsToOffset_ = new HashMap<Coords, Long>();
+         }
       }
       catch (IOException e) {
          // Normally I'd frown on converting exception types like this, but we
@@ -139,6 +176,7 @@ public final class MultipageTiffReader {
 
       if (summaryMetadata_ != null) {
          getRGBAndByteDepth(summaryJSON_);
+         getImageDimensions(summaryJSON_);
       }
    }
 
@@ -196,7 +234,8 @@ public final class MultipageTiffReader {
         return false;
       }
       FileChannel channel = ra.getChannel();
-      ByteBuffer tiffHeader = ByteBuffer.allocate(36);
+      ByteBuffer tiffHeader = ByteBuffer.allocate(
+            (int) MultipageTiffWriter.getSummaryMDHeaderPosition(true) + 4);
       ByteOrder bo;
       channel.read(tiffHeader,0);
       char zeroOne = tiffHeader.getChar(0);
@@ -208,7 +247,9 @@ public final class MultipageTiffReader {
          throw new IOException("Error reading Tiff header");
       }
       tiffHeader.order(bo);
-      int summaryMDHeader = tiffHeader.getInt(32);
+      boolean isBigTiff = tiffHeader.getChar(2) == 43;
+      int summaryMDHeader = tiffHeader.getInt(
+            (int) MultipageTiffWriter.getSummaryMDHeaderPosition(isBigTiff));
       channel.close();
       ra.close();
       if (summaryMDHeader == MultipageTiffWriter.SUMMARY_MD_HEADER) {
@@ -236,57 +277,73 @@ public final class MultipageTiffReader {
       }
    }
 
+   private void getImageDimensions(JSONObject md) {
+      try {
+         imageWidth_ = MDUtils.getWidth(md);
+         imageHeight_ = MDUtils.getHeight(md);
+      }
+      catch (JSONException e) {
+         // Not available; we'll get them from each image's metadata instead.
+         imageWidth_ = 0;
+         imageHeight_ = 0;
+      }
+   }
+
    public SummaryMetadata getSummaryMetadata() {
       return summaryMetadata_;
    }
 
+   /**
+    * Enable or disable memory-mapped reads. When enabled, a file that was
+    * opened from disk is read through MappedByteBuffers instead of through
+    * its FileChannel: grayscale pixel data is wrapped without copying (when
+    * the file's byte order matches the native order), and each image's
+    * metadata is only parsed when Image.getMetadata() is called. Any number
+    * of threads may call readImage() concurrently in either mode.
+    * Has no effect on files that are still being written.
+    */
+   public void setUseMemoryMapping(boolean useMapping) {
+      useMemoryMapping_ = useMapping;
+   }
+
+   private boolean canUseMemoryMapping() {
+      return useMemoryMapping_ && writingFinished_ && file_ != null;
+   }
+
    public DefaultImage readImage(Coords coords) {
       if (!coordsToOffset_.containsKey(coords)) {
          // Coordinates not in our map; maybe the writer hasn't finished
          // writing it?
          return null;
       }
+      return readImage(coords, coordsToOffset_.get(coords));
+   }
+
+   /**
+    * Read the image whose IFD is at the given offset in the file.
+    * @param coords Coordinates of the image. These are only used when reading
+    *        with memory mapping; otherwise they are parsed from the image's
+    *        metadata.
+    */
+   public DefaultImage readImage(Coords coords, long byteOffset) {
       if (fileChannel_ == null) {
          ReportingUtils.logError("Attempted to read image on FileChannel that is null");
          return null;
       }
       try {
-         long byteOffset = coordsToOffset_.get(coords);
-
          IFDData data = readIFD(byteOffset);
+         if (canUseMemoryMapping()) {
+            DefaultImage result = readMappedImage(coords, data);
+            if (result != null) {
+               return result;
+            }
+         }
          TaggedImage tagged = readTaggedImage(data);
          // The metadata in the TaggedImage needs to be augmented with
          // fields from the summary JSON, or else we won't be able to
          // construct a DefaultImage from it.
          augmentWithSummaryMetadata(tagged.tags);
-         // Manually create new Metadata for the image we're about to
-         // create. Just passing the bare TaggedImage in would make
-         // Micro-Manager assume that the image was created by the scope
-         // this instance of the program is running, which has ramifications
-         // for the scope data properties.
-         Metadata metadata = DefaultMetadata.legacyFromJSON(tagged.tags);
-         // All keys that are part of the scope data cannot be part of
-         // the user data.
-         // TODO: assumes knowledge of how DefaultMetadata serializes
-         // scope data.
-         HashSet<String> blockedKeys = new HashSet<String>();
-         if (metadata.getScopeData() != null) {
-            blockedKeys.add("scopeDataKeys");
-            for (String key : ((DefaultPropertyMap) metadata.getScopeData()).getKeys()) {
-               blockedKeys.add(key);
-            }
-         }
-         if (summaryMetadata_.getMetadataVersion() != null &&
-               metadata.getUserData() == null &&
-               VersionUtils.isOlderVersion(
-                  summaryMetadata_.getMetadataVersion(), "11")) {
-            // These older versions of the metadata don't have a separate
-            // location for scope data or user data, so we just stuff all
-            // unused tags into the userData section.
-            metadata = metadata.copy().userData(
-                  MDUtils.extractUserData(tagged.tags, blockedKeys)).build();
-         }
-         return new DefaultImage(tagged, null, metadata);
+         return new DefaultImage(tagged, null, createMetadata(tagged.tags));
       }
       catch (IOException ex) {
          ReportingUtils.logError(ex);
@@ -298,6 +355,98 @@ public final class MultipageTiffReader {
       return null;
    }
 
+   /**
+    * Read an image using memory-mapped buffers, deferring parsing of its
+    * metadata until it is needed. Returns null if the image can't be read
+    * this way (e.g. it's RGB, or larger than a mapping window), in which
+    * case the caller should fall back to readTaggedImage().
+    */
+   private DefaultImage readMappedImage(Coords coords, final IFDData data)
+         throws IOException {
+      if (rgb_ || byteDepth_ == 0 || imageWidth_ == 0 || imageHeight_ == 0 ||
+            data.bytesPerImage != (long) imageWidth_ * imageHeight_ * byteDepth_) {
+         return null;
+      }
+      ByteBuffer pixels = getMappedRegion(data.pixelOffset,
+            (int) data.bytesPerImage);
+      if (pixels == null) {
+         return null;
+      }
+      if (!byteOrder_.equals(DirectBuffers.NATIVE_ORDER)) {
+         // Have to swap bytes, so we can't use the mapped data directly.
+         ByteBuffer swapped = ByteBuffer.allocateDirect(pixels.capacity())
+            .order(DirectBuffers.NATIVE_ORDER);
+         if (byteDepth_ == 2) {
+            swapped.asShortBuffer().put(pixels.asShortBuffer());
+         }
+         else {
+            swapped.put(pixels);
+         }
+         swapped.clear();
+         pixels = swapped;
+      }
+      Supplier<Metadata> metadataSupplier = new Supplier<Metadata>() {
+         @Override
+         public Metadata get() {
+            return readMetadata(data);
+         }
+      };
+      return new DefaultImage(pixels, imageWidth_, imageHeight_, byteDepth_,
+            1, coords, metadataSupplier);
+   }
+
+   /**
+    * Read and parse the metadata for the image described by the given IFD.
+    */
+   private Metadata readMetadata(IFDData data) {
+      try {
+         ByteBuffer mdBuffer = readRegion(data.mdOffset, (int) data.mdLength);
+         JSONObject tags = new JSONObject(
+               DirectBuffers.stringFromBuffer(mdBuffer));
+         augmentWithSummaryMetadata(tags);
+         return createMetadata(tags);
+      }
+      catch (IOException e) {
+         ReportingUtils.logError(e, "Couldn't read image metadata from file");
+      }
+      catch (JSONException e) {
+         ReportingUtils.logError(e, "Couldn't convert file image metadata to JSON");
+      }
+      return null;
+   }
+
+   /**
+    * Manually create new Metadata for an image we're about to create. Just
+    * passing the bare TaggedImage in would make Micro-Manager assume that the
+    * image was created by the scope this instance of the program is running,
+    * which has ramifications for the scope data properties.
+    */
+   private Metadata createMetadata(JSONObject tags) throws JSONException {
+      Metadata metadata = DefaultMetadata.legacyFromJSON(tags);
+      // All keys that are part of the scope data cannot be part of
+      // the user data.
+      // TODO: assumes knowledge of how DefaultMetadata serializes
+      // scope data.
+      HashSet<String> blockedKeys = new HashSet<String>();
+      if (metadata.getScopeData() != null) {
+         blockedKeys.add("scopeDataKeys");
+         for (String key : ((DefaultPropertyMap) metadata.getScopeData()).getKeys()) {
+            blockedKeys.add(key);
+         }
+      }
+      if (summaryMetadata_.getMetadataVersion() != null &&
+            metadata.getUserData() == null &&
+            VersionUtils.isOlderVersion(
+               summaryMetadata_.getMetadataVersion(), "11")) {
+         // These older versions of the metadata don't have a separate
+         // location for scope data or user data, so we just stuff all
+         // unused tags into the userData section.
+         metadata = metadata.copy().userData(
+               MDUtils.extractUserData(tags, blockedKeys)).build();
+      }
+      return metadata;
+   }
+
    /**
     * Given the metadata for a TaggedImage, augment it with fields from the
     * summary JSON that are needed for our DefaultImage class to parse the
@@ -338,8 +487,9 @@ public final class MultipageTiffReader {
 
    private JSONObject readSummaryMD() {
       try {
+         long headerPosition = MultipageTiffWriter.getSummaryMDHeaderPosition(isBigTiff_);
          ByteBuffer mdInfo = ByteBuffer.allocate(8).order(byteOrder_);
-         fileChannel_.read(mdInfo, 32);
+         fileChannel_.read(mdInfo, headerPosition);
          int header = mdInfo.getInt(0);
          int length = mdInfo.getInt(4);
 
@@ -349,7 +499,7 @@ public final class MultipageTiffReader {
          }
 
          ByteBuffer mdBuffer = ByteBuffer.allocate(length).order(byteOrder_);
-         fileChannel_.read(mdBuffer, 40);
+         fileChannel_.read(mdBuffer, headerPosition + 8);
          JSONObject summaryMD = new JSONObject(getString(mdBuffer));
 
          return summaryMD;
@@ -377,7 +527,8 @@ public final class MultipageTiffReader {
       boolean didCreate = false;
       ByteBuffer buffer = null;
       try {
-         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.COMMENTS_OFFSET_HEADER, 24);
+         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.COMMENTS_OFFSET_HEADER,
+               MultipageTiffWriter.getCommentsOffsetHeaderPosition(isBigTiff_));
          ByteBuffer header = readIntoBuffer(offset, 8);
          if (header.getInt(0) != MultipageTiffWriter.COMMENTS_HEADER) {
             ReportingUtils.logError("Can't find image comments in file: " + file_.getName());
@@ -425,30 +576,126 @@ public final class MultipageTiffReader {
       return buffer;
    }
 
-   private long readOffsetHeaderAndOffset(int offsetHeaderVal, int startOffset) throws IOException  {
-      ByteBuffer buffer1 = readIntoBuffer(startOffset,8);
+   /**
+    * As readIntoBuffer(), but uses the memory-mapped file if possible. The
+    * result is only suitable for absolute gets and bulk reads from position
+    * 0; it may not have a backing array.
+    */
+   private ByteBuffer readRegion(long position, int length) throws IOException {
+      if (canUseMemoryMapping()) {
+         ByteBuffer result = getMappedRegion(position, length);
+         if (result != null) {
+            return result;
+         }
+      }
+      if (fileChannel_ == null) {
+         throw new IOException("File " + file_ + " has been closed");
+      }
+      ByteBuffer result = readIntoBuffer(position, length);
+      result.rewind();
+      return result;
+   }
+
+   /**
+    * Return a view onto the given region of the file, in the file's byte
+    * order, or null if the region can't be memory-mapped. Each call
+    * returns a new view, so callers on different threads don't interfere
+    * with each other.
+    */
+   private ByteBuffer getMappedRegion(long position, int length) throws IOException {
+      if (length > MAP_WINDOW_OVERLAP) {
+         return null;
+      }
+      int index = (int) (position / MAP_WINDOW_STRIDE);
+      MappedByteBuffer window = getMapWindow(index);
+      if (window == null) {
+         return null;
+      }
+      int start = (int) (position - index * MAP_WINDOW_STRIDE);
+      if (start + length > window.capacity()) {
+         // Region extends past the end of the file.
+         return null;
+      }
+      ByteBuffer result = window.duplicate();
+      result.limit(start + length);
+      result.position(start);
+      return result.slice().order(byteOrder_);
+   }
+
+   private MappedByteBuffer getMapWindow(int index) throws IOException {
+      AtomicReferenceArray<MappedByteBuffer> windows = mapWindows_;
+      if (windows != null && index < windows.length()) {
+         MappedByteBuffer result = windows.get(index);
+         if (result != null) {
+            return result;
+         }
+      }
+      synchronized (this) {
+         FileChannel channel = fileChannel_;
+         if (channel == null) {
+            return null;
+         }
+         long size = channel.size();
+         if (mapWindows_ == null) {
+            int numWindows = (int) ((size + MAP_WINDOW_STRIDE - 1) / MAP_WINDOW_STRIDE);
+            mapWindows_ = new AtomicReferenceArray<MappedByteBuffer>(numWindows);
+         }
+         windows = mapWindows_;
+         if (index >= windows.length()) {
+            return null;
+         }
+         MappedByteBuffer result = windows.get(index);
+         if (result == null) {
+            long start = index * MAP_WINDOW_STRIDE;
+            long length = Math.min(size - start,
+                  MAP_WINDOW_STRIDE + MAP_WINDOW_OVERLAP);
+            try {
+               result = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                     length);
+            }
+            catch (IOException e) {
+               // Most likely we've run out of address space; stop trying.
+               ReportingUtils.logError(e, "Unable to memory-map " +
+                     file_.getName() + "; falling back to regular reads");
+               useMemoryMapping_ = false;
+               return null;
+            }
+            windows.set(index, result);
+         }
+         return result;
+      }
+   }
+
+   private long readOffsetHeaderAndOffset(int offsetHeaderVal, long startOffset) throws IOException  {
+      ByteBuffer buffer1 = readIntoBuffer(startOffset, isBigTiff_ ? 12 : 8);
       int offsetHeader = buffer1.getInt(0);
       if ( offsetHeader != offsetHeaderVal) {
          throw new IOException("Offset header incorrect, expected: " + offsetHeaderVal +"   found: " + offsetHeader);
       }
+      if (isBigTiff_) {
+         return buffer1.getLong(4);
+      }
       return unsignInt(buffer1.getInt(4));     
    }
 
    private void readIndexMap() throws IOException, InvalidIndexMapException {
-      long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.INDEX_MAP_OFFSET_HEADER, 8);
+      long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.INDEX_MAP_OFFSET_HEADER,
+            MultipageTiffWriter.getIndexMapOffsetHeaderPosition(isBigTiff_));
       ByteBuffer header = readIntoBuffer(offset, 8);
       if (header.getInt(0) != MultipageTiffWriter.INDEX_MAP_HEADER) {
          throw new InvalidIndexMapException();
       }
       int numMappings = header.getInt(4);
+      int entrySize = MultipageTiffWriter.getIndexMapEntrySize(isBigTiff_);
       coordsToOffset_ = new HashMap<Coords, Long>();
-      ByteBuffer mapBuffer = readIntoBuffer(offset+8, 20*numMappings);     
+      ByteBuffer mapBuffer = readIntoBuffer(offset+8, entrySize*numMappings);
       for (int i = 0; i < numMappings; i++) {
-         int channel = mapBuffer.getInt(i*20);
-         int slice = mapBuffer.getInt(i*20+4);
-         int frame = mapBuffer.getInt(i*20+8);
-         int position = mapBuffer.getInt(i*20+12);
-         long imageOffset = unsignInt(mapBuffer.getInt(i*20+16));
+         int channel = mapBuffer.getInt(i*entrySize);
+         int slice = mapBuffer.getInt(i*entrySize+4);
+         int frame = mapBuffer.getInt(i*entrySize+8);
+         int position = mapBuffer.getInt(i*entrySize+12);
+         long imageOffset = isBigTiff_ ? mapBuffer.getLong(i*entrySize+16) :
+            unsignInt(mapBuffer.getInt(i*entrySize+16));
          if (imageOffset == 0) {
             break; // end of index map reached
          }
@@ -464,13 +711,18 @@ public final class MultipageTiffReader {
    }
 
    private IFDData readIFD(long byteOffset) throws IOException {
-      ByteBuffer buff = readIntoBuffer(byteOffset,2);
-      int numEntries = buff.getChar(0);
-
-      ByteBuffer entries = readIntoBuffer(byteOffset + 2, numEntries*12 + 4).order(byteOrder_);
+      // Entry count, entry, and next IFD offset sizes.
+      int countSize = isBigTiff_ ? 8 : 2;
+      int entrySize = isBigTiff_ ? 20 : 12;
+      int offsetSize = isBigTiff_ ? 8 : 4;
+      ByteBuffer buff = readRegion(byteOffset, countSize);
+      int numEntries = isBigTiff_ ? (int) buff.getLong(0) : buff.getChar(0);
+
+      ByteBuffer entries = readRegion(byteOffset + countSize,
+            numEntries*entrySize + offsetSize).order(byteOrder_);
       IFDData data = new IFDData();
       for (int i = 0; i < numEntries; i++) {
-         IFDEntry entry = readDirectoryEntry(i*12, entries);
+         IFDEntry entry = readDirectoryEntry(i*entrySize, entries);
          if (entry.tag == MM_METADATA) {
             data.mdOffset = entry.value;
             data.mdLength = entry.count;
@@ -480,8 +732,13 @@ public final class MultipageTiffReader {
             data.bytesPerImage = entry.value;
          } 
       }
-      data.nextIFD = unsignInt(entries.getInt(numEntries*12));
-      data.nextIFDOffsetLocation = byteOffset + 2 + numEntries*12;
+      if (isBigTiff_) {
+         data.nextIFD = entries.getLong(numEntries*entrySize);
+      }
+      else {
+         data.nextIFD = unsignInt(entries.getInt(numEntries*entrySize));
+      }
+      data.nextIFDOffsetLocation = byteOffset + countSize + numEntries*entrySize;
       if (data.pixelOffset == 0 || data.bytesPerImage == 0 ||
             data.mdOffset == 0 || data.mdLength == 0) {
          throw new IOException("Failed to read image from file at offset " +
@@ -556,6 +813,9 @@ public final class MultipageTiffReader {
    }
 
    private IFDEntry readDirectoryEntry(int offset, ByteBuffer buffer) throws IOException {
+      if (isBigTiff_) {
+         return readBigTiffDirectoryEntry(offset, buffer);
+      }
       char tag =  buffer.getChar(offset); 
       char type = buffer.getChar(offset + 2);
       long count = unsignInt( buffer.getInt(offset + 4) );
@@ -568,9 +828,24 @@ public final class MultipageTiffReader {
       return (new IFDEntry(tag,type,count,value));
    }
 
+   private IFDEntry readBigTiffDirectoryEntry(int offset, ByteBuffer buffer) {
+      char tag = buffer.getChar(offset);
+      char type = buffer.getChar(offset + 2);
+      long count = buffer.getLong(offset + 4);
+      long value;
+      if (type == 3 && count == 1) {
+         value = buffer.getChar(offset + 12);
+      } else if (type == 4 && count == 1) {
+         value = unsignInt(buffer.getInt(offset + 12));
+      } else {
+         value = buffer.getLong(offset + 12);
+      }
+      return (new IFDEntry(tag,type,count,value));
+   }
+
    //returns byteoffset of first IFD
    private long readHeader() throws IOException {           
-      ByteBuffer tiffHeader = ByteBuffer.allocate(8);
+      ByteBuffer tiffHeader = ByteBuffer.allocate(16);
       fileChannel_.read(tiffHeader,0);
       char zeroOne = tiffHeader.getChar(0);
       if (zeroOne == 0x4949 ) {
@@ -582,6 +857,14 @@ public final class MultipageTiffReader {
       }
       tiffHeader.order( byteOrder_ );  
       short twoThree = tiffHeader.getShort(2);
+      if (twoThree == 43) {
+         // BigTIFF: offset size (always 8), padding, first IFD offset.
+         if (tiffHeader.getShort(4) != 8) {
+            throw new IOException("Unsupported BigTIFF offset size");
+         }
+         isBigTiff_ = true;
+         return tiffHeader.getLong(8);
+      }
       if (twoThree != 42) {
          throw new IOException("Tiff identifier code incorrect");
       }
@@ -603,6 +886,11 @@ public final class MultipageTiffReader {
    }
 
    public void close() throws IOException {
+      // Images that were already read keep their mappings valid, but we
+      // won't create any more.
+      synchronized (this) {
+         mapWindows_ = null;
+      }
       if (fileChannel_ != null) {
          fileChannel_.close();
          fileChannel_ = null;
@@ -672,8 +960,7 @@ public final class MultipageTiffReader {
 
       filePosition += writeIndexMap(filePosition);
 
-      ByteBuffer buffer = ByteBuffer.allocate(4).order(byteOrder_);
-      buffer.putInt(0, 0);
+      ByteBuffer buffer = ByteBuffer.allocate(isBigTiff_ ? 8 : 4).order(byteOrder_);
       fileChannel_.write(buffer, nextIFDOffsetLocation); 
 
       filePosition += writeDisplaySettings(
@@ -696,26 +983,26 @@ public final class MultipageTiffReader {
       fileChannel_.write(header, filePosition);
       fileChannel_.write(buffer, filePosition + 8);
 
-      ByteBuffer offsetHeader = ByteBuffer.allocate(8).order(MultipageTiffWriter.BYTE_ORDER);
-      offsetHeader.putInt(0, MultipageTiffWriter.DISPLAY_SETTINGS_OFFSET_HEADER);
-      offsetHeader.putInt(4, (int) filePosition);
-      fileChannel_.write(offsetHeader, 16);
+      writeOffsetHeader(MultipageTiffWriter.DISPLAY_SETTINGS_OFFSET_HEADER,
+            filePosition,
+            MultipageTiffWriter.getDisplaySettingsOffsetHeaderPosition(isBigTiff_));
       return numReservedBytes + 8;
    }
 
    private int writeIndexMap(long filePosition) throws IOException {
       // TODO: this method presumes only four axes exist.
       //Write 4 byte header, 4 byte number of entries, and 20 bytes for each
-      //entry
+      //entry (24 for BigTIFF)
       int numMappings = coordsToOffset_.size();
-      ByteBuffer buffer = ByteBuffer.allocate(8 + 20 * numMappings).order(byteOrder_);
+      int entrySize = MultipageTiffWriter.getIndexMapEntrySize(isBigTiff_);
+      ByteBuffer buffer = ByteBuffer.allocate(8 + entrySize * numMappings).order(byteOrder_);
       buffer.putInt(0, MultipageTiffWriter.INDEX_MAP_HEADER);
       buffer.putInt(4, numMappings);
-      int position = 2;
+      int position = 8;
       for (Coords coords : coordsToOffset_.keySet()) {
          for (String axis : ALLOWED_AXES) {
-            buffer.putInt(4 * position, coords.getIndex(axis));
-            position++;
+            buffer.putInt(position, coords.getIndex(axis));
+            position += 4;
          }
          // TODO: this probably doesn't help our performance any, but I want
          // the extra logging just in case.
@@ -724,18 +1011,34 @@ public final class MultipageTiffReader {
                ReportingUtils.logError("Axis " + axis + " is ignored because it is not one of " + ALLOWED_AXES.toString());
             }
          }
-         buffer.putInt(4 * position, coordsToOffset_.get(coords).intValue());
-         position++;
+         if (isBigTiff_) {
+            buffer.putLong(position, coordsToOffset_.get(coords));
+         }
+         else {
+            buffer.putInt(position, coordsToOffset_.get(coords).intValue());
+         }
+         position += entrySize - 16;
       }
       fileChannel_.write(buffer, filePosition);
 
-      ByteBuffer header = ByteBuffer.allocate(8).order(byteOrder_);
-      header.putInt(0, MultipageTiffWriter.INDEX_MAP_OFFSET_HEADER);
-      header.putInt(4, (int) filePosition);
-      fileChannel_.write(header, 8);
+      writeOffsetHeader(MultipageTiffWriter.INDEX_MAP_OFFSET_HEADER,
+            filePosition,
+            MultipageTiffWriter.getIndexMapOffsetHeaderPosition(isBigTiff_));
       return buffer.capacity();
    }
 
+   private void writeOffsetHeader(int header, long offset, long position) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(isBigTiff_ ? 12 : 8).order(byteOrder_);
+      buffer.putInt(0, header);
+      if (isBigTiff_) {
+         buffer.putLong(4, offset);
+      }
+      else {
+         buffer.putInt(4, (int) offset);
+      }
+      fileChannel_.write(buffer, position);
+   }
+
    private class IFDData {
       public long pixelOffset;
       public long bytesPerImage;
@@ -29,16 +29,21 @@ import java.awt.Color;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.Map;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -64,6 +69,8 @@ public final class MultipageTiffWriter {
 
    private static final long BYTES_PER_GIG = 1073741824;
    private static final long MAX_FILE_SIZE = 4 * BYTES_PER_GIG;
+   // BigTIFF uses 64-bit offsets, so files are effectively unlimited in size.
+   private static final long MAX_BIGTIFF_FILE_SIZE = Long.MAX_VALUE / 2;
    public static final int DISPLAY_SETTINGS_BYTES_PER_CHANNEL = 256;
    //1 MB for now...might have to increase
    public static final long SPACE_FOR_COMMENTS = 1048576;
@@ -94,13 +101,26 @@ public final class MultipageTiffWriter {
    public static final char MM_METADATA = 51123;
    
    public static final int SUMMARY_MD_HEADER = 2355492;
+
+   // Size of the TIFF header plus our own offset headers and summary
+   // metadata header. In classic TIFF files, the TIFF header is 8 bytes and
+   // each offset header is a 4-byte header value and a 4-byte offset; in
+   // BigTIFF files the TIFF header is 16 bytes and the offsets are 8 bytes.
+   // See the get*Position() methods below for the layout.
+   public static final int CLASSIC_HEADER_SIZE = 40;
+   public static final int BIGTIFF_HEADER_SIZE = 60;
+   // TIFF data type for 64-bit offsets (BigTIFF only).
+   private static final char LONG8 = 16;
          
    public static final ByteOrder BYTE_ORDER = ByteOrder.nativeOrder();
    
    private StorageMultipageTiff masterStorage_;
    private RandomAccessFile raFile_;
    private FileChannel fileChannel_; 
-   private ThreadPoolExecutor writingExecutor_;
+   private WritingLane writingLane_;
+   private SidecarIndexWriter sidecarIndex_;
+   private int sidecarFileId_ = -1;
+   private final boolean isBigTiff_;
    private long filePosition_ = 0;
    private long indexMapPosition_; //current position of the dynamically written index map
    private long indexMapFirstEntry_; // mark position of first entry so that number of entries can be written at end
@@ -113,6 +133,18 @@ public final class MultipageTiffWriter {
    private long resNumerator_ = 1, resDenomenator_ = 1;
    private double zStepUm_ = 1;
    private LinkedList<ByteBuffer> buffers_;
+   // Shared by every IFD in this file; only ever read by the writing lane.
+   private ByteBuffer resolutionBuffer_;
+   // Zeroed pixels shared by every blank IFD; only ever read by the writing
+   // lane, and created on the first blank image.
+   private ByteBuffer blankPixels_;
+   // Scratch space for serializing per-image metadata, reused across images.
+   private final StringWriter mdStringWriter_ = new StringWriter(4096);
+   private final CharsetEncoder mdEncoder_ = Charset.forName("UTF-8")
+      .newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+   private int lastMetadataLength_ = 0;
    private boolean firstIFD_ = true;
    private long omeDescriptionTagPosition_;
    private long ijDescriptionTagPosition_;
@@ -123,9 +155,11 @@ public final class MultipageTiffWriter {
    private long blankPixelsOffset_ = -1;
    
    public MultipageTiffWriter(StorageMultipageTiff masterStorage,
-         JSONObject firstImageTags, String filename)
+         WritingLane writingLane, JSONObject firstImageTags, String filename)
          throws IOException {
       masterStorage_ = masterStorage;
+      writingLane_ = writingLane;
+      isBigTiff_ = masterStorage.getUseBigTiff();
       // TODO: casting to DefaultSummaryMetadata here.
       DefaultSummaryMetadata summary = (DefaultSummaryMetadata) masterStorage.getSummaryMetadata();
       File f = new File(masterStorage.getDiskLocation() + "/" + filename);
@@ -152,9 +186,11 @@ public final class MultipageTiffWriter {
       augmentWithDisplaySettings(summaryJSON,
             DefaultDisplaySettings.getStandardSettings(DefaultDisplayWindow.DEFAULT_SETTINGS_KEY));
       reader_ = new MultipageTiffReader(masterStorage_, summary, summaryJSON,
-            firstImageTags);
+            firstImageTags, isBigTiff_);
 
       //This is an overestimate of file size because file gets truncated at end
+      //BigTIFF files can grow past this, but we don't preallocate more than
+      //the classic limit.
       long fileSize = Math.min(MAX_FILE_SIZE,
             summaryJSON.toString().length() + 2000000 +
             numFrames_ * numChannels_ * numSlices_ * ((long) bytesPerImagePixels_ + 2000));
@@ -175,15 +211,43 @@ public final class MultipageTiffWriter {
              ReportingUtils.showError("Insufficent space on disk: no room to write data");
       }
       fileChannel_ = raFile_.getChannel();
-      writingExecutor_ = masterStorage_.getWritingExecutor();
+      sidecarIndex_ = masterStorage_.getSidecarIndexWriter();
+      if (sidecarIndex_ != null) {
+         sidecarFileId_ = sidecarIndex_.addFile(filename);
+      }
       coordsToOffset_ = new HashMap<Coords, Long>();
       reader_.setFileChannel(fileChannel_);
       reader_.setIndexMap(coordsToOffset_);
       buffers_ = new LinkedList<ByteBuffer>();
+      if (!isBigTiff_) {
+         resolutionBuffer_ = createResolutionValuesBuffer();
+      }
       
       writeMMHeaderAndSummaryMD(summaryJSON);
    }
 
+   // Locations of our offset headers and summary metadata header.
+   static long getIndexMapOffsetHeaderPosition(boolean isBigTiff) {
+      return isBigTiff ? 16 : 8;
+   }
+
+   static long getDisplaySettingsOffsetHeaderPosition(boolean isBigTiff) {
+      return isBigTiff ? 28 : 16;
+   }
+
+   static long getCommentsOffsetHeaderPosition(boolean isBigTiff) {
+      return isBigTiff ? 40 : 24;
+   }
+
+   static long getSummaryMDHeaderPosition(boolean isBigTiff) {
+      return isBigTiff ? 52 : 32;
+   }
+
+   // Index map entries are the four axis indices followed by the offset.
+   static int getIndexMapEntrySize(boolean isBigTiff) {
+      return isBigTiff ? 24 : 20;
+   }
+
    /**
     * Insert certain fields into the provided JSONObject that are stored in
     * the Image or its Metadata.
@@ -244,8 +308,13 @@ public final class MultipageTiffWriter {
       return b.order(BYTE_ORDER);
    }
 
+   // Since images can now queue up to the writing lane's byte budget, allow
+   // the pool to hold more than the minimum number of small images, up to a
+   // fixed memory limit.
    private static final int BUFFER_POOL_SIZE =
          System.getProperty("sun.arch.data.model").equals("32") ? 0 : 3;
+   private static final int MAX_BUFFER_POOL_SIZE = 32;
+   private static final long MAX_POOLED_BYTES = 128 * 1048576;
    private static final Deque<ByteBuffer> pooledBuffers_;
    static {
       if (BUFFER_POOL_SIZE > 0) {
@@ -256,6 +325,7 @@ public final class MultipageTiffWriter {
       }
    }
    private static int pooledBufferCapacity_ = 0;
+   private static int pooledBufferLimit_ = BUFFER_POOL_SIZE;
 
    private static ByteBuffer getLargeBuffer(int capacity) {
       if (BUFFER_POOL_SIZE == 0) {
@@ -266,6 +336,9 @@ public final class MultipageTiffWriter {
          if (capacity != pooledBufferCapacity_) {
             pooledBuffers_.clear();
             pooledBufferCapacity_ = capacity;
+            pooledBufferLimit_ = (int) Math.max(BUFFER_POOL_SIZE,
+                  Math.min(MAX_BUFFER_POOL_SIZE,
+                     MAX_POOLED_BYTES / Math.max(1, capacity)));
          }
 
          // Recycle in LIFO order (smaller images may still be in L3 cache)
@@ -279,17 +352,93 @@ public final class MultipageTiffWriter {
       return allocateByteBuffer(capacity);
    }
 
-   private static void tryRecycleLargeBuffer(ByteBuffer b) {
-      // Keep up to BUFFER_POOL_SIZE direct buffers of the current size
+   private static boolean tryRecycleLargeBuffer(ByteBuffer b) {
+      // Keep up to pooledBufferLimit_ direct buffers of the current size
       if (BUFFER_POOL_SIZE == 0 || !b.isDirect()) {
-         return;
+         return false;
       }
       synchronized (MultipageTiffWriter.class) {
          if (b.capacity() == pooledBufferCapacity_) {
-            if (pooledBuffers_.size() == BUFFER_POOL_SIZE) {
+            if (pooledBuffers_.size() >= pooledBufferLimit_) {
                pooledBuffers_.removeLast(); // Discard oldest
             }
             pooledBuffers_.addFirst(b);
+            return true;
+         }
+      }
+      return false;
+   }
+
+   // Small buffers (IFDs, index map entries, and per-image metadata) are
+   // pooled per writer, in power-of-two size classes, so that steady-state
+   // writing does not allocate a new buffer for each of them.
+   private static final int MIN_SCRATCH_CAPACITY_LOG2 = 6;
+   private static final int MAX_SCRATCH_CAPACITY_LOG2 = 20;
+   private static final int MAX_SCRATCH_BUFFERS_PER_CLASS = 256;
+   private static final long MAX_SCRATCH_BYTES_PER_CLASS = 4 * 1048576;
+   private final ArrayDeque<?>[] scratchBuffers_ =
+      new ArrayDeque<?>[MAX_SCRATCH_CAPACITY_LOG2 + 1];
+
+   private static int scratchSizeClass(int capacity) {
+      int log2 = 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity) - 1);
+      return Math.max(log2, MIN_SCRATCH_CAPACITY_LOG2);
+   }
+
+   @SuppressWarnings("unchecked")
+   private ArrayDeque<ByteBuffer> getScratchPool(int sizeClass) {
+      if (scratchBuffers_[sizeClass] == null) {
+         scratchBuffers_[sizeClass] = new ArrayDeque<ByteBuffer>();
+      }
+      return (ArrayDeque<ByteBuffer>) scratchBuffers_[sizeClass];
+   }
+
+   /**
+    * Get a direct buffer with at least the given capacity, whose limit is
+    * set to the requested size. Return it with recycleBuffer() once it has
+    * been written.
+    */
+   private ByteBuffer getScratchBuffer(int size) {
+      int sizeClass = scratchSizeClass(size);
+      if (sizeClass > MAX_SCRATCH_CAPACITY_LOG2) {
+         ByteBuffer b = ByteBuffer.allocateDirect(size).order(BYTE_ORDER);
+         return b;
+      }
+      ByteBuffer b;
+      synchronized (scratchBuffers_) {
+         b = getScratchPool(sizeClass).pollFirst();
+      }
+      if (b == null) {
+         b = ByteBuffer.allocateDirect(1 << sizeClass);
+      }
+      b.clear();
+      b.limit(size);
+      return b.order(BYTE_ORDER);
+   }
+
+   /**
+    * Return a buffer to whichever pool it came from, if any. Buffers that we
+    * did not allocate ourselves (e.g. wrapped arrays) are ignored.
+    */
+   private void recycleBuffer(ByteBuffer b) {
+      // Read-only buffers are views of image data that we don't own.
+      if (!b.isDirect() || b.isReadOnly() || tryRecycleLargeBuffer(b)) {
+         return;
+      }
+      int capacity = b.capacity();
+      if (Integer.bitCount(capacity) != 1) {
+         return;
+      }
+      int sizeClass = scratchSizeClass(capacity);
+      if (sizeClass < MIN_SCRATCH_CAPACITY_LOG2 ||
+            sizeClass > MAX_SCRATCH_CAPACITY_LOG2) {
+         return;
+      }
+      long maxBuffers = Math.min(MAX_SCRATCH_BUFFERS_PER_CLASS,
+            Math.max(4, MAX_SCRATCH_BYTES_PER_CLASS / capacity));
+      synchronized (scratchBuffers_) {
+         ArrayDeque<ByteBuffer> pool = getScratchPool(sizeClass);
+         if (pool.size() < maxBuffers) {
+            pool.addFirst(b);
          }
       }
    }
@@ -298,8 +447,8 @@ public final class MultipageTiffWriter {
    //
    //
 
-   private void executeWritingTask(Runnable writingTask) {
-      writingExecutor_.execute(writingTask);
+   private void executeWritingTask(Runnable writingTask, long numBytes) {
+      writingLane_.submit(writingTask, numBytes);
    }
 
    private void fileChannelWrite(final ByteBuffer buffer, final long position) {
@@ -313,26 +462,37 @@ public final class MultipageTiffWriter {
             catch (IOException e) {
                ReportingUtils.logError(e);
             }
-            tryRecycleLargeBuffer(buffer);
+            recycleBuffer(buffer);
          }
-      });
+      }, buffer.limit());
    }
 
    private void fileChannelWrite(final ByteBuffer[] buffers) {
+      long numBytes = 0;
+      for (ByteBuffer buffer : buffers) {
+         numBytes += buffer.limit();
+      }
       executeWritingTask(new Runnable() {
          @Override
          public void run() {
             try {
+               // Shared buffers (e.g. resolution values) are written more
+               // than once, so make sure we start from the beginning.
+               for (ByteBuffer buffer : buffers) {
+                  buffer.rewind();
+               }
                fileChannel_.write(buffers);
             }
             catch (IOException e) {
                ReportingUtils.logError(e);
             }
             for (ByteBuffer buffer : buffers) {
-               tryRecycleLargeBuffer(buffer);
+               if (buffer != resolutionBuffer_ && buffer != blankPixels_) {
+                  recycleBuffer(buffer);
+               }
             }
          }
-      });
+      }, numBytes);
    }
 
    public MultipageTiffReader getReader() {
@@ -350,11 +510,15 @@ public final class MultipageTiffWriter {
       }
       byte[] summaryMDBytes = getBytesFromString(summaryMD.toString());
       int mdLength = summaryMDBytes.length;
+      if (isBigTiff_) {
+         writeBigTiffHeaderAndSummaryMD(summaryMDBytes);
+         return;
+      }
       //20 bytes plus 8 header for index map
       long maxImagesInFile = MAX_FILE_SIZE / bytesPerImagePixels_;
       long indexMapSpace = 8 + 20 * maxImagesInFile;
       
-      ByteBuffer headerBuffer = allocateByteBuffer(40);
+      ByteBuffer headerBuffer = allocateByteBuffer(CLASSIC_HEADER_SIZE);
       //8 bytes for file header
       if (BYTE_ORDER.equals(ByteOrder.BIG_ENDIAN)) {
          headerBuffer.asCharBuffer().put(0,(char) 0x4d4d);
@@ -390,6 +554,46 @@ public final class MultipageTiffWriter {
       filePosition_ += headerBuffer.capacity() + mdLength +indexMapSpace;
    }
    
+   /**
+    * BigTIFF version of the above. The number of images in a BigTIFF file
+    * isn't bounded, so no space is reserved for the index map here; instead
+    * the complete map is appended by finish(). Until then the index map
+    * offset is 0, so an unfinished file is detected as having an invalid
+    * index map (and can be recovered from the sidecar index or by
+    * walking the IFDs).
+    */
+   private void writeBigTiffHeaderAndSummaryMD(byte[] summaryMDBytes) {
+      int mdLength = summaryMDBytes.length;
+      ByteBuffer headerBuffer = allocateByteBuffer(BIGTIFF_HEADER_SIZE);
+      //16 bytes for file header: byte order, version, offset size, padding,
+      //and offset of first IFD
+      if (BYTE_ORDER.equals(ByteOrder.BIG_ENDIAN)) {
+         headerBuffer.putChar(0, (char) 0x4d4d);
+      } else {
+         headerBuffer.putChar(0, (char) 0x4949);
+      }
+      headerBuffer.putChar(2, (char) 43);
+      headerBuffer.putChar(4, (char) 8);
+      headerBuffer.putChar(6, (char) 0);
+      headerBuffer.putLong(8, BIGTIFF_HEADER_SIZE + mdLength);
+
+      //12 bytes for index map offset header and offset--offset written later
+      headerBuffer.putInt((int) getIndexMapOffsetHeaderPosition(true),
+            INDEX_MAP_OFFSET_HEADER);
+      //12 bytes each for display settings and comments offset headers and
+      //offsets--written later
+      //8 bytes for summaryMD header and summary md length
+      int summaryPosition = (int) getSummaryMDHeaderPosition(true);
+      headerBuffer.putInt(summaryPosition, SUMMARY_MD_HEADER);
+      headerBuffer.putInt(summaryPosition + 4, mdLength);
+
+      ByteBuffer[] buffers = new ByteBuffer[2];
+      buffers[0] = headerBuffer;
+      buffers[1] = ByteBuffer.wrap(summaryMDBytes);
+      fileChannelWrite(buffers);
+      filePosition_ += headerBuffer.capacity() + mdLength;
+   }
+
    /**
     * Called when there is no more data to be written. Write null offset after
     * last image in accordance with TIFF specification and set number of index
@@ -399,6 +603,10 @@ public final class MultipageTiffWriter {
     */
    public void finish() throws IOException {
       writeNullOffsetAfterLastImage();
+      if (isBigTiff_) {
+         writeBigTiffIndexMap();
+         return;
+      }
       // go back to the index map header and change the number of entries from
       // the max value allotted early to the actual number written The
       // MultipageTiffReader no longer needs this because it interperets 0's as
@@ -411,6 +619,30 @@ public final class MultipageTiffWriter {
       fileChannelWrite(indexMapNumEntries, indexMapFirstEntry_ - 4);
    }
 
+   /**
+    * Append the index map for a BigTIFF file and point the header at it.
+    */
+   private void writeBigTiffIndexMap() {
+      int entrySize = getIndexMapEntrySize(true);
+      int numImages = coordsToOffset_.size();
+      ByteBuffer buffer = allocateByteBuffer(8 + entrySize * numImages);
+      buffer.putInt(0, INDEX_MAP_HEADER);
+      buffer.putInt(4, numImages);
+      int position = 8;
+      for (Map.Entry<Coords, Long> entry : coordsToOffset_.entrySet()) {
+         for (String axis : MultipageTiffReader.ALLOWED_AXES) {
+            buffer.putInt(position, entry.getKey().getIndex(axis));
+            position += 4;
+         }
+         buffer.putLong(position, entry.getValue());
+         position += 8;
+      }
+      fileChannelWrite(buffer, filePosition_);
+      writeOffsetHeader(INDEX_MAP_OFFSET_HEADER, filePosition_,
+            getIndexMapOffsetHeaderPosition(true));
+      filePosition_ += buffer.capacity();
+   }
+
    /**
     * Called when entire set of files (i.e. acquisition) is finished. Adds in
     * all the extra (but nonessential) stuff--comments, display settings,
@@ -447,21 +679,24 @@ public final class MultipageTiffWriter {
             fileChannel_ = null;
             raFile_ = null;
          }
-      });
+      }, 0);
    }
    
    public boolean hasSpaceForFullOMEMetadata(int length) {
       //5 MB extra padding..just to be safe
       int extraPadding = 5000000; 
       long size = length + SPACE_FOR_COMMENTS + numChannels_ * DISPLAY_SETTINGS_BYTES_PER_CHANNEL + extraPadding + filePosition_;
-      if ( size >= MAX_FILE_SIZE) {
+      if ( size >= getMaxFileSize()) {
          return false;
       }
       return true;
    }
    
    public boolean hasSpaceToWrite(TaggedImage img, int omeMDLength) {
-      int mdLength = img.tags.toString().length();
+      // Avoid re-serializing the metadata just to measure it; the extra
+      // padding below easily covers image-to-image variation in its length.
+      int mdLength = lastMetadataLength_ > 0 ? 2 * lastMetadataLength_ :
+         img.tags.toString().length();
       int IFDSize = ENTRIES_PER_IFD*12 + 4 + 16;
       //5 MB extra padding...just to be safe...
       int extraPadding = 5000000; 
@@ -469,12 +704,16 @@ public final class MultipageTiffWriter {
       numChannels_ * DISPLAY_SETTINGS_BYTES_PER_CHANNEL + extraPadding + filePosition_;
       size += omeMDLength;
       
-      if ( size >= MAX_FILE_SIZE) {
+      if ( size >= getMaxFileSize()) {
          return false;
       }
       return true;
    }
    
+   private long getMaxFileSize() {
+      return isBigTiff_ ? MAX_BIGTIFF_FILE_SIZE : MAX_FILE_SIZE;
+   }
+
    public boolean isClosed() {
       return raFile_ == null;
    }
@@ -483,40 +722,49 @@ public final class MultipageTiffWriter {
       writeBlankIFD();
       writeBuffers();
    }
-        
+
    public void writeImage(TaggedImage img) throws IOException {
-      if (writingExecutor_ != null) {
-         int queueSize = writingExecutor_.getQueue().size();
-         int attemptCount = 0;
-         while (queueSize > 20) {
-            if (attemptCount == 0) {
-               ReportingUtils.logMessage("Warning: writing queue behind by " + queueSize + " images.");
-            }
-            ++attemptCount;
-            try {
-               Thread.sleep(5);
-               queueSize = writingExecutor_.getQueue().size();
-            } catch (InterruptedException ex) {
-               ReportingUtils.logError(ex);
+      writeImage(img, null);
+   }
+        
+   /**
+    * Queue the image for writing. If the writing lane is over its budget of
+    * queued bytes, this blocks until enough of the backlog has been written.
+    * @param img Image to write.
+    * @param pixels If not null, native-order pixel data to use instead of
+    *        img.pix. The buffer is written as-is, without being copied, so
+    *        it must not be modified afterwards (e.g. use
+    *        DefaultImage.getPixelBufferAsBytes()).
+    */
+   public void writeImage(TaggedImage img, ByteBuffer pixels) throws IOException {
+      final long offset = filePosition_;
+      writeIFD(img, pixels);
+      final Coords coords = DefaultCoords.legacyFromJSON(img.tags);
+      addToIndexMap(coords, offset);
+      writeBuffers();
+      if (sidecarIndex_ != null) {
+         // Queued behind the image's own writes, so the sidecar index never
+         // refers to data that isn't on disk yet.
+         final int metadataLength = lastMetadataLength_;
+         executeWritingTask(new Runnable() {
+            @Override
+            public void run() {
+               sidecarIndex_.addImage(coords, sidecarFileId_, offset,
+                     metadataLength);
             }
-         }
+         }, 0);
       }
-      long offset = filePosition_;
-      writeIFD(img);
-      addToIndexMap(DefaultCoords.legacyFromJSON(img.tags), offset);
-      writeBuffers();
-      //wait until image has finished writing to return
-//      int size = writingExecutor_.getQueue().size();
-//      while (size > 0) {
-//         size = writingExecutor_.getQueue().size();
-//      }
    }
    
    private void addToIndexMap(Coords coords, long offset) {
       //If a duplicate key is received, forget about the previous one
       //this allows overwriting of images without loss of data
       coordsToOffset_.put(coords, offset);
-      ByteBuffer buffer = allocateByteBuffer(20);
+      if (isBigTiff_) {
+         // The whole map is written by finish().
+         return;
+      }
+      ByteBuffer buffer = getScratchBuffer(20);
       int bufOffset = 0;
       for (String axis : MultipageTiffReader.ALLOWED_AXES) {
          buffer.putInt(4 * bufOffset, coords.getIndex(axis));
@@ -530,7 +778,7 @@ public final class MultipageTiffWriter {
          }
       }
 
-      buffer.putInt(16, new Long(offset).intValue());
+      buffer.putInt(16, (int) offset);
       fileChannelWrite(buffer,indexMapPosition_);
       indexMapPosition_ += 20;  
    }
@@ -551,96 +799,231 @@ public final class MultipageTiffWriter {
       return val;
    }
 
-   private void writeIFD(TaggedImage img) throws IOException {
+   private void writeIFD(TaggedImage img, ByteBuffer pixels) throws IOException {
       char numEntries = ((firstIFD_  ? ENTRIES_PER_IFD + 4 : ENTRIES_PER_IFD));
       if (img.tags.has("Summary")) {
          img.tags.remove("Summary");
       }
-      byte[] mdBytes = getBytesFromString(img.tags.toString() + " ");
-      // Null-terminate buffer.
-      mdBytes[mdBytes.length - 1] = 0;
+      ByteBuffer mdBuffer = encodeMetadata(img.tags);
+      int mdLength = mdBuffer.limit();
 
       //2 bytes for number of directory entries, 12 bytes per directory entry, 4 byte offset of next IFD
-     //6 bytes for bits per sample if RGB, 16 bytes for x and y resolution, 1 byte per character of MD string
+     //(8, 20, and 8 bytes respectively for BigTIFF)
+     //6 bytes for bits per sample if RGB, 16 bytes for x and y resolution (neither for BigTIFF, where they fit in the entries), 1 byte per character of MD string
      //number of bytes for pixels
-     int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + 16 + mdBytes.length + bytesPerImagePixels_;
-     int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0);
+     int ifdSize = getIFDSize(numEntries);
+     int bitDepthBytes = getBitDepthBytes();
+     int totalBytes = ifdSize + bitDepthBytes + getResolutionBytes() + mdLength + bytesPerImagePixels_;
+     int IFDandBitDepthBytes = ifdSize + bitDepthBytes;
      
-     ByteBuffer ifdBuffer = allocateByteBuffer(IFDandBitDepthBytes);
-     CharBuffer charView = ifdBuffer.asCharBuffer();
+     ByteBuffer ifdBuffer = getScratchBuffer(IFDandBitDepthBytes);
          
-     long tagDataOffset = filePosition_ + 2 + numEntries*12 + 4;
-     nextIFDOffsetLocation_ = filePosition_ + 2 + numEntries*12;
+     long tagDataOffset = filePosition_ + ifdSize;
+     nextIFDOffsetLocation_ = tagDataOffset - getOffsetSize();
      
      bufferPosition_ = 0;
-      charView.put(bufferPosition_,numEntries);
-      bufferPosition_ += 2;
-      writeIFDEntry(ifdBuffer,charView, WIDTH,(char)4,1,imageWidth_);
-      writeIFDEntry(ifdBuffer,charView,HEIGHT,(char)4,1,imageHeight_);
-      writeIFDEntry(ifdBuffer,charView,BITS_PER_SAMPLE,(char)3,rgb_?3:1,  rgb_? tagDataOffset:byteDepth_*8);
-      if (rgb_) {
-         tagDataOffset += 6;
-      }
-      writeIFDEntry(ifdBuffer,charView,COMPRESSION,(char)3,1,1);
-      writeIFDEntry(ifdBuffer,charView,PHOTOMETRIC_INTERPRETATION,(char)3,1,rgb_?2:1);
+      writeIFDEntryCount(ifdBuffer, numEntries);
+      writeIFDEntry(ifdBuffer, WIDTH,(char)4,1,imageWidth_);
+      writeIFDEntry(ifdBuffer,HEIGHT,(char)4,1,imageHeight_);
+      writeBitsPerSampleEntry(ifdBuffer, tagDataOffset);
+      tagDataOffset += bitDepthBytes;
+      writeIFDEntry(ifdBuffer,COMPRESSION,(char)3,1,1);
+      writeIFDEntry(ifdBuffer,PHOTOMETRIC_INTERPRETATION,(char)3,1,rgb_?2:1);
       
       if (firstIFD_ ) {
          omeDescriptionTagPosition_ = filePosition_ + bufferPosition_;
-         writeIFDEntry(ifdBuffer, charView, IMAGE_DESCRIPTION, (char) 2, 0, 0);
+         writeIFDEntry(ifdBuffer, IMAGE_DESCRIPTION, (char) 2, 0, 0);
          ijDescriptionTagPosition_ = filePosition_ + bufferPosition_;
-         writeIFDEntry(ifdBuffer, charView, IMAGE_DESCRIPTION, (char) 2, 0, 0);
+         writeIFDEntry(ifdBuffer, IMAGE_DESCRIPTION, (char) 2, 0, 0);
       }
            
-      writeIFDEntry(ifdBuffer,charView,STRIP_OFFSETS,(char)4,1, tagDataOffset );
+      writeIFDEntry(ifdBuffer,STRIP_OFFSETS,getOffsetType(),1, tagDataOffset );
       tagDataOffset += bytesPerImagePixels_;
-      writeIFDEntry(ifdBuffer,charView,SAMPLES_PER_PIXEL,(char)3,1,(rgb_?3:1));
-      writeIFDEntry(ifdBuffer,charView,ROWS_PER_STRIP, (char) 3, 1, imageHeight_);
-      writeIFDEntry(ifdBuffer,charView,STRIP_BYTE_COUNTS, (char) 4, 1, bytesPerImagePixels_ );
-      writeIFDEntry(ifdBuffer,charView,X_RESOLUTION, (char)5, 1, tagDataOffset);
-      tagDataOffset += 8;
-      writeIFDEntry(ifdBuffer,charView,Y_RESOLUTION, (char)5, 1, tagDataOffset);
-      tagDataOffset += 8;
-      writeIFDEntry(ifdBuffer,charView,RESOLUTION_UNIT, (char) 3,1,3);
+      writeIFDEntry(ifdBuffer,SAMPLES_PER_PIXEL,(char)3,1,(rgb_?3:1));
+      writeIFDEntry(ifdBuffer,ROWS_PER_STRIP, (char) 3, 1, imageHeight_);
+      writeIFDEntry(ifdBuffer,STRIP_BYTE_COUNTS, (char) 4, 1, bytesPerImagePixels_ );
+      tagDataOffset = writeResolutionEntries(ifdBuffer, tagDataOffset);
+      writeIFDEntry(ifdBuffer,RESOLUTION_UNIT, (char) 3,1,3);
       if (firstIFD_) {         
          ijMetadataCountsTagPosition_ = filePosition_ + bufferPosition_;
-         writeIFDEntry(ifdBuffer,charView,IJ_METADATA_BYTE_COUNTS,(char)4,0,0);
+         writeIFDEntry(ifdBuffer,IJ_METADATA_BYTE_COUNTS,(char)4,0,0);
          ijMetadataTagPosition_ = filePosition_ + bufferPosition_;
-         writeIFDEntry(ifdBuffer,charView,IJ_METADATA,(char)1,0,0);
+         writeIFDEntry(ifdBuffer,IJ_METADATA,(char)1,0,0);
       }
-      writeIFDEntry(ifdBuffer,charView,MM_METADATA,(char)2,mdBytes.length,tagDataOffset);
-      tagDataOffset += mdBytes.length;
+      writeIFDEntry(ifdBuffer,MM_METADATA,(char)2,mdLength,tagDataOffset);
+      tagDataOffset += mdLength;
       //NextIFDOffset
-      ifdBuffer.putInt(bufferPosition_, (int)tagDataOffset);
-      bufferPosition_ += 4;
+      writeNextIFDOffset(ifdBuffer, tagDataOffset);
       
-      if (rgb_) {
-         charView.put(bufferPosition_/2,(char) (byteDepth_*8));
-         charView.put(bufferPosition_/2+1,(char) (byteDepth_*8));
-         charView.put(bufferPosition_/2+2,(char) (byteDepth_*8));
+      if (bitDepthBytes > 0) {
+         ifdBuffer.putChar(bufferPosition_,(char) (byteDepth_*8));
+         ifdBuffer.putChar(bufferPosition_+2,(char) (byteDepth_*8));
+         ifdBuffer.putChar(bufferPosition_+4,(char) (byteDepth_*8));
       }
       buffers_.add(ifdBuffer);
-      buffers_.add(getPixelBuffer(img.pix));
-      buffers_.add(getResolutionValuesBuffer());   
-      buffers_.add(ByteBuffer.wrap(mdBytes));
+      if (pixels != null && !rgb_) {
+         buffers_.add(pixels);
+      }
+      else {
+         buffers_.add(getPixelBuffer(img.pix));
+      }
+      if (resolutionBuffer_ != null) {
+         buffers_.add(resolutionBuffer_);
+      }
+      buffers_.add(mdBuffer);
       
       filePosition_ += totalBytes;
       firstIFD_ = false;
    }
 
-   private void writeIFDEntry(ByteBuffer buffer, CharBuffer cBuffer, char tag, char type, long count, long value) throws IOException {
-      cBuffer.put(bufferPosition_ / 2, tag);
-      cBuffer.put(bufferPosition_ / 2 + 1, type);
+   // Number of bytes used for offsets.
+   private int getOffsetSize() {
+      return isBigTiff_ ? 8 : 4;
+   }
+
+   private char getOffsetType() {
+      return isBigTiff_ ? LONG8 : (char) 4;
+   }
+
+   // Entry count, entries, and offset of next IFD.
+   private int getIFDSize(int numEntries) {
+      return isBigTiff_ ? 8 + numEntries * 20 + 8 : 2 + numEntries * 12 + 4;
+   }
+
+   // Bits per sample for RGB images, written after the IFD.
+   private int getBitDepthBytes() {
+      return (rgb_ && !isBigTiff_) ? 6 : 0;
+   }
+
+   // X and Y resolution, written after the pixels.
+   private int getResolutionBytes() {
+      return isBigTiff_ ? 0 : 16;
+   }
+
+   private void writeIFDEntryCount(ByteBuffer buffer, char numEntries) {
+      if (isBigTiff_) {
+         buffer.putLong(bufferPosition_, numEntries);
+         bufferPosition_ += 8;
+      }
+      else {
+         buffer.putChar(bufferPosition_, numEntries);
+         bufferPosition_ += 2;
+      }
+   }
+
+   private void writeNextIFDOffset(ByteBuffer buffer, long offset) {
+      if (isBigTiff_) {
+         buffer.putLong(bufferPosition_, offset);
+         bufferPosition_ += 8;
+      }
+      else {
+         buffer.putInt(bufferPosition_, (int) offset);
+         bufferPosition_ += 4;
+      }
+   }
+
+   private void writeBitsPerSampleEntry(ByteBuffer buffer, long tagDataOffset) throws IOException {
+      if (!rgb_) {
+         writeIFDEntry(buffer, BITS_PER_SAMPLE, (char) 3, 1, byteDepth_ * 8);
+      }
+      else if (!isBigTiff_) {
+         writeIFDEntry(buffer, BITS_PER_SAMPLE, (char) 3, 3, tagDataOffset);
+      }
+      else {
+         // Three shorts fit in the value field of a BigTIFF entry.
+         writeIFDEntry(buffer, BITS_PER_SAMPLE, (char) 3, 3, 0);
+         int valuePosition = bufferPosition_ - 8;
+         for (int i = 0; i < 3; ++i) {
+            buffer.putChar(valuePosition + 2 * i, (char) (byteDepth_ * 8));
+         }
+      }
+   }
+
+   // Returns the new tag data offset.
+   private long writeResolutionEntries(ByteBuffer buffer, long tagDataOffset) throws IOException {
+      if (isBigTiff_) {
+         // Rationals fit in the value field of a BigTIFF entry.
+         for (char tag : new char[] {X_RESOLUTION, Y_RESOLUTION}) {
+            writeIFDEntry(buffer, tag, (char) 5, 1, 0);
+            buffer.putInt(bufferPosition_ - 8, (int) resNumerator_);
+            buffer.putInt(bufferPosition_ - 4, (int) resDenomenator_);
+         }
+         return tagDataOffset;
+      }
+      writeIFDEntry(buffer,X_RESOLUTION, (char)5, 1, tagDataOffset);
+      tagDataOffset += 8;
+      writeIFDEntry(buffer,Y_RESOLUTION, (char)5, 1, tagDataOffset);
+      tagDataOffset += 8;
+      return tagDataOffset;
+   }
+
+   private void writeIFDEntry(ByteBuffer buffer, char tag, char type, long count, long value) throws IOException {
+      if (isBigTiff_) {
+         writeBigTiffIFDEntry(buffer, tag, type, count, value);
+         return;
+      }
+      buffer.putChar(bufferPosition_, tag);
+      buffer.putChar(bufferPosition_ + 2, type);
       buffer.putInt(bufferPosition_ + 4, (int) count);
       if (type ==3 && count == 1) {  //Left justify in 4 byte value field
-         cBuffer.put(bufferPosition_/2 + 4, (char) value);
-         cBuffer.put(bufferPosition_/2 + 5,(char) 0);
+         buffer.putChar(bufferPosition_ + 8, (char) value);
+         buffer.putChar(bufferPosition_ + 10,(char) 0);
       } else {
          buffer.putInt(bufferPosition_ + 8, (int) value);
       }      
       bufferPosition_ += 12;
    }
 
-   private ByteBuffer getResolutionValuesBuffer() throws IOException {
+   private void writeBigTiffIFDEntry(ByteBuffer buffer, char tag, char type, long count, long value) {
+      buffer.putChar(bufferPosition_, tag);
+      buffer.putChar(bufferPosition_ + 2, type);
+      buffer.putLong(bufferPosition_ + 4, count);
+      //Left justify in 8 byte value field
+      if (type == 3 && count == 1) {
+         buffer.putChar(bufferPosition_ + 12, (char) value);
+         buffer.putChar(bufferPosition_ + 14, (char) 0);
+         buffer.putInt(bufferPosition_ + 16, 0);
+      } else if (type == 4 && count == 1) {
+         buffer.putInt(bufferPosition_ + 12, (int) value);
+         buffer.putInt(bufferPosition_ + 16, 0);
+      } else {
+         buffer.putLong(bufferPosition_ + 12, value);
+      }
+      bufferPosition_ += 20;
+   }
+
+   /**
+    * Fill in the count and value of an IFD entry that was written as a
+    * placeholder.
+    */
+   private void writeIFDEntryCountAndValue(long tagPosition, long count, long value) {
+      ByteBuffer buffer;
+      if (isBigTiff_) {
+         buffer = allocateByteBuffer(16);
+         buffer.putLong(0, count);
+         buffer.putLong(8, value);
+      }
+      else {
+         buffer = allocateByteBuffer(8);
+         buffer.putInt(0, (int) count);
+         buffer.putInt(4, (int) value);
+      }
+      fileChannelWrite(buffer, tagPosition + 4);
+   }
+
+   private void writeOffsetHeader(int header, long offset, long position) {
+      ByteBuffer buffer = allocateByteBuffer(4 + getOffsetSize());
+      buffer.putInt(0, header);
+      if (isBigTiff_) {
+         buffer.putLong(4, offset);
+      }
+      else {
+         buffer.putInt(4, (int) offset);
+      }
+      fileChannelWrite(buffer, position);
+   }
+
+   private ByteBuffer createResolutionValuesBuffer() {
       ByteBuffer buffer = allocateByteBuffer(16);
       buffer.putInt(0,(int)resNumerator_);
       buffer.putInt(4,(int)resDenomenator_);
@@ -649,56 +1032,82 @@ public final class MultipageTiffWriter {
       return buffer;
    }
 
+   // BigTIFF stores values of up to 8 bytes in the IFD entry itself, but
+   // readers expect metadata to be at an offset, so it is padded past that.
+   private static final int MIN_BIGTIFF_METADATA_LENGTH = 9;
+
+   /**
+    * Serialize the image metadata as null-terminated UTF-8 directly into a
+    * scratch buffer, without creating an intermediate String or byte array.
+    */
+   private ByteBuffer encodeMetadata(JSONObject tags) {
+      StringBuffer chars = mdStringWriter_.getBuffer();
+      chars.setLength(0);
+      try {
+         tags.write(mdStringWriter_);
+      }
+      catch (JSONException e) {
+         ReportingUtils.logError(e, "Error serializing image metadata");
+         chars.setLength(0);
+      }
+      // UTF-8 uses at most 3 bytes per UTF-16 char; plus 1 for the null.
+      ByteBuffer buffer = getScratchBuffer(
+            Math.max(3 * chars.length() + 1, MIN_BIGTIFF_METADATA_LENGTH));
+      mdEncoder_.reset();
+      mdEncoder_.encode(CharBuffer.wrap(chars), buffer, true);
+      mdEncoder_.flush(buffer);
+      buffer.put((byte) 0);
+      if (isBigTiff_) {
+         while (buffer.position() < MIN_BIGTIFF_METADATA_LENGTH) {
+            buffer.put((byte) 0);
+         }
+      }
+      buffer.flip();
+      lastMetadataLength_ = buffer.limit();
+      return buffer;
+   }
+
    public void setAbortedNumFrames(int n) {
       numFrames_ = n;
    }
 
    private ByteBuffer getPixelBuffer(Object pixels) throws IOException {
       if (rgb_) {
+         // Drop the alpha channel and swap R and B for correct format,
+         // writing straight into the (pooled) output buffer.
          if (byteDepth_ == 1) {
             byte[] originalPix = (byte[]) pixels;
-            byte[] rgbaPix = new byte[originalPix.length * 3 / 4];
+            ByteBuffer buffer = getLargeBuffer(originalPix.length * 3 / 4);
             int count = 0;
-            for (int i = 0; i < originalPix.length; i++) {
-               //skip alpha channel
-               if ((i + 1) % 4 != 0) {
-                  //swap R and B for correct format
-                  if ((i + 1) % 4 == 1 ) {
-                     rgbaPix[count] = originalPix[i + 2];
-                  } else if ((i + 1) % 4 == 3) {
-                     rgbaPix[count] = originalPix[i - 2];
-                  } else {                      
-                     rgbaPix[count] = originalPix[i];
-                  }
-                  count++;
-               }
+            for (int i = 0; i + 3 < originalPix.length; i += 4) {
+               buffer.put(count, originalPix[i + 2]);
+               buffer.put(count + 1, originalPix[i + 1]);
+               buffer.put(count + 2, originalPix[i]);
+               count += 3;
             }
-            return ByteBuffer.wrap(rgbaPix);
+            return buffer;
          } else {
             short[] originalPix = (short[]) pixels;
-            short[] rgbaPix = new short[originalPix.length * 3 / 4];
+            ByteBuffer buffer = getLargeBuffer(originalPix.length * 3 / 4 * 2);
             int count = 0;
-            for (int i = 0; i < originalPix.length; i++) {
-               if ((i + 1) % 4 != 0) {
-                  //swap R and B for correct format
-                  if ((i + 1) % 4 == 1 ) {
-                     rgbaPix[count] = originalPix[i + 2];
-                  } else if ((i + 1) % 4 == 3) {
-                     rgbaPix[count] = originalPix[i - 2];
-                  } else {                      
-                     rgbaPix[count] = originalPix[i];
-                  }
-                  count++;
-               }
+            for (int i = 0; i + 3 < originalPix.length; i += 4) {
+               buffer.putShort(count, originalPix[i + 2]);
+               buffer.putShort(count + 2, originalPix[i + 1]);
+               buffer.putShort(count + 4, originalPix[i]);
+               count += 6;
             }
-            ByteBuffer buffer = getLargeBuffer(rgbaPix.length * 2);
-            buffer.asShortBuffer().put(rgbaPix);
             return buffer;
          }
       } else {
          if (byteDepth_ == 1) {
+            // Heap arrays can be handed to the FileChannel as-is; the JDK
+            // copies them through its own per-thread direct buffer cache,
+            // so we don't make a copy of our own.
             return ByteBuffer.wrap((byte[]) pixels);
          } else {
+            // There is no way to view a short[] as bytes, so 16-bit pixels
+            // take exactly one copy, into a pooled direct buffer that the
+            // FileChannel can then write without further copying.
             short[] pix = (short[]) pixels;
             ByteBuffer buffer = getLargeBuffer(pix.length * 2);
             buffer.asShortBuffer().put(pix);
@@ -785,10 +1194,8 @@ public final class MultipageTiffWriter {
 
       //Header (1) File info (1) display ranges (1) LUTS (1 per channel)
       int numMDEntries = 3 + numChannels;
-      ByteBuffer ifdCountAndValueBuffer = allocateByteBuffer(8);
-      ifdCountAndValueBuffer.putInt(0, numMDEntries);
-      ifdCountAndValueBuffer.putInt(4, (int) filePosition_);
-      fileChannelWrite(ifdCountAndValueBuffer, ijMetadataCountsTagPosition_ + 4);
+      writeIFDEntryCountAndValue(ijMetadataCountsTagPosition_, numMDEntries,
+            filePosition_);
 
       fileChannelWrite(mdByteCountsBuffer, filePosition_);
       filePosition_ += mdByteCountsBufferSize;
@@ -860,10 +1267,8 @@ public final class MultipageTiffWriter {
          }
       }
 
-      ifdCountAndValueBuffer = allocateByteBuffer(8);
-      ifdCountAndValueBuffer.putInt(0, mdBufferSize);
-      ifdCountAndValueBuffer.putInt(4, (int) filePosition_);
-      fileChannelWrite(ifdCountAndValueBuffer, ijMetadataTagPosition_ + 4);
+      writeIFDEntryCountAndValue(ijMetadataTagPosition_, mdBufferSize,
+            filePosition_);
 
       fileChannelWrite(mdBuffer, filePosition_);
       filePosition_ += mdBufferSize;
@@ -919,10 +1324,8 @@ public final class MultipageTiffWriter {
       // Null-terminate string
       bytes[bytes.length - 1] = 0;
       //write first image IFD
-      ByteBuffer ifdCountAndValueBuffer = allocateByteBuffer(8);
-      ifdCountAndValueBuffer.putInt(0, bytes.length);
-      ifdCountAndValueBuffer.putInt(4, (int) filePosition_);
-      fileChannelWrite(ifdCountAndValueBuffer, imageDescriptionTagOffset + 4);
+      writeIFDEntryCountAndValue(imageDescriptionTagOffset, bytes.length,
+            filePosition_);
 
       //write String
       fileChannelWrite(ByteBuffer.wrap(bytes), filePosition_);
@@ -939,8 +1342,7 @@ public final class MultipageTiffWriter {
    }
 
    private void writeNullOffsetAfterLastImage() throws IOException {
-      ByteBuffer buffer = allocateByteBuffer(4);
-      buffer.putInt(0, 0);
+      ByteBuffer buffer = allocateByteBuffer(getOffsetSize());
       fileChannelWrite(buffer, nextIFDOffsetLocation_);
    }
 
@@ -974,10 +1376,8 @@ public final class MultipageTiffWriter {
          fileChannelWrite(header, filePosition_);
          fileChannelWrite(buffer, filePosition_ + 8);
 
-         ByteBuffer offsetHeader = allocateByteBuffer(8);
-         offsetHeader.putInt(0, COMMENTS_OFFSET_HEADER);
-         offsetHeader.putInt(4, (int) filePosition_);
-         fileChannelWrite(offsetHeader, 24);
+         writeOffsetHeader(COMMENTS_OFFSET_HEADER, filePosition_,
+               getCommentsOffsetHeaderPosition(isBigTiff_));
          filePosition_ += 8 + commentsBytes.length;
       }
       catch (JSONException e) {
@@ -998,10 +1398,8 @@ public final class MultipageTiffWriter {
       fileChannelWrite(header, filePosition_);
       fileChannelWrite(buffer, filePosition_ + 8);
 
-      ByteBuffer offsetHeader = allocateByteBuffer(8);
-      offsetHeader.putInt(0, DISPLAY_SETTINGS_OFFSET_HEADER);
-      offsetHeader.putInt(4, (int) filePosition_);
-      fileChannelWrite(offsetHeader, 16);
+      writeOffsetHeader(DISPLAY_SETTINGS_OFFSET_HEADER, filePosition_,
+            getDisplaySettingsOffsetHeaderPosition(isBigTiff_));
       filePosition_ += numReservedBytes + 8;
    }
   
@@ -1013,79 +1411,82 @@ public final class MultipageTiffWriter {
               + (firstIFD_ ? 2 : 0));
      
       byte[] mdBytes = getBytesFromString("NULL ");
+      if (isBigTiff_) {
+         mdBytes = Arrays.copyOf(mdBytes, MIN_BIGTIFF_METADATA_LENGTH);
+      }
 
       //2 bytes for number of directory entries, 12 bytes per directory entry, 4 byte offset of next IFD
-     //6 bytes for bits per sample if RGB, 16 bytes for x and y resolution, 1 byte per character of MD string
+     //(8, 20, and 8 bytes respectively for BigTIFF)
+     //6 bytes for bits per sample if RGB, 16 bytes for x and y resolution (neither for BigTIFF), 1 byte per character of MD string
      //number of bytes for pixels
-     int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + 16 + mdBytes.length
+     int ifdSize = getIFDSize(numEntries);
+     int bitDepthBytes = getBitDepthBytes();
+     int totalBytes = ifdSize + bitDepthBytes + getResolutionBytes() + mdBytes.length
              + (blankPixelsAlreadyWritten ? 0 : bytesPerImagePixels_);
-     int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0);
+     int IFDandBitDepthBytes = ifdSize + bitDepthBytes;
      
-     ByteBuffer ifdBuffer = allocateByteBuffer(IFDandBitDepthBytes);
-     CharBuffer charView = ifdBuffer.asCharBuffer();
+     ByteBuffer ifdBuffer = getScratchBuffer(IFDandBitDepthBytes);
          
-     long tagDataOffset = filePosition_ + 2 + numEntries*12 + 4;
-     nextIFDOffsetLocation_ = filePosition_ + 2 + numEntries*12;
+     long tagDataOffset = filePosition_ + ifdSize;
+     nextIFDOffsetLocation_ = tagDataOffset - getOffsetSize();
      
      bufferPosition_ = 0;
-      charView.put(bufferPosition_,numEntries);
-      bufferPosition_ += 2;
-      writeIFDEntry(ifdBuffer,charView, WIDTH,(char)4,1,imageWidth_);
-      writeIFDEntry(ifdBuffer,charView,HEIGHT,(char)4,1,imageHeight_);
-      writeIFDEntry(ifdBuffer,charView,BITS_PER_SAMPLE,(char)3,rgb_?3:1,  rgb_? tagDataOffset:byteDepth_*8);
-      if (rgb_) {
-         tagDataOffset += 6;
-      }
-      writeIFDEntry(ifdBuffer,charView,COMPRESSION,(char)3,1,1);
-      writeIFDEntry(ifdBuffer,charView,PHOTOMETRIC_INTERPRETATION,(char)3,1,rgb_?2:1);
+      writeIFDEntryCount(ifdBuffer, numEntries);
+      writeIFDEntry(ifdBuffer, WIDTH,(char)4,1,imageWidth_);
+      writeIFDEntry(ifdBuffer,HEIGHT,(char)4,1,imageHeight_);
+      writeBitsPerSampleEntry(ifdBuffer, tagDataOffset);
+      tagDataOffset += bitDepthBytes;
+      writeIFDEntry(ifdBuffer,COMPRESSION,(char)3,1,1);
+      writeIFDEntry(ifdBuffer,PHOTOMETRIC_INTERPRETATION,(char)3,1,rgb_?2:1);
       
       if (firstIFD_) {
                   omeDescriptionTagPosition_ = filePosition_ + bufferPosition_;
-         writeIFDEntry(ifdBuffer, charView, IMAGE_DESCRIPTION, (char) 2, 0, 0);
+         writeIFDEntry(ifdBuffer, IMAGE_DESCRIPTION, (char) 2, 0, 0);
       }     
       if (firstIFD_) {
          ijDescriptionTagPosition_ = filePosition_ + bufferPosition_;
-         writeIFDEntry(ifdBuffer, charView, IMAGE_DESCRIPTION, (char) 2, 0, 0);
+         writeIFDEntry(ifdBuffer, IMAGE_DESCRIPTION, (char) 2, 0, 0);
       }
            
       if (!blankPixelsAlreadyWritten) { //Write blank pixels
-         writeIFDEntry(ifdBuffer, charView, STRIP_OFFSETS, (char) 4, 1, tagDataOffset);
+         writeIFDEntry(ifdBuffer, STRIP_OFFSETS, getOffsetType(), 1, tagDataOffset);
          blankPixelsOffset_ = tagDataOffset;
          tagDataOffset += bytesPerImagePixels_;
       } else {
-         writeIFDEntry(ifdBuffer, charView, STRIP_OFFSETS, (char) 4, 1, blankPixelsOffset_);
+         writeIFDEntry(ifdBuffer, STRIP_OFFSETS, getOffsetType(), 1, blankPixelsOffset_);
       }
       
-      writeIFDEntry(ifdBuffer,charView,SAMPLES_PER_PIXEL,(char)3,1,(rgb_?3:1));
-      writeIFDEntry(ifdBuffer,charView,ROWS_PER_STRIP, (char) 3, 1, imageHeight_);
-      writeIFDEntry(ifdBuffer,charView,STRIP_BYTE_COUNTS, (char) 4, 1, bytesPerImagePixels_ );
-      writeIFDEntry(ifdBuffer,charView,X_RESOLUTION, (char)5, 1, tagDataOffset);
-      tagDataOffset += 8;
-      writeIFDEntry(ifdBuffer,charView,Y_RESOLUTION, (char)5, 1, tagDataOffset);
-      tagDataOffset += 8;
-      writeIFDEntry(ifdBuffer,charView,RESOLUTION_UNIT, (char) 3,1,3);
+      writeIFDEntry(ifdBuffer,SAMPLES_PER_PIXEL,(char)3,1,(rgb_?3:1));
+      writeIFDEntry(ifdBuffer,ROWS_PER_STRIP, (char) 3, 1, imageHeight_);
+      writeIFDEntry(ifdBuffer,STRIP_BYTE_COUNTS, (char) 4, 1, bytesPerImagePixels_ );
+      tagDataOffset = writeResolutionEntries(ifdBuffer, tagDataOffset);
+      writeIFDEntry(ifdBuffer,RESOLUTION_UNIT, (char) 3,1,3);
       if (firstIFD_) {         
          ijMetadataCountsTagPosition_ = filePosition_ + bufferPosition_;
-         writeIFDEntry(ifdBuffer,charView,IJ_METADATA_BYTE_COUNTS,(char)4,0,0);
+         writeIFDEntry(ifdBuffer,IJ_METADATA_BYTE_COUNTS,(char)4,0,0);
          ijMetadataTagPosition_ = filePosition_ + bufferPosition_;
-         writeIFDEntry(ifdBuffer,charView,IJ_METADATA,(char)1,0,0);
+         writeIFDEntry(ifdBuffer,IJ_METADATA,(char)1,0,0);
       }
-      writeIFDEntry(ifdBuffer,charView,MM_METADATA,(char)2,mdBytes.length,tagDataOffset);
+      writeIFDEntry(ifdBuffer,MM_METADATA,(char)2,mdBytes.length,tagDataOffset);
       tagDataOffset += mdBytes.length;
       //NextIFDOffset
-      ifdBuffer.putInt(bufferPosition_, (int)tagDataOffset);
-      bufferPosition_ += 4;
+      writeNextIFDOffset(ifdBuffer, tagDataOffset);
       
-      if (rgb_) {
-         charView.put(bufferPosition_/2,(char) (byteDepth_*8));
-         charView.put(bufferPosition_/2+1,(char) (byteDepth_*8));
-         charView.put(bufferPosition_/2+2,(char) (byteDepth_*8));
+      if (bitDepthBytes > 0) {
+         ifdBuffer.putChar(bufferPosition_,(char) (byteDepth_*8));
+         ifdBuffer.putChar(bufferPosition_+2,(char) (byteDepth_*8));
+         ifdBuffer.putChar(bufferPosition_+4,(char) (byteDepth_*8));
       }
       buffers_.add(ifdBuffer);
       if (!blankPixelsAlreadyWritten) {
-         buffers_.add(ByteBuffer.wrap(new byte[bytesPerImagePixels_]));
+         if (blankPixels_ == null) {
+            blankPixels_ = ByteBuffer.allocateDirect(bytesPerImagePixels_);
+         }
+         buffers_.add(blankPixels_);
+      }
+      if (resolutionBuffer_ != null) {
+         buffers_.add(resolutionBuffer_);
       }
-      buffers_.add(getResolutionValuesBuffer());   
       buffers_.add(ByteBuffer.wrap(mdBytes));
       
       filePosition_ += totalBytes;
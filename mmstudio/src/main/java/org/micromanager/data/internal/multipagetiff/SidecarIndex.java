@@ -0,0 +1,446 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Multipage TIFF
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.micromanager.data.Coords;
+import org.micromanager.data.internal.DefaultCoords;
+
+/**
+ * Read-only view of the index file that SidecarIndexWriter maintains
+ * alongside a multipage TIFF dataset. The file lists, for every image, the
+ * TIFF file it is in, the offset of its IFD, and the length of its
+ * metadata, so a dataset can be opened without reading the index map of
+ * each TIFF file (or, for a dataset whose acquisition crashed before the
+ * index maps were written, without scanning every IFD).
+ *
+ * The file is memory-mapped, and images are looked up through a hash table
+ * of packed channel/z/time/position indices, so no Coords objects are kept
+ * per image.
+ *
+ * File format (all values in the byte order given by the first two bytes,
+ * which are "II" or "MM" as in TIFF):
+ * - Header (16 bytes): byte order mark, format version (char), magic number
+ *   (int), 8 reserved bytes.
+ * - Any number of 40-byte records, each starting with an int record type:
+ *   - RECORD_FILE: file ID (int), name length in bytes (int), 24 reserved
+ *     bytes, and then the UTF-8 file name, padded to a multiple of 40 bytes.
+ *     File IDs count up from 0 in the order that files are added.
+ *   - RECORD_IMAGE: channel, z, time, and position indices (4 ints; -1 for
+ *     an absent axis), file ID (int), IFD offset (long), metadata length
+ *     (int), and a checksum (int) of the preceding fields.
+ * Reading stops at the first record that is truncated or malformed, which
+ * is what an interrupted write leaves behind.
+ */
+public final class SidecarIndex {
+   public static final String FILENAME = "MMStack_index.bin";
+
+   static final int MAGIC = 0x4d4d4958; // "MMIX"
+   static final char VERSION = 1;
+   static final int HEADER_SIZE = 16;
+   static final int RECORD_SIZE = 40;
+   static final int RECORD_FILE = 1;
+   static final int RECORD_IMAGE = 2;
+
+   // Images are looked up by DefaultCoords' packed key. The all-ones key,
+   // which is never a valid packed key, marks empty hash table slots.
+   private static final long EMPTY_KEY = DefaultCoords.NOT_PACKABLE;
+
+   private final File file_;
+   private final ByteBuffer buffer_;
+   private final List<String> fileNames_ = new ArrayList<String>();
+   // Open-addressing hash table from packed key to record position.
+   private long[] keys_;
+   private int[] positions_;
+   private int numImages_ = 0;
+   // Maximum index along channel, z, time, and position.
+   private final int[] maxIndices_ = new int[] {-1, -1, -1, -1};
+   private int numTruncatedBytes_ = 0;
+
+   /**
+    * Load the index from the given file.
+    * @throws IOException if the file can't be read, isn't an index file, or
+    *         contains indices too large to be represented.
+    */
+   public static SidecarIndex open(File file) throws IOException {
+      RandomAccessFile raFile = new RandomAccessFile(file, "r");
+      try {
+         FileChannel channel = raFile.getChannel();
+         long size = channel.size();
+         if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+            throw new IOException("Invalid index file size " + size);
+         }
+         // The mapping remains valid after the channel is closed.
+         ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+               size);
+         return new SidecarIndex(file, buffer);
+      }
+      finally {
+         raFile.close();
+      }
+   }
+
+   private SidecarIndex(File file, ByteBuffer buffer) throws IOException {
+      file_ = file;
+      buffer_ = buffer;
+      char byteOrderMark = buffer_.getChar(0);
+      if (byteOrderMark == 0x4949) {
+         buffer_.order(ByteOrder.LITTLE_ENDIAN);
+      }
+      else if (byteOrderMark == 0x4d4d) {
+         buffer_.order(ByteOrder.BIG_ENDIAN);
+      }
+      else {
+         throw new IOException("Not an index file: " + file_);
+      }
+      if (buffer_.getInt(4) != MAGIC) {
+         throw new IOException("Not an index file: " + file_);
+      }
+      if (buffer_.getChar(2) != VERSION) {
+         throw new IOException("Unsupported index file version " +
+               (int) buffer_.getChar(2) + " in " + file_);
+      }
+      keys_ = new long[1024];
+      Arrays.fill(keys_, EMPTY_KEY);
+      positions_ = new int[keys_.length];
+      readRecords();
+   }
+
+   private void readRecords() throws IOException {
+      int limit = buffer_.limit();
+      int position = HEADER_SIZE;
+      while (position + RECORD_SIZE <= limit) {
+         int type = buffer_.getInt(position);
+         if (type == RECORD_IMAGE) {
+            if (buffer_.getInt(position + 36) != checksum(position) ||
+                  buffer_.getInt(position + 20) < 0 ||
+                  buffer_.getInt(position + 20) >= fileNames_.size()) {
+               break;
+            }
+            for (int i = 0; i < 4; ++i) {
+               int index = buffer_.getInt(position + 4 + 4 * i);
+               if (index < -1 || index > DefaultCoords.MAX_PACKABLE_INDEX) {
+                  throw new IOException("Image index " + index +
+                        " is too large for index file " + file_);
+               }
+               maxIndices_[i] = Math.max(maxIndices_[i], index);
+            }
+            put(DefaultCoords.packKey(buffer_.getInt(position + 4),
+                     buffer_.getInt(position + 8),
+                     buffer_.getInt(position + 12),
+                     buffer_.getInt(position + 16)), position);
+            position += RECORD_SIZE;
+         }
+         else if (type == RECORD_FILE) {
+            int fileId = buffer_.getInt(position + 4);
+            int length = buffer_.getInt(position + 8);
+            int paddedLength = paddedNameLength(length);
+            if (fileId != fileNames_.size() || length <= 0 ||
+                  position + RECORD_SIZE + paddedLength > limit) {
+               break;
+            }
+            byte[] name = new byte[length];
+            ByteBuffer view = buffer_.duplicate();
+            view.position(position + RECORD_SIZE);
+            view.get(name);
+            try {
+               fileNames_.add(new String(name, "UTF-8"));
+            }
+            catch (UnsupportedEncodingException e) {
+               throw new IOException("Unable to decode file name", e);
+            }
+            position += RECORD_SIZE + paddedLength;
+         }
+         else {
+            break;
+         }
+      }
+      numTruncatedBytes_ = limit - position;
+   }
+
+   static int paddedNameLength(int length) {
+      return ((length + RECORD_SIZE - 1) / RECORD_SIZE) * RECORD_SIZE;
+   }
+
+   private int checksum(int position) {
+      int result = 1;
+      for (int i = 0; i < 9; ++i) {
+         result = result * 31 + buffer_.getInt(position + 4 * i);
+      }
+      return ~result;
+   }
+
+   /**
+    * Compute the checksum of an image record the same way as checksum(int),
+    * for use by SidecarIndexWriter. The record's first 36 bytes must be
+    * filled in.
+    */
+   static int checksum(ByteBuffer record) {
+      int result = 1;
+      for (int i = 0; i < 9; ++i) {
+         result = result * 31 + record.getInt(4 * i);
+      }
+      return ~result;
+   }
+
+   private void put(long key, int position) {
+      if (2 * (numImages_ + 1) > keys_.length) {
+         rehash(keys_.length * 2);
+      }
+      int slot = findSlot(keys_, key);
+      if (keys_[slot] == EMPTY_KEY) {
+         keys_[slot] = key;
+         numImages_++;
+      }
+      // Later records for the same coordinates override earlier ones, as
+      // happens when data is intentionally overwritten.
+      positions_[slot] = position;
+   }
+
+   private void rehash(int capacity) {
+      long[] oldKeys = keys_;
+      int[] oldPositions = positions_;
+      keys_ = new long[capacity];
+      Arrays.fill(keys_, EMPTY_KEY);
+      positions_ = new int[capacity];
+      for (int i = 0; i < oldKeys.length; ++i) {
+         if (oldKeys[i] != EMPTY_KEY) {
+            int slot = findSlot(keys_, oldKeys[i]);
+            keys_[slot] = oldKeys[i];
+            positions_[slot] = oldPositions[i];
+         }
+      }
+   }
+
+   private static int findSlot(long[] keys, long key) {
+      int mask = keys.length - 1;
+      long hash = key * 0x9e3779b97f4a7c15L;
+      int slot = (int) (hash ^ (hash >>> 32)) & mask;
+      while (keys[slot] != EMPTY_KEY && keys[slot] != key) {
+         slot = (slot + 1) & mask;
+      }
+      return slot;
+   }
+
+   /**
+    * Return an opaque handle to the record for the image at the given
+    * coordinates, for use with getFileName(), getIFDOffset(), and
+    * getMetadataLength(), or -1 if there is no such image.
+    */
+   public int find(Coords coords) {
+      long key = DefaultCoords.packKey(coords);
+      if (key == DefaultCoords.NOT_PACKABLE) {
+         // Coords has axes that we don't store.
+         return -1;
+      }
+      int slot = findSlot(keys_, key);
+      if (keys_[slot] == EMPTY_KEY) {
+         return -1;
+      }
+      return positions_[slot];
+   }
+
+   public int getFileId(int record) {
+      return buffer_.getInt(record + 20);
+   }
+
+   public String getFileName(int record) {
+      return fileNames_.get(getFileId(record));
+   }
+
+   public long getIFDOffset(int record) {
+      return buffer_.getLong(record + 24);
+   }
+
+   public int getMetadataLength(int record) {
+      return buffer_.getInt(record + 32);
+   }
+
+   public Coords getCoords(int record) {
+      DefaultCoords.Builder builder = new DefaultCoords.Builder();
+      int channel = buffer_.getInt(record + 4);
+      int z = buffer_.getInt(record + 8);
+      int time = buffer_.getInt(record + 12);
+      int position = buffer_.getInt(record + 16);
+      if (channel >= 0) {
+         builder.channel(channel);
+      }
+      if (z >= 0) {
+         builder.z(z);
+      }
+      if (time >= 0) {
+         builder.time(time);
+      }
+      if (position >= 0) {
+         builder.stagePosition(position);
+      }
+      return builder.build();
+   }
+
+   /**
+    * Return the names of the TIFF files in the dataset, relative to the
+    * dataset directory, indexed by file ID.
+    */
+   public List<String> getFileNames() {
+      return fileNames_;
+   }
+
+   public int getNumImages() {
+      return numImages_;
+   }
+
+   /**
+    * Return the maximum index along each axis, or null if the index is
+    * empty.
+    */
+   public Coords getMaxIndices() {
+      if (numImages_ == 0) {
+         return null;
+      }
+      DefaultCoords.Builder builder = new DefaultCoords.Builder();
+      if (maxIndices_[0] >= 0) {
+         builder.channel(maxIndices_[0]);
+      }
+      if (maxIndices_[1] >= 0) {
+         builder.z(maxIndices_[1]);
+      }
+      if (maxIndices_[2] >= 0) {
+         builder.time(maxIndices_[2]);
+      }
+      if (maxIndices_[3] >= 0) {
+         builder.stagePosition(maxIndices_[3]);
+      }
+      return builder.build();
+   }
+
+   /**
+    * Return the number of bytes at the end of the file that could not be
+    * parsed; nonzero if the index was not closed cleanly.
+    */
+   public int getNumTruncatedBytes() {
+      return numTruncatedBytes_;
+   }
+
+   /**
+    * Iterate over the records for all images, in no particular order. Each
+    * value is a record handle as per find().
+    */
+   public Iterable<Integer> getRecords() {
+      return new Iterable<Integer>() {
+         @Override
+         public Iterator<Integer> iterator() {
+            return new Iterator<Integer>() {
+               private int slot_ = advance(0);
+
+               private int advance(int slot) {
+                  while (slot < keys_.length && keys_[slot] == EMPTY_KEY) {
+                     slot++;
+                  }
+                  return slot;
+               }
+
+               @Override
+               public boolean hasNext() {
+                  return slot_ < keys_.length;
+               }
+
+               @Override
+               public Integer next() {
+                  if (!hasNext()) {
+                     throw new NoSuchElementException();
+                  }
+                  int result = positions_[slot_];
+                  slot_ = advance(slot_ + 1);
+                  return result;
+               }
+
+               @Override
+               public void remove() {
+                  throw new UnsupportedOperationException();
+               }
+            };
+         }
+      };
+   }
+
+   /**
+    * Iterate over the coordinates of all images, in no particular order.
+    * Coords are created as the iteration proceeds.
+    */
+   public Iterable<Coords> getCoords() {
+      return new Iterable<Coords>() {
+         @Override
+         public Iterator<Coords> iterator() {
+            final Iterator<Integer> records = getRecords().iterator();
+            return new Iterator<Coords>() {
+               @Override
+               public boolean hasNext() {
+                  return records.hasNext();
+               }
+
+               @Override
+               public Coords next() {
+                  return getCoords(records.next());
+               }
+
+               @Override
+               public void remove() {
+                  throw new UnsupportedOperationException();
+               }
+            };
+         }
+      };
+   }
+
+   /**
+    * Return an unmodifiable set view of the coordinates of all images.
+    * Lookups go through the hash table, so nothing is copied.
+    */
+   public Set<Coords> getCoordsSet() {
+      return new AbstractSet<Coords>() {
+         @Override
+         public Iterator<Coords> iterator() {
+            return getCoords().iterator();
+         }
+
+         @Override
+         public int size() {
+            return numImages_;
+         }
+
+         @Override
+         public boolean contains(Object o) {
+            return o instanceof Coords && find((Coords) o) >= 0;
+         }
+      };
+   }
+}
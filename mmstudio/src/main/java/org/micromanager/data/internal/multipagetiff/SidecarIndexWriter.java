@@ -0,0 +1,145 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Multipage TIFF
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import org.micromanager.data.Coords;
+import org.micromanager.internal.utils.ReportingUtils;
+
+/**
+ * Appends records to a dataset's sidecar index file as images are written;
+ * see SidecarIndex for the file format. Records are written as soon as
+ * they are added (not buffered in memory), so that the index is usable even
+ * if the program exits before the dataset is finished. All methods are
+ * thread-safe.
+ */
+public final class SidecarIndexWriter {
+   private final File file_;
+   private RandomAccessFile raFile_;
+   private FileChannel channel_;
+   private long position_;
+   private int numFiles_ = 0;
+   private final ByteBuffer record_ = ByteBuffer.allocate(
+         SidecarIndex.RECORD_SIZE).order(MultipageTiffWriter.BYTE_ORDER);
+   private boolean haveLoggedError_ = false;
+
+   public SidecarIndexWriter(File file) throws IOException {
+      file_ = file;
+      raFile_ = new RandomAccessFile(file, "rw");
+      raFile_.setLength(0);
+      channel_ = raFile_.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(SidecarIndex.HEADER_SIZE)
+         .order(MultipageTiffWriter.BYTE_ORDER);
+      header.putChar(0, MultipageTiffWriter.BYTE_ORDER.equals(
+               ByteOrder.BIG_ENDIAN) ? (char) 0x4d4d : (char) 0x4949);
+      header.putChar(2, SidecarIndex.VERSION);
+      header.putInt(4, SidecarIndex.MAGIC);
+      write(header);
+   }
+
+   /**
+    * Record a new TIFF file.
+    * @param name Name of the file, relative to the dataset directory.
+    * @return ID of the file, for use with addImage(), or -1 if the index
+    *         could not be written.
+    */
+   public synchronized int addFile(String name) {
+      try {
+         byte[] bytes = name.getBytes("UTF-8");
+         ByteBuffer buffer = ByteBuffer.allocate(SidecarIndex.RECORD_SIZE +
+               SidecarIndex.paddedNameLength(bytes.length))
+            .order(MultipageTiffWriter.BYTE_ORDER);
+         buffer.putInt(0, SidecarIndex.RECORD_FILE);
+         buffer.putInt(4, numFiles_);
+         buffer.putInt(8, bytes.length);
+         buffer.position(SidecarIndex.RECORD_SIZE);
+         buffer.put(bytes);
+         buffer.rewind();
+         write(buffer);
+         return numFiles_++;
+      }
+      catch (IOException e) {
+         logError(e);
+         return -1;
+      }
+   }
+
+   /**
+    * Record the location of an image. Should only be called once the image
+    * has actually been written, so the index never refers to missing data.
+    */
+   public synchronized void addImage(Coords coords, int fileId,
+         long ifdOffset, int metadataLength) {
+      if (fileId < 0) {
+         return;
+      }
+      record_.putInt(0, SidecarIndex.RECORD_IMAGE);
+      record_.putInt(4, coords.getChannel());
+      record_.putInt(8, coords.getZ());
+      record_.putInt(12, coords.getTime());
+      record_.putInt(16, coords.getStagePosition());
+      record_.putInt(20, fileId);
+      record_.putLong(24, ifdOffset);
+      record_.putInt(32, metadataLength);
+      record_.putInt(36, SidecarIndex.checksum(record_));
+      record_.clear();
+      try {
+         write(record_);
+      }
+      catch (IOException e) {
+         logError(e);
+      }
+   }
+
+   private void write(ByteBuffer buffer) throws IOException {
+      if (channel_ == null) {
+         throw new IOException("Index file " + file_ + " is closed");
+      }
+      while (buffer.hasRemaining()) {
+         position_ += channel_.write(buffer, position_);
+      }
+   }
+
+   private void logError(IOException e) {
+      if (!haveLoggedError_) {
+         ReportingUtils.logError(e, "Unable to write to index file " + file_);
+         haveLoggedError_ = true;
+      }
+   }
+
+   public synchronized void close() {
+      if (channel_ == null) {
+         return;
+      }
+      try {
+         channel_.close();
+         raFile_.close();
+      }
+      catch (IOException e) {
+         ReportingUtils.logError(e, "Error closing index file " + file_);
+      }
+      channel_ = null;
+      raFile_ = null;
+   }
+}
@@ -23,6 +23,7 @@ import java.awt.GraphicsEnvironment;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -34,10 +35,6 @@ import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import javax.swing.JOptionPane;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
@@ -68,6 +65,12 @@ import org.micromanager.internal.utils.ReportingUtils;
 public final class StorageMultipageTiff implements Storage {
    private static final String SHOULD_GENERATE_METADATA_FILE = "generate a metadata file when saving datasets as multipage TIFF files";
    private static final String SHOULD_USE_SEPARATE_FILES_FOR_POSITIONS = "generate a separate multipage TIFF file for each stage position";
+   private static final String SHOULD_USE_PARALLEL_WRITERS = "write each multipage TIFF file set on its own thread";
+   private static final String SHOULD_USE_MEMORY_MAPPED_READS = "read multipage TIFF files using memory mapping";
+   private static final String SHOULD_USE_BIGTIFF = "write multipage TIFF files in BigTIFF format";
+   private static final String WRITING_QUEUE_SIZE_MB = "maximum number of megabytes queued for writing per writing thread";
+   private static final int DEFAULT_WRITING_QUEUE_SIZE_MB = 256;
+   private static final long BYTES_PER_MB = 1048576;
    private static final HashSet<String> ALLOWED_AXES = new HashSet<String>(
          Arrays.asList(Coords.CHANNEL, Coords.TIME, Coords.Z,
             Coords.STAGE_POSITION));
@@ -84,9 +87,30 @@ public final class StorageMultipageTiff implements Storage {
    private OMEMetadata omeMetadata_;
    private int lastFrame_ = 0;
    private int lastAcquiredPosition_ = 0;
-   private ThreadPoolExecutor writingExecutor_;
    private Image firstImage_;
 
+   // If true, and we're splitting files by stage position, then FileSets
+   // are spread over a fixed pool of WritingLanes, one per processor at
+   // most; otherwise they all share one.
+   private boolean useParallelWriters_ = false;
+   private long maxQueuedBytesPerLane_ =
+      DEFAULT_WRITING_QUEUE_SIZE_MB * BYTES_PER_MB;
+   private WritingLane sharedWritingLane_;
+   private final WritingLane[] parallelWritingLanes_ =
+      new WritingLane[Runtime.getRuntime().availableProcessors()];
+   private final ArrayList<WritingLane> writingLanes_ =
+      new ArrayList<WritingLane>();
+   private volatile boolean useMemoryMappedReads_ = false;
+   // If true, new files are written as BigTIFF, and so are never split.
+   private boolean useBigTiff_ = false;
+
+   // Sidecar index of image locations. When writing, we maintain one; when
+   // reading, if one was found, it is used in place of coordsToReader_, and
+   // each file's reader is only opened when an image in it is requested.
+   private SidecarIndexWriter sidecarIndexWriter_;
+   private SidecarIndex sidecarIndex_;
+   private MultipageTiffReader[] sidecarReaders_;
+
    // Images that are currently being written. We keep them around until
    // writing completes, so that calls to getImage() mid-write can access
    // complete data rather than risking a call to
@@ -106,6 +130,10 @@ public final class StorageMultipageTiff implements Storage {
          throws IOException {
       this(store, dir, amInWriteMode, getShouldGenerateMetadataFile(),
             getShouldSplitPositions());
+      setWritingLaneConfiguration(getShouldUseParallelWriters(),
+            getWritingQueueSizeMB() * BYTES_PER_MB);
+      setUseMemoryMappedReads(getShouldUseMemoryMappedReads());
+      setUseBigTiff(getShouldUseBigTiff());
    }
    
    /*
@@ -141,6 +169,14 @@ public final class StorageMultipageTiff implements Storage {
          if (!dirFile.canWrite()) {
             throw new IOException("Insufficient permission to write to " + dirFile);
          }
+         try {
+            sidecarIndexWriter_ = new SidecarIndexWriter(
+                  new File(dirFile, SidecarIndex.FILENAME));
+         }
+         catch (IOException e) {
+            // Not fatal; the dataset will just be slower to open.
+            ReportingUtils.logError(e, "Unable to create sidecar index");
+         }
       }
       else {
          openExistingDataSet();
@@ -157,8 +193,100 @@ public final class StorageMultipageTiff implements Storage {
       }
    }
    
-   public ThreadPoolExecutor getWritingExecutor() {
-      return writingExecutor_;
+   /**
+    * Control how writing work is distributed. Must be called before the
+    * first image is written.
+    * @param useParallelWriters If true, and files are split by stage
+    *        position, then positions' files are written on several threads
+    *        (at most one per processor).
+    * @param maxQueuedBytesPerLane Number of bytes that may be waiting to be
+    *        written on each thread before putImage() blocks.
+    */
+   public void setWritingLaneConfiguration(boolean useParallelWriters,
+         long maxQueuedBytesPerLane) {
+      useParallelWriters_ = useParallelWriters;
+      maxQueuedBytesPerLane_ = maxQueuedBytesPerLane;
+   }
+
+   /**
+    * Write files in BigTIFF format, which uses 64-bit offsets, instead of
+    * classic TIFF. BigTIFF files have no 4GB size limit, so each FileSet
+    * writes a single file, but they cannot be opened by older versions of
+    * Micro-Manager or by ImageJ's built-in TIFF reader. Must be called before
+    * the first image is written. Reading detects the format automatically.
+    */
+   public void setUseBigTiff(boolean useBigTiff) {
+      useBigTiff_ = useBigTiff;
+   }
+
+   public boolean getUseBigTiff() {
+      return useBigTiff_;
+   }
+
+   /**
+    * Enable or disable memory-mapped reading of files loaded from disk; see
+    * MultipageTiffReader.setUseMemoryMapping(). May be called at any time.
+    */
+   public void setUseMemoryMappedReads(boolean useMapping) {
+      useMemoryMappedReads_ = useMapping;
+      for (MultipageTiffReader reader : new HashSet<MultipageTiffReader>(
+               coordsToReader_.values())) {
+         reader.setUseMemoryMapping(useMapping);
+      }
+      if (sidecarReaders_ != null) {
+         synchronized(sidecarReaders_) {
+            for (MultipageTiffReader reader : sidecarReaders_) {
+               if (reader != null) {
+                  reader.setUseMemoryMapping(useMapping);
+               }
+            }
+         }
+      }
+   }
+
+   SidecarIndexWriter getSidecarIndexWriter() {
+      return sidecarIndexWriter_;
+   }
+
+   /**
+    * Return a snapshot of throughput and queue depth for each of the threads
+    * used to write this dataset.
+    */
+   public List<WritingLane.Stats> getWritingLaneStats() {
+      ArrayList<WritingLane.Stats> result = new ArrayList<WritingLane.Stats>();
+      synchronized(writingLanes_) {
+         for (WritingLane lane : writingLanes_) {
+            result.add(lane.getStats());
+         }
+      }
+      return result;
+   }
+
+   private WritingLane getWritingLaneForNewFileSet(int fileSetIndex) {
+      if (useParallelWriters_ && splitByXYPosition_) {
+         // Lanes are only created once a position needs them, so there are
+         // never more lanes than positions.
+         int laneIndex = fileSetIndex % parallelWritingLanes_.length;
+         if (parallelWritingLanes_[laneIndex] == null) {
+            parallelWritingLanes_[laneIndex] =
+               createWritingLane("lane " + laneIndex);
+         }
+         return parallelWritingLanes_[laneIndex];
+      }
+      if (sharedWritingLane_ == null) {
+         sharedWritingLane_ = createWritingLane("shared");
+      }
+      return sharedWritingLane_;
+   }
+
+   private WritingLane createWritingLane(String name) {
+      WritingLane lane = new WritingLane(
+            new File(directory_).getName() + " (" + name + ")",
+            maxQueuedBytesPerLane_);
+      synchronized(writingLanes_) {
+         writingLanes_.add(lane);
+      }
+      return lane;
    }
 
    boolean slicesFirst() {
@@ -190,6 +318,10 @@ public final class StorageMultipageTiff implements Storage {
       MultipageTiffReader reader = null;
       File dir = new File(directory_);
 
+      if (openWithSidecarIndex(dir)) {
+         return;
+      }
+
       ProgressBar progressBar = null;
       // Allow operation in headless mode.
       if (!GraphicsEnvironment.isHeadless()) {
@@ -225,11 +357,102 @@ public final class StorageMultipageTiff implements Storage {
       }
    }
 
+   /**
+    * Try to open the dataset using its sidecar index, if it has one. This
+    * avoids reading the index map of every file, and allows datasets whose
+    * index maps were never written (because acquisition was interrupted) to
+    * be opened without repairing them.
+    * @return true if the dataset was opened.
+    */
+   private boolean openWithSidecarIndex(File dir) {
+      File indexFile = new File(dir, SidecarIndex.FILENAME);
+      if (!indexFile.exists()) {
+         return false;
+      }
+      SidecarIndex index;
+      try {
+         index = SidecarIndex.open(indexFile);
+      }
+      catch (IOException e) {
+         ReportingUtils.logError(e, "Unable to use sidecar index; reading files individually");
+         return false;
+      }
+      if (index.getNumImages() == 0) {
+         return false;
+      }
+      for (String name : index.getFileNames()) {
+         if (!new File(dir, name).exists()) {
+            ReportingUtils.logError("Sidecar index refers to missing file " + name + "; reading files individually");
+            return false;
+         }
+      }
+      if (index.getNumTruncatedBytes() > 0) {
+         ReportingUtils.logMessage("Sidecar index for " + directory_ +
+               " was not closed cleanly; opening the images it lists");
+      }
+      sidecarIndex_ = index;
+      sidecarReaders_ = new MultipageTiffReader[index.getFileNames().size()];
+      Coords maxIndices = index.getMaxIndices();
+      lastFrameOpenedDataSet_ = Math.max(0, maxIndices.getTime());
+
+      int firstRecord = index.getRecords().iterator().next();
+      MultipageTiffReader reader = getSidecarReader(index.getFileId(firstRecord));
+      if (reader == null) {
+         sidecarIndex_ = null;
+         sidecarReaders_ = null;
+         return false;
+      }
+      firstImage_ = reader.readImage(index.getCoords(firstRecord),
+            index.getIFDOffset(firstRecord));
+      // TODO: coercing to DefaultSummaryMetadata here to match method
+      // signature; see our setSummaryMetadata methods for more info.
+      setSummaryMetadata((DefaultSummaryMetadata) reader.getSummaryMetadata(), false);
+      return true;
+   }
+
+   /**
+    * Return the reader for the given file in the sidecar index, opening it
+    * if necessary.
+    */
+   private MultipageTiffReader getSidecarReader(int fileId) {
+      synchronized(sidecarReaders_) {
+         if (sidecarReaders_[fileId] == null) {
+            File file = new File(directory_,
+                  sidecarIndex_.getFileNames().get(fileId));
+            try {
+               MultipageTiffReader reader = new MultipageTiffReader(this,
+                     file, false);
+               reader.setUseMemoryMapping(useMemoryMappedReads_);
+               sidecarReaders_[fileId] = reader;
+            }
+            catch (InvalidIndexMapException e) {
+               // Can't happen, since we don't read the index map.
+               ReportingUtils.logError(e, "Couldn't open file: " + file);
+            }
+            catch (IOException e) {
+               ReportingUtils.logError(e, "Couldn't open file: " + file);
+            }
+         }
+         return sidecarReaders_[fileId];
+      }
+   }
+
+   private Image readImageFromSidecarIndex(int record) {
+      MultipageTiffReader reader = getSidecarReader(
+            sidecarIndex_.getFileId(record));
+      if (reader == null) {
+         return null;
+      }
+      return reader.readImage(sidecarIndex_.getCoords(record),
+            sidecarIndex_.getIFDOffset(record));
+   }
+
    private MultipageTiffReader loadFile(File f) {
       MultipageTiffReader reader = null;
       try {
          try {
             reader = new MultipageTiffReader(this, f);
+            reader.setUseMemoryMapping(useMemoryMappedReads_);
          }
          catch (InvalidIndexMapException e) {
             // Prompt to repair it.
@@ -248,6 +471,7 @@ public final class StorageMultipageTiff implements Storage {
             reader.close();
             // Open the file normally.
             reader = new MultipageTiffReader(this, f);
+            reader.setUseMemoryMapping(useMemoryMappedReads_);
          }
          Set<Coords> readerCoords = reader.getIndexKeys();
          for (Coords coords : readerCoords) {
@@ -293,12 +517,8 @@ public final class StorageMultipageTiff implements Storage {
    private void writeImage(DefaultImage image, boolean waitForWritingToFinish) throws MMException, InterruptedException, ExecutionException, IOException {
       writeImage(image);
       if (waitForWritingToFinish) {
-         Future f = writingExecutor_.submit(new Runnable() {
-            @Override
-            public void run() {
-            }
-         });
-         f.get();
+         positionToFileSet_.get(getFileSetIndex(image.getCoords()))
+            .getWritingLane().flush();
       }
    }
 
@@ -323,19 +543,30 @@ public final class StorageMultipageTiff implements Storage {
 
       startWritingTask(image);
 
-      writingExecutor_.submit(new Runnable() {
-         @Override
-         public void run() {
-            synchronized(coordsToPendingImage_) {
-               coordsToPendingImage_.remove(coords);
-            }
-         }
-      });
+      // The image's writing tasks all go to its FileSet's lane, so once this
+      // runs, the image can be read back from disk.
+      positionToFileSet_.get(getFileSetIndex(coords)).getWritingLane().submit(
+            new Runnable() {
+               @Override
+               public void run() {
+                  synchronized(coordsToPendingImage_) {
+                     coordsToPendingImage_.remove(coords);
+                  }
+               }
+            }, 0);
    };
 
+   private int getFileSetIndex(Coords coords) {
+      if (!splitByXYPosition_) {
+         return 0;
+      }
+      // No position axis, so just default to 0.
+      return Math.max(0, coords.getStagePosition());
+   }
+
    /**
     * This method handles starting the process of writing images (which means
-    * that it ultimately submits a task to writingExecutor_).
+    * that it ultimately submits tasks to the FileSet's WritingLane).
     */
    private void startWritingTask(DefaultImage image) throws MMException, IOException {
       // Update maxIndices_
@@ -350,36 +581,34 @@ public final class StorageMultipageTiff implements Storage {
             }
          }
       }
-      TaggedImage taggedImage = image.legacyToTaggedImage();
-
-      // initialize writing executor
-      if (writingExecutor_ == null) {
-         writingExecutor_ = new ThreadPoolExecutor(1, 1, 0,
-               TimeUnit.NANOSECONDS,
-               new LinkedBlockingQueue<java.lang.Runnable>());
+      // For single-component images, we can write the image's own pixel
+      // buffer directly, rather than making a copy of the pixels.
+      TaggedImage taggedImage;
+      ByteBuffer pixels = null;
+      if (image.getNumComponents() == 1) {
+         taggedImage = new TaggedImage(null, image.legacyToTags());
+         pixels = image.getPixelBufferAsBytes();
       }
-      int fileSetIndex = 0;
-      if (splitByXYPosition_) {
-         fileSetIndex = image.getCoords().getStagePosition();
-         if (fileSetIndex == -1) {
-            // No position axis, so just default to 0.
-            fileSetIndex = 0;
-         }
+      else {
+         taggedImage = image.legacyToTaggedImage();
       }
 
+      int fileSetIndex = getFileSetIndex(image.getCoords());
+
       if (omeMetadata_ == null) {
          omeMetadata_ = new OMEMetadata(this);
       }
 
       if (!positionToFileSet_.containsKey(fileSetIndex)) {
          positionToFileSet_.put(fileSetIndex,
-               new FileSet(taggedImage.tags, this, omeMetadata_,
+               new FileSet(taggedImage.tags, this,
+                  getWritingLaneForNewFileSet(fileSetIndex), omeMetadata_,
                   splitByXYPosition_, separateMetadataFile_));
       }
       FileSet set = positionToFileSet_.get(fileSetIndex);
 
       try {
-         set.writeImage(taggedImage);
+         set.writeImage(taggedImage, pixels);
          DefaultCoords coords = DefaultCoords.legacyFromJSON(taggedImage.tags);
          coordsToReader_.put(coords, set.getCurrentReader());
       } catch (IOException ex) {
@@ -397,6 +626,9 @@ public final class StorageMultipageTiff implements Storage {
    }
 
    public Set<Coords> imageKeys() {
+      if (sidecarIndex_ != null) {
+         return sidecarIndex_.getCoordsSet();
+      }
       return coordsToReader_.keySet();
    }
 
@@ -487,29 +719,31 @@ public final class StorageMultipageTiff implements Storage {
                progressBar.setProgress(count);
             }
          }
-         //shut down writing executor--pause here until all tasks have finished
+         //shut down writing lanes--pause here until all tasks have finished
          //writing so that no attempt is made to close the dataset (and thus
          //the FileChannel) before everything has finished writing mkae sure
          //all images have finished writing if they are on seperate thread
-         if (writingExecutor_ != null && !writingExecutor_.isShutdown()) {
-            writingExecutor_.shutdown();
-            try {
-               // Wait for tasks to finish.
-               int i = 0;
-               while (!writingExecutor_.awaitTermination(4, TimeUnit.SECONDS)) {
-                  ReportingUtils.logMessage("Waiting for image stack to finish writing (" + i + ")...");
-                  i++;
-               }
-            }
-            catch (InterruptedException e) {
-               ReportingUtils.logError("File finishing thread interrupted");
-               Thread.interrupted();
+         ArrayList<WritingLane> lanes;
+         synchronized(writingLanes_) {
+            lanes = new ArrayList<WritingLane>(writingLanes_);
+         }
+         try {
+            for (WritingLane lane : lanes) {
+               lane.shutdownAndWait();
+               ReportingUtils.logMessage("Finished writing: " + lane.getStats());
             }
          }
+         catch (InterruptedException e) {
+            ReportingUtils.logError("File finishing thread interrupted");
+            Thread.interrupted();
+         }
       } catch (IOException ex) {
          ReportingUtils.logError(ex);
       }
       finally {
+         if (sidecarIndexWriter_ != null) {
+            sidecarIndexWriter_.close();
+         }
          if (progressBar != null) {
             progressBar.setVisible(false);
          }
@@ -613,12 +847,18 @@ public final class StorageMultipageTiff implements Storage {
 
    @Override
    public int getNumImages() {
+      if (sidecarIndex_ != null) {
+         return sidecarIndex_.getNumImages();
+      }
       return coordsToReader_.keySet().size();
    }
 
    @Override
    public Coords getMaxIndices() {
       // TODO: this method is pretty poorly-implemented at current.
+      if (maxIndices_ == null && sidecarIndex_ != null) {
+         maxIndices_ = sidecarIndex_.getMaxIndices();
+      }
       if (maxIndices_ == null) {
          // Calculate max indices by examining all registered Readers.
          HashMap<String, Integer> maxIndices = new HashMap<String, Integer>();
@@ -682,6 +922,13 @@ public final class StorageMultipageTiff implements Storage {
             }
          }
       }
+      if (sidecarIndex_ != null) {
+         for (int record : sidecarIndex_.getRecords()) {
+            if (sidecarIndex_.getCoords(record).matches(coords)) {
+               result.add(readImageFromSidecarIndex(record));
+            }
+         }
+      }
       for (Coords imageCoords : coordsToReader_.keySet()) {
          if (imageCoords.matches(coords)) {
             result.add(coordsToReader_.get(imageCoords).readImage(imageCoords));
@@ -697,6 +944,12 @@ public final class StorageMultipageTiff implements Storage {
             return coordsToPendingImage_.get(coords);
          }
       }
+      if (sidecarIndex_ != null) {
+         int record = sidecarIndex_.find(coords);
+         if (record >= 0) {
+            return readImageFromSidecarIndex(record);
+         }
+      }
       if (!coordsToReader_.containsKey(coords)) {
          ReportingUtils.logError("Asked for image at " + coords + " that doesn't exist");
          return null;
@@ -711,12 +964,16 @@ public final class StorageMultipageTiff implements Storage {
 
    @Override
    public Iterable<Coords> getUnorderedImageCoords() {
+      if (sidecarIndex_ != null) {
+         return sidecarIndex_.getCoords();
+      }
       return coordsToReader_.keySet();
    }
 
    @Override
    public boolean hasImage(Coords coords) {
       return coordsToPendingImage_.containsKey(coords) ||
+         (sidecarIndex_ != null && sidecarIndex_.find(coords) >= 0) ||
          coordsToReader_.containsKey(coords);
    }
 
@@ -732,7 +989,18 @@ public final class StorageMultipageTiff implements Storage {
          }
       }
       // For files we read from disk.
-      for (MultipageTiffReader reader : coordsToReader_.values()) {
+      HashSet<MultipageTiffReader> readers = new HashSet<MultipageTiffReader>(
+            coordsToReader_.values());
+      if (sidecarReaders_ != null) {
+         synchronized(sidecarReaders_) {
+            for (MultipageTiffReader reader : sidecarReaders_) {
+               if (reader != null) {
+                  readers.add(reader);
+               }
+            }
+         }
+      }
+      for (MultipageTiffReader reader : readers) {
          try {
             reader.close();
          }
@@ -753,6 +1021,48 @@ public final class StorageMultipageTiff implements Storage {
             SHOULD_GENERATE_METADATA_FILE, shouldGen);
    }
 
+   public static boolean getShouldUseParallelWriters() {
+      return DefaultUserProfile.getInstance().getBoolean(
+            StorageMultipageTiff.class, SHOULD_USE_PARALLEL_WRITERS, false);
+   }
+
+   public static void setShouldUseParallelWriters(boolean shouldUse) {
+      DefaultUserProfile.getInstance().setBoolean(
+            StorageMultipageTiff.class, SHOULD_USE_PARALLEL_WRITERS, shouldUse);
+   }
+
+   public static boolean getShouldUseMemoryMappedReads() {
+      return DefaultUserProfile.getInstance().getBoolean(
+            StorageMultipageTiff.class, SHOULD_USE_MEMORY_MAPPED_READS, false);
+   }
+
+   public static void setShouldUseMemoryMappedReads(boolean shouldUse) {
+      DefaultUserProfile.getInstance().setBoolean(
+            StorageMultipageTiff.class, SHOULD_USE_MEMORY_MAPPED_READS,
+            shouldUse);
+   }
+
+   public static boolean getShouldUseBigTiff() {
+      return DefaultUserProfile.getInstance().getBoolean(
+            StorageMultipageTiff.class, SHOULD_USE_BIGTIFF, false);
+   }
+
+   public static void setShouldUseBigTiff(boolean shouldUse) {
+      DefaultUserProfile.getInstance().setBoolean(
+            StorageMultipageTiff.class, SHOULD_USE_BIGTIFF, shouldUse);
+   }
+
+   public static int getWritingQueueSizeMB() {
+      return DefaultUserProfile.getInstance().getInt(
+            StorageMultipageTiff.class, WRITING_QUEUE_SIZE_MB,
+            DEFAULT_WRITING_QUEUE_SIZE_MB);
+   }
+
+   public static void setWritingQueueSizeMB(int sizeMB) {
+      DefaultUserProfile.getInstance().setInt(
+            StorageMultipageTiff.class, WRITING_QUEUE_SIZE_MB, sizeMB);
+   }
+
    public static boolean getShouldSplitPositions() {
       return DefaultUserProfile.getInstance().getBoolean(
             StorageMultipageTiff.class,
@@ -0,0 +1,295 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Multipage TIFF
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.data.internal.multipagetiff;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.internal.utils.ReportingUtils;
+
+/**
+ * A single writing thread together with the queue of writing tasks that feed
+ * it. Every task is submitted along with the number of bytes it will write;
+ * once the total number of queued-but-unwritten bytes exceeds the lane's
+ * budget, submit() blocks the caller until the writing thread catches up.
+ * This replaces the old approach of polling the size of the executor's queue.
+ *
+ * StorageMultipageTiff either shares one lane between all of its FileSets, or
+ * (if so configured) creates one lane per FileSet so that multiple files can
+ * be written in parallel.
+ */
+public final class WritingLane {
+   private final String name_;
+   private final ThreadPoolExecutor executor_;
+   private final long maxQueuedBytes_;
+
+   // All of the following are guarded by budgetLock_.
+   private final Object budgetLock_ = new Object();
+   private long queuedBytes_ = 0;
+   private int queuedTasks_ = 0;
+   private long peakQueuedBytes_ = 0;
+   private int peakQueuedTasks_ = 0;
+   private long bytesWritten_ = 0;
+   private long tasksCompleted_ = 0;
+   private long blockedNanos_ = 0;
+   private int numTimesBlocked_ = 0;
+
+   private final long startTime_ = System.nanoTime();
+
+   /**
+    * @param name Name of the lane, used for the writing thread and for
+    *        logging.
+    * @param maxQueuedBytes Number of bytes that may be waiting to be written
+    *        before submit() starts blocking. A single task larger than this
+    *        is still accepted, as long as the queue is otherwise empty.
+    */
+   public WritingLane(final String name, long maxQueuedBytes) {
+      name_ = name;
+      maxQueuedBytes_ = Math.max(1, maxQueuedBytes);
+      executor_ = new ThreadPoolExecutor(1, 1, 0, TimeUnit.NANOSECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+               @Override
+               public Thread newThread(Runnable r) {
+                  return new Thread(r, "MultipageTiff writer: " + name);
+               }
+            });
+   }
+
+   public String getName() {
+      return name_;
+   }
+
+   /**
+    * Queue a writing task, blocking if the lane is over its byte budget.
+    * @param task The task to run on the writing thread.
+    * @param numBytes Number of bytes the task will write.
+    */
+   public void submit(final Runnable task, final long numBytes) {
+      acquire(numBytes);
+      try {
+         executor_.execute(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  task.run();
+               }
+               finally {
+                  release(numBytes);
+               }
+            }
+         });
+      }
+      catch (RuntimeException e) {
+         // Task was rejected (e.g. lane already shut down); give back its
+         // share of the budget so nobody blocks on it forever.
+         release(numBytes);
+         throw e;
+      }
+   }
+
+   /**
+    * Block until all tasks submitted before this call have completed.
+    */
+   public void flush() throws InterruptedException, ExecutionException {
+      if (executor_.isShutdown()) {
+         return;
+      }
+      Future<?> f = executor_.submit(new Runnable() {
+         @Override
+         public void run() {
+         }
+      });
+      f.get();
+   }
+
+   /**
+    * Stop accepting new tasks, and wait for all pending ones to finish.
+    */
+   public void shutdownAndWait() throws InterruptedException {
+      if (executor_.isShutdown() && executor_.isTerminated()) {
+         return;
+      }
+      executor_.shutdown();
+      int i = 0;
+      while (!executor_.awaitTermination(4, TimeUnit.SECONDS)) {
+         ReportingUtils.logMessage("Waiting for " + name_ +
+               " to finish writing (" + i + ")...");
+         i++;
+      }
+   }
+
+   public boolean isShutdown() {
+      return executor_.isShutdown();
+   }
+
+   private void acquire(long numBytes) {
+      synchronized (budgetLock_) {
+         if (queuedBytes_ > 0 && queuedBytes_ + numBytes > maxQueuedBytes_) {
+            if (numTimesBlocked_ == 0) {
+               ReportingUtils.logMessage("Warning: " + name_ +
+                     " is behind by " + queuedBytes_ + " bytes (" +
+                     queuedTasks_ + " tasks); waiting for writing to catch up");
+            }
+            numTimesBlocked_++;
+            long blockStart = System.nanoTime();
+            boolean wasInterrupted = false;
+            while (queuedBytes_ > 0 &&
+                  queuedBytes_ + numBytes > maxQueuedBytes_) {
+               try {
+                  budgetLock_.wait();
+               }
+               catch (InterruptedException e) {
+                  // We can't drop data on the floor, so keep waiting, but
+                  // remember to restore the interrupt status afterwards.
+                  wasInterrupted = true;
+               }
+            }
+            blockedNanos_ += System.nanoTime() - blockStart;
+            if (wasInterrupted) {
+               Thread.currentThread().interrupt();
+            }
+         }
+         queuedBytes_ += numBytes;
+         queuedTasks_++;
+         peakQueuedBytes_ = Math.max(peakQueuedBytes_, queuedBytes_);
+         peakQueuedTasks_ = Math.max(peakQueuedTasks_, queuedTasks_);
+      }
+   }
+
+   private void release(long numBytes) {
+      synchronized (budgetLock_) {
+         queuedBytes_ -= numBytes;
+         queuedTasks_--;
+         bytesWritten_ += numBytes;
+         tasksCompleted_++;
+         budgetLock_.notifyAll();
+      }
+   }
+
+   public Stats getStats() {
+      synchronized (budgetLock_) {
+         return new Stats(name_, maxQueuedBytes_, queuedBytes_, queuedTasks_,
+               peakQueuedBytes_, peakQueuedTasks_, bytesWritten_,
+               tasksCompleted_, numTimesBlocked_, blockedNanos_,
+               System.nanoTime() - startTime_);
+      }
+   }
+
+   /**
+    * Snapshot of a lane's throughput and queue depth.
+    */
+   public static final class Stats {
+      private final String name_;
+      private final long maxQueuedBytes_;
+      private final long queuedBytes_;
+      private final int queuedTasks_;
+      private final long peakQueuedBytes_;
+      private final int peakQueuedTasks_;
+      private final long bytesWritten_;
+      private final long tasksCompleted_;
+      private final int numTimesBlocked_;
+      private final long blockedNanos_;
+      private final long elapsedNanos_;
+
+      private Stats(String name, long maxQueuedBytes, long queuedBytes,
+            int queuedTasks, long peakQueuedBytes, int peakQueuedTasks,
+            long bytesWritten, long tasksCompleted, int numTimesBlocked,
+            long blockedNanos, long elapsedNanos) {
+         name_ = name;
+         maxQueuedBytes_ = maxQueuedBytes;
+         queuedBytes_ = queuedBytes;
+         queuedTasks_ = queuedTasks;
+         peakQueuedBytes_ = peakQueuedBytes;
+         peakQueuedTasks_ = peakQueuedTasks;
+         bytesWritten_ = bytesWritten;
+         tasksCompleted_ = tasksCompleted;
+         numTimesBlocked_ = numTimesBlocked;
+         blockedNanos_ = blockedNanos;
+         elapsedNanos_ = elapsedNanos;
+      }
+
+      public String getName() {
+         return name_;
+      }
+
+      public long getMaxQueuedBytes() {
+         return maxQueuedBytes_;
+      }
+
+      public long getQueuedBytes() {
+         return queuedBytes_;
+      }
+
+      public int getQueuedTasks() {
+         return queuedTasks_;
+      }
+
+      public long getPeakQueuedBytes() {
+         return peakQueuedBytes_;
+      }
+
+      public int getPeakQueuedTasks() {
+         return peakQueuedTasks_;
+      }
+
+      public long getBytesWritten() {
+         return bytesWritten_;
+      }
+
+      public long getTasksCompleted() {
+         return tasksCompleted_;
+      }
+
+      /**
+       * Number of times a submitter had to wait for the lane to drain.
+       */
+      public int getNumTimesBlocked() {
+         return numTimesBlocked_;
+      }
+
+      /**
+       * Total time, in milliseconds, that submitters spent waiting.
+       */
+      public double getBlockedMs() {
+         return blockedNanos_ / 1e6;
+      }
+
+      /**
+       * Average throughput since the lane was created, in MB/s.
+       */
+      public double getMegabytesPerSecond() {
+         if (elapsedNanos_ <= 0) {
+            return 0;
+         }
+         return (bytesWritten_ / 1048576.0) / (elapsedNanos_ / 1e9);
+      }
+
+      @Override
+      public String toString() {
+         return String.format("<%s: %d bytes in %d tasks (%.1f MB/s); queue %d bytes / %d tasks (peak %d / %d, limit %d); blocked %d times for %.1f ms>",
+               name_, bytesWritten_, tasksCompleted_, getMegabytesPerSecond(),
+               queuedBytes_, queuedTasks_, peakQueuedBytes_, peakQueuedTasks_,
+               maxQueuedBytes_, numTimesBlocked_, getBlockedMs());
+      }
+   }
+}
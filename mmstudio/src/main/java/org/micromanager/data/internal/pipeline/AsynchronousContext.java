@@ -20,46 +20,134 @@
 
 package org.micromanager.data.internal.pipeline;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
 import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.SummaryMetadata;
 import org.micromanager.internal.utils.ReportingUtils;
 
 public final class AsynchronousContext extends BaseContext {
-   private boolean isFlushed_ = false;
-   private LinkedBlockingQueue<ImageWrapper> inputQueue_ = null;
+   /**
+    * An entry in the input queue, numbered in the order it was inserted.
+    */
+   private static final class QueuedImage {
+      final ImageWrapper wrapper_;
+      final long sequence_;
+
+      QueuedImage(ImageWrapper wrapper, long sequence) {
+         wrapper_ = wrapper;
+         sequence_ = sequence;
+      }
+   }
+
+   /**
+    * A group of consecutive images taken from the input queue, to be
+    * processed by a single call to the processor, or the flush marker.
+    */
+   private static final class Batch {
+      // Sequence number of the first entry in the batch.
+      final long sequence_;
+      final ArrayList<Image> images_ = new ArrayList<Image>();
+      boolean isFlush_ = false;
+      // Images output by the processor while processing this batch; only
+      // used when we have multiple threads.
+      final ArrayList<Image> outputs_ = new ArrayList<Image>();
+
+      Batch(long sequence) {
+         sequence_ = sequence;
+      }
+   }
+
+   /**
+    * Collects the output of a processor for one batch, so that it can be
+    * passed along in order.
+    */
+   private final class BatchContext implements ProcessorContext {
+      private final Batch batch_;
+
+      BatchContext(Batch batch) {
+         batch_ = batch;
+      }
+
+      @Override
+      public void outputImage(Image image) {
+         batch_.outputs_.add(image);
+      }
+
+      @Override
+      public SummaryMetadata getSummaryMetadata() {
+         return AsynchronousContext.this.getSummaryMetadata();
+      }
+   }
+
+   private volatile boolean isFlushed_ = false;
+   private LinkedBlockingQueue<QueuedImage> inputQueue_ = null;
+   private final int queueCapacity_;
+   private final int numThreads_;
+   private final int maxBatchSize_;
+   // Guards nextInputSequence_, so that sequence numbers match queue order.
+   private final Object inputLock_ = new Object();
+   private long nextInputSequence_ = 0;
+   // One permit per batch that may be taken from the queue but not yet
+   // output. Without this limit, workers would keep taking input while one
+   // of them is stuck on an early batch, and the queue depth would no longer
+   // hold back whoever is inserting images.
+   private final Semaphore batchesInFlight_;
+   // Batches that have been processed but are waiting for earlier batches to
+   // finish, so that output order matches input order. Guarded by
+   // outputLock_.
+   private final Object outputLock_ = new Object();
+   private final HashMap<Long, Batch> finishedBatches_ =
+      new HashMap<Long, Batch>();
+   private long nextOutputSequence_ = 0;
 
    public AsynchronousContext(Processor processor,
          Datastore store, DefaultPipeline parent) {
       super(processor, store, parent);
-      inputQueue_ = new LinkedBlockingQueue<ImageWrapper>(1);
-      // Create a new thread to do processing in.
-      new Thread(new Runnable() {
-         @Override
-         public void run() {
-            monitorQueue();
+      queueCapacity_ = Math.max(1, processor.getQueueDepth());
+      inputQueue_ = new LinkedBlockingQueue<QueuedImage>(queueCapacity_);
+      numThreads_ = Math.max(1, Math.min(processor.getMaxThreads(),
+               Runtime.getRuntime().availableProcessors()));
+      batchesInFlight_ = new Semaphore(numThreads_ * queueCapacity_);
+      maxBatchSize_ = Math.max(1, processor.getMaxBatchSize());
+      // Create new threads to do processing in.
+      for (int i = 0; i < numThreads_; ++i) {
+         String name = "Processor context for " + processor_;
+         if (numThreads_ > 1) {
+            name += " (thread " + i + ")";
          }
-      }, "Processor context for " + processor_).start();
+         new Thread(new Runnable() {
+            @Override
+            public void run() {
+               monitorQueue();
+            }
+         }, name).start();
+      }
    }
 
    /**
-    * This method runs in a separate thread, and pulls images from the
+    * This method runs in separate threads, and pulls images from the
     * input queue, to feed into the processor. It only runs when the pipeline
     * is in asynchronous mode; in synchronous mode, the processor is invoked
     * directly by insertImage().
     */
    private void monitorQueue() {
       while (true) {
-         ImageWrapper wrapper = null;
+         Batch batch = null;
          try {
-            wrapper = inputQueue_.poll(1000, TimeUnit.MILLISECONDS);
+            batch = takeBatch();
          }
          catch (InterruptedException e) {
             // Ignore it.
             Thread.currentThread().interrupt();
          }
-         if (wrapper == null) {
+         if (batch == null) {
             // Queue is empty.
             if (isFlushed_) {
                // All done.
@@ -70,43 +158,149 @@ public final class AsynchronousContext extends BaseContext {
                continue;
             }
          }
-         if (wrapper.getImage() == null) {
-            // Flushing the queue; cleanup the processor and pass the empty
-            // wrapper along.
-            processor_.cleanup(this);
-            if (sink_ != null) {
-               sink_.insertImage(wrapper);
-            }
-            isFlushed_ = true;
-            if (flushLatch_ != null) {
-               flushLatch_.countDown();
+         try {
+            if (!batch.isFlush_) {
+               // Non-null images: process them.
+               isFlushed_ = false;
+               processBatch(batch);
             }
          }
+         finally {
+            // Whatever happened, later batches must not wait for this one.
+            finishBatch(batch);
+         }
+      }
+   }
+
+   /**
+    * Take the next image from the input queue, along with any following
+    * images that are already waiting, up to our maximum batch size.
+    * @return The batch, or null if no image became available.
+    */
+   private Batch takeBatch() throws InterruptedException {
+      if (!batchesInFlight_.tryAcquire(1000, TimeUnit.MILLISECONDS)) {
+         // Too much output waiting on an earlier batch.
+         return null;
+      }
+      QueuedImage entry = inputQueue_.poll(1000, TimeUnit.MILLISECONDS);
+      if (entry == null) {
+         batchesInFlight_.release();
+         return null;
+      }
+      Batch batch = new Batch(entry.sequence_);
+      if (entry.wrapper_.getImage() == null) {
+         batch.isFlush_ = true;
+         return batch;
+      }
+      batch.images_.add(entry.wrapper_.getImage());
+      while (batch.images_.size() < maxBatchSize_) {
+         entry = inputQueue_.peek();
+         // Stop at a flush, which must be its own batch, and if another
+         // thread took the next image first, so that the batch stays a
+         // consecutive run of images.
+         if (entry == null || entry.wrapper_.getImage() == null ||
+               entry.sequence_ != batch.sequence_ + batch.images_.size() ||
+               !inputQueue_.remove(entry)) {
+            break;
+         }
+         batch.images_.add(entry.wrapper_.getImage());
+      }
+      return batch;
+   }
+
+   private void processBatch(Batch batch) {
+      // With only one thread, output is already in order, so the processor
+      // can pass images along immediately.
+      ProcessorContext context = this;
+      if (numThreads_ > 1) {
+         context = new BatchContext(batch);
+      }
+      long startTime = System.nanoTime();
+      try {
+         if (batch.images_.size() == 1) {
+            processor_.processImage(batch.images_.get(0), context);
+         }
          else {
-            // Non-null image: process it.
-            isFlushed_ = false;
-            try {
-               processor_.processImage(wrapper.getImage(), this);
+            processor_.processImages(batch.images_, context);
+         }
+      }
+      catch (Exception e) {
+         ReportingUtils.logError(e, "Processor failed to process image");
+         // Pass the exception to our parent.
+         parent_.exceptionOccurred(e);
+      }
+      catch (Error e) {
+         // Keep this thread alive; otherwise, with one thread, nothing would
+         // be left to flush the pipeline.
+         ReportingUtils.logError(e, "Processor failed to process image");
+         parent_.exceptionOccurred(new RuntimeException(e));
+      }
+      recordProcessing(batch.images_.size(), System.nanoTime() - startTime);
+   }
+
+   /**
+    * Pass along the output of the given batch, and of any later batches that
+    * were waiting for it, in order.
+    */
+   private void finishBatch(Batch batch) {
+      synchronized (outputLock_) {
+         finishedBatches_.put(batch.sequence_, batch);
+         Batch next;
+         while ((next = finishedBatches_.remove(nextOutputSequence_)) != null) {
+            nextOutputSequence_ += next.isFlush_ ? 1 : next.images_.size();
+            batchesInFlight_.release();
+            for (Image image : next.outputs_) {
+               outputImage(image);
             }
-            catch (Exception e) {
-               ReportingUtils.logError(e, "Processor failed to process image");
-               // Pass the exception to our parent.
-               parent_.exceptionOccurred(e);
+            if (next.isFlush_) {
+               flush();
             }
          }
       }
    }
 
+   /**
+    * Flushing the queue; cleanup the processor and pass the empty wrapper
+    * along. All earlier images have been processed and output by now.
+    */
+   private void flush() {
+      processor_.cleanup(this);
+      if (sink_ != null) {
+         sink_.insertImage(new ImageWrapper(null));
+      }
+      isFlushed_ = true;
+      if (flushLatch_ != null) {
+         flushLatch_.countDown();
+      }
+   }
+
    /**
     * Process an image. If the input ImageWrapper has a null image, then we
     * flush the pipeline instead, passing the null along to the next context.
     */
    public void insertImage(ImageWrapper wrapper) {
       try {
-         inputQueue_.put(wrapper);
+         synchronized (inputLock_) {
+            inputQueue_.put(new QueuedImage(wrapper, nextInputSequence_++));
+         }
       }
       catch (InterruptedException e) {
          ReportingUtils.logError(e, "Interrupted while passing image along pipeline");
       }
    }
+
+   @Override
+   protected int getQueueSize() {
+      return inputQueue_.size();
+   }
+
+   @Override
+   protected int getQueueCapacity() {
+      return queueCapacity_;
+   }
+
+   @Override
+   protected int getNumThreads() {
+      return numThreads_;
+   }
 }
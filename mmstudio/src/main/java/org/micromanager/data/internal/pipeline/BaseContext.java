@@ -21,10 +21,12 @@
 package org.micromanager.data.internal.pipeline;
 
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.DatastoreFrozenException;
 import org.micromanager.data.DatastoreRewriteException;
 import org.micromanager.data.Image;
+import org.micromanager.data.Pipeline;
 import org.micromanager.data.Processor;
 import org.micromanager.data.ProcessorContext;
 import org.micromanager.data.SummaryMetadata;
@@ -36,6 +38,9 @@ public abstract class BaseContext implements ProcessorContext {
    protected Datastore store_;
    protected DefaultPipeline parent_;
    protected CountDownLatch flushLatch_;
+   private final AtomicLong numImagesProcessed_ = new AtomicLong(0);
+   private final AtomicLong totalProcessingNs_ = new AtomicLong(0);
+   private final AtomicLong maxProcessingNs_ = new AtomicLong(0);
 
    public BaseContext(Processor processor, Datastore store,
          DefaultPipeline parent) {
@@ -105,4 +110,44 @@ public abstract class BaseContext implements ProcessorContext {
    public SummaryMetadata getSummaryMetadata() {
       return store_.getSummaryMetadata();
    }
+
+   /**
+    * Record that a call to our processor processed some number of images,
+    * taking the given amount of time.
+    */
+   protected void recordProcessing(int numImages, long elapsedNs) {
+      numImagesProcessed_.addAndGet(numImages);
+      totalProcessingNs_.addAndGet(elapsedNs);
+      long max = maxProcessingNs_.get();
+      while (elapsedNs > max &&
+            !maxProcessingNs_.compareAndSet(max, elapsedNs)) {
+         max = maxProcessingNs_.get();
+      }
+   }
+
+   /**
+    * Number of images waiting to be processed; 0 for contexts without a
+    * queue.
+    */
+   protected int getQueueSize() {
+      return 0;
+   }
+
+   protected int getQueueCapacity() {
+      return 0;
+   }
+
+   /**
+    * Number of threads that run our processor; 0 for contexts that run it
+    * on the inserting thread.
+    */
+   protected int getNumThreads() {
+      return 0;
+   }
+
+   public Pipeline.StageStats getStats() {
+      return new DefaultStageStats(processor_, numImagesProcessed_.get(),
+            totalProcessingNs_.get(), maxProcessingNs_.get(),
+            getQueueSize(), getQueueCapacity(), getNumThreads());
+   }
 }
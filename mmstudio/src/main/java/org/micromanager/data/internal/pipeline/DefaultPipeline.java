@@ -168,7 +168,22 @@ public final class DefaultPipeline implements Pipeline {
       return processors_;
    }
 
+   @Override
+   public List<Pipeline.StageStats> getStageStats() {
+      ArrayList<Pipeline.StageStats> result = new ArrayList<Pipeline.StageStats>();
+      for (BaseContext context : contexts_) {
+         result.add(context.getStats());
+      }
+      return result;
+   }
+
+   /**
+    * Record an exception thrown by a processor. May be called from several
+    * threads at once, for processors that run on multiple threads.
+    */
    public void exceptionOccurred(Exception e) {
-      exceptions_.add(e);
+      synchronized (exceptions_) {
+         exceptions_.add(e);
+      }
    }
 }
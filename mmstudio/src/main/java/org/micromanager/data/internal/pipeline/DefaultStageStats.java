@@ -0,0 +1,92 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API implementation
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal.pipeline;
+
+import org.micromanager.data.Pipeline;
+import org.micromanager.data.Processor;
+
+/**
+ * Immutable snapshot of the statistics for one context in a pipeline.
+ */
+public final class DefaultStageStats implements Pipeline.StageStats {
+   private final Processor processor_;
+   private final long numImages_;
+   private final long totalNs_;
+   private final long maxNs_;
+   private final int queueSize_;
+   private final int queueCapacity_;
+   private final int numThreads_;
+
+   public DefaultStageStats(Processor processor, long numImages,
+         long totalNs, long maxNs, int queueSize, int queueCapacity,
+         int numThreads) {
+      processor_ = processor;
+      numImages_ = numImages;
+      totalNs_ = totalNs;
+      maxNs_ = maxNs;
+      queueSize_ = queueSize;
+      queueCapacity_ = queueCapacity;
+      numThreads_ = numThreads;
+   }
+
+   @Override
+   public Processor getProcessor() {
+      return processor_;
+   }
+
+   @Override
+   public long getNumImagesProcessed() {
+      return numImages_;
+   }
+
+   @Override
+   public double getMeanLatencyMs() {
+      if (numImages_ == 0) {
+         return 0;
+      }
+      return totalNs_ / 1e6 / numImages_;
+   }
+
+   @Override
+   public double getMaxLatencyMs() {
+      return maxNs_ / 1e6;
+   }
+
+   @Override
+   public int getQueueSize() {
+      return queueSize_;
+   }
+
+   @Override
+   public int getQueueCapacity() {
+      return queueCapacity_;
+   }
+
+   @Override
+   public int getNumThreads() {
+      return numThreads_;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("<%s: %d images, mean %.3fms, max %.3fms, queue %d/%d, %d threads>",
+            processor_, numImages_, getMeanLatencyMs(), getMaxLatencyMs(),
+            queueSize_, queueCapacity_, numThreads_);
+   }
+}
@@ -23,14 +23,16 @@ package org.micromanager.display.internal;
 import com.google.common.eventbus.Subscribe;
 import ij.CompositeImage;
 import ij.ImagePlus;
+import ij.gui.Roi;
 import ij.process.ColorProcessor;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import javax.swing.SwingUtilities;
 import org.micromanager.data.Coords;
 import org.micromanager.data.Datastore;
@@ -67,17 +69,51 @@ import org.micromanager.internal.utils.ReportingUtils;
  *    CanvasDoneDrawingEvent afterwards (to notify that drawing is complete).
  *    Then, if the queue is not empty, it adds an event to the EDT to draw
  *    itself, thus starting the process of drawing new images again.
+ *
+ * Histograms are not calculated on the EDT. Instead, the newest image for
+ * each channel is handed to a worker pool shared by all displays; if a newer
+ * image for the channel arrives before the worker gets to it, the older
+ * image is skipped. The results are handed back to the EDT, which posts the
+ * NewHistogramsEvent (and updates the contrast settings, if autostretch is
+ * on).
  */
 public final class CanvasUpdateQueue {
 
+   private static final int numHistogramThreads_ = Math.max(1,
+         Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+   // Threads that calculate histograms for all displays. At most one job per
+   // channel per display is ever queued, since newer images replace older
+   // ones in their HistogramHistory instead of adding new jobs.
+   private static final ScheduledThreadPoolExecutor histogramExecutor_ =
+      new ScheduledThreadPoolExecutor(numHistogramThreads_,
+            new ThreadFactory() {
+               private int count_ = 0;
+               @Override
+               public synchronized Thread newThread(Runnable r) {
+                  Thread thread = new Thread(r,
+                        "Histogram calculation " + (count_++));
+                  thread.setDaemon(true);
+                  return thread;
+               }
+            });
+
    /**
     * Simple class for tracking our history with respect to calculating
     * histograms for a single channel.
     */
    private static class HistogramHistory {
+      // The most recent histograms; only accessed on the EDT.
       ArrayList<HistogramData> datas_ = null;
+      // Time at which the last calculation was started; only accessed with
+      // the history locked.
       long lastUpdateTime_ = 0;
-      Timer timer_ = null;
+      // Newest image awaiting calculation (and the ROI to use), and whether
+      // a job has been scheduled to calculate it. Only accessed with the
+      // history locked.
+      Image pendingImage_ = null;
+      Roi pendingRoi_ = null;
+      boolean isJobScheduled_ = false;
+      // The remaining fields are only accessed on the EDT.
       boolean needsUpdate_ = true;
       UUID imageUUID_ = null;
       int coordsHash_ = 0;
@@ -219,7 +255,7 @@ public final class CanvasUpdateQueue {
                   }
                   // TODO BUG What if none of the visible channels have an image?
                   if (store.hasImage(coords)) {
-                     Image image = store.getImage(coords);
+                     Image image = stack_.getImage(coords);
                      // TODO That this check was found to be necessary suggests
                      // that datastores have a race condition.
                      if (image != null) {
@@ -232,7 +268,7 @@ public final class CanvasUpdateQueue {
             } // TODO BUG If there is no image, we should draw nothing instead of
             // keeping the previously drawn image
             else if (store.hasImage(lastCoords)) {
-               Image image = store.getImage(lastCoords);
+               Image image = stack_.getImage(lastCoords);
                // TODO That this check was found to be necessary suggests that
                // datastores have a race condition.
                if (image != null) {
@@ -345,143 +381,198 @@ public final class CanvasUpdateQueue {
    /**
     * Determine whether or not to recalculate histogram data for the provided
     * image. If we do need to calculate the histogram, we may need to delay
-    * it until later.
+    * it until later. Either way the calculation happens on
+    * histogramExecutor_. Only called on the EDT.
     */
-   private void scheduleHistogramUpdate(final Image image,
-         final HistogramHistory history) {
-      int channel = image.getCoords().getChannel();
-
+   private void scheduleHistogramUpdate(Image image,
+         HistogramHistory history) {
       DisplaySettings settings = display_.getDisplaySettings();
       Double updateRate = settings.getHistogramUpdateRate();
       if (updateRate == null) {
          // Assume we always update.
          updateRate = 0.0;
       }
+      if (updateRate < 0) {
+         // Do not update.
+         return;
+      }
+      history.needsUpdate_ = false;
+      submitHistogramJob(image, history, (long) (updateRate * 1000));
+   }
 
-      if (updateRate > 0 &&
-            System.currentTimeMillis() - history.lastUpdateTime_ <= updateRate * 1000) {
-         // Calculate histogram sometime in the future. Only if a timer isn't
-         // already running for this channel.
+   /**
+    * Make the provided image the next one to calculate histograms for in
+    * the given channel, and schedule a job to do so if there isn't one
+    * already; otherwise the pending job will pick up this image instead of
+    * the one it was scheduled for. Only called on the EDT.
+    * @param minIntervalMs The job will not start until at least this long
+    *        after the previous calculation for the channel started.
+    */
+   private void submitHistogramJob(Image image,
+         final HistogramHistory history, final long minIntervalMs) {
+      // Copy the ROI, as the user may modify the original while we work.
+      Roi roi = display_.getImagePlus().getRoi();
+      synchronized(history) {
+         history.pendingImage_ = image;
+         history.pendingRoi_ = (roi == null) ? null : (Roi) roi.clone();
+         if (history.isJobScheduled_) {
+            return;
+         }
+         history.isJobScheduled_ = true;
+         scheduleHistogramJob(history, minIntervalMs);
+      }
+   }
+
+   /**
+    * Must be called with the history locked.
+    */
+   private void scheduleHistogramJob(final HistogramHistory history,
+         final long minIntervalMs) {
+      long delay = Math.max(0, history.lastUpdateTime_ + minIntervalMs -
+            System.currentTimeMillis());
+      histogramExecutor_.schedule(new Runnable() {
+         @Override
+         public void run() {
+            runHistogramJob(history, minIntervalMs);
+         }
+      }, delay, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Calculate histograms for the pending image of the given channel, and
+    * hand them back to the EDT. Runs on histogramExecutor_.
+    */
+   private void runHistogramJob(HistogramHistory history,
+         long minIntervalMs) {
+      Image image;
+      Roi roi;
+      synchronized(history) {
+         image = history.pendingImage_;
+         roi = history.pendingRoi_;
+         history.pendingImage_ = null;
+         history.pendingRoi_ = null;
+         history.lastUpdateTime_ = System.currentTimeMillis();
+      }
+      try {
+         if (image != null && !display_.getIsClosed()) {
+            updateHistogram(image, roi, history);
+         }
+      }
+      catch (Exception e) {
+         ReportingUtils.logError(e, "Error calculating histograms");
+      }
+      finally {
          synchronized(history) {
-            if (history.timer_ != null) {
-               // Already a timer, so don't do anything.
-               return;
+            if (history.pendingImage_ != null && !display_.getIsClosed()) {
+               // A newer image arrived while we were working.
+               scheduleHistogramJob(history, minIntervalMs);
+            }
+            else {
+               history.isJobScheduled_ = false;
             }
-            history.timer_ = new Timer(
-                  "Histogram calculation delay for " + channel);
-            TimerTask task = new TimerTask() {
-               @Override
-               public void run() {
-                  updateHistogram(image, history);
-               }
-            };
-            long waitTime = (long) (System.currentTimeMillis() +
-               (updateRate * 1000) - history.lastUpdateTime_);
-            history.timer_.schedule(task, waitTime);
          }
       }
-      else if (updateRate >= 0) {
-         // We either always update, or it's been too long since the last
-         // update, so do it now.
-         updateHistogram(image, history);
+   }
+
+   /**
+    * Generate new HistogramDatas for the provided image, and arrange for a
+    * NewHistogramsEvent to be posted on the EDT. Runs on histogramExecutor_.
+    */
+   private void updateHistogram(final Image image, Roi roi,
+         final HistogramHistory history) {
+      final DisplaySettings settings = display_.getDisplaySettings();
+      final ArrayList<HistogramData> datas = new ArrayList<HistogramData>();
+      for (int i = 0; i < image.getNumComponents(); ++i) {
+         datas.add(ContrastCalculator.calculateHistogramInRoi(
+                  image, roi, i, settings));
       }
-      // Do not update if updateRate < 0   
+      SwingUtilities.invokeLater(new Runnable() {
+         @Override
+         public void run() {
+            if (!display_.getIsClosed()) {
+               applyHistograms(image, datas, history, settings);
+            }
+         }
+      });
    }
 
    /**
-    * Generate new HistogramDatas for the provided image, and post a
-    * NewHistogramsEvent.
+    * Post newly-calculated histograms, and apply them to our contrast
+    * settings if autostretch is on. Only called on the EDT.
     */
-   private void updateHistogram(Image image, HistogramHistory history) {
-      DisplaySettings settings = display_.getDisplaySettings();
+   private void applyHistograms(Image image, ArrayList<HistogramData> datas,
+         HistogramHistory history, DisplaySettings settings) {
       // HACK: if there's no valid channel axis, then use a coordinate of 0.
       int channel = Math.max(0, image.getCoords().getChannel());
+      history.datas_ = datas;
+      history.imageUUID_ = image.getMetadata().getUUID();
+      history.coordsHash_ = image.getCoords().hashCode();
+      history.contrast_ = settings.getSafeContrastSettings(channel, null);
+      display_.postEvent(new NewHistogramsEvent(channel, datas));
       // If autostretch is on, then we need to apply our newly-calculated
       // values to the display contrast settings.
-      boolean shouldUpdate = (settings.getShouldAutostretch() != null &&
-            settings.getShouldAutostretch());
-      Integer[] mins = new Integer[image.getNumComponents()];
-      Integer[] maxes = new Integer[image.getNumComponents()];
-      Double[] gammas = new Double[image.getNumComponents()];
-      synchronized(history) {
-         history.datas_.clear();
-         for (int i = 0; i < image.getNumComponents(); ++i) {
-            int bitDepth = settings.getSafeBitDepthIndex(channel, 0);
-            if (bitDepth == 0) {
-               try {
-                  bitDepth = image.getMetadata().getBitDepth();
-               }
-               catch (NullPointerException e) {
-                  switch (image.getBytesPerPixel()) {
-                     case 1: bitDepth = 8; break;
-                     case 2: bitDepth = 16; break;
-                     case 4: bitDepth = 8; break;
-                  }
-               }
-            }
-            else {
-               // Add 3 to convert from index to power of 2.
-               bitDepth += 3;
-            }
-            // TODO Why a minimum of 256 bins?
-            int binPower = Math.min(8, bitDepth);
-            HistogramData data = ContrastCalculator.calculateHistogramWithSettings(
-                  image, display_.getImagePlus(), i, settings);
-            history.datas_.add(data);
-            if (shouldUpdate) {
-               mins[i] = data.getMinIgnoringOutliers();
-               maxes[i] = data.getMaxIgnoringOutliers();
-               gammas[i] = settings.getSafeContrastGamma(channel, i, 1.0);
-            }
+      if (settings.getShouldAutostretch() == null ||
+            !settings.getShouldAutostretch()) {
+         return;
+      }
+      Integer[] mins = new Integer[datas.size()];
+      Integer[] maxes = new Integer[datas.size()];
+      Double[] gammas = new Double[datas.size()];
+      for (int i = 0; i < datas.size(); ++i) {
+         mins[i] = datas.get(i).getMinIgnoringOutliers();
+         maxes[i] = datas.get(i).getMaxIgnoringOutliers();
+         gammas[i] = settings.getSafeContrastGamma(channel, i, 1.0);
+      }
+      // Check to see if we actually changed anything: there were no
+      // contrast settings previously, or any of the old contrast values
+      // doesn't match a new contrast value. Compare against the current
+      // settings, as they may have changed while we were calculating.
+      settings = display_.getDisplaySettings();
+      boolean didChange;
+      DisplaySettings.ContrastSettings oldContrast = settings.getSafeContrastSettings(channel, null);
+      if (oldContrast == null) {
+         didChange = true;
+      }
+      else {
+         Integer[] oldMins = oldContrast.getContrastMins();
+         Integer[] oldMaxes = oldContrast.getContrastMaxes();
+         Double[] oldGammas = oldContrast.getContrastGammas();
+         if (oldMins == null || oldMaxes == null || oldGammas == null) {
+            didChange = true;
          }
-         history.imageUUID_ = image.getMetadata().getUUID();
-         history.coordsHash_ = image.getCoords().hashCode();
-         history.needsUpdate_ = false;
-         history.lastUpdateTime_ = System.currentTimeMillis();
-         history.contrast_ = settings.getSafeContrastSettings(channel, null);
-         display_.postEvent(new NewHistogramsEvent(channel, history.datas_));
-         if (shouldUpdate) {
-            // Check to see if we actually changed anything: there were no
-            // contrast settings previously, or any of the old contrast values
-            // doesn't match a new contrast value.
-            boolean didChange;
-            DisplaySettings.ContrastSettings oldContrast = settings.getSafeContrastSettings(channel, null);
-            if (oldContrast == null) {
-               didChange = true;
-            }
-            else {
-               Integer[] oldMins = oldContrast.getContrastMins();
-               Integer[] oldMaxes = oldContrast.getContrastMaxes();
-               Double[] oldGammas = oldContrast.getContrastGammas();
-               if (oldMins == null || oldMaxes == null || oldGammas == null) {
-                  didChange = true;
-               }
-               else {
-                  didChange = (!Arrays.equals(mins, oldMins) ||
-                        !Arrays.equals(maxes, oldMaxes) ||
-                        !Arrays.equals(gammas, oldGammas));
-               }
-            }
-            if (didChange) {
-               DisplaySettings.DisplaySettingsBuilder builder = settings.copy();
-               builder.safeUpdateContrastSettings(
-                     new DefaultDisplaySettings.DefaultContrastSettings(
-                        mins, maxes, gammas, true),
-                     channel);
-               amSettingDisplaySettings_ = true;
-               DisplaySettings newSettings = builder.build();
-               // Normally calling setDisplaySettings forces a redraw, but
-               // we're about to draw the display anyway.
-               display_.setDisplaySettings(newSettings, false);
-               // And post a contrast event so linked displays also get updated.
-               display_.postEvent(new ContrastEvent(channel,
-                        display_.getDatastore().getSummaryMetadata().getSafeChannelName(channel),
-                        newSettings));
-               amSettingDisplaySettings_ = false;
-            }
+         else {
+            didChange = (!Arrays.equals(mins, oldMins) ||
+                  !Arrays.equals(maxes, oldMaxes) ||
+                  !Arrays.equals(gammas, oldGammas));
+         }
+      }
+      if (didChange) {
+         DisplaySettings.DisplaySettingsBuilder builder = settings.copy();
+         builder.safeUpdateContrastSettings(
+               new DefaultDisplaySettings.DefaultContrastSettings(
+                  mins, maxes, gammas, true),
+               channel);
+         amSettingDisplaySettings_ = true;
+         DisplaySettings newSettings = builder.build();
+         history.contrast_ = newSettings.getSafeContrastSettings(channel, null);
+         // We redraw below rather than letting setDisplaySettings() do it,
+         // as we need the LUTs to be reapplied.
+         display_.setDisplaySettings(newSettings, false);
+         // And post a contrast event so linked displays also get updated.
+         display_.postEvent(new ContrastEvent(channel,
+                  display_.getDatastore().getSummaryMetadata().getSafeChannelName(channel),
+                  newSettings));
+         amSettingDisplaySettings_ = false;
+         // The image was drawn with the old contrast settings. If a newer
+         // image is waiting to be drawn, it will get the new ones anyway
+         // (with autostretch on, showImage() reapplies the LUTs), so only
+         // redraw when nothing else is coming.
+         if (coordsQueue_.isEmpty()) {
+            reapplyLUTs();
+         }
+         else {
+            shouldReapplyLUTs_ = true;
          }
-         // Allow future jobs to be scheduled.
-         history.timer_ = null;
       }
    }
 
@@ -624,9 +715,10 @@ public final class CanvasUpdateQueue {
          coords = coords.copy().channel(channel).build();
          Datastore store = display_.getDatastore();
          if (store.hasImage(coords)) {
-            // This posts the new histograms.
-            updateHistogram(store.getImage(coords), history);
+            // This eventually posts the new histograms.
             channelToHistory_.put(channel, history);
+            history.needsUpdate_ = false;
+            submitHistogramJob(store.getImage(coords), history, 0);
          }
       }
    }
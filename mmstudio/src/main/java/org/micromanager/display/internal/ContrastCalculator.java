@@ -23,6 +23,14 @@ package org.micromanager.display.internal;
 import ij.ImagePlus;
 import ij.gui.Roi;
 import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import org.micromanager.data.Image;
 import org.micromanager.display.DisplaySettings;
 import org.micromanager.display.HistogramData;
@@ -31,6 +39,33 @@ import org.micromanager.display.HistogramData;
  * This class calculates histograms and contrast settings for images.
  */
 public final class ContrastCalculator {
+   // Images with fewer pixels than this (per stripe) are not worth splitting
+   // across threads; for them the cost of merging histograms dominates.
+   private static final int MIN_PIXELS_PER_STRIPE = 512 * 512;
+   private static final int numStripeThreads_ = Math.max(1,
+         Runtime.getRuntime().availableProcessors() - 1);
+   // Threads that calculate histograms over stripes of rows of large images.
+   // Stripe jobs never wait on other jobs, so when the queue is full it is
+   // safe for the calling thread to do the work itself.
+   private static final ThreadPoolExecutor stripeExecutor_ =
+      new ThreadPoolExecutor(numStripeThreads_, numStripeThreads_,
+            30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(4 * numStripeThreads_),
+            new ThreadFactory() {
+               private int count_ = 0;
+               @Override
+               public synchronized Thread newThread(Runnable r) {
+                  Thread thread = new Thread(r,
+                        "Histogram stripe calculation " + (count_++));
+                  thread.setDaemon(true);
+                  return thread;
+               }
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+   static {
+      stripeExecutor_.allowCoreThreadTimeOut(true);
+   }
+
 
    /**
     * This class just encapsulates necessary state for doing the calculations.
@@ -56,6 +91,8 @@ public final class ContrastCalculator {
       private final int depthPower_;
       private final boolean shouldCalcStdDev_;
       private final boolean shouldScaleWithROI_;
+      // Largest number of stripes to split the image into.
+      private final int maxStripes_;
 
       private int minVal_; // Min value in ROI
       private int maxVal_; // Min value in ROI
@@ -63,9 +100,10 @@ public final class ContrastCalculator {
       private int numPixels_; // Number of pixels that are not out of range
       private int numAllPixels_; // Number of pixels in the ROI
 
-      public InternalCalculator(Image image, ImagePlus plus, int component,
+      public InternalCalculator(Image image, Roi roi, int component,
             int binPower, int depthPower, double extremaPercentage,
-            boolean shouldCalcStdDev, boolean shouldScaleWithROI) {
+            boolean shouldCalcStdDev, boolean shouldScaleWithROI,
+            int maxStripes) {
          width_ = image.getWidth();
          height_ = image.getHeight();
          bytesPerPixel_ = image.getBytesPerPixel();
@@ -75,6 +113,7 @@ public final class ContrastCalculator {
          extremaPercentage_ = extremaPercentage;
          shouldCalcStdDev_ = shouldCalcStdDev;
          shouldScaleWithROI_ = shouldScaleWithROI;
+         maxStripes_ = maxStripes;
 
          minVal_ = Integer.MAX_VALUE;
          maxVal_ = Integer.MIN_VALUE;
@@ -116,20 +155,14 @@ public final class ContrastCalculator {
          // Get ROI information. This consists of a rectangle containing the
          // ROI, and then, for non-rectangular ROIs, a pixel mask (fortunately
          // not a *bit* mask though; each byte is one pixel).
-         if (plus != null && shouldScaleWithROI_) {
-            if (plus.getMask() != null) {
-               maskPixels_ = (byte[]) (plus.getMask().getPixels());
+         if (roi != null && shouldScaleWithROI_) {
+            if (roi.getMask() != null) {
+               maskPixels_ = (byte[]) (roi.getMask().getPixels());
             }
             else {
                maskPixels_ = null;
             }
-            Roi roi = plus.getRoi();
-            if (roi != null) {
-               roiRect_ = roi.getBounds();
-            }
-            else {
-               roiRect_ = null;
-            }
+            roiRect_ = roi.getBounds();
          }
          else {
             maskPixels_ = null;
@@ -352,12 +385,67 @@ public final class ContrastCalculator {
          }
       }
 
+      /**
+       * Large images are split into stripes of rows, each of which is
+       * histogrammed separately (one on this thread, the rest on
+       * stripeExecutor_), and the stripe histograms are then summed.
+       */
+      private void calculate16BitSingleComponent(final short[] pixels) {
+         int numStripes = Math.min(maxStripes_,
+               numAllPixels_ / MIN_PIXELS_PER_STRIPE);
+         numStripes = Math.min(numStripes, yStop_ - yStart_);
+         if (numStripes <= 1) {
+            sumVal_ += calculate16BitRows(pixels, yStart_, yStop_,
+                  histogram_);
+            return;
+         }
+         int rowsPerStripe = (yStop_ - yStart_ + numStripes - 1) / numStripes;
+         ArrayList<int[]> stripeHistograms = new ArrayList<int[]>();
+         ArrayList<Future<Long>> stripeSums = new ArrayList<Future<Long>>();
+         for (int i = 1; i < numStripes; ++i) {
+            final int stripeStart = yStart_ + i * rowsPerStripe;
+            final int stripeStop = Math.min(yStop_,
+                  stripeStart + rowsPerStripe);
+            final int[] histogram = new int[histogram_.length];
+            stripeHistograms.add(histogram);
+            stripeSums.add(stripeExecutor_.submit(new Callable<Long>() {
+               @Override
+               public Long call() {
+                  return calculate16BitRows(pixels, stripeStart, stripeStop,
+                        histogram);
+               }
+            }));
+         }
+         sumVal_ += calculate16BitRows(pixels, yStart_,
+               yStart_ + rowsPerStripe, histogram_);
+         try {
+            for (int i = 0; i < stripeSums.size(); ++i) {
+               sumVal_ += stripeSums.get(i).get();
+               int[] histogram = stripeHistograms.get(i);
+               for (int j = 0; j < histogram.length; ++j) {
+                  histogram_[j] += histogram[j];
+               }
+            }
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted calculating histogram", e);
+         }
+         catch (ExecutionException e) {
+            throw new RuntimeException("Error calculating histogram", e);
+         }
+      }
+
       /**
        * HACK: completely identical to calculate8Bit except for the type of the
-       * pixels array and the unsigned conversion mask.
+       * pixels array, the unsigned conversion mask, and that the rows to
+       * use and histogram to fill are parameters.
+       * @return The sum of the pixel values in the rows.
        */
-      private void calculate16BitSingleComponent(short[] pixels) {
-         for (int y = yStart_; y < yStop_; ++y) {
+      private long calculate16BitRows(short[] pixels, int yStart, int yStop,
+            int[] histogram) {
+         long sum = 0;
+         for (int y = yStart; y < yStop; ++y) {
             int base = y * width_;
             for (int x = xStart_; x < xStop_; ++x) {
                int index = base + x;
@@ -366,10 +454,11 @@ public final class ContrastCalculator {
                // bit and show as negative.
                // This conversion logic is copied from ImageUtils.unsignedValue
                int pixelVal = ((int) pixels[index]) & 0x0000ffff;
-               histogram_[pixelVal / binSize_]++;
-               sumVal_ += pixelVal;
+               histogram[pixelVal / binSize_]++;
+               sum += pixelVal;
             }
          }
+         return sum;
       }
 
       /**
@@ -505,8 +594,23 @@ public final class ContrastCalculator {
    public static HistogramData calculateHistogram(Image image,
          ImagePlus plus, int component, int binPower, int depthPower,
          double extremaPercentage, boolean shouldCalcStdDev, boolean shouldScaleWithROI) {
-      return new InternalCalculator(image, plus, component, binPower,
-            depthPower, extremaPercentage, shouldCalcStdDev, shouldScaleWithROI).calculate();
+      Roi roi = (plus == null) ? null : plus.getRoi();
+      return new InternalCalculator(image, roi, component, binPower,
+            depthPower, extremaPercentage, shouldCalcStdDev, shouldScaleWithROI,
+            numStripeThreads_ + 1).calculate();
+   }
+
+   /**
+    * As calculateHistogram(), but with the ROI given directly and a limit on
+    * the number of stripes that large images are split into. Used for
+    * testing; a maxStripes of 1 always calculates on the calling thread.
+    */
+   static HistogramData calculateHistogram(Image image, Roi roi,
+         int component, int binPower, int depthPower,
+         double extremaPercentage, boolean shouldCalcStdDev, int maxStripes) {
+      return new InternalCalculator(image, roi, component, binPower,
+            depthPower, extremaPercentage, shouldCalcStdDev, true,
+            maxStripes).calculate();
    }
 
    /**
@@ -515,6 +619,19 @@ public final class ContrastCalculator {
     */
    public static HistogramData calculateHistogramWithSettings(Image image,
          ImagePlus plus, int component, DisplaySettings settings) {
+      Roi roi = (plus == null) ? null : plus.getRoi();
+      return calculateHistogramInRoi(image, roi, component, settings);
+   }
+
+   /**
+    * As calculateHistogramWithSettings(), but using the provided ROI rather
+    * than that of an ImagePlus. Since the ImagePlus's ROI may be changed on
+    * the EDT at any time, callers on other threads should pass a copy of it.
+    * @param roi ROI to restrict calculations to (if the settings say to
+    *        scale with the ROI), or null to use the entire image.
+    */
+   public static HistogramData calculateHistogramInRoi(Image image, Roi roi,
+         int component, DisplaySettings settings) {
       // We span the full allowed intensity values.
       int bitDepth = 0;
       try {
@@ -541,7 +658,8 @@ public final class ContrastCalculator {
       }
       // We use the bit depth as the bin power, so that each individual
       // intensity gets its own bin.
-      return calculateHistogram(image, plus, component, bitDepth, bitDepth,
-            percentage, shouldStdDev, shouldScaleWithROI);
+      return new InternalCalculator(image, roi, component, bitDepth,
+            bitDepth, percentage, shouldStdDev, shouldScaleWithROI,
+            numStripeThreads_ + 1).calculate();
    }
 }
@@ -0,0 +1,398 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Display implementation
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.display.internal;
+
+import com.google.common.eventbus.Subscribe;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.DatastoreClearedEvent;
+import org.micromanager.data.Image;
+import org.micromanager.data.ImageDeletedEvent;
+import org.micromanager.data.ImageOverwrittenEvent;
+import org.micromanager.data.Storage;
+import org.micromanager.data.internal.DefaultDatastore;
+import org.micromanager.data.internal.StorageChunked;
+import org.micromanager.data.internal.StorageSinglePlaneTiffSeries;
+import org.micromanager.data.internal.multipagetiff.StorageMultipageTiff;
+import org.micromanager.internal.utils.ReportingUtils;
+
+/**
+ * This class sits between a display and a disk-backed Datastore, so that
+ * scrolling or animating through the dataset doesn't require reading (and
+ * parsing the metadata of) an image from disk on the EDT for every frame.
+ * Recently-displayed images are kept in a least-recently-used cache with a
+ * limited size in bytes, shared by all displays, and each time the displayed
+ * time point or Z slice changes, the next few planes in the direction of
+ * travel (for all channels) are loaded on a background thread.
+ *
+ * For Datastores whose images are already in RAM, all requests are simply
+ * passed through to the Datastore.
+ */
+final class DisplayImageCache {
+   // Number of planes ahead of the current one to load.
+   private static final int NUM_PREFETCH_PLANES = 4;
+   // Limit on the size of the images cached for all displays together.
+   private static final long MAX_BYTES = Math.min(256L * 1024 * 1024,
+         Runtime.getRuntime().maxMemory() / 8);
+
+   /**
+    * Key of a cached image: the cache it belongs to and its coords.
+    */
+   private static final class Key {
+      private final DisplayImageCache cache_;
+      private final Coords coords_;
+
+      Key(DisplayImageCache cache, Coords coords) {
+         cache_ = cache;
+         coords_ = coords;
+      }
+
+      @Override
+      public boolean equals(Object other) {
+         if (!(other instanceof Key)) {
+            return false;
+         }
+         Key key = (Key) other;
+         return cache_ == key.cache_ && coords_.equals(key.coords_);
+      }
+
+      @Override
+      public int hashCode() {
+         return 31 * System.identityHashCode(cache_) + coords_.hashCode();
+      }
+   }
+
+   // Images of all caches, in access order, so the first entry is the least
+   // recently used. Both fields are guarded by cachedImages_'s lock, which
+   // may be taken while holding a cache's own lock but not the other way
+   // around.
+   private static final LinkedHashMap<Key, Image> cachedImages_ =
+      new LinkedHashMap<Key, Image>(16, 0.75f, true);
+   private static long numCachedBytes_ = 0;
+
+   // Threads that load images for all displays. Each cache has at most one
+   // job running at a time.
+   private static final ThreadPoolExecutor prefetchExecutor_ =
+      new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+               private int count_ = 0;
+               @Override
+               public synchronized Thread newThread(Runnable r) {
+                  Thread thread = new Thread(r,
+                        "Display image prefetch " + (count_++));
+                  thread.setDaemon(true);
+                  return thread;
+               }
+            });
+   static {
+      prefetchExecutor_.allowCoreThreadTimeOut(true);
+   }
+
+   private final Datastore store_;
+   private final boolean isEnabled_;
+   // The remaining fields are guarded by this object's lock.
+   private final LinkedList<Coords> prefetchQueue_;
+   private boolean isPrefetching_ = false;
+   // Coords (without the channel axis) of the last requested image.
+   private Coords lastPlane_ = null;
+   private boolean isClosed_ = false;
+   private final Runnable prefetcher_;
+   // Counts overwrites, deletions and clears, so that an image loaded while
+   // its coords changed is not cached. changedCoords_ holds the count as of
+   // the last change at each coords, and lastClear_ as of the last clear.
+   private long numChanges_ = 0;
+   private final HashMap<Coords, Long> changedCoords_ =
+      new HashMap<Coords, Long>();
+   private long lastClear_ = 0;
+
+   public DisplayImageCache(Datastore store) {
+      store_ = store;
+      isEnabled_ = isDiskBacked(store);
+      prefetchQueue_ = new LinkedList<Coords>();
+      prefetcher_ = new Runnable() {
+         @Override
+         public void run() {
+            prefetch();
+         }
+      };
+      if (isEnabled_) {
+         store_.registerForEvents(this);
+      }
+   }
+
+   private static boolean isDiskBacked(Datastore store) {
+      if (!(store instanceof DefaultDatastore)) {
+         return false;
+      }
+      Storage storage = ((DefaultDatastore) store).getStorage();
+      return (storage instanceof StorageMultipageTiff ||
+            storage instanceof StorageSinglePlaneTiffSeries ||
+            storage instanceof StorageChunked);
+   }
+
+   public boolean hasImage(Coords coords) {
+      if (isEnabled_) {
+         synchronized(cachedImages_) {
+            if (cachedImages_.containsKey(new Key(this, coords))) {
+               return true;
+            }
+         }
+      }
+      return store_.hasImage(coords);
+   }
+
+   /**
+    * Retrieve the image at the given coords, from the cache if possible, and
+    * start loading the images that are likely to be asked for next.
+    * @return The image, or null if the Datastore has no image at those
+    *         coords.
+    */
+   public Image getImage(Coords coords) {
+      if (!isEnabled_) {
+         return store_.getImage(coords);
+      }
+      Image result;
+      synchronized(cachedImages_) {
+         result = cachedImages_.get(new Key(this, coords));
+      }
+      if (result == null) {
+         long generation = getGeneration(coords);
+         result = store_.getImage(coords);
+         if (result != null) {
+            addImage(coords, result, generation);
+         }
+      }
+      schedulePrefetch(coords);
+      return result;
+   }
+
+   /**
+    * Return a value that changes whenever the image at the given coords is
+    * overwritten or deleted, or the Datastore is cleared.
+    */
+   private synchronized long getGeneration(Coords coords) {
+      Long changed = changedCoords_.get(coords);
+      return changed == null ? lastClear_ : changed;
+   }
+
+   private synchronized void markChanged(Coords coords) {
+      changedCoords_.put(coords, ++numChanges_);
+   }
+
+   /**
+    * Cache an image, unless its coords have changed since the given
+    * generation (from getGeneration()), in which case it may be out of date.
+    */
+   private synchronized void addImage(Coords coords, Image image,
+         long generation) {
+      if (isClosed_ || getGeneration(coords) != generation) {
+         return;
+      }
+      synchronized(cachedImages_) {
+         Image prior = cachedImages_.put(new Key(this, coords), image);
+         if (prior != null) {
+            numCachedBytes_ -= getNumBytes(prior);
+         }
+         numCachedBytes_ += getNumBytes(image);
+         // Evict least-recently-used images of any display, but never the
+         // one just added.
+         Iterator<Image> iter = cachedImages_.values().iterator();
+         while (numCachedBytes_ > MAX_BYTES && cachedImages_.size() > 1) {
+            numCachedBytes_ -= getNumBytes(iter.next());
+            iter.remove();
+         }
+      }
+   }
+
+   private static long getNumBytes(Image image) {
+      return (long) image.getWidth() * image.getHeight() *
+         image.getBytesPerPixel();
+   }
+
+   private void removeImage(Coords coords) {
+      synchronized(cachedImages_) {
+         Image prior = cachedImages_.remove(new Key(this, coords));
+         if (prior != null) {
+            numCachedBytes_ -= getNumBytes(prior);
+         }
+      }
+   }
+
+   /**
+    * Remove all of this cache's images from the shared map.
+    */
+   private void removeAllImages() {
+      synchronized(cachedImages_) {
+         Iterator<Map.Entry<Key, Image>> iter =
+            cachedImages_.entrySet().iterator();
+         while (iter.hasNext()) {
+            Map.Entry<Key, Image> entry = iter.next();
+            if (entry.getKey().cache_ == this) {
+               numCachedBytes_ -= getNumBytes(entry.getValue());
+               iter.remove();
+            }
+         }
+      }
+   }
+
+   /**
+    * If the requested plane differs from the last one, queue up the next
+    * planes in the same direction, replacing any planes that haven't been
+    * loaded yet. When the direction is unknown (e.g. for the first image),
+    * assume forward in time, as for animations.
+    */
+   private synchronized void schedulePrefetch(Coords coords) {
+      Coords plane = coords.copy().removeAxis(Coords.CHANNEL).build();
+      if (isClosed_ || plane.equals(lastPlane_)) {
+         return;
+      }
+      int timeStep = 0;
+      int zStep = 0;
+      if (lastPlane_ != null) {
+         timeStep = Integer.signum(plane.getTime() - lastPlane_.getTime());
+         zStep = Integer.signum(plane.getZ() - lastPlane_.getZ());
+      }
+      lastPlane_ = plane;
+      if (timeStep == 0 && zStep == 0) {
+         if (store_.getAxisLength(Coords.TIME) > 1) {
+            timeStep = 1;
+         }
+         else if (store_.getAxisLength(Coords.Z) > 1) {
+            zStep = 1;
+         }
+      }
+      if ((timeStep != 0 && coords.getTime() < 0) ||
+            (zStep != 0 && coords.getZ() < 0) ||
+            (timeStep == 0 && zStep == 0)) {
+         return;
+      }
+      prefetchQueue_.clear();
+      int numChannels = Math.max(1, store_.getAxisLength(Coords.CHANNEL));
+      for (int i = 1; i <= NUM_PREFETCH_PLANES; ++i) {
+         Coords.CoordsBuilder builder = coords.copy();
+         if (timeStep != 0) {
+            builder.time(wrapIndex(coords.getTime() + i * timeStep,
+                     Coords.TIME));
+         }
+         if (zStep != 0) {
+            builder.z(wrapIndex(coords.getZ() + i * zStep, Coords.Z));
+         }
+         if (coords.getChannel() < 0) {
+            prefetchQueue_.add(builder.build());
+            continue;
+         }
+         for (int channel = 0; channel < numChannels; ++channel) {
+            prefetchQueue_.add(builder.channel(channel).build());
+         }
+      }
+      if (!isPrefetching_) {
+         isPrefetching_ = true;
+         prefetchExecutor_.execute(prefetcher_);
+      }
+   }
+
+   /**
+    * Animations loop, so positions past the end of an axis wrap around.
+    */
+   private int wrapIndex(int index, String axis) {
+      int length = Math.max(1, store_.getAxisLength(axis));
+      return ((index % length) + length) % length;
+   }
+
+   /**
+    * Load queued images until the queue is empty. Runs on prefetchExecutor_.
+    */
+   private void prefetch() {
+      while (true) {
+         Coords coords;
+         synchronized(this) {
+            if (isClosed_ || prefetchQueue_.isEmpty()) {
+               isPrefetching_ = false;
+               return;
+            }
+            coords = prefetchQueue_.removeFirst();
+         }
+         synchronized(cachedImages_) {
+            if (cachedImages_.containsKey(new Key(this, coords))) {
+               continue;
+            }
+         }
+         try {
+            if (store_.hasImage(coords)) {
+               long generation = getGeneration(coords);
+               Image image = store_.getImage(coords);
+               if (image != null) {
+                  addImage(coords, image, generation);
+               }
+            }
+         }
+         catch (Exception e) {
+            ReportingUtils.logError(e, "Error prefetching image at " + coords);
+         }
+      }
+   }
+
+   @Subscribe
+   public void onImageOverwritten(ImageOverwrittenEvent event) {
+      Coords coords = event.getNewImage().getCoords();
+      markChanged(coords);
+      removeImage(coords);
+   }
+
+   @Subscribe
+   public void onImageDeleted(ImageDeletedEvent event) {
+      Coords coords = event.getImage().getCoords();
+      markChanged(coords);
+      removeImage(coords);
+   }
+
+   @Subscribe
+   public void onDatastoreCleared(DatastoreClearedEvent event) {
+      synchronized(this) {
+         prefetchQueue_.clear();
+         changedCoords_.clear();
+         lastClear_ = ++numChanges_;
+      }
+      removeAllImages();
+   }
+
+   /**
+    * Release all cached images and stop prefetching.
+    */
+   public void close() {
+      synchronized(this) {
+         isClosed_ = true;
+         prefetchQueue_.clear();
+      }
+      removeAllImages();
+      if (isEnabled_) {
+         store_.unregisterForEvents(this);
+      }
+   }
+}
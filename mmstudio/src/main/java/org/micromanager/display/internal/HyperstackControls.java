@@ -35,12 +35,14 @@ import net.miginfocom.swing.MigLayout;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Image;
 import org.micromanager.data.Metadata;
+import org.micromanager.data.internal.DefaultDatastore;
 import org.micromanager.data.internal.IncomingImageEvent;
 import org.micromanager.data.internal.NewImageEvent;
 import org.micromanager.display.DisplayWindow;
 import org.micromanager.display.PixelsSetEvent;
 import org.micromanager.display.internal.events.CanvasDrawCompleteEvent;
 import org.micromanager.display.internal.events.StatusEvent;
+import org.micromanager.internal.utils.PrioritizedEventBus;
 import org.micromanager.internal.utils.ReportingUtils;
 
 /**
@@ -109,7 +111,15 @@ public final class HyperstackControls extends JPanel {
 
       scrollerPanel_ = new ScrollerPanel(store_, display_);
       scrollerPanel_.startUpdateThread();
-      store_.registerForEvents(scrollerPanel_);
+      if (store_ instanceof DefaultDatastore) {
+         // The scrollers only need to track the newest image.
+         ((DefaultDatastore) store_).registerForEvents(scrollerPanel_,
+               PrioritizedEventBus.DEFAULT_PRIORITY,
+               PrioritizedEventBus.Delivery.ASYNC_COALESCING);
+      }
+      else {
+         store_.registerForEvents(scrollerPanel_);
+      }
       display_.registerForEvents(scrollerPanel_);
       add(scrollerPanel_, "span, growx, shrinkx, wrap 0px");
    }
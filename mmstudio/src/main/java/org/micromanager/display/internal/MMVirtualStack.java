@@ -20,11 +20,13 @@
 
 package org.micromanager.display.internal;
 
+import com.google.common.base.Suppliers;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import ij.CompositeImage;
 import ij.ImagePlus;
 import ij.process.ImageProcessor;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import org.micromanager.Studio;
@@ -53,6 +55,7 @@ public final class MMVirtualStack extends ij.VirtualStack {
    private Coords curCoords_;
    private final HashMap<Integer, Image> channelToLastValidImage_;
    private final Studio studio_;
+   private final DisplayImageCache cache_;
 
    public MMVirtualStack(Studio studio, Datastore store, EventBus displayBus,
          ImagePlus plus) {
@@ -63,6 +66,7 @@ public final class MMVirtualStack extends ij.VirtualStack {
       displayBus_.register(this);
       curCoords_ = new DefaultCoords.Builder().build();
       channelToLastValidImage_ = new HashMap<Integer, Image>();
+      cache_ = new DisplayImageCache(store);
    }
 
    /**
@@ -132,10 +136,10 @@ public final class MMVirtualStack extends ij.VirtualStack {
       Image result = null;
       Coords coords = mapFlatIndexToCoords(flatIndex);
       int channel = coords.getChannel();
-      if (store_.hasImage(coords)) {
-         result = store_.getImage(coords);
+      if (cache_.hasImage(coords)) {
+         result = cache_.getImage(coords);
       }
-      else {
+      if (result == null) {
          // HACK: ImageJ may ask us for images that aren't available yet,
          // for example if a draw attempt happens in-between images for a
          // multichannel Z-stack. For now, we return the most recent image
@@ -159,6 +163,15 @@ public final class MMVirtualStack extends ij.VirtualStack {
       return result;
    }
 
+   /**
+    * Retrieve the image at the given coords, using our cache of images for
+    * disk-backed datastores.
+    * @return The image, or null if there is no image at those coords.
+    */
+   public Image getImage(Coords coords) {
+      return cache_.getImage(coords);
+   }
+
    /**
     * Generate an image of all zeros that matches the width, height, and
     * bit depth of an existing image in the datastore.
@@ -173,27 +186,16 @@ public final class MMVirtualStack extends ij.VirtualStack {
       int height = tmp.getHeight();
       int bytesPerPixel = tmp.getBytesPerPixel();
       int numComponents = tmp.getNumComponents();
-      Object rawPixels = tmp.getRawPixels();
-      // Replace rawPixels with an appropriately-sized array of the right
-      // datatype.
-      int size = width * height * numComponents;
-      if (rawPixels instanceof byte[]) {
-         rawPixels = new byte[size];
-         for (int i = 0; i < size; ++i) {
-            ((byte[]) rawPixels)[i] = 0;
-         }
-      }
-      else if (rawPixels instanceof short[]) {
-         rawPixels = new short[size];
-         for (int i = 0; i < size; ++i) {
-            ((short[]) rawPixels)[i] = 0;
-         }
-      }
-      else {
+      if (bytesPerPixel / numComponents > 2) {
          studio_.logs().logError("Unrecognized datatype for image; can't generate new dummy image.");
+         return null;
       }
-      return new DefaultImage(rawPixels, width, height, bytesPerPixel,
-            numComponents, pos, new DefaultMetadata.Builder().build());
+      // A new buffer is already all zeros, so there's no need to copy and
+      // clear the pixels of the image we based this on.
+      return new DefaultImage(
+            ByteBuffer.allocate(width * height * bytesPerPixel),
+            width, height, bytesPerPixel, numComponents, pos,
+            Suppliers.ofInstance(new DefaultMetadata.Builder().build()));
    }
 
    /**
@@ -345,6 +347,11 @@ public final class MMVirtualStack extends ij.VirtualStack {
       plus_ = event.getImagePlus();
    }
 
+   @Subscribe
+   public void onDisplayDestroyed(DisplayDestroyedEvent event) {
+      cache_.close();
+   }
+
    // TODO Remove this after removing sole use in Projector
    public Datastore getDatastore() {
       return store_;
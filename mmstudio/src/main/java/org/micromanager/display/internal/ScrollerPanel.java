@@ -42,6 +42,7 @@ import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
 import javax.swing.JScrollBar;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import javax.swing.event.MouseInputAdapter;
 import net.miginfocom.swing.MigLayout;
 import org.micromanager.data.Coords;
@@ -454,7 +455,18 @@ public final class ScrollerPanel extends JPanel {
     * @param event - NewImageEvent
     */
    @Subscribe
-   public void onNewImage(NewImageEvent event) {
+   public void onNewImage(final NewImageEvent event) {
+      // Events arrive on the event delivery thread, but we change Swing
+      // components here.
+      SwingUtilities.invokeLater(new Runnable() {
+         @Override
+         public void run() {
+            updateForNewImage(event);
+         }
+      });
+   }
+
+   private void updateForNewImage(NewImageEvent event) {
       try {
          Coords coords = event.getImage().getCoords();
          Coords.CoordsBuilder displayedBuilder = coords.copy();
@@ -529,8 +541,11 @@ public final class ScrollerPanel extends JPanel {
     */
    private boolean updateScrollbar(String axis, int newPos) {
       boolean didAddScroller = false;
+      // Events for earlier images may have been coalesced with this one, so
+      // size the scrollbar according to the datastore, not just this image.
+      int maxPos = Math.max(newPos, store_.getMaxIndex(axis));
       if (!axisToState_.containsKey(axis)) {
-         if (newPos != 0) {
+         if (maxPos > 0) {
             // Now have at least two positions along this axis; add a
             // scroller.
             addScroller(axis);
@@ -543,7 +558,7 @@ public final class ScrollerPanel extends JPanel {
          }
       }
       JScrollBar scrollbar = axisToState_.get(axis).scrollbar_;
-      int axisLen = newPos + 1;
+      int axisLen = maxPos + 1;
       if (scrollbar.getMaximum() < axisLen) {
          // Expand the range on the scrollbar.
          scrollbar.setMaximum(axisLen);
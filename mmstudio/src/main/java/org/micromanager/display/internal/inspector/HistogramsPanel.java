@@ -44,6 +44,7 @@ import net.miginfocom.swing.MigLayout;
 import org.micromanager.data.Coords;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.NewImageEvent;
+import org.micromanager.data.internal.DefaultDatastore;
 import org.micromanager.display.DataViewer;
 import org.micromanager.display.DisplaySettings;
 import org.micromanager.display.Inspector;
@@ -55,6 +56,7 @@ import org.micromanager.display.internal.events.ViewerAddedEvent;
 import org.micromanager.display.internal.events.ViewerRemovedEvent;
 import org.micromanager.display.internal.link.DisplayGroupManager;
 import org.micromanager.events.internal.DefaultEventManager;
+import org.micromanager.internal.utils.PrioritizedEventBus;
 import org.micromanager.internal.utils.ReportingUtils;
 
 // This class tracks all histograms for all displays in a given inspector
@@ -124,7 +126,17 @@ public final class HistogramsPanel extends InspectorPanel {
       // Need to register *before* we manually add panels, in case any images
       // arrive while we're doing our setup.
       display.registerForEvents(this);
-      display.getDatastore().registerForEvents(this);
+      Datastore store = display.getDatastore();
+      if (store instanceof DefaultDatastore) {
+         // We only care about the newest image, and needn't hold up the
+         // thread that adds images.
+         ((DefaultDatastore) store).registerForEvents(this,
+               PrioritizedEventBus.DEFAULT_PRIORITY,
+               PrioritizedEventBus.Delivery.ASYNC_COALESCING);
+      }
+      else {
+         store.registerForEvents(this);
+      }
       if (display.getDatastore().getAnyImage() == null) {
          // No need to create any panels yet.
          return;
@@ -292,8 +304,12 @@ public final class HistogramsPanel extends InspectorPanel {
          for (DataViewer display : displays) {
             ArrayList<ChannelControlPanel> panels = displayToPanels_.get(display);
             synchronized(panelLock_) {
-               // HACK: no-channel-axis datasets get 1 histogram.
-               int channel = Math.max(0, event.getImage().getCoords().getChannel());
+               // HACK: no-channel-axis datasets get 1 histogram. Check the
+               // datastore as well as the image, as the events for earlier
+               // images may have been coalesced with this one.
+               int channel = Math.max(0, Math.max(
+                        event.getImage().getCoords().getChannel(),
+                        store.getAxisLength(Coords.CHANNEL) - 1));
                while (channel >= panels.size()) {
                   // Need to add a new channel histogram. Note that this will
                   // modify the "panels" object's length, incrementing the
@@ -11,15 +11,17 @@ import java.awt.event.ActionListener;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 import javax.swing.JButton;
 import javax.swing.JComponent;
 import mmcorej.CMMCore;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.micromanager.PropertyMap;
 import org.micromanager.Studio;
 import org.micromanager.data.Coords;
 import org.micromanager.data.DatastoreFrozenException;
@@ -31,7 +33,7 @@ import org.micromanager.data.Pipeline;
 import org.micromanager.data.PipelineErrorException;
 import org.micromanager.data.internal.DefaultImage;
 import org.micromanager.data.internal.DefaultRewritableDatastore;
-import org.micromanager.data.internal.StorageRAM;
+import org.micromanager.data.internal.StorageOffHeapRAM;
 import org.micromanager.display.ControlsFactory;
 import org.micromanager.display.DisplaySettings;
 import org.micromanager.display.DisplayWindow;
@@ -39,6 +41,13 @@ import org.micromanager.display.PixelsSetEvent;
 import org.micromanager.display.RequestToCloseEvent;
 import org.micromanager.display.internal.DefaultDisplaySettings;
 import org.micromanager.display.internal.DefaultDisplayWindow;
+import org.micromanager.events.ConfigGroupChangedEvent;
+import org.micromanager.events.PropertiesChangedEvent;
+import org.micromanager.events.PropertyChangedEvent;
+import org.micromanager.events.StagePositionChangedEvent;
+import org.micromanager.events.SystemConfigurationLoadedEvent;
+import org.micromanager.events.XYStagePositionChangedEvent;
+import org.micromanager.events.internal.ChannelGroupEvent;
 import org.micromanager.events.internal.DefaultEventManager;
 import org.micromanager.events.internal.DefaultLiveModeEvent;
 import org.micromanager.events.internal.InternalShutdownCommencingEvent;
@@ -54,7 +63,11 @@ import org.micromanager.quickaccess.internal.QuickAccessFactory;
  */
 public final class SnapLiveManager implements org.micromanager.SnapLiveManager {
    private static final String TITLE = "Snap/Live View";
-   private static final int MAX_DISPLAY_HISTORY = 20;
+   // Longest time to sleep when the Core has no new images for us.
+   private static final long MAX_IDLE_SLEEP_MS = 20;
+   // Longest time to wait for the display to draw an image before we give
+   // it the next one (in case it is hidden, or never draws the image).
+   private static final long MAX_DISPLAY_WAIT_MS = 250;
 
    private final Studio studio_;
    private final CMMCore core_;
@@ -68,11 +81,29 @@ public final class SnapLiveManager implements org.micromanager.SnapLiveManager {
    private final Object liveModeLock_ = new Object();
    private int numCameraChannels_ = -1;
    private double exposureMs_ = 0;
-   private boolean shouldStopGrabberThread_ = false;
+   private volatile boolean shouldStopGrabberThread_ = false;
    private boolean shouldForceReset_ = false;
    private boolean amStartingSequenceAcquisition_ = false;
+   // Live mode uses two threads. The grabber thread takes images out of the
+   // Core as soon as they arrive and puts them in a "mailbox", which holds
+   // only the newest not-yet-displayed image for each camera channel; older
+   // images are dropped. The display thread takes images out of the mailbox
+   // and inserts them into the pipeline, as fast as the display can draw
+   // them.
    private Thread grabberThread_;
-   private final ArrayList<Long> displayUpdateTimes_;
+   private Thread displayThread_;
+   // Incremented whenever the display draws an image. Guarded by
+   // displayUpdateLock_.
+   private long numDisplayUpdates_ = 0;
+   private final Object displayUpdateLock_ = new Object();
+   // Statistics for the current (or most recent) run of live mode.
+   private final AtomicLong numFramesReceived_ = new AtomicLong(0);
+   private final AtomicLong numFramesDisplayed_ = new AtomicLong(0);
+   private final AtomicLong numFramesDropped_ = new AtomicLong(0);
+   // Hardware state that we would otherwise have to query from the Core for
+   // every image; these are reset to null when the hardware changes.
+   private volatile String cachedChannelConfig_ = null;
+   private volatile PropertyMap cachedScopeData_ = null;
    // Maps channel index to the last image we have received for that channel.
    private final HashMap<Integer, DefaultImage> channelToLastImage_;
 
@@ -87,7 +118,6 @@ public final class SnapLiveManager implements org.micromanager.SnapLiveManager {
       core_ = core;
       channelToLastImage_ = new HashMap<Integer, DefaultImage>();
       listeners_ = new ArrayList<LiveModeListener>();
-      displayUpdateTimes_ = new ArrayList<Long>();
       studio_.events().registerForEvents(this);
    }
 
@@ -203,8 +233,8 @@ public final class SnapLiveManager implements org.micromanager.SnapLiveManager {
       // ensure we don't try to grab images while stopping the acquisition.
       if (grabberThread_ != null) {
          shouldStopGrabberThread_ = true;
-         // We can in rare cases be stopped from within the grabber thread;
-         // in such cases joining it is obviously futile.
+         // We can in rare cases be stopped from within the grabber or display
+         // threads; in such cases joining them is obviously futile.
          if (Thread.currentThread() != grabberThread_) {
             try {
                grabberThread_.join();
@@ -213,6 +243,23 @@ public final class SnapLiveManager implements org.micromanager.SnapLiveManager {
                ReportingUtils.logError(e, "Interrupted while waiting for grabber thread to end");
             }
          }
+         Thread displayThread = displayThread_;
+         if (displayThread != null &&
+               Thread.currentThread() != displayThread) {
+            LockSupport.unpark(displayThread);
+            synchronized(displayUpdateLock_) {
+               displayUpdateLock_.notifyAll();
+            }
+            try {
+               displayThread.join();
+            }
+            catch (InterruptedException e) {
+               ReportingUtils.logError(e, "Interrupted while waiting for live display thread to end");
+            }
+         }
+         grabberThread_ = null;
+         displayThread_ = null;
+         ReportingUtils.logMessage("Live mode stopped: " + getLiveModeStats());
       }
       try {
          if (core_.isSequenceRunning()) {
@@ -228,21 +275,17 @@ public final class SnapLiveManager implements org.micromanager.SnapLiveManager {
    }
 
    /**
-    * This function is expected to run in its own thread. It continuously
-    * polls the core for new images, which then get inserted into the
-    * Datastore (which in turn propagates them to the display).
-    * TODO: our polling approach blindly assigns images to channels on the
-    * assumption that a) images always arrive from cameras in the same order,
-    * and b) images don't arrive in the middle of our polling action. Obviously
-    * this breaks down sometimes, which can cause images to "swap channels"
-    * in the display. Fixing it would require the core to provide blocking
-    * "get next image" calls, though, which it doesn't.
+    * This function is expected to run in its own thread. It takes images out
+    * of the Core as soon as they are available and places them in the
+    * mailbox for the display thread, which it starts.
+    * The Core does not notify us when new images arrive, nor provide a
+    * blocking "get next image" call, so when the sequence buffer is empty we
+    * briefly sleep before checking again.
     */
    private void grabImages() {
-      // Reset our list of when images have updated.
-      synchronized(displayUpdateTimes_) {
-         displayUpdateTimes_.clear();
-      }
+      numFramesReceived_.set(0);
+      numFramesDisplayed_.set(0);
+      numFramesDropped_.set(0);
 
       long coreCameras = core_.getNumberOfCameraChannels();
       if (coreCameras != numCameraChannels_) {
@@ -258,94 +301,173 @@ public final class SnapLiveManager implements org.micromanager.SnapLiveManager {
          return;
       }
       String camName = core_.getCameraDevice();
+      final AtomicReferenceArray<TaggedImage> mailbox =
+         new AtomicReferenceArray<TaggedImage>(Math.max(1, numCameraChannels_));
+      displayThread_ = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            displayImages(mailbox);
+         }
+      }, "Live mode display");
+      displayThread_.start();
+
+      long idleSleepMs = Math.max(1,
+            Math.min(MAX_IDLE_SLEEP_MS, (long) (exposureMs_ / 4)));
       while (!shouldStopGrabberThread_) {
-         waitForNextDisplay();
-         grabAndAddImages(camName);
+         long numRemaining = core_.getRemainingImageCount();
+         if (numRemaining == 0) {
+            try {
+               Thread.sleep(idleSleepMs);
+            }
+            catch (InterruptedException e) {}
+            continue;
+         }
+         try {
+            // If we have fallen behind, skip all but the newest image for
+            // each channel without bothering with their metadata.
+            for (long i = numCameraChannels_; i < numRemaining; ++i) {
+               core_.popNextImage();
+               numFramesReceived_.incrementAndGet();
+               numFramesDropped_.incrementAndGet();
+            }
+            TaggedImage tagged = core_.popNextTaggedImage();
+            numFramesReceived_.incrementAndGet();
+            int channel = getCameraChannel(tagged.tags, camName);
+            if (mailbox.getAndSet(channel, tagged) != null) {
+               // The previous image for this channel was never displayed.
+               numFramesDropped_.incrementAndGet();
+            }
+            LockSupport.unpark(displayThread_);
+         }
+         catch (Exception e) {
+            // Sequence buffer was emptied (e.g. because the sequence was
+            // stopped) under us.
+            studio_.logs().logDebugMessage("Failed to retrieve live image: " + e);
+         }
       }
    }
 
    /**
-    * This method waits for the next time at which we should grab images. It
-    * takes as a parameter the current known rate at which the display is
-    * showing images (which thus takes into account delays e.g. due to image
-    * processing), and returns the updated display rate.
+    * Determine which camera channel a live-mode image is from.
     */
-   private void waitForNextDisplay() {
-      long shortestWait = -1;
-      // Determine our sleep time based on image display times (a.k.a. the
-      // amount of time passed between PixelsSetEvents).
-      synchronized(displayUpdateTimes_) {
-         for (int i = 0; i < displayUpdateTimes_.size() - 1; ++i) {
-            long delta = displayUpdateTimes_.get(i + 1) - displayUpdateTimes_.get(i);
-            if (shortestWait == -1) {
-               shortestWait = delta;
-            }
-            else {
-               shortestWait = Math.min(shortestWait, delta);
-            }
+   private int getCameraChannel(JSONObject tags, String camName) {
+      int channel = 0;
+      try {
+         if (tags.has(camName + "-CameraChannelIndex")) {
+            channel = tags.getInt(camName + "-CameraChannelIndex");
+         }
+         else if (tags.has("CameraChannelIndex")) {
+            channel = tags.getInt("CameraChannelIndex");
          }
       }
-      // Sample faster than shortestWait because glitches should not cause the
-      // system to permanently bog down; this allows us to recover if we
-      // temporarily end up displaying images slowly than we normally can.
-      // On the other hand, we don't want to sample faster than the exposure
-      // time, or slower than 2x/second.
-      int rateLimit = (int) Math.max(33, exposureMs_);
-      int waitTime = (int) Math.min(500, Math.max(rateLimit, shortestWait * .75));
-      try {
-         Thread.sleep(waitTime);
+      catch (JSONException e) {
+         ReportingUtils.logError(e, "Unable to determine camera channel of live image");
+      }
+      if (channel < 0 || channel >= Math.max(1, numCameraChannels_)) {
+         channel = 0;
       }
-      catch (InterruptedException e) {}
+      return channel;
    }
 
    /**
-    * This method takes images out of the Core and inserts them into our
-    * pipeline.
+    * This function is expected to run in its own thread. It takes the newest
+    * images out of the mailbox and displays them, then waits for the display
+    * to draw them before doing so again, so that we never insert images
+    * faster than they can be shown.
     */
-   private void grabAndAddImages(String camName) {
-      try {
-         // We scan over 2*numCameraChannels here because, in multi-camera
-         // setups, one camera could be generating images faster than the
-         // other(s). Of course, 2x isn't guaranteed to be enough here, either,
-         // but it's what we've historically used.
-         HashSet<Integer> channelsSet = new HashSet<Integer>();
-         for (int c = 0; c < 2 * numCameraChannels_; ++c) {
-            TaggedImage tagged;
+   private void displayImages(AtomicReferenceArray<TaggedImage> mailbox) {
+      while (!shouldStopGrabberThread_) {
+         long numUpdates;
+         synchronized(displayUpdateLock_) {
+            numUpdates = numDisplayUpdates_;
+         }
+         boolean didDisplay = false;
+         for (int channel = 0; channel < mailbox.length(); ++channel) {
+            TaggedImage tagged = mailbox.getAndSet(channel, null);
+            if (tagged == null) {
+               continue;
+            }
             try {
-               tagged = core_.getNBeforeLastTaggedImage(c);
+               DefaultImage image = DefaultImage.wrapCameraImage(tagged);
+               displayImage(image.copyAtCoords(image.getCoords().copy()
+                        .time(0).channel(channel).build()));
+               numFramesDisplayed_.incrementAndGet();
+               didDisplay = true;
             }
-            catch (Exception e) {
-               // No image in the sequence buffer.
-               continue;
+            catch (JSONException e) {
+               ReportingUtils.logError(e, "Exception in live mode display thread.");
             }
-            JSONObject tags = tagged.tags;
-            int imageChannel = c;
-            if (tags.has(camName + "-CameraChannelIndex")) {
-               imageChannel = tags.getInt(camName + "-CameraChannelIndex");
+         }
+         if (didDisplay) {
+            waitForDisplayUpdate(numUpdates);
+         }
+         else {
+            // Wait for the grabber thread to give us something.
+            LockSupport.parkNanos(MAX_DISPLAY_WAIT_MS * 1000000);
+         }
+      }
+   }
+
+   /**
+    * Wait until the display has drawn an image since numUpdates was
+    * recorded, or until MAX_DISPLAY_WAIT_MS has elapsed.
+    */
+   private void waitForDisplayUpdate(long numUpdates) {
+      long deadline = System.currentTimeMillis() + MAX_DISPLAY_WAIT_MS;
+      synchronized(displayUpdateLock_) {
+         while (numDisplayUpdates_ == numUpdates && !shouldStopGrabberThread_) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+               return;
             }
-            if (channelsSet.contains(imageChannel)) {
-               // Already provided a more recent version of this channel.
-               continue;
+            try {
+               displayUpdateLock_.wait(remaining);
             }
-            DefaultImage image = new DefaultImage(tagged);
-            Coords newCoords = image.getCoords().copy()
-               .time(0)
-               .channel(imageChannel).build();
-            // Generate a new UUID for the image, so that our histogram
-            // update code realizes this is a new image.
-            Metadata newMetadata = image.getMetadata().copy()
-               .uuid(UUID.randomUUID()).build();
-            displayImage(image.copyWith(newCoords, newMetadata));
-            channelsSet.add(imageChannel);
-            if (channelsSet.size() == numCameraChannels_) {
-               // Got every channel.
-               break;
+            catch (InterruptedException e) {
+               return;
             }
          }
       }
-      catch (JSONException e) {
-         ReportingUtils.logError(e, "Exception in image grabber thread.");
+   }
+
+   /**
+    * Return a description of how many images live mode has received from the
+    * Core, how many of those it has displayed, and how many were dropped
+    * because newer images arrived before they could be displayed.
+    */
+   public String getLiveModeStats() {
+      return String.format("%d images received, %d displayed, %d dropped",
+            numFramesReceived_.get(), numFramesDisplayed_.get(),
+            numFramesDropped_.get());
+   }
+
+   /**
+    * Return the current configuration of the channel group, querying the
+    * Core only if the hardware has changed since we last did so.
+    */
+   private String getCurrentChannelConfig() throws Exception {
+      String result = cachedChannelConfig_;
+      if (result == null) {
+         result = core_.getCurrentConfig(core_.getChannelGroup());
+         cachedChannelConfig_ = result;
       }
+      return result;
+   }
+
+   /**
+    * Generate the metadata for a displayed image. As per
+    * AcquisitionManager.generateMetadata(), except that the hardware state is
+    * only regenerated if the hardware has changed.
+    */
+   private Metadata generateMetadata(Image image) throws Exception {
+      PropertyMap scopeData = cachedScopeData_;
+      if (scopeData == null) {
+         Metadata result = studio_.acquisitions().generateMetadata(image, true);
+         cachedScopeData_ = result.getScopeData();
+         return result;
+      }
+      return studio_.acquisitions().generateMetadata(image, false).copy()
+         .scopeData(scopeData).build();
    }
 
    public void addLiveModeListener(LiveModeListener listener) {
@@ -376,7 +498,7 @@ public final class SnapLiveManager implements org.micromanager.SnapLiveManager {
          // Note that unlike in most situations, we do *not* ask the
          // DataManager to track this Datastore for us.
          store_ = new DefaultRewritableDatastore();
-         store_.setStorage(new StorageRAM(store_));
+         store_.setStorage(StorageOffHeapRAM.createRAMStorage(store_));
          // Use a synchronous pipeline for live mode.
          pipeline_ = studio_.data().copyLivePipeline(store_, true);
       }
@@ -471,13 +593,14 @@ public final class SnapLiveManager implements org.micromanager.SnapLiveManager {
     */
    @Override
    public void displayImage(Image image) {
+      DefaultImage newImage;
       synchronized(displayLock_) {
          boolean shouldReset = shouldForceReset_;
          if (store_ != null) {
             String[] channelNames = store_.getSummaryMetadata().getChannelNames();
             String curChannel = "";
             try {
-               curChannel = core_.getCurrentConfig(core_.getChannelGroup());
+               curChannel = getCurrentChannelConfig();
             }
             catch (Exception e) {
                ReportingUtils.logError(e, "Error getting current channel");
@@ -491,62 +614,71 @@ public final class SnapLiveManager implements org.micromanager.SnapLiveManager {
             }
          }
          try {
-            DefaultImage newImage = new DefaultImage(image, image.getCoords(),
-                  studio_.acquisitions().generateMetadata(image, true));
-            // Find any image to compare against, at all.
-            DefaultImage lastImage = null;
-            if (channelToLastImage_.keySet().size() > 0) {
-               int channel = new ArrayList<Integer>(channelToLastImage_.keySet()).get(0);
-               lastImage = channelToLastImage_.get(channel);
-            }
-            if (lastImage == null ||
-                  newImage.getWidth() != lastImage.getWidth() ||
-                  newImage.getHeight() != lastImage.getHeight() ||
-                  newImage.getNumComponents() != lastImage.getNumComponents() ||
-                  newImage.getBytesPerPixel() != lastImage.getBytesPerPixel()) {
-               // Format changing, channel changing, and/or we have no display;
-               // we need to recreate everything.
-               shouldReset = true;
-            }
-            if (shouldReset) {
-               reset();
-            }
-            // Check for display having been closed on us by the user.
-            else if (display_ == null || display_.getIsClosed()) {
-               createDisplay();
-            }
-            channelToLastImage_.put(newImage.getCoords().getChannel(),
-                  newImage);
-            synchronized(pipelineLock_) {
-               try {
-                  pipeline_.insertImage(newImage);
-               }
-               catch (DatastoreRewriteException e) {
-                  // This should never happen, because we use an erasable
-                  // Datastore.
-                  studio_.logs().showError(e,
-                        "Unable to insert image into pipeline; this should never happen.");
-               }
-               catch (PipelineErrorException e) {
-                  // Notify the user, and halt live.
-                  studio_.logs().showError(e,
-                        "An error occurred while processing images.");
-                  stopLiveMode();
-                  pipeline_.clearExceptions();
-               }
-            }
-         }
-         catch (DatastoreFrozenException e) {
-            // Datastore has been frozen (presumably the user saved a snapped
-            // image); replace it.
-            reset();
-            displayImage(image);
+            newImage = new DefaultImage(image, image.getCoords(),
+                  generateMetadata(image));
          }
          catch (Exception e) {
             // Error getting metadata from the system state cache.
             studio_.logs().logError(e, "Error drawing image in snap/live view");
+            return;
+         }
+         // Find any image to compare against, at all.
+         DefaultImage lastImage = null;
+         if (channelToLastImage_.keySet().size() > 0) {
+            int channel = new ArrayList<Integer>(channelToLastImage_.keySet()).get(0);
+            lastImage = channelToLastImage_.get(channel);
+         }
+         if (lastImage == null ||
+               newImage.getWidth() != lastImage.getWidth() ||
+               newImage.getHeight() != lastImage.getHeight() ||
+               newImage.getNumComponents() != lastImage.getNumComponents() ||
+               newImage.getBytesPerPixel() != lastImage.getBytesPerPixel()) {
+            // Format changing, channel changing, and/or we have no display;
+            // we need to recreate everything.
+            shouldReset = true;
+         }
+         if (shouldReset) {
+            reset();
+         }
+         // Check for display having been closed on us by the user.
+         else if (display_ == null || display_.getIsClosed()) {
+            createDisplay();
+         }
+         channelToLastImage_.put(newImage.getCoords().getChannel(),
+               newImage);
+      }
+      // Insert the image without holding displayLock_, so that the display
+      // is not held up by image processing.
+      boolean isFrozen = false;
+      synchronized(pipelineLock_) {
+         try {
+            pipeline_.insertImage(newImage);
+         }
+         catch (DatastoreFrozenException e) {
+            isFrozen = true;
+         }
+         catch (DatastoreRewriteException e) {
+            // This should never happen, because we use an erasable
+            // Datastore.
+            studio_.logs().showError(e,
+                  "Unable to insert image into pipeline; this should never happen.");
+         }
+         catch (PipelineErrorException e) {
+            // Notify the user, and halt live.
+            studio_.logs().showError(e,
+                  "An error occurred while processing images.");
+            stopLiveMode();
+            pipeline_.clearExceptions();
          }
       }
+      if (isFrozen) {
+         // Datastore has been frozen (presumably the user saved a snapped
+         // image); replace it.
+         synchronized(displayLock_) {
+            reset();
+         }
+         displayImage(image);
+      }
    }
 
    /**
@@ -561,7 +693,6 @@ public final class SnapLiveManager implements org.micromanager.SnapLiveManager {
          display_.forceClosed();
       }
       createDisplay();
-      displayUpdateTimes_.clear();
       if (displayLoc != null) {
          display_.getAsWindow().setLocation(displayLoc);
       }
@@ -571,7 +702,7 @@ public final class SnapLiveManager implements org.micromanager.SnapLiveManager {
       // as a side-effect ensure that our channels are displayed with the
       // correct colors.
       try {
-         String channel = core_.getCurrentConfig(core_.getChannelGroup());
+         String channel = getCurrentChannelConfig();
          if (numCameraChannels_ == -1) {
             // Haven't yet figured out how many camera channels there are.
             numCameraChannels_ = (int) core_.getNumberOfCameraChannels();
@@ -647,15 +778,56 @@ public final class SnapLiveManager implements org.micromanager.SnapLiveManager {
 
    @Subscribe
    public void onDisplayUpdated(PixelsSetEvent event) {
-      synchronized(displayUpdateTimes_) {
-         displayUpdateTimes_.add(System.currentTimeMillis());
-         while (displayUpdateTimes_.size() > MAX_DISPLAY_HISTORY) {
-            // Limit the history we maintain.
-            displayUpdateTimes_.remove(displayUpdateTimes_.get(0));
-         }
+      synchronized(displayUpdateLock_) {
+         ++numDisplayUpdates_;
+         displayUpdateLock_.notifyAll();
       }
    }
 
+   /**
+    * Forget cached hardware state, so it will be regenerated for the next
+    * image.
+    */
+   private void clearHardwareCache() {
+      cachedChannelConfig_ = null;
+      cachedScopeData_ = null;
+   }
+
+   @Subscribe
+   public void onPropertiesChanged(PropertiesChangedEvent event) {
+      clearHardwareCache();
+   }
+
+   @Subscribe
+   public void onPropertyChanged(PropertyChangedEvent event) {
+      clearHardwareCache();
+   }
+
+   @Subscribe
+   public void onConfigGroupChanged(ConfigGroupChangedEvent event) {
+      clearHardwareCache();
+   }
+
+   @Subscribe
+   public void onChannelGroupChanged(ChannelGroupEvent event) {
+      clearHardwareCache();
+   }
+
+   @Subscribe
+   public void onSystemConfigurationLoaded(SystemConfigurationLoadedEvent event) {
+      clearHardwareCache();
+   }
+
+   @Subscribe
+   public void onStagePositionChanged(StagePositionChangedEvent event) {
+      clearHardwareCache();
+   }
+
+   @Subscribe
+   public void onXYStagePositionChanged(XYStagePositionChangedEvent event) {
+      clearHardwareCache();
+   }
+
    @Subscribe
    public void onRequestToClose(RequestToCloseEvent event) {
       // Closing is fine by us, but we need to stop live mode first.
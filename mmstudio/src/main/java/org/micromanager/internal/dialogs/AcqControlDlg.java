@@ -115,6 +115,7 @@ public final class AcqControlDlg extends MMFrame implements PropertyChangeListen
    private JLabel saveTypeLabel_;
    private JRadioButton singleButton_;
    private JRadioButton multiButton_;
+   private JRadioButton chunkedButton_;
    private JLabel rootLabel_;
    private JButton browseRootButton_;
    private JCheckBox stackKeepShutterOpenCheckBox_;
@@ -832,11 +833,23 @@ public final class AcqControlDlg extends MMFrame implements PropertyChangeListen
                Datastore.SaveMode.MULTIPAGE_TIFF);
          }
       });
-      savePanel_.add(multiButton_, "gapafter push");
+      savePanel_.add(multiButton_);
+
+      chunkedButton_ = new JRadioButton("Compressed chunks");
+      chunkedButton_.setFont(DEFAULT_FONT);
+      chunkedButton_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            DefaultDatastore.setPreferredSaveMode(
+               Datastore.SaveMode.CHUNKED);
+         }
+      });
+      savePanel_.add(chunkedButton_, "gapafter push");
 
       ButtonGroup buttonGroup = new ButtonGroup();
       buttonGroup.add(singleButton_);
       buttonGroup.add(multiButton_);
+      buttonGroup.add(chunkedButton_);
       updateSavingTypeButtons();
 
       savePanel_.addActionListener(new ActionListener() {
@@ -1122,6 +1135,9 @@ public final class AcqControlDlg extends MMFrame implements PropertyChangeListen
       else if (mode == Datastore.SaveMode.MULTIPAGE_TIFF) {
          multiButton_.setSelected(true);
       }
+      else if (mode == Datastore.SaveMode.CHUNKED) {
+         chunkedButton_.setSelected(true);
+      }
       else {
          ReportingUtils.logError("Unrecognized save mode " + mode);
       }
@@ -1335,6 +1351,9 @@ public final class AcqControlDlg extends MMFrame implements PropertyChangeListen
          DefaultDatastore.setPreferredSaveMode(
             Datastore.SaveMode.MULTIPAGE_TIFF);
       }
+      else if (chunkedButton_.isSelected()) {
+         DefaultDatastore.setPreferredSaveMode(Datastore.SaveMode.CHUNKED);
+      }
       else {
          ReportingUtils.logError("Unknown save mode button is selected, or no buttons are selected");
       }
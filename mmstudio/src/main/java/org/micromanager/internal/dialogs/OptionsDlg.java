@@ -37,6 +37,7 @@ import javax.swing.WindowConstants;
 import mmcorej.CMMCore;
 import org.micromanager.ApplicationSkin.SkinMode;
 import org.micromanager.Studio;
+import org.micromanager.data.internal.StorageOffHeapRAM;
 import org.micromanager.data.internal.multipagetiff.StorageMultipageTiff;
 import org.micromanager.display.internal.inspector.InspectorFrame;
 import org.micromanager.internal.MMStudio;
@@ -61,6 +62,7 @@ public final class OptionsDlg extends MMDialog {
    private final JTextField startupScriptFile_;
    private final JTextField bufSizeField_;
    private JTextField logDeleteDaysField_;
+   private final JTextField offHeapRAMLimitField_;
    private final JComboBox comboDisplayBackground_;
 
    private CMMCore core_;
@@ -252,6 +254,57 @@ public final class OptionsDlg extends MMDialog {
          }
       });
   
+      final JCheckBox parallelWritersMPTiffCheckBox = new JCheckBox();
+      parallelWritersMPTiffCheckBox.setText("Write each XY position's Image Stack Files on a separate thread");
+      parallelWritersMPTiffCheckBox.setToolTipText("Allows files for multiple stage positions to be written in parallel; only applies when positions are saved in separate files");
+      parallelWritersMPTiffCheckBox.setSelected(
+            StorageMultipageTiff.getShouldUseParallelWriters());
+      parallelWritersMPTiffCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            StorageMultipageTiff.setShouldUseParallelWriters(parallelWritersMPTiffCheckBox.isSelected());
+         }
+      });
+
+      final JCheckBox memoryMappedReadsMPTiffCheckBox = new JCheckBox();
+      memoryMappedReadsMPTiffCheckBox.setText("Use memory mapping to read Image Stack Files");
+      memoryMappedReadsMPTiffCheckBox.setToolTipText("Speeds up browsing and analysis of large saved datasets; applies to datasets opened after this is changed");
+      memoryMappedReadsMPTiffCheckBox.setSelected(
+            StorageMultipageTiff.getShouldUseMemoryMappedReads());
+      memoryMappedReadsMPTiffCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            StorageMultipageTiff.setShouldUseMemoryMappedReads(memoryMappedReadsMPTiffCheckBox.isSelected());
+         }
+      });
+
+      final JCheckBox bigTiffMPTiffCheckBox = new JCheckBox();
+      bigTiffMPTiffCheckBox.setText("Write Image Stack Files in BigTIFF format");
+      bigTiffMPTiffCheckBox.setToolTipText("Removes the 4GB limit on file size, so each XY position is saved in a single file; these files can't be opened by ImageJ or Micro-Manager 1.4");
+      bigTiffMPTiffCheckBox.setSelected(
+            StorageMultipageTiff.getShouldUseBigTiff());
+      bigTiffMPTiffCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            StorageMultipageTiff.setShouldUseBigTiff(bigTiffMPTiffCheckBox.isSelected());
+         }
+      });
+
+      final JCheckBox offHeapRAMCheckBox = new JCheckBox();
+      offHeapRAMCheckBox.setText("Keep unsaved images outside of Java memory, moving them to disk above");
+      offHeapRAMCheckBox.setToolTipText("Applies to live mode and to acquisitions that are not saved; avoids running out of memory during long acquisitions");
+      offHeapRAMCheckBox.setSelected(
+            StorageOffHeapRAM.getShouldUseOffHeapRAM());
+      offHeapRAMCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            StorageOffHeapRAM.setShouldUseOffHeapRAM(offHeapRAMCheckBox.isSelected());
+         }
+      });
+
+      offHeapRAMLimitField_ = new JTextField(
+            Integer.toString(StorageOffHeapRAM.getMemoryLimitMB()), 5);
+
       final JCheckBox syncExposureMainAndMDA = new JCheckBox();
       syncExposureMainAndMDA.setText("Sync exposure between Main and MDA windows");
       syncExposureMainAndMDA.setSelected(AcqControlDlg.getShouldSyncExposure());
@@ -306,10 +359,17 @@ public final class OptionsDlg extends MMDialog {
       super.add(bufSizeField_, "gapright related");
       super.add(new JLabel("MB"), "wrap");
 
+      super.add(offHeapRAMCheckBox, "split 3, gapright related");
+      super.add(offHeapRAMLimitField_, "gapright related");
+      super.add(new JLabel("MB"), "gapright push, wrap");
+
       super.add(new JSeparator(), "wrap");
 
       super.add(metadataFileWithMultipageTiffCheckBox, "wrap");
       super.add(separateFilesForPositionsMPTiffCheckBox, "wrap");
+      super.add(parallelWritersMPTiffCheckBox, "wrap");
+      super.add(memoryMappedReadsMPTiffCheckBox, "wrap");
+      super.add(bigTiffMPTiffCheckBox, "wrap");
 
       super.add(new JSeparator(), "wrap");
 
@@ -356,11 +416,14 @@ public final class OptionsDlg extends MMDialog {
    private void closeRequested() {
       int seqBufSize;
       int deleteLogDays;
+      int offHeapRAMLimit;
       try {
          seqBufSize =
             NumberUtils.displayStringToInt(bufSizeField_.getText());
          deleteLogDays =
             NumberUtils.displayStringToInt(logDeleteDaysField_.getText());
+         offHeapRAMLimit =
+            NumberUtils.displayStringToInt(offHeapRAMLimitField_.getText());
       }
       catch (ParseException ex) {
          ReportingUtils.showError(ex);
@@ -369,6 +432,7 @@ public final class OptionsDlg extends MMDialog {
 
       MMStudio.setCircularBufferSize(seqBufSize);
       MMStudio.setCoreLogLifetimeDays(deleteLogDays);
+      StorageOffHeapRAM.setMemoryLimitMB(offHeapRAMLimit);
 
       ScriptPanel.setStartupScript(startupScriptFile_.getText());
       parent_.app().makeActive();
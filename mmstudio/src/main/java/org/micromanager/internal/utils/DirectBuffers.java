@@ -79,6 +79,48 @@ public final class DirectBuffers {
       return null;
    }
    
+   /**
+    * Copy the given byte[], short[], or int[] into a new direct ByteBuffer in
+    * native byte order. Returns null for unsupported array types.
+    */
+   public static ByteBuffer byteBufferFromArray(Object primitiveArray) {
+      ByteBuffer result;
+      if (primitiveArray instanceof byte[]) {
+         byte[] bytes = (byte[]) primitiveArray;
+         result = ByteBuffer.allocateDirect(bytes.length).order(NATIVE_ORDER);
+         result.put(bytes);
+      } else if (primitiveArray instanceof short[]) {
+         short[] shorts = (short[]) primitiveArray;
+         result = ByteBuffer.allocateDirect(2*shorts.length).order(NATIVE_ORDER);
+         result.asShortBuffer().put(shorts);
+      } else if (primitiveArray instanceof int[]) {
+         int[] ints = (int[]) primitiveArray;
+         result = ByteBuffer.allocateDirect(4*ints.length).order(NATIVE_ORDER);
+         result.asIntBuffer().put(ints);
+      } else {
+         return null;
+      }
+      result.rewind();
+      return result;
+   }
+
+   /**
+    * Return a view of the given bytes whose element type matches that of
+    * the given primitive array (the bytes themselves for byte[], a
+    * ShortBuffer for short[], and an IntBuffer for int[]).
+    */
+   public static Buffer typedView(ByteBuffer bytes, Object primitiveArray) {
+      if (bytes == null) {
+         return null;
+      }
+      if (primitiveArray instanceof short[]) {
+         return bytes.order(NATIVE_ORDER).asShortBuffer();
+      } else if (primitiveArray instanceof int[]) {
+         return bytes.order(NATIVE_ORDER).asIntBuffer();
+      }
+      return bytes;
+   }
+
    public static ByteBuffer bufferFromString(String string) {
       try {
          return bufferFromBytes(string.getBytes("UTF-8"));
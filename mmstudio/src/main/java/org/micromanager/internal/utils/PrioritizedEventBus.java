@@ -1,25 +1,317 @@
 package org.micromanager.internal.utils;
 
-import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The PrioritizedEventBus allows registrants to provide a priority value; when
  * dispatching events to registrants, those with lower priority numbers are
  * notified first.
+ *
+ * Subscribers use Guava's @Subscribe (and @AllowConcurrentEvents)
+ * annotations, as with an EventBus. Since datastores post an event for every
+ * image, posting is kept cheap: the subscribers for each event class are
+ * worked out once, in priority order, and reused until someone registers or
+ * unregisters. Posting takes no locks of its own.
+ *
+ * Each subscriber is delivered events in one of the Delivery modes. Inline
+ * subscribers (e.g. storage) run on the posting thread, as with an EventBus.
+ * Asynchronous subscribers (e.g. displays) receive events in order on one of
+ * a few shared delivery threads, so that they don't hold up the thread that
+ * posted the event.
  */
 public final class PrioritizedEventBus {
    // Priority at which to register objects when no priority is specified.
    public static final int DEFAULT_PRIORITY = 100;
+
+   public enum Delivery {
+      /** Deliver on the posting thread, before post() returns. */
+      INLINE,
+      /** Deliver every event, in order, on a delivery thread. */
+      ASYNC,
+      /**
+       * As ASYNC, but if an event arrives while an event of the same class
+       * is still waiting to be delivered (and nothing was posted in between),
+       * only the newer one is delivered. For subscribers that only care about
+       * the latest state, such as which image is newest.
+       */
+      ASYNC_COALESCING
+   }
+
    /**
-    * Each priority level corresponds to a different EventBus instance.
+    * Immutable snapshot of the delivery statistics for one subscriber.
     */
-   private HashMap<Integer, EventBus> prioritizedBuses_;
+   public static final class SubscriberStats {
+      private final Object subscriber_;
+      private final int priority_;
+      private final Delivery delivery_;
+      private final long numEvents_;
+      private final long numCoalesced_;
+      private final long totalNs_;
+      private final long maxNs_;
+      private final int queueSize_;
+
+      private SubscriberStats(Subscription sub) {
+         subscriber_ = sub.subscriber_;
+         priority_ = sub.priority_;
+         delivery_ = sub.delivery_;
+         numEvents_ = sub.numEvents_.get();
+         numCoalesced_ = sub.numCoalesced_.get();
+         totalNs_ = sub.totalNs_.get();
+         maxNs_ = sub.maxNs_.get();
+         synchronized (sub) {
+            queueSize_ = sub.pending_.size();
+         }
+      }
+
+      public Object getSubscriber() {
+         return subscriber_;
+      }
+
+      public int getPriority() {
+         return priority_;
+      }
+
+      public Delivery getDelivery() {
+         return delivery_;
+      }
+
+      /** Number of events delivered (i.e. handler calls). */
+      public long getNumEventsDelivered() {
+         return numEvents_;
+      }
+
+      /** Number of events dropped in favor of a newer one. */
+      public long getNumEventsCoalesced() {
+         return numCoalesced_;
+      }
+
+      /** Mean time spent in the subscriber's handlers, per event. */
+      public double getMeanLatencyMs() {
+         if (numEvents_ == 0) {
+            return 0;
+         }
+         return totalNs_ / 1e6 / numEvents_;
+      }
+
+      public double getMaxLatencyMs() {
+         return maxNs_ / 1e6;
+      }
+
+      /** Number of events waiting to be delivered. */
+      public int getQueueSize() {
+         return queueSize_;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("<%s (%s, priority %d): %d events, %d coalesced, mean %.3fms, max %.3fms, queue %d>",
+               subscriber_.getClass().getName(), delivery_, priority_,
+               numEvents_, numCoalesced_, getMeanLatencyMs(),
+               getMaxLatencyMs(), queueSize_);
+      }
+   }
+
+   // Asynchronous subscribers are spread over these threads, shared by all
+   // buses. A given subscriber always uses the same thread, so it gets its
+   // events in order.
+   private static final ExecutorService[] DELIVERY_SHARDS =
+      new ExecutorService[Math.max(1, Math.min(4,
+               Runtime.getRuntime().availableProcessors() / 2))];
+   static {
+      for (int i = 0; i < DELIVERY_SHARDS.length; ++i) {
+         final String name = "Event delivery thread " + i;
+         DELIVERY_SHARDS[i] = Executors.newSingleThreadExecutor(
+               new ThreadFactory() {
+                  @Override
+                  public Thread newThread(Runnable r) {
+                     Thread thread = new Thread(r, name);
+                     thread.setDaemon(true);
+                     return thread;
+                  }
+               });
+      }
+   }
+
+   // @Subscribe methods of each subscriber class.
+   private static final ConcurrentHashMap<Class<?>, Method[]> SUBSCRIBER_METHODS =
+      new ConcurrentHashMap<Class<?>, Method[]>();
+
+   /**
+    * One @Subscribe method of one subscriber.
+    */
+   private static final class Handler {
+      private final Subscription sub_;
+      private final Method method_;
+      private final boolean allowsConcurrentEvents_;
+
+      private Handler(Subscription sub, Method method) {
+         sub_ = sub;
+         method_ = method;
+         allowsConcurrentEvents_ =
+            method.isAnnotationPresent(AllowConcurrentEvents.class);
+      }
+
+      private void invoke(Object event) {
+         long startNs = System.nanoTime();
+         try {
+            if (allowsConcurrentEvents_) {
+               method_.invoke(sub_.subscriber_, event);
+            }
+            else {
+               // As with an EventBus, handlers aren't called concurrently
+               // unless they allow it.
+               synchronized (this) {
+                  method_.invoke(sub_.subscriber_, event);
+               }
+            }
+         }
+         catch (InvocationTargetException e) {
+            ReportingUtils.logError(e.getCause(), "Error in event handler " +
+                  method_ + " for " + event);
+         }
+         catch (IllegalAccessException e) {
+            ReportingUtils.logError(e, "Couldn't call event handler " + method_);
+         }
+         sub_.recordDelivery(System.nanoTime() - startNs);
+      }
+   }
+
+   /**
+    * A pending asynchronous delivery.
+    */
+   private static final class PendingEvent {
+      private final Handler handler_;
+      private final Object event_;
+
+      private PendingEvent(Handler handler, Object event) {
+         handler_ = handler;
+         event_ = event;
+      }
+   }
+
+   private static final class Subscription implements Runnable {
+      private final Object subscriber_;
+      private final int priority_;
+      private final Delivery delivery_;
+      private final Handler[] handlers_;
+      private final ExecutorService shard_;
+      private volatile boolean isRegistered_ = true;
+      // Guarded by this.
+      private final LinkedList<PendingEvent> pending_ =
+         new LinkedList<PendingEvent>();
+      private boolean isScheduled_ = false;
+
+      private final AtomicLong numEvents_ = new AtomicLong(0);
+      private final AtomicLong numCoalesced_ = new AtomicLong(0);
+      private final AtomicLong totalNs_ = new AtomicLong(0);
+      private final AtomicLong maxNs_ = new AtomicLong(0);
+
+      private Subscription(Object subscriber, int priority,
+            Delivery delivery) {
+         subscriber_ = subscriber;
+         priority_ = priority;
+         delivery_ = delivery;
+         Method[] methods = getSubscriberMethods(subscriber.getClass());
+         handlers_ = new Handler[methods.length];
+         for (int i = 0; i < methods.length; ++i) {
+            handlers_[i] = new Handler(this, methods[i]);
+         }
+         int shard = (System.identityHashCode(subscriber) & 0x7fffffff) %
+            DELIVERY_SHARDS.length;
+         shard_ = DELIVERY_SHARDS[shard];
+      }
+
+      private void deliver(Handler handler, Object event) {
+         if (delivery_ == Delivery.INLINE) {
+            handler.invoke(event);
+            return;
+         }
+         synchronized (this) {
+            if (delivery_ == Delivery.ASYNC_COALESCING && !pending_.isEmpty()) {
+               PendingEvent last = pending_.getLast();
+               if (last.handler_ == handler &&
+                     last.event_.getClass() == event.getClass()) {
+                  pending_.removeLast();
+                  numCoalesced_.incrementAndGet();
+               }
+            }
+            pending_.add(new PendingEvent(handler, event));
+            if (!isScheduled_) {
+               isScheduled_ = true;
+               shard_.submit(this);
+            }
+         }
+      }
+
+      /**
+       * Deliver pending events, on our shard.
+       */
+      @Override
+      public void run() {
+         while (true) {
+            PendingEvent next;
+            synchronized (this) {
+               next = pending_.poll();
+               if (next == null || !isRegistered_) {
+                  pending_.clear();
+                  isScheduled_ = false;
+                  return;
+               }
+            }
+            next.handler_.invoke(next.event_);
+         }
+      }
+
+      private void recordDelivery(long ns) {
+         numEvents_.incrementAndGet();
+         totalNs_.addAndGet(ns);
+         long max = maxNs_.get();
+         while (ns > max && !maxNs_.compareAndSet(max, ns)) {
+            max = maxNs_.get();
+         }
+      }
+   }
+
+   /**
+    * Events posted by a handler, on the thread that is delivering an event,
+    * are delivered once that event has been delivered to everyone, as with
+    * an EventBus.
+    */
+   private static final class ThreadDispatch {
+      private boolean isDispatching_ = false;
+      private final LinkedList<Object> queue_ = new LinkedList<Object>();
+   }
+
+   // Sorted by priority, then by order of registration. Replaced, not
+   // modified.
+   private volatile Subscription[] subscriptions_ = new Subscription[0];
+   // Handlers for each event class, in delivery order. Replaced when
+   // subscriptions_ is.
+   private volatile ConcurrentHashMap<Class<?>, Handler[]> handlersByEventClass_ =
+      new ConcurrentHashMap<Class<?>, Handler[]>();
+   private final ThreadLocal<ThreadDispatch> threadDispatch_ =
+      new ThreadLocal<ThreadDispatch>() {
+         @Override
+         protected ThreadDispatch initialValue() {
+            return new ThreadDispatch();
+         }
+      };
+   private final AtomicLong numEventsPosted_ = new AtomicLong(0);
 
    public PrioritizedEventBus() {
-      prioritizedBuses_ = new HashMap<Integer, EventBus>();
    }
 
    public void register(Object o) {
@@ -27,40 +319,164 @@ public final class PrioritizedEventBus {
    }
 
    public void register(Object o, Integer priority) {
-      EventBus subBus;
-      if (!prioritizedBuses_.containsKey(priority)) {
-         subBus = new EventBus();
-         prioritizedBuses_.put(priority, subBus);
-      }
-      else {
-         subBus = prioritizedBuses_.get(priority);
-      }
-      subBus.register(o);
-   }
-
-   public void unregister(Object o) {
-      for (Integer priority : prioritizedBuses_.keySet()) {
-         EventBus subBus = prioritizedBuses_.get(priority);
-         // TODO: I can't find any way to test if a given EventBus has a given
-         // object subscribed to it, hence the try/catch logic here, which is
-         // unpleasant. However, objects should not be frequently unregistering
-         // so I don't think it's a huge issue.
-         // Similarly I'm not too fussed that we may have empty
-         // SubscriberRegistries lying around after unregister is called.
-         try {
-            subBus.unregister(o);
+      register(o, priority, Delivery.INLINE);
+   }
+
+   public synchronized void register(Object o, int priority,
+         Delivery delivery) {
+      for (Subscription sub : subscriptions_) {
+         if (sub.subscriber_ == o) {
+            // Already registered.
+            return;
          }
-         catch (IllegalArgumentException e) {
+      }
+      Subscription newSub = new Subscription(o, priority, delivery);
+      ArrayList<Subscription> subs = new ArrayList<Subscription>(
+            Arrays.asList(subscriptions_));
+      int i = 0;
+      while (i < subs.size() && subs.get(i).priority_ <= priority) {
+         i++;
+      }
+      subs.add(i, newSub);
+      setSubscriptions(subs);
+   }
+
+   public synchronized void unregister(Object o) {
+      ArrayList<Subscription> subs = new ArrayList<Subscription>();
+      for (Subscription sub : subscriptions_) {
+         if (sub.subscriber_ == o) {
+            // Drop any events that haven't been delivered yet.
+            sub.isRegistered_ = false;
+         }
+         else {
+            subs.add(sub);
          }
       }
+      setSubscriptions(subs);
+   }
+
+   private void setSubscriptions(List<Subscription> subs) {
+      subscriptions_ = subs.toArray(new Subscription[subs.size()]);
+      handlersByEventClass_ = new ConcurrentHashMap<Class<?>, Handler[]>();
    }
 
    public void post(Object event) {
-      ArrayList<Integer> priorities = new ArrayList<Integer>(prioritizedBuses_.keySet());
-      Collections.sort(priorities);
-      for (Integer priority : priorities) {
-         EventBus subBus = prioritizedBuses_.get(priority);
-         subBus.post(event);
+      numEventsPosted_.incrementAndGet();
+      ThreadDispatch dispatch = threadDispatch_.get();
+      if (dispatch.isDispatching_) {
+         dispatch.queue_.add(event);
+         return;
+      }
+      dispatch.isDispatching_ = true;
+      try {
+         dispatch(event);
+         while (!dispatch.queue_.isEmpty()) {
+            dispatch(dispatch.queue_.poll());
+         }
+      }
+      finally {
+         dispatch.isDispatching_ = false;
+         dispatch.queue_.clear();
+      }
+   }
+
+   private void dispatch(Object event) {
+      for (Handler handler : getHandlers(event.getClass())) {
+         handler.sub_.deliver(handler, event);
+      }
+   }
+
+   private Handler[] getHandlers(Class<?> eventClass) {
+      // Read the map before the subscriptions, since they are replaced in
+      // the opposite order.
+      ConcurrentHashMap<Class<?>, Handler[]> cache = handlersByEventClass_;
+      Handler[] result = cache.get(eventClass);
+      if (result == null) {
+         ArrayList<Handler> handlers = new ArrayList<Handler>();
+         for (Subscription sub : subscriptions_) {
+            for (Handler handler : sub.handlers_) {
+               if (handler.method_.getParameterTypes()[0].isAssignableFrom(
+                        eventClass)) {
+                  handlers.add(handler);
+               }
+            }
+         }
+         result = handlers.toArray(new Handler[handlers.size()]);
+         cache.put(eventClass, result);
+      }
+      return result;
+   }
+
+   private static Method[] getSubscriberMethods(Class<?> subscriberClass) {
+      Method[] result = SUBSCRIBER_METHODS.get(subscriberClass);
+      if (result != null) {
+         return result;
+      }
+      // As with an EventBus, a public method is a handler if it, or a
+      // method it overrides, is annotated with @Subscribe.
+      HashMap<String, Method> handlers = new HashMap<String, Method>();
+      LinkedList<Class<?>> classes = new LinkedList<Class<?>>();
+      classes.add(subscriberClass);
+      while (!classes.isEmpty()) {
+         Class<?> klass = classes.poll();
+         for (Method method : klass.getMethods()) {
+            // Bridge methods of generic handlers can carry the annotation
+            // too, or be what an annotated generic method resolves to; skip
+            // them, as EventBus does, so events arrive only once.
+            if (!method.isAnnotationPresent(Subscribe.class) ||
+                  method.isBridge()) {
+               continue;
+            }
+            Class<?>[] params = method.getParameterTypes();
+            if (params.length != 1) {
+               throw new IllegalArgumentException("Method " + method +
+                     " has @Subscribe annotation but requires " +
+                     params.length + " arguments; event handlers must take exactly one argument.");
+            }
+            String signature = method.getName() + "(" + params[0].getName() + ")";
+            if (!handlers.containsKey(signature)) {
+               try {
+                  Method target = subscriberClass.getMethod(method.getName(),
+                        params);
+                  if (target.isBridge()) {
+                     continue;
+                  }
+                  target.setAccessible(true);
+                  handlers.put(signature, target);
+               }
+               catch (NoSuchMethodException e) {
+                  // Can't happen for a public method of a supertype.
+               }
+               catch (SecurityException e) {
+                  ReportingUtils.logError(e, "Can't access event handler " + method);
+               }
+            }
+         }
+         if (klass.getSuperclass() != null) {
+            classes.add(klass.getSuperclass());
+         }
+         classes.addAll(Arrays.asList(klass.getInterfaces()));
+      }
+      result = handlers.values().toArray(new Method[handlers.size()]);
+      SUBSCRIBER_METHODS.put(subscriberClass, result);
+      return result;
+   }
+
+   /**
+    * @return the number of events that have been posted to this bus
+    */
+   public long getNumEventsPosted() {
+      return numEventsPosted_.get();
+   }
+
+   /**
+    * @return delivery statistics for each subscriber, in delivery order
+    */
+   public List<SubscriberStats> getSubscriberStats() {
+      ArrayList<SubscriberStats> result = new ArrayList<SubscriberStats>();
+      for (Subscription sub : subscriptions_) {
+         result.add(new SubscriberStats(sub));
       }
+      return result;
    }
 }
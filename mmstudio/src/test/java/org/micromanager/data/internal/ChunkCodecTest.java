@@ -0,0 +1,68 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data testing
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal;
+
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests compression and decompression of the chunks used by StorageChunked.
+ */
+public class ChunkCodecTest {
+   @Test
+   public void testShuffle() {
+      byte[] input = new byte[] {1, 2, 3, 4, 5, 6, 7};
+      byte[] shuffled = new byte[input.length];
+      ChunkCodec.shuffle(input, shuffled, input.length, 2);
+      Assert.assertArrayEquals(new byte[] {1, 3, 5, 2, 4, 6, 7}, shuffled);
+      byte[] result = new byte[input.length];
+      ChunkCodec.unshuffle(shuffled, result, input.length, 2);
+      Assert.assertArrayEquals(input, result);
+   }
+
+   @Test
+   public void testRoundTrip() throws DataFormatException {
+      // 12-bit camera-like data, with noise.
+      Random random = new Random(1234);
+      byte[] input = new byte[2 * 256 * 256];
+      for (int i = 0; i < input.length; i += 2) {
+         int value = 100 + random.nextInt(200);
+         input[i] = (byte) (value & 0xff);
+         input[i + 1] = (byte) (value >> 8);
+      }
+      ChunkCodec codec = new ChunkCodec();
+      byte[] compressed = new byte[input.length];
+      int length = codec.compress(input, input.length, 2, compressed);
+      Assert.assertTrue(length > 0 && length < input.length);
+      byte[] result = new byte[input.length];
+      codec.decompress(compressed, length, 2, result, result.length);
+      Assert.assertArrayEquals(input, result);
+   }
+
+   @Test
+   public void testIncompressible() {
+      byte[] input = new byte[4096];
+      new Random(5678).nextBytes(input);
+      byte[] compressed = new byte[input.length];
+      Assert.assertEquals(-1,
+            new ChunkCodec().compress(input, input.length, 1, compressed));
+   }
+}
@@ -0,0 +1,78 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data testing
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal;
+
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+
+/**
+ * Tests the array-based DefaultCoords.
+ */
+public class DefaultCoordsTest {
+   @Test
+   public void testEqualityIgnoresBuildOrder() {
+      Coords a = new DefaultCoords.Builder().time(3).channel(1).z(2)
+         .index("angle", 4).build();
+      Coords b = new DefaultCoords.Builder().index("angle", 4).z(2)
+         .channel(1).time(3).build();
+      Assert.assertEquals(a, b);
+      Assert.assertEquals(a.hashCode(), b.hashCode());
+      Assert.assertEquals(Arrays.asList("angle", Coords.CHANNEL, Coords.TIME,
+               Coords.Z), a.getAxes());
+      Assert.assertFalse(a.equals(b.copy().removeAxis("angle").build()));
+      Assert.assertFalse(a.equals(b.copy().time(4).build()));
+   }
+
+   @Test
+   public void testBuilderOperations() {
+      Coords coords = new DefaultCoords.Builder().time(3).z(2).build();
+      Coords copy = coords.copy().offset(Coords.TIME, 2).channel(0).build();
+      Assert.assertEquals(5, copy.getTime());
+      Assert.assertEquals(0, copy.getChannel());
+      Assert.assertEquals(3, coords.getTime());
+      Assert.assertEquals(-1, coords.getChannel());
+      Assert.assertEquals(-1, coords.getIndex("neverUsedAxis"));
+      Assert.assertTrue(copy.matches(coords.copy().removeAxis(Coords.TIME)
+               .build()));
+      Assert.assertFalse(copy.matches(coords));
+      Assert.assertEquals("<channel: 0, time: 5, z: 2>", copy.toString());
+      Assert.assertEquals(copy, DefaultCoords.fromNormalizedString(
+               ((DefaultCoords) copy).toNormalizedString()));
+   }
+
+   @Test
+   public void testPackedKey() {
+      Coords coords = new DefaultCoords.Builder().channel(1).z(0)
+         .stagePosition(7).build();
+      long key = DefaultCoords.packKey(coords);
+      Assert.assertNotEquals(DefaultCoords.NOT_PACKABLE, key);
+      Assert.assertEquals(coords, DefaultCoords.fromPackedKey(key));
+      Assert.assertNotEquals(key, DefaultCoords.packKey(
+               new DefaultCoords.Builder().channel(1).stagePosition(7)
+               .build()));
+      Assert.assertEquals(DefaultCoords.NOT_PACKABLE, DefaultCoords.packKey(
+               new DefaultCoords.Builder().time(1).index("angle", 0)
+               .build()));
+      Assert.assertEquals(DefaultCoords.NOT_PACKABLE, DefaultCoords.packKey(
+               new DefaultCoords.Builder()
+               .time(DefaultCoords.MAX_PACKABLE_INDEX + 1).build()));
+   }
+}
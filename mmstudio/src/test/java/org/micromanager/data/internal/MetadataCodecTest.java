@@ -0,0 +1,148 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data testing
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal;
+
+import java.awt.Rectangle;
+import java.util.UUID;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.PropertyMap;
+import org.micromanager.data.Metadata;
+
+/**
+ * Tests the binary metadata encoding used by StorageOffHeapRAM.
+ */
+public class MetadataCodecTest {
+   private static PropertyMap makeScopeData(double zPosition) {
+      return new DefaultPropertyMap.Builder()
+         .putString("Camera-Binning", "1")
+         .putString("Camera-PixelType", "16bit")
+         .putString("Core-Focus", "Z")
+         .putString("Objective-Label", "Nikon 10X S Fluor")
+         .putString("Z-Position", Double.toString(zPosition))
+         .build();
+   }
+
+   private static Metadata makeMetadata(PropertyMap scopeData) {
+      return new DefaultMetadata.Builder()
+         .uuid(UUID.randomUUID())
+         .bitDepth(12)
+         .exposureMs(10.5)
+         .imageNumber(42L)
+         .positionName("Pos0")
+         .xPositionUm(1.25)
+         .camera("Camera")
+         .ROI(new Rectangle(0, 0, 512, 256))
+         .scopeData(scopeData)
+         .userData(new DefaultPropertyMap.Builder()
+               .putInt("Count", 3)
+               .putDoubleArray("Values", new Double[] {1.0, 2.5})
+               .putString("Note", "hello")
+               .build())
+         .build();
+   }
+
+   private static void assertMetadataEquals(Metadata expected,
+         Metadata actual) {
+      Assert.assertEquals(expected.getUUID(), actual.getUUID());
+      Assert.assertEquals(expected.getBitDepth(), actual.getBitDepth());
+      Assert.assertEquals(expected.getExposureMs(), actual.getExposureMs());
+      Assert.assertEquals(expected.getImageNumber(), actual.getImageNumber());
+      Assert.assertEquals(expected.getPositionName(), actual.getPositionName());
+      Assert.assertEquals(expected.getXPositionUm(), actual.getXPositionUm());
+      Assert.assertNull(actual.getYPositionUm());
+      Assert.assertEquals(expected.getCamera(), actual.getCamera());
+      Assert.assertEquals(expected.getROI(), actual.getROI());
+      Assert.assertEquals(expected.getScopeData(), actual.getScopeData());
+      Assert.assertEquals(expected.getUserData(), actual.getUserData());
+   }
+
+   @Test
+   public void testRoundTrip() {
+      MetadataCodec codec = new MetadataCodec();
+      Metadata metadata = makeMetadata(makeScopeData(0));
+      assertMetadataEquals(metadata, codec.decode(codec.encode(metadata)));
+   }
+
+   @Test
+   public void testScopeDataDeltas() {
+      MetadataCodec codec = new MetadataCodec();
+      Metadata first = makeMetadata(makeScopeData(0));
+      byte[] firstBytes = codec.encode(first);
+      // Only one scope data property differs, so this should be stored as
+      // that one property plus a reference to the first image's scope data.
+      Metadata second = makeMetadata(makeScopeData(1.5));
+      byte[] secondBytes = codec.encode(second);
+      Assert.assertTrue(secondBytes.length < firstBytes.length + 32);
+      assertMetadataEquals(second, codec.decode(secondBytes));
+      // Unchanged scope data shares the base map.
+      Metadata decoded = codec.decode(firstBytes);
+      Assert.assertSame(decoded.getScopeData(),
+            codec.decode(codec.encode(first)).getScopeData());
+   }
+
+   @Test
+   public void testManyImagesRoundTrip() {
+      MetadataCodec codec = new MetadataCodec();
+      Metadata[] metadatas = new Metadata[200];
+      byte[][] encoded = new byte[metadatas.length][];
+      for (int i = 0; i < metadatas.length; ++i) {
+         metadatas[i] = makeMetadata(makeScopeData(i * .5));
+         encoded[i] = codec.encode(metadatas[i]);
+      }
+      for (int i = 0; i < metadatas.length; ++i) {
+         assertMetadataEquals(metadatas[i], codec.decode(encoded[i]));
+      }
+   }
+
+   @Test
+   public void testAlternatingScopeDataReusesBases() {
+      MetadataCodec codec = new MetadataCodec();
+      PropertyMap[] states = new PropertyMap[] {
+         makeScopeData(0),
+         new DefaultPropertyMap.Builder()
+            .putString("Dichroic-Label", "Cy5")
+            .putString("Emission-Label", "Cy5")
+            .putString("Excitation-Label", "640")
+            .build()
+      };
+      for (int i = 0; i < 1000; ++i) {
+         Metadata metadata = makeMetadata(states[i % 2]);
+         assertMetadataEquals(metadata, codec.decode(codec.encode(metadata)));
+      }
+      Assert.assertEquals(2, codec.getNumScopeBases());
+   }
+
+   @Test
+   public void testStringsPastInternLimit() {
+      MetadataCodec codec = new MetadataCodec();
+      int count = MetadataCodec.MAX_INTERNED_STRINGS + 10;
+      byte[][] encoded = new byte[count][];
+      for (int i = 0; i < count; ++i) {
+         encoded[i] = codec.encode(new DefaultMetadata.Builder()
+               .positionName("Pos" + i).build());
+      }
+      for (int i = 0; i < count; i += 997) {
+         Assert.assertEquals("Pos" + i,
+               codec.decode(encoded[i]).getPositionName());
+      }
+      Assert.assertEquals("Pos" + (count - 1),
+            codec.decode(encoded[count - 1]).getPositionName());
+   }
+}
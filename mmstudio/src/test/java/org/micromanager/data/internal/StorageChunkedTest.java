@@ -0,0 +1,175 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data testing
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal;
+
+import com.google.common.io.Files;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+
+/**
+ * Tests writing and reading images with StorageChunked.
+ */
+public class StorageChunkedTest {
+   // Chunks that don't divide the image evenly, so that edge chunks are
+   // partial.
+   private static final int WIDTH = 300;
+   private static final int HEIGHT = 200;
+   private static final int CHUNK_SIZE = 128;
+
+   private static Coords makeCoords(int time) {
+      return new DefaultCoords.Builder().time(time).channel(0).build();
+   }
+
+   private static Image makeImage(int time, long seed) {
+      Random random = new Random(seed);
+      short[] pixels = new short[WIDTH * HEIGHT];
+      for (int i = 0; i < pixels.length; ++i) {
+         // Camera-like data, so that chunks compress.
+         pixels[i] = (short) (100 + random.nextInt(1000));
+      }
+      return new DefaultImage(pixels, WIDTH, HEIGHT, 2, 1, makeCoords(time),
+            new DefaultMetadata.Builder().positionName("Pos" + seed).build());
+   }
+
+   private static StorageChunked makeStorage(File dir, boolean isNew)
+         throws IOException {
+      return new StorageChunked(new DefaultDatastore(), dir.getPath(), isNew,
+            CHUNK_SIZE, CHUNK_SIZE);
+   }
+
+   private static void assertSamePixels(Image expected, Image actual) {
+      Assert.assertNotNull(actual);
+      Assert.assertEquals(expected.getWidth(), actual.getWidth());
+      Assert.assertEquals(expected.getHeight(), actual.getHeight());
+      Assert.assertArrayEquals((short[]) expected.getRawPixels(),
+            (short[]) actual.getRawPixels());
+   }
+
+   /**
+    * Check that the given region of the image matches the original, pixel
+    * for pixel.
+    */
+   private static void assertRegion(Image original, Rectangle region,
+         Image actual) {
+      Assert.assertNotNull(actual);
+      Assert.assertEquals(region.width, actual.getWidth());
+      Assert.assertEquals(region.height, actual.getHeight());
+      for (int y = 0; y < region.height; ++y) {
+         for (int x = 0; x < region.width; ++x) {
+            Assert.assertEquals(
+                  original.getIntensityAt(region.x + x, region.y + y),
+                  actual.getIntensityAt(x, y));
+         }
+      }
+   }
+
+   @Test
+   public void testRoundTrip() throws IOException {
+      File dir = new File(Files.createTempDir(), "chunked");
+      StorageChunked storage = makeStorage(dir, true);
+      Image first = makeImage(0, 1);
+      Image second = makeImage(1, 2);
+      storage.putImage(first);
+      storage.putImage(second);
+      storage.freeze();
+
+      Assert.assertEquals(2, storage.getNumImages());
+      Assert.assertEquals(1, (int) storage.getMaxIndex(Coords.TIME));
+      Image result = storage.getImage(makeCoords(0));
+      assertSamePixels(first, result);
+      Assert.assertEquals(makeCoords(0), result.getCoords());
+      Assert.assertEquals("Pos1", result.getMetadata().getPositionName());
+      assertSamePixels(second, storage.getImage(makeCoords(1)));
+      Assert.assertNull(storage.getImage(makeCoords(2)));
+   }
+
+   @Test
+   public void testRegion() throws IOException {
+      File dir = new File(Files.createTempDir(), "chunked");
+      StorageChunked storage = makeStorage(dir, true);
+      Image image = makeImage(0, 1);
+      storage.putImage(image);
+      storage.freeze();
+
+      // Spans chunk boundaries in both directions.
+      Rectangle region = new Rectangle(100, 60, 150, 90);
+      assertRegion(image, region,
+            storage.getImageRegion(makeCoords(0), region));
+      // Hangs off the bottom-right corner, so is clipped.
+      assertRegion(image, new Rectangle(250, 150, 50, 50),
+            storage.getImageRegion(makeCoords(0),
+               new Rectangle(250, 150, 100, 100)));
+      // Hangs off the top-left corner.
+      assertRegion(image, new Rectangle(0, 0, 10, 20),
+            storage.getImageRegion(makeCoords(0),
+               new Rectangle(-5, -5, 15, 25)));
+      // Entirely outside the image.
+      Assert.assertNull(storage.getImageRegion(makeCoords(0),
+               new Rectangle(WIDTH, 0, 10, 10)));
+   }
+
+   @Test
+   public void testRewrite() throws IOException {
+      File dir = new File(Files.createTempDir(), "chunked");
+      StorageChunked storage = makeStorage(dir, true);
+      storage.putImage(makeImage(0, 1));
+      Image replacement = makeImage(0, 2);
+      storage.putImage(replacement);
+      Image other = makeImage(1, 3);
+      storage.putImage(other);
+      storage.deleteImage(makeCoords(1));
+      storage.freeze();
+
+      Assert.assertEquals(1, storage.getNumImages());
+      Image result = storage.getImage(makeCoords(0));
+      assertSamePixels(replacement, result);
+      Assert.assertEquals("Pos2", result.getMetadata().getPositionName());
+      Assert.assertNull(storage.getImage(makeCoords(1)));
+   }
+
+   @Test
+   public void testReopen() throws IOException {
+      File dir = new File(Files.createTempDir(), "chunked");
+      StorageChunked storage = makeStorage(dir, true);
+      Image first = makeImage(0, 1);
+      Image second = makeImage(3, 2);
+      storage.putImage(first);
+      storage.putImage(second);
+      storage.close();
+
+      Assert.assertTrue(StorageChunked.isChunkedDataset(dir.getPath()));
+      StorageChunked reopened = makeStorage(dir, false);
+      Assert.assertEquals(2, reopened.getNumImages());
+      Assert.assertEquals(3, (int) reopened.getMaxIndex(Coords.TIME));
+      assertSamePixels(first, reopened.getImage(makeCoords(0)));
+      Image result = reopened.getImage(makeCoords(3));
+      assertSamePixels(second, result);
+      Assert.assertEquals("Pos2", result.getMetadata().getPositionName());
+      Rectangle region = new Rectangle(130, 10, 20, 150);
+      assertRegion(second, region,
+            reopened.getImageRegion(makeCoords(3), region));
+      reopened.close();
+   }
+}
@@ -0,0 +1,104 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data testing
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+import org.micromanager.data.internal.DefaultCoords;
+
+/**
+ * Tests writing and reading back sidecar index files.
+ */
+public class SidecarIndexTest {
+   private static Coords makeCoords(int channel, int z, int time, int pos) {
+      return new DefaultCoords.Builder().channel(channel).z(z).time(time)
+         .stagePosition(pos).build();
+   }
+
+   private static File writeIndex() throws IOException {
+      File file = File.createTempFile("sidecar", ".bin");
+      file.deleteOnExit();
+      SidecarIndexWriter writer = new SidecarIndexWriter(file);
+      int first = writer.addFile("first.ome.tif");
+      int second = writer.addFile("a_much_longer_file_name_for_the_second_file.ome.tif");
+      for (int t = 0; t < 1000; ++t) {
+         writer.addImage(makeCoords(t % 3, t % 7, t, t % 2),
+               t % 2 == 0 ? first : second, 1000L * t, t + 1);
+      }
+      // Overwrite an earlier image.
+      writer.addImage(makeCoords(0, 0, 0, 0), second, 123456789012L, 42);
+      writer.close();
+      return file;
+   }
+
+   @Test
+   public void testRoundTrip() throws IOException {
+      SidecarIndex index = SidecarIndex.open(writeIndex());
+      Assert.assertEquals(1000, index.getNumImages());
+      Assert.assertEquals(0, index.getNumTruncatedBytes());
+      Assert.assertEquals(2, index.getFileNames().size());
+
+      int record = index.find(makeCoords(1, 5, 775, 1));
+      Assert.assertTrue(record >= 0);
+      Assert.assertEquals(1, index.getFileId(record));
+      Assert.assertEquals(775000L, index.getIFDOffset(record));
+      Assert.assertEquals(776, index.getMetadataLength(record));
+      Assert.assertEquals(makeCoords(1, 5, 775, 1), index.getCoords(record));
+
+      record = index.find(makeCoords(0, 0, 0, 0));
+      Assert.assertEquals("a_much_longer_file_name_for_the_second_file.ome.tif",
+            index.getFileName(record));
+      Assert.assertEquals(123456789012L, index.getIFDOffset(record));
+
+      Assert.assertEquals(-1, index.find(makeCoords(2, 5, 775, 1)));
+      Assert.assertEquals(-1, index.find(
+               new DefaultCoords.Builder().channel(1).z(5).time(775).build()));
+
+      HashSet<Coords> allCoords = new HashSet<Coords>();
+      for (Coords coords : index.getCoords()) {
+         allCoords.add(coords);
+      }
+      Assert.assertEquals(1000, allCoords.size());
+      Assert.assertEquals(allCoords, index.getCoordsSet());
+      Assert.assertTrue(index.getCoordsSet().contains(makeCoords(1, 5, 775, 1)));
+      Assert.assertFalse(index.getCoordsSet().contains(makeCoords(2, 5, 775, 1)));
+      Assert.assertEquals(makeCoords(2, 6, 999, 1), index.getMaxIndices());
+   }
+
+   @Test
+   public void testTruncatedIndex() throws IOException {
+      File file = writeIndex();
+      // Simulate a crash partway through writing the last record.
+      RandomAccessFile raFile = new RandomAccessFile(file, "rw");
+      raFile.setLength(raFile.length() - 10);
+      raFile.close();
+      SidecarIndex index = SidecarIndex.open(file);
+      Assert.assertEquals(1000, index.getNumImages());
+      Assert.assertEquals(SidecarIndex.RECORD_SIZE - 10,
+            index.getNumTruncatedBytes());
+      // The overwrite was lost, so the original location is used.
+      Assert.assertEquals(0L,
+            index.getIFDOffset(index.find(makeCoords(0, 0, 0, 0))));
+   }
+}
@@ -0,0 +1,218 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data testing
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.data.Image;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultImage;
+
+/**
+ * Tests that AsynchronousContext passes images along in the order they were
+ * inserted, however many threads its processor runs on.
+ */
+public class AsynchronousContextTest {
+   /**
+    * Collects the images output by the context under test.
+    */
+   private static final class Collector extends BaseContext {
+      final List<Integer> times_ =
+         Collections.synchronizedList(new ArrayList<Integer>());
+
+      Collector() {
+         super(null, null, null);
+      }
+
+      @Override
+      public void insertImage(ImageWrapper wrapper) {
+         if (wrapper.getImage() != null) {
+            times_.add(wrapper.getImage().getCoords().getTime());
+         }
+      }
+   }
+
+   /**
+    * Passes images along after a random delay, so that with several threads
+    * they finish out of order.
+    */
+   private static class ShuffleProcessor extends Processor {
+      private final int maxBatchSize_;
+      private final Random random_ = new Random(1234);
+
+      ShuffleProcessor(int maxBatchSize) {
+         maxBatchSize_ = maxBatchSize;
+      }
+
+      @Override
+      public void processImage(Image image, ProcessorContext context) {
+         int delay;
+         synchronized (random_) {
+            delay = random_.nextInt(5);
+         }
+         try {
+            Thread.sleep(delay);
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         context.outputImage(image);
+      }
+
+      @Override
+      public int getMaxBatchSize() {
+         return maxBatchSize_;
+      }
+
+      @Override
+      public int getMaxThreads() {
+         return 4;
+      }
+
+      @Override
+      public int getQueueDepth() {
+         return 2;
+      }
+   }
+
+   private static Image makeImage(int time) {
+      return new DefaultImage(new byte[1], 1, 1, 1, 1,
+            new DefaultCoords.Builder().time(time).build(), null);
+   }
+
+   private static DefaultPipeline makeParent() {
+      return new DefaultPipeline(new ArrayList<Processor>(), null, false);
+   }
+
+   private static void halt(BaseContext context) throws InterruptedException {
+      CountDownLatch latch = new CountDownLatch(1);
+      context.setFlushLatch(latch);
+      context.insertImage(new ImageWrapper(null));
+      Assert.assertTrue("Context did not flush",
+            latch.await(30, TimeUnit.SECONDS));
+   }
+
+   private static List<Integer> range(int count) {
+      ArrayList<Integer> result = new ArrayList<Integer>();
+      for (int i = 0; i < count; ++i) {
+         result.add(i);
+      }
+      return result;
+   }
+
+   private static List<Integer> runImages(Processor processor,
+         DefaultPipeline parent, int count) throws InterruptedException {
+      AsynchronousContext context = new AsynchronousContext(processor,
+            null, parent);
+      Collector collector = new Collector();
+      context.setSink(collector);
+      for (int i = 0; i < count; ++i) {
+         context.insertImage(new ImageWrapper(makeImage(i)));
+      }
+      halt(context);
+      return collector.times_;
+   }
+
+   @Test
+   public void testOrderWithMultipleThreads() throws InterruptedException {
+      Assert.assertEquals(range(200),
+            runImages(new ShuffleProcessor(1), makeParent(), 200));
+   }
+
+   @Test
+   public void testOrderWithBatches() throws InterruptedException {
+      Assert.assertEquals(range(200),
+            runImages(new ShuffleProcessor(3), makeParent(), 200));
+   }
+
+   @Test
+   public void testErrorDoesNotStallOutput() throws InterruptedException {
+      Processor processor = new ShuffleProcessor(1) {
+         @Override
+         public void processImage(Image image, ProcessorContext context) {
+            if (image.getCoords().getTime() == 5) {
+               throw new AssertionError("Test failure");
+            }
+            super.processImage(image, context);
+         }
+      };
+      DefaultPipeline parent = makeParent();
+      List<Integer> expected = range(20);
+      expected.remove((Integer) 5);
+      Assert.assertEquals(expected, runImages(processor, parent, 20));
+      Assert.assertEquals(1, parent.getExceptions().size());
+   }
+
+   @Test
+   public void testInFlightLimit() throws InterruptedException {
+      final CountDownLatch release = new CountDownLatch(1);
+      final AtomicInteger numProcessed = new AtomicInteger(0);
+      Processor processor = new ShuffleProcessor(1) {
+         @Override
+         public void processImage(Image image, ProcessorContext context) {
+            if (image.getCoords().getTime() == 0) {
+               // Hold up the first image, so nothing can be output.
+               try {
+                  release.await();
+               }
+               catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+               }
+            }
+            numProcessed.incrementAndGet();
+            context.outputImage(image);
+         }
+      };
+      final AsynchronousContext context = new AsynchronousContext(processor,
+            null, makeParent());
+      Collector collector = new Collector();
+      context.setSink(collector);
+      final AtomicInteger numInserted = new AtomicInteger(0);
+      Thread inserter = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            for (int i = 0; i < 100; ++i) {
+               context.insertImage(new ImageWrapper(makeImage(i)));
+               numInserted.incrementAndGet();
+            }
+         }
+      });
+      inserter.start();
+      Thread.sleep(1000);
+      // Taken batches, plus a full queue, plus the one being inserted.
+      int limit = context.getNumThreads() * context.getQueueCapacity() +
+         context.getQueueCapacity() + 1;
+      Assert.assertTrue(numInserted.get() <= limit);
+      Assert.assertTrue(numProcessed.get() < limit);
+      Assert.assertTrue(collector.times_.isEmpty());
+      release.countDown();
+      inserter.join(30000);
+      halt(context);
+      Assert.assertEquals(range(100), collector.times_);
+   }
+}
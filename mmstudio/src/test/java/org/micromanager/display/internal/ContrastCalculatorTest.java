@@ -0,0 +1,99 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Display testing
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.display.internal;
+
+import ij.gui.Roi;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.data.Image;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.display.HistogramData;
+
+/**
+ * Tests that splitting large images into stripes of rows gives the same
+ * histogram as calculating it in one pass.
+ */
+public class ContrastCalculatorTest {
+   // Large enough to be split into up to 7 stripes.
+   private static final int WIDTH = 1200;
+   private static final int HEIGHT = 1531;
+
+   private static Image makeImage(int maxVal) {
+      Random random = new Random(42);
+      short[] pixels = new short[WIDTH * HEIGHT];
+      for (int i = 0; i < pixels.length; ++i) {
+         pixels[i] = (short) random.nextInt(maxVal + 1);
+      }
+      return new DefaultImage(pixels, WIDTH, HEIGHT, 2, 1,
+            new DefaultCoords.Builder().build(), null);
+   }
+
+   private static void assertSameHistogram(HistogramData expected,
+         HistogramData actual) {
+      Assert.assertArrayEquals(expected.getHistogram(), actual.getHistogram());
+      Assert.assertEquals(expected.getNumSamples(), actual.getNumSamples());
+      Assert.assertEquals(expected.getMinVal(), actual.getMinVal());
+      Assert.assertEquals(expected.getMaxVal(), actual.getMaxVal());
+      Assert.assertEquals(expected.getMinIgnoringOutliers(),
+            actual.getMinIgnoringOutliers());
+      Assert.assertEquals(expected.getMaxIgnoringOutliers(),
+            actual.getMaxIgnoringOutliers());
+      Assert.assertEquals(expected.getMean(), actual.getMean());
+      Assert.assertEquals(expected.getStdDev(), actual.getStdDev(), 1e-9);
+   }
+
+   private static void checkStripes(Image image, Roi roi, int binPower,
+         int depthPower) {
+      HistogramData serial = ContrastCalculator.calculateHistogram(image,
+            roi, 0, binPower, depthPower, 0.1, true, 1);
+      for (int maxStripes = 2; maxStripes <= 7; ++maxStripes) {
+         assertSameHistogram(serial, ContrastCalculator.calculateHistogram(
+                  image, roi, 0, binPower, depthPower, 0.1, true,
+                  maxStripes));
+      }
+   }
+
+   @Test
+   public void testStripedMatchesSerial() {
+      checkStripes(makeImage(65535), null, 16, 16);
+   }
+
+   @Test
+   public void testStripedMatchesSerialWithBinning() {
+      // 12-bit data in 256 bins, with some values out of range.
+      checkStripes(makeImage(5000), null, 8, 12);
+   }
+
+   @Test
+   public void testStripedMatchesSerialInRoi() {
+      // A rectangular ROI whose rows don't divide evenly into stripes.
+      checkStripes(makeImage(65535), new Roi(17, 3, 1111, 1501), 16, 16);
+   }
+
+   @Test
+   public void testDefaultMatchesSerial() {
+      Image image = makeImage(65535);
+      HistogramData serial = ContrastCalculator.calculateHistogram(image,
+            null, 0, 16, 16, 0.1, true, 1);
+      assertSameHistogram(serial, ContrastCalculator.calculateHistogram(
+               image, null, 0, 16, 16, 0.1, true, false));
+   }
+}
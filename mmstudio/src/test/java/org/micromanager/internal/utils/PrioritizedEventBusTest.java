@@ -0,0 +1,108 @@
+package org.micromanager.internal.utils;
+
+import com.google.common.eventbus.Subscribe;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class PrioritizedEventBusTest {
+
+   public static class Recorder {
+      private final String name_;
+      private final List<String> log_;
+
+      public Recorder(String name, List<String> log) {
+         name_ = name;
+         log_ = log;
+      }
+
+      @Subscribe
+      public void onEvent(Integer event) {
+         log_.add(name_ + event);
+      }
+   }
+
+   public static class SlowSubscriber {
+      private final CountDownLatch done_ = new CountDownLatch(1);
+      private final List<Integer> received_ =
+         Collections.synchronizedList(new ArrayList<Integer>());
+
+      @Subscribe
+      public void onEvent(Integer event) throws InterruptedException {
+         Thread.sleep(2);
+         received_.add(event);
+         if (event == 99) {
+            done_.countDown();
+         }
+      }
+   }
+
+   public static abstract class GenericSubscriber<T> {
+      @Subscribe
+      public abstract void onEvent(T event);
+   }
+
+   public static class IntegerSubscriber extends GenericSubscriber<Integer> {
+      private final List<Integer> received_ = new ArrayList<Integer>();
+
+      @Subscribe
+      @Override
+      public void onEvent(Integer event) {
+         received_.add(event);
+      }
+   }
+
+   @Test
+   public void testPriorityOrder() {
+      List<String> log = new ArrayList<String>();
+      PrioritizedEventBus bus = new PrioritizedEventBus();
+      bus.register(new Recorder("late", log), 200);
+      bus.register(new Recorder("early", log), 0);
+      Recorder unregistered = new Recorder("gone", log);
+      bus.register(unregistered);
+      bus.register(new Recorder("default", log));
+      bus.unregister(unregistered);
+      bus.post(1);
+      // Not an Integer, so nobody receives it.
+      bus.post("ignored");
+      assertEquals("[early1, default1, late1]", log.toString());
+      assertEquals(2, bus.getNumEventsPosted());
+      assertEquals(3, bus.getSubscriberStats().size());
+   }
+
+   @Test
+   public void testCoalescing() throws InterruptedException {
+      PrioritizedEventBus bus = new PrioritizedEventBus();
+      SlowSubscriber slow = new SlowSubscriber();
+      bus.register(slow, PrioritizedEventBus.DEFAULT_PRIORITY,
+            PrioritizedEventBus.Delivery.ASYNC_COALESCING);
+      for (int i = 0; i < 100; ++i) {
+         bus.post(i);
+      }
+      assertTrue(slow.done_.await(10, TimeUnit.SECONDS));
+      // Events arrive in order, and the last one is never dropped.
+      List<Integer> received = new ArrayList<Integer>(slow.received_);
+      assertEquals(Integer.valueOf(99), received.get(received.size() - 1));
+      for (int i = 1; i < received.size(); ++i) {
+         assertTrue(received.get(i - 1) < received.get(i));
+      }
+      PrioritizedEventBus.SubscriberStats stats =
+         bus.getSubscriberStats().get(0);
+      assertEquals(100, received.size() + stats.getNumEventsCoalesced());
+   }
+
+   @Test
+   public void testGenericSubscriber() {
+      PrioritizedEventBus bus = new PrioritizedEventBus();
+      IntegerSubscriber subscriber = new IntegerSubscriber();
+      bus.register(subscriber);
+      bus.post(1);
+      bus.post("not an Integer");
+      // The compiler's bridge method must not deliver events a second time.
+      assertEquals("[1]", subscriber.received_.toString());
+   }
+}
@@ -39,6 +39,7 @@ import org.micromanager.asidispim.utils.ListeningJPanel;
 import org.micromanager.asidispim.utils.MyDialogUtils;
 import org.micromanager.asidispim.utils.MyNumberUtils;
 import org.micromanager.asidispim.utils.PanelUtils;
+import org.micromanager.asidispim.utils.SequenceDrain;
 import org.micromanager.asidispim.utils.SliceTiming;
 import org.micromanager.asidispim.utils.StagePositionUpdater;
 
@@ -82,6 +83,7 @@ import java.awt.event.WindowEvent;
 import java.awt.geom.Point2D;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.util.Collections;
 import java.util.Date;
 
 import javax.swing.BorderFactory;
@@ -102,6 +104,8 @@ import org.micromanager.data.DatastoreRewriteException;
 import org.micromanager.data.Image;
 import org.micromanager.data.Metadata;
 import org.micromanager.data.Metadata.MetadataBuilder;
+import org.micromanager.data.Pipeline;
+import org.micromanager.data.ProcessorFactory;
 import org.micromanager.data.SummaryMetadata;
 import org.micromanager.display.DisplaySettings.DisplaySettingsBuilder;
 import org.micromanager.display.DisplayWindow;
@@ -118,6 +122,7 @@ import org.micromanager.asidispim.data.Devices.Sides;
 import org.micromanager.asidispim.events.SPIMAcquisitionEndedEvent;
 import org.micromanager.asidispim.events.SPIMAcquisitionStartedEvent;
 import org.micromanager.asidispim.utils.ControllerUtils;
+import org.micromanager.asidispim.utils.DeskewProcessor;
 import org.micromanager.asidispim.utils.AutofocusUtils;
 import org.micromanager.asidispim.utils.SPIMFrame;
 
@@ -2243,6 +2248,8 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
          }
 
          Datastore store = null;
+         Pipeline pipeline = null;
+         SequenceDrain drain = null;
 
          long extraStageScanTimeout = 0;
          if (acqSettings.isStageScanning) {
@@ -2377,7 +2384,36 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
             pmb.putString("MVRotationAxis", "0_1_0");
             pmb.putString("MVRotations", viewString);
 
-            store.setSummaryMetadata(smb.userData(pmb.build()).build());
+            SummaryMetadata summary = smb.userData(pmb.build()).build();
+
+            // optionally deskew stage scanning data on its way to the datastore,
+            //   using the settings of the Data Analysis panel
+            if (acqSettings.isStageScanning && prefs_.getBoolean(
+                    MyStrings.PanelNames.DATAANALYSIS.toString(),
+                    Properties.Keys.PLUGIN_DESKEW_DURING_ACQ, false)) {
+               final double pixelSizeUm = core_.getPixelSizeUm();
+               if (pixelSizeUm < 1e-6) {  // can't compare equality directly with floating point values
+                  ReportingUtils.logError("Not deskewing during acquisition because the pixel size is not configured");
+               } else {
+                  final String analysisPanel = MyStrings.PanelNames.DATAANALYSIS.toString();
+                  final double shiftPx = DeskewProcessor.getShiftPx(acqSettings, pixelSizeUm,
+                          prefs_.getFloat(analysisPanel, Properties.Keys.PLUGIN_DESKEW_FACTOR, 1f));
+                  final int[] directions = DeskewProcessor.getDirections(acqSettings, channelNr,
+                          prefs_.getBoolean(analysisPanel, Properties.Keys.PLUGIN_DESKEW_INVERT, false));
+                  ProcessorFactory deskewFactory = new DeskewProcessor.Factory(gui_,
+                          acqSettings.numSlices, shiftPx, directions,
+                          prefs_.getBoolean(analysisPanel, Properties.Keys.PLUGIN_DESKEW_INTERPOLATE, false));
+                  pipeline = gui_.data().createPipeline(
+                          Collections.singletonList(deskewFactory), store, false);
+                  ReportingUtils.logMessage("diSPIM plugin deskewing during acquisition by "
+                          + shiftPx + " pixels per slice");
+               }
+            }
+            if (pipeline != null) {
+               pipeline.insertSummaryMetadata(summary);
+            } else {
+               store.setSummaryMetadata(summary);
+            }
             
             // note that these SequenceSettings are quite incomplete
             SequenceSettings settings = acqSettings.getSequenceSettings();
@@ -2389,6 +2425,33 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
             // do once here but not per-trigger; need to ensure ROI changes registered
             core_.initializeCircularBuffer();
 
+            // images are taken from the circular buffer on their own thread,
+            //   and put into the datastore on another one
+            final Datastore drainStore = store;
+            final Pipeline drainPipeline = pipeline;
+            drain = new SequenceDrain(core_, twoSided
+                    ? new String[] {firstCamera, secondCamera}
+                    : new String[] {firstCamera},
+                    new SequenceDrain.ImageSink() {
+               @Override
+               public void putImage(TaggedImage image, int frame, int channel,
+                       int slice, int position, long ms) throws Exception {
+                  addImageToAcquisition(drainStore, drainPipeline, frame,
+                          channel, slice, position, ms, image);
+               }
+
+               @Override
+               public void timePointDone() {
+                  // update acquisition status message if needed
+                  //   (don't otherwise reach code that does this)
+                  if (numTimePointsDone_ < acqSettings.numTimepoints) {
+                     numTimePointsDone_++;
+                     updateAcquisitionStatus(AcquisitionStatus.ACQUIRING);
+                  }
+               }
+            });
+            drain.start();
+
             // make sure all devices have arrived, e.g. a stage isn't still moving
             try {
                core_.waitForSystem();
@@ -2565,128 +2628,19 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
                         }
 
                         // grab all the images from the cameras, put them into the acquisition
-                        int[] frNumber = new int[2 * acqSettings.numChannels];  // keep track of how many frames we have received for each "channel" (MM channel is our channel * 2 for the 2 cameras)
-                        int[] cameraFrNumber = new int[2];       // keep track of how many frames we have received from the camera
-                        int[] tpNumber = new int[2 * acqSettings.numChannels];  // keep track of which timepoint we are on for hardware timepoints
-                        boolean skipNextImage = false;  // hardware timepoints with overlap mode sometimes have to drop spurious image 
-                        final boolean checkForSkips = acqSettings.hardwareTimepoints && (acqSettings.cameraMode == CameraModes.Keys.OVERLAP); 
- 	                     final boolean skipPerSide = acqSettings.useChannels && (acqSettings.numChannels > 1) 
- 	                              && (acqSettings.channelMode == MultichannelModes.Keys.SLICE_HW);  
-                        boolean done = false;
+                        //   where each image goes is worked out before it arrives
+                        SequenceDrain.FrameLookup lookup = new SequenceDrain.FrameLookup(
+                                acqSettings, twoSided ? 2 : 1, nrSlicesSoftware,
+                                channelNum, timePoint);
                         final long timeout2 = Math.max(1000, Math.round(5*sliceDuration)); 
-                        start = System.currentTimeMillis();
-                        long last = start;
                         try {
-                           while ((core_.getRemainingImageCount() > 0
-                                   || core_.isSequenceRunning(firstCamera)
-                                   || (twoSided && core_.isSequenceRunning(secondCamera)))
-                                   && !done) {
-                              now = System.currentTimeMillis();
-                              if (core_.getRemainingImageCount() > 0) {  // we have an image to grab
-                                 TaggedImage timg = core_.popNextTaggedImage();
-                                 
-                                 if (skipNextImage) { 
- 	                                 skipNextImage = false; 
- 	                                 continue;  // goes to next iteration of this loop without doing anything else 
- 	                              } 
-
-                                 // figure out which channel index this frame belongs to 
- 	                              // "channel index" is channel of MM acquisition 
- 	                              // channel indexes will go from 0 to (nrSides * nrChannels - 1) 
- 	                              // if double-sided then second camera gets odd channel indexes (1, 3, etc.) 
- 	                              //    and adjacent pairs will be same color (e.g. 0 and 1 will be from first color, 2 and 3 from second, etc.) String camera = (String) timg.tags.get("Camera");
-                                 String camera = (String) timg.tags.get("Camera");
-                                 int cameraIndex = camera.equals(firstCamera) ? 0 : 1;
-                                 int channelIndex_tmp;
-                                 switch (acqSettings.channelMode) {
-                                    case NONE:
-                                    case VOLUME:
-                                       channelIndex_tmp = channelNum;
-                                       break;
-                                    case VOLUME_HW:
-                                       channelIndex_tmp = cameraFrNumber[cameraIndex] / 
-                                               acqSettings.numSlices;  // want quotient only
-                                       break;
-                                    case SLICE_HW:
-                                       channelIndex_tmp = cameraFrNumber[cameraIndex] % 
-                                               acqSettings.numChannels;  // want modulo arithmetic
-                                       break;
-                                    default:
-                                       // should never get here
-                                       throw new Exception("Undefined channel mode");
-                                 }
-
-                                 if (twoSided) {
-                                    channelIndex_tmp *= 2;
-                                 }
-                                 final int channelIndex = channelIndex_tmp + cameraIndex;
-
-                                 int actualTimePoint = timePoint;
-                                 if (acqSettings.hardwareTimepoints) {
-                                    actualTimePoint = tpNumber[channelIndex];
-                                 }
-                                 if (acqSettings.separateTimepoints) {
-                                    // if we are doing separate timepoints then frame is always 0 
-                                    actualTimePoint = 0;
-                                 }
-                                 // note that hardwareTimepoints and separateTimepoints can never both be true
-
-                                 // add image to acquisition
-                                 if (spimMode == AcquisitionModes.Keys.NO_SCAN && !acqSettings.separateTimepoints) {
-                                    // create time series for no scan
-
-                                    addImageToAcquisition(store,
-                                            frNumber[channelIndex], channelIndex, timePoint,
-                                            positionNum, now - acqStart, timg);
-                                 } else { // standard, create Z-stacks
-                                    addImageToAcquisition(store, timePoint, channelIndex,
-                                            frNumber[channelIndex], positionNum,
-                                            now - acqStart, timg);
-                                 }
-
-                                 // update our counters to be ready for next image
-                                 frNumber[channelIndex]++;
-                                 cameraFrNumber[cameraIndex]++;
-                                 // if hardware timepoints then we only send one trigger
-                                 //   manually keep track of which channel/timepoint comes next
-                                 if (acqSettings.hardwareTimepoints
-                                         && frNumber[channelIndex] >= acqSettings.numSlices) {   // only do this if we are done with the slices in this MM channel 
- 	                                 // we just finished filling one MM channel with all its slices so go to next timepoint for this channel          
-                                    frNumber[channelIndex] = 0;
-                                    tpNumber[channelIndex]++;
-                                    
-                                    // see if we are supposed to skip next image 
- 		                              if (checkForSkips) { 
- 		                                 if (skipPerSide) {  // one extra image per side, only happens with per-slice HW switching 
- 	                                       if ((channelIndex == (acqSettings.numChannels - 1))  // final channel index is last one of side 
- 	                                          || (twoSided && (channelIndex == (acqSettings.numChannels - 2)))) {  // 2nd-to-last channel index for two-sided is also last one of side                        skipNextImage = true; 
- 		                                    } 
- 		                                 } else {  // one extra image per MM channel, this includes case of only 1 color (either multi-channel disabled or else only 1 channel selected) 
- 		                                    skipNextImage = true; 
- 		                                 } 
- 		                              }
-                                    
-                                    // update acquisition status message if needed
-                                    //   (don't otherwise reach code that does this)
-                                    //   Arbitrarily choose one possible channel to do this on 
-                                    if (channelIndex == 0 && (numTimePointsDone_ < acqSettings.numTimepoints)) {
-                                       numTimePointsDone_++;
-                                       updateAcquisitionStatus(AcquisitionStatus.ACQUIRING);
-                                    }
-                                 }
-                                 last = now;  // keep track of last image timestamp
-
-                              } else {  // no image ready yet
-                                 done = cancelAcquisition_.get();
-                                 Thread.sleep(1);
-                                 if (now - last >= timeout2) {
-                                    ReportingUtils.logError("Camera did not send all expected images within"
-                                            + " a reasonable period for timepoint " + (timePoint + 1) + ".  Continuing anyway.");
-                                    nonfatalError = true;
-                                    done = true;
-                                 }
-                              }
+                           if (!drain.drain(lookup, positionNum, acqStart,
+                                   cancelAcquisition_, timeout2)) {
+                              ReportingUtils.logError("Camera did not send all expected images within"
+                                      + " a reasonable period for timepoint " + (timePoint + 1) + ".  Continuing anyway.");
+                              nonfatalError = true;
                            }
+                           ReportingUtils.logDebugMessage("diSPIM image drain: " + drain.getStatus());
 
                            // update count if we stopped in the middle
                            if (cancelAcquisition_.get()) {
@@ -2739,6 +2693,34 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
          } catch (Exception ex) {
             MyDialogUtils.showError(ex);
          } finally {  // end of this acquisition (could be about to restart if separate viewers)
+            try {
+               // wait for the last images to reach the datastore
+               if (drain != null) {
+                  drain.finish();
+                  if (drain.getNrDropped() > 0) {
+                     nonfatalError = true;
+                  }
+                  ReportingUtils.logMessage("diSPIM image drain: " + drain.getStatus());
+               }
+            } catch (Exception ex) {
+               MyDialogUtils.showError(ex, "Problem while saving acquired images");
+            } finally {
+               // let the deskew processor finish the images it has before
+               //   the store is frozen, even if the drain failed
+               if (pipeline != null) {
+                  try {
+                     pipeline.halt();
+                     if (!pipeline.getExceptions().isEmpty()) {
+                        nonfatalError = true;
+                        for (Exception ex : pipeline.getExceptions()) {
+                           ReportingUtils.logError(ex, "Error while deskewing");
+                        }
+                     }
+                  } catch (Exception ex) {
+                     MyDialogUtils.showError(ex, "Problem while deskewing acquired images");
+                  }
+               }
+            }
             try {
 
                if (store != null) {
@@ -2943,6 +2925,8 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
     * Eventually, this function should be replaced by the ScriptInterface version
     * of the same.
     * @param store - Datastore in which the image will be inserted
+    * @param pipeline - if not null, Pipeline through which the image goes
+    *           to the store (e.g. to deskew it)
     * @param frame - frame nr at which to insert the image
     * @param channel - channel at which to insert image
     * @param slice - (z) slice at which to insert image
@@ -2953,8 +2937,9 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
     * @throws org.micromanager.data.DatastoreFrozenException
      * @throws org.micromanager.data.DatastoreRewriteException
     */
-   private void addImageToAcquisition(Datastore store, int frame, int channel, 
-           int slice, int position, long ms, TaggedImage taggedImg) throws
+   private void addImageToAcquisition(Datastore store, Pipeline pipeline,
+           int frame, int channel, int slice, int position, long ms,
+           TaggedImage taggedImg) throws
            JSONException, DatastoreFrozenException, 
            DatastoreRewriteException, Exception
             {
@@ -2981,7 +2966,11 @@ public class AcquisitionPanel extends ListeningJPanel implements DevicesListener
       md = mdb.positionName(posName).userData(ud).build();
       img = img.copyWith(coord, md);
       
-      store.putImage(img);
+      if (pipeline != null) {
+         pipeline.insertImage(img);
+      } else {
+         store.putImage(img);
+      }
       
       /*
       // create required coordinate tags
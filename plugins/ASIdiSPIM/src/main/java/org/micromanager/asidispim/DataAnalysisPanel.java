@@ -76,6 +76,7 @@ public class DataAnalysisPanel extends ListeningJPanel {
    private final JCheckBox deskewInvert_; 
  	private final JCheckBox deskewInterpolate_; 
    private final JCheckBox deskewAutoTest_; 
+   private final JCheckBox deskewDuringAcq_;
    
    public static final String[] TRANSFORMOPTIONS = 
       {"None", "Rotate Right 90\u00B0", "Rotate Left 90\u00B0", "Rotate outward",
@@ -305,6 +306,12 @@ public class DataAnalysisPanel extends ListeningJPanel {
       deskewAutoTest_ = pu.makeCheckBox("Auto-deskew test acquisitions", 
  		        Properties.Keys.PLUGIN_DESKEW_AUTO_TEST, panelName_, false); 
  		deskewPanel_.add(deskewAutoTest_, "left, span 2, wrap"); 
+
+      deskewDuringAcq_ = pu.makeCheckBox("Deskew during acquisition",
+              Properties.Keys.PLUGIN_DESKEW_DURING_ACQ, panelName_, false);
+      deskewDuringAcq_.setToolTipText("Deskew stage scans while they are "
+              + "acquired, and show maximum projections of each volume");
+      deskewPanel_.add(deskewDuringAcq_, "left, span 2, wrap");
             
       JButton deskewButton = new JButton("Deskew Open Dataset");
       deskewButton.addActionListener(new ActionListener() {
@@ -357,6 +364,9 @@ public class DataAnalysisPanel extends ListeningJPanel {
                        || acqMode == AcquisitionModes.Keys.STAGE_SCAN_UNIDIRECTIONAL)) {
                   throw new Exception("Can only deskew stage scanning data");
                }
+               if (metadata.getBoolean("Deskewed", false)) {
+                  throw new Exception("Data was already deskewed during acquisition");
+               }
                firstSideIsA = !metadata.getString("FirstSide").equals("B");
 
                if (metadata.containsKey("AcquisitionName")) {
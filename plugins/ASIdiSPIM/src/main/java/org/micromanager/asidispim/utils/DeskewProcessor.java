@@ -0,0 +1,419 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DeskewProcessor.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ASIdiSPIM plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Jon Daniels
+//
+// COPYRIGHT:    University of California, San Francisco, & ASI, 2017
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.asidispim.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.micromanager.PropertyMap;
+import org.micromanager.PropertyMap.PropertyMapBuilder;
+import org.micromanager.Studio;
+import org.micromanager.asidispim.data.AcquisitionModes;
+import org.micromanager.asidispim.data.AcquisitionSettings;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.ProcessorFactory;
+import org.micromanager.data.RewritableDatastore;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.internal.utils.ReportingUtils;
+
+/**
+ * Deskews stage scanning data while it is acquired, so that it does not
+ * have to be read back from disk for the "Deskew Open Dataset" pass on the
+ * Data Analysis panel.
+ *
+ * Between slices of a stage scan the sample moves along the image x axis,
+ * so slice z is translated by z times the per-slice shift into an image
+ * that is widened to hold the whole volume, in the direction of the side
+ * that took it (the same as DataAnalysisPanel.runDeskew() does).  The rows
+ * of each slice are shifted in bands, one band per thread.
+ *
+ * While doing this the maximum projections of each volume are kept in
+ * buffers that are allocated once per channel.  When a volume is complete
+ * its XY projection, with the XZ projection (one row per slice) below it,
+ * is put in a preview datastore that gets its own display window.  The
+ * preview only holds the latest volume of each channel and position, so it
+ * stays small however long the acquisition runs.
+ *
+ * Only 16-bit grayscale images are deskewed; others are passed on as is.
+ *
+ * @author Jon
+ */
+public class DeskewProcessor extends Processor {
+
+   /**
+    * Creates the processor for a Pipeline, see DataManager.createPipeline().
+    */
+   public static class Factory implements ProcessorFactory {
+      private final Studio gui_;
+      private final int numSlices_;
+      private final double shiftPx_;
+      private final int[] directions_;
+      private final boolean interpolate_;
+
+      /**
+       * @param gui
+       * @param numSlices - number of slices in each volume
+       * @param shiftPx - shift between slices in pixels, see getShiftPx()
+       * @param directions - direction of the shift for each channel index,
+       *          see getDirections()
+       * @param interpolate - whether to use linear interpolation for the
+       *          fractional part of the shift, or round it to whole pixels
+       */
+      public Factory(Studio gui, int numSlices, double shiftPx,
+              int[] directions, boolean interpolate) {
+         gui_ = gui;
+         numSlices_ = numSlices;
+         shiftPx_ = shiftPx;
+         directions_ = directions;
+         interpolate_ = interpolate;
+      }
+
+      @Override
+      public Processor createProcessor() {
+         return new DeskewProcessor(gui_, numSlices_, shiftPx_, directions_,
+                 interpolate_);
+      }
+   }
+
+   /**
+    * Per-slice shift of stage scanning data.  The stage moves stepSizeUm
+    * times the geometric speed factor between slices (see ControllerUtils),
+    * which comes down to stepSizeUm in the plane of the light sheet; as in
+    * runDeskew() the user's fudge factor is applied on top of that.
+    * @param acqSettings
+    * @param pixelSizeUm
+    * @param deskewFactor - "Deskew fudge factor" of the Data Analysis panel
+    * @return shift between slices in pixels
+    */
+   public static double getShiftPx(AcquisitionSettings acqSettings,
+           double pixelSizeUm, double deskewFactor) {
+      return acqSettings.stepSizeUm / pixelSizeUm * deskewFactor;
+   }
+
+   /**
+    * Direction of the shift per channel index, using the same rules as
+    * runDeskew(): -1 for path A and 1 for path B, except for interleaved and
+    * unidirectional stage scans, which always use -1.  When two-sided the
+    * first side has the even channel indices.
+    * @param acqSettings
+    * @param nrChannels - number of channel indices, sides included
+    * @param invert - "Invert direction" of the Data Analysis panel
+    * @return direction of the shift, -1 or 1, for each channel index
+    */
+   public static int[] getDirections(AcquisitionSettings acqSettings,
+           int nrChannels, boolean invert) {
+      int[] directions = new int[nrChannels];
+      for (int c = 0; c < nrChannels; c++) {
+         int dir = -1;
+         if (acqSettings.spimMode == AcquisitionModes.Keys.STAGE_SCAN) {
+            boolean firstSide = acqSettings.numSides < 2 || c % 2 == 0;
+            boolean sideA = firstSide == acqSettings.firstSideIsA;
+            dir = sideA ? -1 : 1;
+         }
+         directions[c] = invert ? -dir : dir;
+      }
+      return directions;
+   }
+
+   /**
+    * Maximum projections of the volume that is coming in for one channel
+    */
+   private static class Volume {
+      final int width_;
+      final int height_;
+      final short[] xy_;
+      final short[] xz_;
+      Coords coords_ = null;
+      Metadata metadata_ = null;
+      int nrSlices_ = 0;
+
+      Volume(int width, int height, int numSlices) {
+         width_ = width;
+         height_ = height;
+         xy_ = new short[width * height];
+         xz_ = new short[width * numSlices];
+      }
+
+      void start(Image image) {
+         Arrays.fill(xy_, (short) 0);
+         Arrays.fill(xz_, (short) 0);
+         coords_ = image.getCoords().copy().z(0).build();
+         metadata_ = image.getMetadata();
+         nrSlices_ = 0;
+      }
+
+      boolean holds(Coords coords) {
+         return coords_ != null && coords.getTime() == coords_.getTime()
+                 && coords.getStagePosition() == coords_.getStagePosition();
+      }
+   }
+
+   private final Studio gui_;
+   private final int numSlices_;
+   private final double shiftPx_;
+   private final int[] directions_;
+   private final boolean interpolate_;
+   private final int extraWidth_;
+   private final int nrBands_;
+   private final ExecutorService bandExecutor_;
+   private final Map<Integer, Volume> volumes_ = new HashMap<Integer, Volume>();
+   private short[][] bandMax_ = null;
+   private RewritableDatastore preview_ = null;
+   private boolean warnedPixelType_ = false;
+
+   private DeskewProcessor(Studio gui, int numSlices, double shiftPx,
+           int[] directions, boolean interpolate) {
+      gui_ = gui;
+      numSlices_ = numSlices;
+      shiftPx_ = Math.abs(shiftPx);
+      directions_ = directions;
+      interpolate_ = interpolate;
+      extraWidth_ = (int) Math.ceil(shiftPx_ * numSlices);
+      nrBands_ = Math.max(1, Math.min(4,
+              Runtime.getRuntime().availableProcessors() - 1));
+      bandExecutor_ = Executors.newFixedThreadPool(nrBands_, new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "diSPIM deskew thread");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   @Override
+   public SummaryMetadata processSummaryMetadata(SummaryMetadata source) {
+      // lets runDeskew() know not to deskew the data again
+      PropertyMap userData = source.getUserData();
+      PropertyMapBuilder pmb = userData != null ? userData.copy()
+              : gui_.data().getPropertyMapBuilder();
+      pmb.putBoolean("Deskewed", true);
+      pmb.putDouble("DeskewShift_px", shiftPx_);
+      return source.copy().userData(pmb.build()).build();
+   }
+
+   @Override
+   public int getQueueDepth() {
+      // room for a few slices so that the image insertion thread of
+      //   SequenceDrain does not have to wait for each one
+      return 16;
+   }
+
+   @Override
+   public void processImage(Image image, ProcessorContext context) {
+      if (image.getBytesPerPixel() != 2 || image.getNumComponents() != 1) {
+         if (!warnedPixelType_) {
+            ReportingUtils.logError("diSPIM deskew only handles 16-bit images, "
+                    + "passing images on without deskewing");
+            warnedPixelType_ = true;
+         }
+         context.outputImage(image);
+         return;
+      }
+      final Coords coords = image.getCoords();
+      final int channel = coords.getChannel();
+      final int z = Math.min(coords.getZ(), numSlices_ - 1);
+      final int width = image.getWidth();
+      final int height = image.getHeight();
+      final int newWidth = width + extraWidth_;
+
+      Volume volume = volumes_.get(channel);
+      if (volume != null && volume.nrSlices_ > 0 && !volume.holds(coords)) {
+         // previous volume of this channel was not completed
+         showProjections(volume, context);
+         volume.coords_ = null;
+      }
+      if (volume == null || volume.width_ != newWidth || volume.height_ != height) {
+         volume = new Volume(newWidth, height, numSlices_);
+         volumes_.put(channel, volume);
+      }
+      if (volume.coords_ == null) {
+         volume.start(image);
+      }
+      if (bandMax_ == null || bandMax_[0].length != newWidth) {
+         bandMax_ = new short[nrBands_][newWidth];
+      }
+
+      // same placement as runDeskew(): the first slice goes at the left of
+      //   the widened image if shifting right, and at the right otherwise
+      final int dir = channel < directions_.length ? directions_[channel] : -1;
+      final double pos = dir > 0 ? z * shiftPx_ : extraWidth_ - z * shiftPx_;
+      final short[] in = (short[]) image.getRawPixels();
+      final short[] out = new short[newWidth * height];
+      final Volume vol = volume;
+      try {
+         List<Future<Void>> bands = new ArrayList<Future<Void>>(nrBands_);
+         int bandHeight = (height + nrBands_ - 1) / nrBands_;
+         for (int b = 0; b < nrBands_; b++) {
+            final int y0 = Math.min(height, b * bandHeight);
+            final int y1 = Math.min(height, y0 + bandHeight);
+            final short[] colMax = bandMax_[b];
+            bands.add(bandExecutor_.submit(new Callable<Void>() {
+               @Override
+               public Void call() {
+                  shiftRows(in, out, width, newWidth, y0, y1, pos,
+                          vol.xy_, colMax);
+                  return null;
+               }
+            }));
+         }
+         for (Future<Void> band : bands) {
+            band.get();
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         ReportingUtils.logError(ie, "Interrupted while deskewing, image is not deskewed");
+         context.outputImage(image);
+         return;
+      } catch (ExecutionException ee) {
+         ReportingUtils.logError(ee.getCause(), "Error while deskewing, image is not deskewed");
+         context.outputImage(image);
+         return;
+      }
+
+      // the bands each have the maximum of their rows; combine these into
+      //   row z of the XZ projection
+      int row = z * newWidth;
+      for (int b = 0; b < nrBands_; b++) {
+         short[] colMax = bandMax_[b];
+         for (int x = 0; x < newWidth; x++) {
+            if ((colMax[x] & 0xffff) > (volume.xz_[row + x] & 0xffff)) {
+               volume.xz_[row + x] = colMax[x];
+            }
+         }
+      }
+
+      context.outputImage(gui_.data().createImage(out, newWidth, height,
+              2, 1, coords, image.getMetadata()));
+
+      volume.nrSlices_++;
+      if (volume.nrSlices_ >= numSlices_) {
+         showProjections(volume, context);
+         volume.coords_ = null;
+      }
+   }
+
+   /**
+    * Copies rows y0 up to y1 of a slice into the widened image at x offset
+    * pos, updating the XY projection for these rows and the maximum of each
+    * column over these rows.  Only touches rows y0 to y1 of out and xy, so
+    * bands can run at the same time.
+    */
+   private void shiftRows(short[] in, short[] out, int width, int newWidth,
+           int y0, int y1, double pos, short[] xy, short[] colMax) {
+      Arrays.fill(colMax, (short) 0);
+      int offset;
+      float f = 0.0f;
+      if (interpolate_) {
+         offset = (int) Math.floor(pos);
+         f = (float) (pos - offset);
+      } else {
+         offset = (int) Math.round(pos);
+      }
+      // the fractional part needs one extra pixel, when it fits
+      final int nrOut = (f > 0.0f && offset + width < newWidth) ? width + 1 : width;
+      for (int y = y0; y < y1; y++) {
+         int inRow = y * width;
+         int outRow = y * newWidth + offset;
+         for (int x = 0; x < nrOut; x++) {
+            int value;
+            if (f > 0.0f) {
+               int right = x < width ? in[inRow + x] & 0xffff : 0;
+               int left = x > 0 ? in[inRow + x - 1] & 0xffff : 0;
+               value = Math.round((1.0f - f) * right + f * left);
+            } else {
+               value = in[inRow + x] & 0xffff;
+            }
+            out[outRow + x] = (short) value;
+            if (value > (xy[outRow + x] & 0xffff)) {
+               xy[outRow + x] = (short) value;
+            }
+            if (value > (colMax[offset + x] & 0xffff)) {
+               colMax[offset + x] = (short) value;
+            }
+         }
+      }
+   }
+
+   /**
+    * Puts the projections of a volume in the preview datastore, which is
+    * created (and displayed) when the first volume is done.  All volumes go
+    * to time point 0, replacing the projections of the previous volume of
+    * the same channel and position.
+    */
+   private void showProjections(Volume volume, ProcessorContext context) {
+      int width = volume.width_;
+      int xyLength = width * volume.height_;
+      short[] pixels = new short[xyLength + volume.xz_.length];
+      System.arraycopy(volume.xy_, 0, pixels, 0, xyLength);
+      System.arraycopy(volume.xz_, 0, pixels, xyLength, volume.xz_.length);
+      Image projections = gui_.data().createImage(pixels, width,
+              volume.height_ + numSlices_, 2, 1,
+              volume.coords_.copy().time(0).build(), volume.metadata_);
+      try {
+         if (preview_ == null) {
+            SummaryMetadata summary = context.getSummaryMetadata();
+            SummaryMetadata.SummaryMetadataBuilder smb = summary.copy().
+                    prefix(summary.getPrefix() + " projections");
+            if (summary.getIntendedDimensions() != null) {
+               smb = smb.intendedDimensions(
+                       summary.getIntendedDimensions().copy().z(1).time(1).build());
+            }
+            preview_ = gui_.data().createRewritableRAMDatastore();
+            preview_.setSummaryMetadata(smb.build());
+            gui_.displays().createDisplay(preview_);
+         }
+         preview_.putImage(projections);
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex, "Could not add projections to diSPIM preview");
+      }
+   }
+
+   @Override
+   public void cleanup(ProcessorContext context) {
+      // show what we have of volumes that were cut short
+      for (Volume volume : volumes_.values()) {
+         if (volume.nrSlices_ > 0 && volume.coords_ != null) {
+            showProjections(volume, context);
+         }
+      }
+      volumes_.clear();
+      bandExecutor_.shutdown();
+      // the preview window stays open for the user to close
+      if (preview_ != null) {
+         preview_.freeze();
+      }
+   }
+}
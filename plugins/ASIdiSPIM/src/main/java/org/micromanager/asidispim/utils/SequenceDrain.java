@@ -0,0 +1,493 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SequenceDrain.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ASIdiSPIM plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Jon Daniels
+//
+// COPYRIGHT:    University of California, San Francisco, & ASI, 2017
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.asidispim.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.micromanager.asidispim.data.AcquisitionModes;
+import org.micromanager.asidispim.data.AcquisitionSettings;
+import org.micromanager.asidispim.data.CameraModes;
+import org.micromanager.asidispim.data.MultichannelModes;
+import org.micromanager.internal.utils.ReportingUtils;
+
+import mmcorej.CMMCore;
+import mmcorej.TaggedImage;
+
+/**
+ * Empties the core's circular buffer during an acquisition, so that the
+ * cameras can keep going when the datastore or display is slow for a moment.
+ *
+ * A drain thread pops all images that are waiting into a ring of fixed
+ * size in memory, and a separate insertion thread takes them from the ring
+ * and hands them to an ImageSink (which puts them in the datastore).  Where
+ * each image goes is looked up in a FrameLookup, computed before the
+ * cameras start.  While the ring is full images are left in the circular
+ * buffer; only when both are full are images dropped (and counted) rather
+ * than letting the circular buffer overflow, which would end the
+ * acquisition.  When putting an image in the datastore fails the cameras
+ * are stopped and drain() throws, as the rest of the images would be lost.
+ *
+ * Call start() once per acquisition, drain() once per time the cameras are
+ * started, and finish() at the end of the acquisition.
+ *
+ * @author Jon
+ */
+public class SequenceDrain {
+
+   /**
+    * Receives the images, on the insertion thread
+    */
+   public interface ImageSink {
+      void putImage(TaggedImage image, int frame, int channel, int slice,
+              int position, long ms) throws Exception;
+
+      /**
+       * Called after the last image of a hardware timepoint of the first
+       * channel was put
+       */
+      void timePointDone();
+   }
+
+   /**
+    * Table with the frame, channel and slice of each image the cameras
+    * will send for one trigger of the controller, in the order each camera
+    * sends them.
+    */
+   public static final class FrameLookup {
+      private static final int SKIP = -1;
+      private final int[][] frames_;
+      private final int[][] channels_;
+      private final int[][] slices_;
+      private final boolean[][] timePointDone_;
+
+      /**
+       * @param acqSettings - settings of the acquisition
+       * @param nrCameras - 1 or 2
+       * @param nrImages - number of images each camera will send
+       * @param channelNum - channel, when channels are switched in software
+       * @param timePoint - current time point
+       */
+      public FrameLookup(AcquisitionSettings acqSettings, int nrCameras,
+              int nrImages, int channelNum, int timePoint) {
+         frames_ = new int[nrCameras][nrImages];
+         channels_ = new int[nrCameras][nrImages];
+         slices_ = new int[nrCameras][nrImages];
+         timePointDone_ = new boolean[nrCameras][nrImages];
+
+         final int numChannels = Math.max(1, acqSettings.numChannels);
+         // hardware timepoints with overlap mode sometimes have to drop spurious image
+         final boolean checkForSkips = acqSettings.hardwareTimepoints
+                 && (acqSettings.cameraMode == CameraModes.Keys.OVERLAP);
+         final boolean skipPerSide = acqSettings.useChannels && (numChannels > 1)
+                 && (acqSettings.channelMode == MultichannelModes.Keys.SLICE_HW);
+         for (int camera = 0; camera < nrCameras; camera++) {
+            // "channel index" is channel of MM acquisition
+            // channel indexes will go from 0 to (nrSides * nrChannels - 1)
+            // if double-sided then second camera gets odd channel indexes (1, 3, etc.)
+            //    and adjacent pairs will be same color (e.g. 0 and 1 will be from first color, 2 and 3 from second, etc.)
+            int[] frNumber = new int[2 * numChannels];  // frames received for each "channel"
+            int[] tpNumber = new int[2 * numChannels];  // timepoint of each "channel" for hardware timepoints
+            int cameraFrNumber = 0;  // frames received from the camera
+            boolean skipNextImage = false;
+            for (int n = 0; n < nrImages; n++) {
+               if (skipNextImage) {
+                  skipNextImage = false;
+                  frames_[camera][n] = SKIP;
+                  continue;
+               }
+               int channelIndex;
+               switch (acqSettings.channelMode) {
+                  case VOLUME_HW:
+                     channelIndex = (cameraFrNumber / acqSettings.numSlices) % numChannels;
+                     break;
+                  case SLICE_HW:
+                     channelIndex = cameraFrNumber % numChannels;
+                     break;
+                  default:
+                     channelIndex = channelNum;
+                     break;
+               }
+               if (nrCameras > 1) {
+                  channelIndex *= 2;
+               }
+               channelIndex += camera;
+
+               int actualTimePoint = timePoint;
+               if (acqSettings.hardwareTimepoints) {
+                  actualTimePoint = tpNumber[channelIndex];
+               }
+               if (acqSettings.separateTimepoints) {
+                  // if we are doing separate timepoints then frame is always 0
+                  actualTimePoint = 0;
+               }
+               // note that hardwareTimepoints and separateTimepoints can never both be true
+
+               channels_[camera][n] = channelIndex;
+               if (acqSettings.spimMode == AcquisitionModes.Keys.NO_SCAN
+                       && !acqSettings.separateTimepoints) {
+                  // time series for no scan
+                  frames_[camera][n] = frNumber[channelIndex];
+                  slices_[camera][n] = actualTimePoint;
+               } else {  // standard, Z-stacks
+                  frames_[camera][n] = actualTimePoint;
+                  slices_[camera][n] = frNumber[channelIndex];
+               }
+
+               frNumber[channelIndex]++;
+               cameraFrNumber++;
+               // if hardware timepoints then we only send one trigger, so
+               //   keep track of which timepoint comes next
+               if (acqSettings.hardwareTimepoints
+                       && frNumber[channelIndex] >= acqSettings.numSlices) {
+                  frNumber[channelIndex] = 0;
+                  tpNumber[channelIndex]++;
+                  if (checkForSkips) {
+                     if (skipPerSide) {  // one extra image per side, only happens with per-slice HW switching
+                        if ((channelIndex == (numChannels - 1))  // final channel index is last one of side
+                                || (nrCameras > 1 && (channelIndex == (numChannels - 2)))) {  // 2nd-to-last channel index for two-sided is also last one of side
+                           skipNextImage = true;
+                        }
+                     } else {  // one extra image per MM channel
+                        skipNextImage = true;
+                     }
+                  }
+                  timePointDone_[camera][n] = channelIndex == 0;
+               }
+            }
+         }
+      }
+   }
+
+   // one image on its way to the datastore
+   private static final class Entry {
+      final TaggedImage image_;
+      final int frame_;
+      final int channel_;
+      final int slice_;
+      final int position_;
+      final long ms_;
+      final boolean timePointDone_;
+
+      Entry(TaggedImage image, int frame, int channel, int slice,
+              int position, long ms, boolean timePointDone) {
+         image_ = image;
+         frame_ = frame;
+         channel_ = channel;
+         slice_ = slice;
+         position_ = position;
+         ms_ = ms;
+         timePointDone_ = timePointDone;
+      }
+   }
+
+   private static final Entry END = new Entry(null, 0, 0, 0, 0, 0, false);
+   // part of the free memory that the ring may use
+   private static final double RING_MEMORY_FRACTION = 0.25;
+   private static final int MIN_RING_SIZE = 16;
+   // the ring's backing array is allocated up front, so keep it sane when
+   //   the image size is small or unknown
+   private static final int MAX_RING_SIZE = 16384;
+
+   private final CMMCore core_;
+   private final String[] cameras_;
+   private final ImageSink sink_;
+   private final BlockingQueue<Entry> ring_;
+   private final int ringCapacity_;
+   private final ExecutorService drainExecutor_;
+   private Thread insertThread_;
+   private volatile Exception insertError_;
+   // set once drain() has thrown insertError_, so that finish() does not
+   //   report it a second time
+   private volatile boolean insertErrorThrown_ = false;
+
+   // live counters; each is written by one thread only
+   private volatile long nrDrained_ = 0;
+   private volatile long nrDropped_ = 0;
+   private volatile long nrInserted_ = 0;
+   private volatile double drainRate_ = 0.0;
+
+   /**
+    * @param core - MM core
+    * @param cameras - names of the cameras, in the order used by FrameLookup
+    * @param sink - receives the images
+    */
+   public SequenceDrain(CMMCore core, String[] cameras, ImageSink sink) {
+      core_ = core;
+      cameras_ = cameras.clone();
+      sink_ = sink;
+
+      long imageBytes = Math.max(1, core.getImageBufferSize());
+      Runtime rt = Runtime.getRuntime();
+      long available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+      ringCapacity_ = (int) Math.max(MIN_RING_SIZE, Math.min(MAX_RING_SIZE,
+              (long) (RING_MEMORY_FRACTION * available) / imageBytes));
+      ring_ = new ArrayBlockingQueue<Entry>(ringCapacity_);
+      drainExecutor_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "diSPIM sequence buffer drain thread");
+            t.setDaemon(true);
+            t.setPriority(Thread.MAX_PRIORITY);
+            return t;
+         }
+      });
+   }
+
+   /**
+    * Starts the thread that puts images in the datastore
+    */
+   public void start() {
+      insertThread_ = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            insertImages();
+         }
+      }, "diSPIM image insertion thread");
+      insertThread_.setDaemon(true);
+      insertThread_.start();
+   }
+
+   /**
+    * Empties the circular buffer until the cameras are done, the acquisition
+    * is canceled, or no image arrives for timeoutMs.  The images may still
+    * be on their way to the datastore when this returns.
+    *
+    * @param lookup - where each image goes
+    * @param position - position index of the images
+    * @param acqStart - start of the acquisition, for the time stamps
+    * @param cancel - set when the user stops the acquisition
+    * @param timeoutMs - how long to wait for an image
+    * @return false if the cameras stopped sending images before they were done
+    * @throws Exception when popping an image, or putting one in the
+    * datastore, failed
+    */
+   public boolean drain(final FrameLookup lookup, final int position,
+           final long acqStart, final AtomicBoolean cancel,
+           final long timeoutMs) throws Exception {
+      checkInsertError();
+      try {
+         return drainExecutor_.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+               return drainLoop(lookup, position, acqStart, cancel, timeoutMs);
+            }
+         }).get();
+      } catch (ExecutionException ee) {
+         Throwable cause = ee.getCause();
+         if (cause instanceof Exception) {
+            throw (Exception) cause;
+         }
+         throw new RuntimeException(cause);
+      } finally {
+         checkInsertError();
+      }
+   }
+
+   private boolean drainLoop(FrameLookup lookup, int position, long acqStart,
+           AtomicBoolean cancel, long timeoutMs) throws Exception {
+      int[] received = new int[cameras_.length];
+      long last = System.currentTimeMillis();
+      long rateStart = last;
+      long rateCount = nrDrained_;
+      int droppedHere = 0;
+      while (true) {
+         if (insertError_ != null) {
+            // the datastore can't take images anymore, so there is no point
+            //   in letting the cameras go on
+            for (String camera : cameras_) {
+               if (core_.isSequenceRunning(camera)) {
+                  core_.stopSequenceAcquisition(camera);
+               }
+            }
+            checkInsertError();
+         }
+         long now = System.currentTimeMillis();
+         int remaining = core_.getRemainingImageCount();
+         if (remaining > 0) {
+            // take all that fits in the ring in one go, the rest can wait in
+            //   the circular buffer
+            int count = Math.min(remaining, ring_.remainingCapacity());
+            if (count == 0 && core_.getBufferFreeCapacity() == 0) {
+               // both are full: drop the oldest image rather than let the
+               //   circular buffer overflow
+               count = 1;
+            }
+            for (int i = 0; i < count; i++) {
+               TaggedImage timg = core_.popNextTaggedImage();
+               int camera = 0;
+               if (cameras_.length > 1) {
+                  camera = cameras_[0].equals(timg.tags.get("Camera")) ? 0 : 1;
+               }
+               int n = received[camera]++;
+               nrDrained_++;
+               if (n >= lookup.frames_[camera].length) {
+                  // more images than expected
+                  nrDropped_++;
+                  droppedHere++;
+               } else if (lookup.frames_[camera][n] != FrameLookup.SKIP) {
+                  Entry entry = new Entry(timg, lookup.frames_[camera][n],
+                          lookup.channels_[camera][n], lookup.slices_[camera][n],
+                          position, now - acqStart, lookup.timePointDone_[camera][n]);
+                  if (!ring_.offer(entry)) {
+                     nrDropped_++;
+                     droppedHere++;
+                  }
+               }
+            }
+            last = now;
+            if (count == 0) {
+               // wait for the datastore to catch up
+               Thread.sleep(1);
+            }
+         } else {
+            boolean running = false;
+            for (String camera : cameras_) {
+               running |= core_.isSequenceRunning(camera);
+            }
+            if (!running || cancel.get()) {
+               break;
+            }
+            if (now - last >= timeoutMs) {
+               return false;
+            }
+            Thread.sleep(1);
+         }
+         if (now - rateStart >= 500) {
+            drainRate_ = 1000.0 * (nrDrained_ - rateCount) / (now - rateStart);
+            rateStart = now;
+            rateCount = nrDrained_;
+         }
+      }
+      if (droppedHere > 0) {
+         ReportingUtils.logError("diSPIM acquisition dropped " + droppedHere
+                 + " images; " + getStatus());
+      }
+      return true;
+   }
+
+   private void insertImages() {
+      while (true) {
+         Entry entry;
+         try {
+            entry = ring_.take();
+         } catch (InterruptedException ie) {
+            return;
+         }
+         if (entry == END) {
+            return;
+         }
+         if (insertError_ != null) {
+            // keep emptying the ring, so that the drain does not get stuck
+            continue;
+         }
+         try {
+            sink_.putImage(entry.image_, entry.frame_, entry.channel_,
+                    entry.slice_, entry.position_, entry.ms_);
+            nrInserted_++;
+            if (entry.timePointDone_) {
+               sink_.timePointDone();
+            }
+         } catch (Exception ex) {
+            insertError_ = ex;
+         }
+      }
+   }
+
+   private void checkInsertError() throws Exception {
+      Exception ex = insertError_;
+      if (ex != null) {
+         insertErrorThrown_ = true;
+         throw ex;
+      }
+   }
+
+   /**
+    * Waits until all images are in the datastore, and stops the threads
+    * @throws Exception when putting an image in the datastore failed, unless
+    * drain() already threw that exception
+    */
+   public void finish() throws Exception {
+      drainExecutor_.shutdown();
+      if (insertThread_ != null) {
+         ring_.put(END);
+         insertThread_.join();
+      }
+      if (!insertErrorThrown_) {
+         checkInsertError();
+      }
+   }
+
+   /**
+    * @return number of images in the ring, waiting for the datastore
+    */
+   public int getRingFill() {
+      return ring_.size();
+   }
+
+   public int getRingCapacity() {
+      return ringCapacity_;
+   }
+
+   /**
+    * @return images per second taken from the circular buffer, over the last
+    * half second or so of draining
+    */
+   public double getDrainRate() {
+      return drainRate_;
+   }
+
+   public long getNrDrained() {
+      return nrDrained_;
+   }
+
+   /**
+    * @return images that did not make it to the datastore because both the
+    * ring and the circular buffer were full, or because the cameras sent
+    * more than expected
+    */
+   public long getNrDropped() {
+      return nrDropped_;
+   }
+
+   public long getNrInserted() {
+      return nrInserted_;
+   }
+
+   /**
+    * @return the counters, for the log
+    */
+   public String getStatus() {
+      return "ring " + getRingFill() + "/" + ringCapacity_
+              + ", drained " + nrDrained_
+              + " (" + Math.round(drainRate_) + " per s)"
+              + ", inserted " + nrInserted_
+              + ", dropped " + nrDropped_;
+   }
+
+}
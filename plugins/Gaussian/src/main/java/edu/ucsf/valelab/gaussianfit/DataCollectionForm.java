@@ -52,6 +52,7 @@ import edu.ucsf.valelab.gaussianfit.datasettransformations.CoordinateMapper;
 import edu.ucsf.valelab.gaussianfit.spotoperations.NearestPoint2D;
 import edu.ucsf.valelab.gaussianfit.utils.DisplayUtils;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.data.SpotStore;
 import edu.ucsf.valelab.gaussianfit.fitting.ZCalibrator;
 import edu.ucsf.valelab.gaussianfit.data.LoadAndSave;
 import edu.ucsf.valelab.gaussianfit.spotoperations.SpotLinker;
@@ -1367,6 +1368,10 @@ public class DataCollectionForm extends JFrame {
                   if (rowData.hasZ_) {
                      ImageStack is = ImageRenderer.renderData3D(rowData,
                              visualizationModel_.getSelectedIndex(), mag, null, sf);
+                     if (is == null) {
+                        // canceled
+                        return;
+                     }
                      sp = new ImagePlus(title, is);
                      DisplayUtils.AutoStretch(sp);
                      DisplayUtils.SetCalibration(sp, (rowData.pixelSizeNm_ / mag));                     
@@ -1375,6 +1380,10 @@ public class DataCollectionForm extends JFrame {
                   } else {
                      ImageProcessor ip = ImageRenderer.renderData(rowData,
                              visualizationModel_.getSelectedIndex(), mag, null, sf);
+                     if (ip == null) {
+                        // canceled, or out of memory
+                        return;
+                     }
                      sp = new ImagePlus(title, ip);
 
                      GaussCanvas gs = new GaussCanvas(sp, mainTableModel_.getRow(row),
@@ -1441,8 +1450,14 @@ public class DataCollectionForm extends JFrame {
          
          for (int i = 0; i < rows.length; i++) {
             myRows[i] = mainTableModel_.getRow(rows[i]);
-            ArrayList<Point2D.Double> xyPoints = ListUtils.spotListToPointList(myRows[i].spotList_);
-            Point2D.Double listAvg = ListUtils.avgXYList(xyPoints);
+            SpotStore store = myRows[i].spotStore_;
+            Point2D.Double listAvg = new Point2D.Double(0.0, 0.0);
+            for (int j = 0; j < store.size(); j++) {
+               listAvg.x += store.getXCenter(j);
+               listAvg.y += store.getYCenter(j);
+            }
+            listAvg.x /= store.size();
+            listAvg.y /= store.size();
             listAvgs.add(listAvg);
          }
 
@@ -1452,11 +1467,12 @@ public class DataCollectionForm extends JFrame {
                  new HashMap<Integer, List<SpotData>>();
          
          for (int i=0; i < myRows.length; i++) {
-            for (SpotData spotData : myRows[i].spotList_) {
-               SpotData spotCopy = new SpotData(spotData);
-               spotCopy.setXCenter(spotData.getXCenter() - listAvgs.get(i).x);
-               spotCopy.setYCenter(spotData.getYCenter() - listAvgs.get(i).y);
-               int frame = spotData.getFrame();
+            SpotStore store = myRows[i].spotStore_;
+            for (int j = 0; j < store.size(); j++) {
+               SpotData spotCopy = store.getSpot(j);
+               spotCopy.setXCenter(store.getXCenter(j) - listAvgs.get(i).x);
+               spotCopy.setYCenter(store.getYCenter(j) - listAvgs.get(i).y);
+               int frame = store.getFrame(j);
                if (!allData.containsKey(frame)) {
                   List<SpotData> thisFrame = new ArrayList<SpotData>();
                   thisFrame.add(spotCopy);
@@ -1512,44 +1528,36 @@ public class DataCollectionForm extends JFrame {
       
       try {
          
-         for (int i = 0; i < source.spotList_.size(); i++) {
-            SpotData spotSource = source.spotList_.get(i);
-            boolean found = false;
-            int j = 0;
-            SpotData spotOperand = null;
-            while (!found && j < operand.spotList_.size()) {
-               spotOperand = operand.spotList_.get(j);
-               if (source.isTrack_) {
-                  if (spotSource.getChannel() == spotOperand.getChannel()
-                          && spotSource.getFrame() == spotOperand.getFrame()
-                          && spotSource.getPosition() == spotOperand.getPosition()
-                          && spotSource.getSlice() == spotOperand.getSlice()) {
-                     found = true;
-                  }
-               } else { // not a track, b.t.w., I am not sure if slices and frames 
-                        // are always swapped in non-track data sets
-                  if (spotSource.getChannel() == spotOperand.getChannel()
-                          && spotSource.getSlice() == spotOperand.getFrame()
-                          && spotSource.getPosition() == spotOperand.getPosition()
-                          && spotSource.getFrame() == spotOperand.getSlice()) {
-                     found = true;
-                  }
-               }
-               j++;
+         SpotStore sourceStore = source.spotStore_;
+         SpotStore operandStore = operand.spotStore_;
+         for (int i = 0; i < sourceStore.size(); i++) {
+            // the operand spot is the first one in the same image, found
+            //   with the store's index rather than by going through all spots
+            int[] operandIndices;
+            if (source.isTrack_) {
+               operandIndices = operandStore.getIndices(sourceStore.getFrame(i),
+                       sourceStore.getSlice(i), sourceStore.getChannel(i),
+                       sourceStore.getPosition(i));
+            } else { // not a track, b.t.w., I am not sure if slices and frames 
+                     // are always swapped in non-track data sets
+               operandIndices = operandStore.getIndices(sourceStore.getSlice(i),
+                       sourceStore.getFrame(i), sourceStore.getChannel(i),
+                       sourceStore.getPosition(i));
             }
-            if (found && spotOperand != null) {
+            if (operandIndices != null) {
+               int j = operandIndices[0];
                double x = 0.0;
                double y = 0.0;
                if (action == 0) {
-                  x = spotSource.getXCenter() - spotOperand.getXCenter();
-                  y = spotSource.getYCenter() - spotOperand.getYCenter();
+                  x = sourceStore.getXCenter(i) - operandStore.getXCenter(j);
+                  y = sourceStore.getYCenter(i) - operandStore.getYCenter(j);
                }
-               SpotData newSpot = new SpotData(spotSource);
+               SpotData newSpot = sourceStore.getSpot(i);
                newSpot.setXCenter(x);
                newSpot.setYCenter(y);
                transformedResultList.add(newSpot);
             }
-            ij.IJ.showProgress(i, source.spotList_.size());
+            ij.IJ.showProgress(i, sourceStore.size());
          }
          
          ij.IJ.showStatus("Finished doing math...");
@@ -1598,7 +1606,7 @@ public class DataCollectionForm extends JFrame {
          if (rowData.isTrack_) {
             data.n += 1;
             data.numberOfSpots += rowData.maxNrSpots_;
-            data.channelNr += rowData.spotList_.get(0).getChannel();
+            data.channelNr += rowData.spotStore_.getChannel(0);
             data.std += rowData.std_;
             data.nrPhotons += rowData.totalNrPhotons_;
          } 
@@ -1628,14 +1636,15 @@ public class DataCollectionForm extends JFrame {
       for (int row : rows) {
          final RowData rowData = mainTableModel_.getRow(row);
          if (rowData.isTrack_) {
-            List<Double> photonNrs = new ArrayList<Double>();
-            for (SpotData spot : rowData.spotList_) {
-               photonNrs.add(spot.getIntensity());
+            SpotStore store = rowData.spotStore_;
+            List<Double> photonNrs = new ArrayList<Double>(store.size());
+            for (int i = 0; i < store.size(); i++) {
+               photonNrs.add(store.getIntensity(i));
             }
             double avgNrPhotons = ListUtils.listAvg(photonNrs);
             output += rowData.getName() + "\t" + 
                     rowData.maxNrSpots_ + "\t" +
-                    rowData.spotList_.get(0).getChannel() + "\t" +
+                    store.getChannel(0) + "\t" +
                     rowData.std_ + "\t" + 
                     rowData.totalNrPhotons_ + "\t" + 
                     avgNrPhotons + "\t" +
@@ -1668,28 +1677,29 @@ public class DataCollectionForm extends JFrame {
       List<Double> aptBackgrounds = new ArrayList<Double>();
       List<Double> widths = new ArrayList<Double>();
       for (int row : rows) {
-         final RowData rowData = mainTableModel_.getRow(row);
-         for (SpotData spotData : rowData.spotList_) {
-            sigmas.add(spotData.getSigma());
-            if (spotData.getValue(SpotData.Keys.MSIGMA) != null && 
-                  !spotData.getValue(SpotData.Keys.MSIGMA).equals(Double.NaN) ) {
-               mSigmas.add(spotData.getValue(SpotData.Keys.MSIGMA));
+         final SpotStore store = mainTableModel_.getRow(row).spotStore_;
+         for (int i = 0; i < store.size(); i++) {
+            sigmas.add(store.getSigma(i));
+            // the store returns NaN for keys a spot does not have
+            double value = store.getValue(i, SpotData.Keys.MSIGMA);
+            if (!Double.isNaN(value)) {
+               mSigmas.add(value);
             }
-            if (spotData.getValue(SpotData.Keys.INTEGRALSIGMA) != null &&
-                  !spotData.getValue(SpotData.Keys.INTEGRALSIGMA).equals(Double.NaN) ) {
-               iSigmas.add(spotData.getValue(SpotData.Keys.INTEGRALSIGMA));
+            value = store.getValue(i, SpotData.Keys.INTEGRALSIGMA);
+            if (!Double.isNaN(value)) {
+               iSigmas.add(value);
             }
-            intensities.add(spotData.getIntensity());
-            if (spotData.getValue(SpotData.Keys.APERTUREINTENSITY) != null &&
-                    !spotData.getValue(SpotData.Keys.APERTUREINTENSITY).equals(Double.NaN) ) {
-               aptIntensities.add(spotData.getValue(SpotData.Keys.APERTUREINTENSITY));
+            intensities.add(store.getIntensity(i));
+            value = store.getValue(i, SpotData.Keys.APERTUREINTENSITY);
+            if (!Double.isNaN(value)) {
+               aptIntensities.add(value);
             }
-            backgrounds.add(spotData.getBackground());
-            Double tmp = spotData.getValue(SpotData.Keys.APERTUREBACKGROUND);
-            if (tmp != null && !tmp.equals(Double.NaN)) {
-               aptBackgrounds.add(tmp);
+            backgrounds.add(store.getBackground(i));
+            value = store.getValue(i, SpotData.Keys.APERTUREBACKGROUND);
+            if (!Double.isNaN(value)) {
+               aptBackgrounds.add(value);
             }
-            widths.add(spotData.getWidth());
+            widths.add(store.getWidth(i));
          }
       }
       
@@ -2084,45 +2094,50 @@ public class DataCollectionForm extends JFrame {
       rt.reset();
       rt.setPrecision(1);
       int shape = rowData.shape_;
-      for (SpotData gd : rowData.spotList_) {
-         if (gd != null) {
-            rt.incrementCounter();
-            rt.addValue(Terms.FRAME, ResultsTable.d2s(gd.getFrame(), 0));
-            rt.addValue(Terms.SLICE, ResultsTable.d2s(gd.getSlice(), 0));
-            rt.addValue(Terms.CHANNEL, ResultsTable.d2s(gd.getChannel(), 0));
-            rt.addValue(Terms.POSITION, ResultsTable.d2s(gd.getPosition(), 0));
-            rt.addValue(Terms.XPIX, ResultsTable.d2s(gd.getX(), 0));
-            rt.addValue(Terms.YPIX, ResultsTable.d2s(gd.getY(), 0));
-            if (rowData.coordinate_ == Coordinates.NM) {
-               rt.addValue(Terms.XNM, gd.getXCenter());
-               rt.addValue(Terms.YNM, gd.getYCenter());
-               if (rowData.hasZ_)
-                  rt.addValue(Terms.ZNM, gd.getZCenter());
-            } else if (rowData.coordinate_ == Coordinates.PIXELS) {
-               rt.addValue(Terms.XFITPIX, gd.getXCenter());
-               rt.addValue(Terms.YFITPIX, gd.getYCenter());
-            }
-            rt.addValue(Terms.INT, gd.getIntensity());
-            rt.addValue(Terms.BACKGROUND, gd.getBackground());
-            if (shape >= 1) {
-               rt.addValue(Terms.WIDTH, gd.getWidth());
-            }
-            if (shape >= 2) {
-               rt.addValue(Terms.A, gd.getA());
-            }
-            if (shape == 3) {
-               rt.addValue(Terms.THETA, gd.getTheta());
-            }
-            rt.addValue(Terms.SIGMA, ResultsTable.d2s(gd.getSigma(), 2));
+      SpotStore store = rowData.spotStore_;
+      String[] keys = store.getKeys();
+      for (int i = 0; i < store.size(); i++) {
+         rt.incrementCounter();
+         rt.addValue(Terms.FRAME, ResultsTable.d2s(store.getFrame(i), 0));
+         rt.addValue(Terms.SLICE, ResultsTable.d2s(store.getSlice(i), 0));
+         rt.addValue(Terms.CHANNEL, ResultsTable.d2s(store.getChannel(i), 0));
+         rt.addValue(Terms.POSITION, ResultsTable.d2s(store.getPosition(i), 0));
+         rt.addValue(Terms.XPIX, ResultsTable.d2s(store.getX(i), 0));
+         rt.addValue(Terms.YPIX, ResultsTable.d2s(store.getY(i), 0));
+         if (rowData.coordinate_ == Coordinates.NM) {
+            rt.addValue(Terms.XNM, store.getXCenter(i));
+            rt.addValue(Terms.YNM, store.getYCenter(i));
+            if (rowData.hasZ_)
+               rt.addValue(Terms.ZNM, store.getZCenter(i));
+         } else if (rowData.coordinate_ == Coordinates.PIXELS) {
+            rt.addValue(Terms.XFITPIX, store.getXCenter(i));
+            rt.addValue(Terms.YFITPIX, store.getYCenter(i));
+         }
+         rt.addValue(Terms.INT, store.getIntensity(i));
+         rt.addValue(Terms.BACKGROUND, store.getBackground(i));
+         if (shape >= 1) {
+            rt.addValue(Terms.WIDTH, store.getWidth(i));
+         }
+         if (shape >= 2) {
+            rt.addValue(Terms.A, store.getA(i));
+         }
+         if (shape == 3) {
+            rt.addValue(Terms.THETA, store.getTheta(i));
+         }
+         rt.addValue(Terms.SIGMA, ResultsTable.d2s(store.getSigma(i), 2));
 
-            for (String key : gd.getKeys()) {
-               if (key.equals(SpotData.Keys.INTENSITYRATIO) || 
-                       key.equals(SpotData.Keys.MSIGMA) || 
-                       key.equals(SpotData.Keys.INTEGRALSIGMA) ) {
-                  rt.addValue(key, ResultsTable.d2s(gd.getValue(key), 2));
-               } else {
-                  rt.addValue(key, gd.getValue(key));
-               }
+         for (String key : keys) {
+            double value = store.getValue(i, key);
+            if (Double.isNaN(value)) {
+               // this spot does not have the key
+               continue;
+            }
+            if (key.equals(SpotData.Keys.INTENSITYRATIO) || 
+                    key.equals(SpotData.Keys.MSIGMA) || 
+                    key.equals(SpotData.Keys.INTEGRALSIGMA) ) {
+               rt.addValue(key, ResultsTable.d2s(value, 2));
+            } else {
+               rt.addValue(key, value);
             }
          }
       }
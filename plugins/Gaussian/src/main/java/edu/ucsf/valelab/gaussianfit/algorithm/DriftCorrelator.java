@@ -0,0 +1,212 @@
+/*
+ * Measures drift between groups of localizations by cross-correlating their
+ * scattergrams
+
+Copyright (c) 2017, Regents of the University of California
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies,
+either expressed or implied, of the FreeBSD Project.
+ */
+
+
+package edu.ucsf.valelab.gaussianfit.algorithm;
+
+import edu.ucsf.valelab.gaussianfit.data.SpotStore;
+import java.awt.geom.Point2D;
+
+/**
+ * Cross-correlates scattergrams of groups of spots with the scattergram of
+ * a reference group, and finds the displacement with sub-pixel precision.
+ * 
+ * Scattergrams of any size are zero-padded to a power of 2.  Their mean is
+ * subtracted first, so that the padding does not pull the correlation peak 
+ * towards zero displacement.  Once the reference is set, getDrift() can be
+ * called from several threads at once.
+ * 
+ * @author nico
+ */
+public class DriftCorrelator {
+   private final SpotStore spots_;
+   private final FFTPlan plan_;
+   private final double factor_;
+   private final int width_;
+   private final int height_;
+   private final int searchRadius_;
+   private float[] refRe_;
+   private float[] refIm_;
+   
+   /**
+    * @param spots - store containing the spots
+    * @param factor - scattergram pixels per nm
+    * @param width - width of the scattergram, in pixels
+    * @param height - height of the scattergram, in pixels
+    * @param searchRadius - largest displacement (in scattergram pixels) that 
+    * will be looked for
+    */
+   public DriftCorrelator(SpotStore spots, double factor, int width, 
+           int height, int searchRadius) {
+      spots_ = spots;
+      factor_ = factor;
+      width_ = width;
+      height_ = height;
+      plan_ = new FFTPlan(FFTUtils.nextPowerOf2(Math.max(width, height)));
+      searchRadius_ = Math.max(0, Math.min(searchRadius, plan_.getSize() / 2 - 1));
+   }
+   
+   /**
+    * @return memory used by one call to getDrift(), in bytes
+    */
+   public long getBytesPerCorrelation() {
+      long n = plan_.getSize();
+      return 2 * 4 * n * n;
+   }
+   
+   /**
+    * Sets the spots that all others are compared with
+    * @param spotIndices - indices in the store of the reference spots
+    */
+   public synchronized void setReference(int[] spotIndices) {
+      int n = plan_.getSize();
+      float[] re = new float[n * n];
+      float[] im = new float[n * n];
+      render(spotIndices, re);
+      plan_.transform2D(re, im, false);
+      refRe_ = re;
+      refIm_ = im;
+   }
+   
+   /**
+    * Finds the displacement of the given spots relative to the reference
+    * 
+    * @param spotIndices - indices in the store of the spots to be compared
+    * @return displacement in nm, or null when none of the spots fall 
+    * within the scattergram
+    */
+   public Point2D.Double getDrift(int[] spotIndices) {
+      float[] refRe;
+      float[] refIm;
+      synchronized (this) {
+         refRe = refRe_;
+         refIm = refIm_;
+      }
+      if (refRe == null) {
+         throw new IllegalStateException("No reference set");
+      }
+      int n = plan_.getSize();
+      float[] re = new float[n * n];
+      float[] im = new float[n * n];
+      if (!render(spotIndices, re)) {
+         return null;
+      }
+      plan_.transform2D(re, im, false);
+      // multiply with the complex conjugate of the reference
+      for (int i = 0; i < re.length; i++) {
+         float a = re[i];
+         float b = im[i];
+         re[i] = a * refRe[i] + b * refIm[i];
+         im[i] = b * refRe[i] - a * refIm[i];
+      }
+      plan_.transform2D(re, im, true);
+      
+      // The correlation is circular: displacement d is found at index d 
+      // for positive, and at n + d for negative d
+      int bestX = 0;
+      int bestY = 0;
+      float max = re[0];
+      for (int dy = -searchRadius_; dy <= searchRadius_; dy++) {
+         int row = ((dy + n) % n) * n;
+         for (int dx = -searchRadius_; dx <= searchRadius_; dx++) {
+            float value = re[row + (dx + n) % n];
+            if (value > max) {
+               max = value;
+               bestX = dx;
+               bestY = dy;
+            }
+         }
+      }
+      double x = bestX + peakOffset(valueAt(re, bestX - 1, bestY), max, 
+              valueAt(re, bestX + 1, bestY));
+      double y = bestY + peakOffset(valueAt(re, bestX, bestY - 1), max, 
+              valueAt(re, bestX, bestY + 1));
+      return new Point2D.Double(x / factor_, y / factor_);
+   }
+   
+   private float valueAt(float[] correlation, int dx, int dy) {
+      int n = plan_.getSize();
+      return correlation[((dy + n) % n) * n + (dx + n) % n];
+   }
+   
+   /**
+    * Sub-pixel position of a peak, from the pixel at the peak and its two 
+    * neighbours.  Fits a Gaussian (a parabola through the logarithms) when
+    * all three are positive, and a parabola otherwise.
+    * 
+    * @return offset of the peak from the center pixel, between -1 and 1
+    */
+   static double peakOffset(double left, double center, double right) {
+      if (left > 0 && center > 0 && right > 0) {
+         left = Math.log(left);
+         center = Math.log(center);
+         right = Math.log(right);
+      }
+      double denominator = left - 2 * center + right;
+      if (!(denominator < 0)) {
+         // not a maximum
+         return 0.0;
+      }
+      double offset = 0.5 * (left - right) / denominator;
+      return Math.max(-1.0, Math.min(1.0, offset));
+   }
+   
+   /**
+    * Makes a mean-subtracted scattergram of the given spots in the top left 
+    * corner of pixels
+    * 
+    * @return false if none of the spots fall within the scattergram
+    */
+   private boolean render(int[] spotIndices, float[] pixels) {
+      int n = plan_.getSize();
+      int count = 0;
+      for (int spot : spotIndices) {
+         double xc = factor_ * spots_.getXCenter(spot);
+         double yc = factor_ * spots_.getYCenter(spot);
+         if (xc >= 0 && xc < width_ && yc >= 0 && yc < height_) {
+            pixels[(int) yc * n + (int) xc] += 1.0f;
+            count++;
+         }
+      }
+      if (count == 0) {
+         return false;
+      }
+      float mean = (float) count / ((float) width_ * height_);
+      for (int y = 0; y < height_; y++) {
+         for (int x = 0; x < width_; x++) {
+            pixels[y * n + x] -= mean;
+         }
+      }
+      return true;
+   }
+   
+}
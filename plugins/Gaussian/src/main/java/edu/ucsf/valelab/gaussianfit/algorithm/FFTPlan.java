@@ -0,0 +1,156 @@
+/*
+ * Complex Fast Fourier Transform of square images, with tables that are computed
+ * once for a given size and can be shared between threads
+
+Copyright (c) 2017, Regents of the University of California
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies,
+either expressed or implied, of the FreeBSD Project.
+ */
+
+
+package edu.ucsf.valelab.gaussianfit.algorithm;
+
+/**
+ * Radix-2 FFT "plan" for square images whose edge is a power of 2.
+ * The twiddle factors and bit reversal table are computed in the 
+ * constructor.  The plan holds no other state, so one plan can be used by
+ * many threads at once, each transforming its own arrays.
+ * 
+ * @author nico
+ */
+public final class FFTPlan {
+   private final int size_;
+   private final int[] bitReversed_;
+   private final double[] cos_;
+   private final double[] sin_;
+   
+   /**
+    * @param size - width and height of the images to be transformed, 
+    * must be a power of 2
+    */
+   public FFTPlan(int size) {
+      if (size < 1 || (size & (size - 1)) != 0) {
+         throw new IllegalArgumentException(
+                 "FFT size should be a power of 2, not " + size);
+      }
+      size_ = size;
+      int bits = Integer.numberOfTrailingZeros(size);
+      bitReversed_ = new int[size];
+      for (int i = 0; i < size; i++) {
+         bitReversed_[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+      }
+      cos_ = new double[Math.max(1, size / 2)];
+      sin_ = new double[cos_.length];
+      for (int k = 0; k < cos_.length; k++) {
+         double angle = 2.0 * Math.PI * k / size;
+         cos_[k] = Math.cos(angle);
+         sin_[k] = Math.sin(angle);
+      }
+   }
+   
+   public int getSize() {
+      return size_;
+   }
+   
+   /**
+    * Transforms a size x size image in place.  The inverse transform is 
+    * scaled by 1 / (size * size), so that it undoes the forward transform.
+    * 
+    * @param re - real part, row by row
+    * @param im - imaginary part, row by row
+    * @param inverse - whether to do the inverse transform
+    */
+   public void transform2D(float[] re, float[] im, boolean inverse) {
+      int n = size_;
+      if (re.length != n * n || im.length != n * n) {
+         throw new IllegalArgumentException("Arrays should have " + n * n + 
+                 " elements");
+      }
+      for (int row = 0; row < n; row++) {
+         transform(re, im, row * n, inverse);
+      }
+      // Copy the columns out, so that the butterflies work on consecutive
+      // memory
+      float[] colRe = new float[n];
+      float[] colIm = new float[n];
+      for (int col = 0; col < n; col++) {
+         for (int row = 0; row < n; row++) {
+            colRe[row] = re[row * n + col];
+            colIm[row] = im[row * n + col];
+         }
+         transform(colRe, colIm, 0, inverse);
+         for (int row = 0; row < n; row++) {
+            re[row * n + col] = colRe[row];
+            im[row * n + col] = colIm[row];
+         }
+      }
+      if (inverse) {
+         float scale = 1.0f / ((float) n * n);
+         for (int i = 0; i < re.length; i++) {
+            re[i] *= scale;
+            im[i] *= scale;
+         }
+      }
+   }
+   
+   /**
+    * 1D transform of size_ elements, starting at offset
+    */
+   private void transform(float[] re, float[] im, int offset, boolean inverse) {
+      int n = size_;
+      for (int i = 0; i < n; i++) {
+         int j = bitReversed_[i];
+         if (j > i) {
+            float tmp = re[offset + i];
+            re[offset + i] = re[offset + j];
+            re[offset + j] = tmp;
+            tmp = im[offset + i];
+            im[offset + i] = im[offset + j];
+            im[offset + j] = tmp;
+         }
+      }
+      double sign = inverse ? 1.0 : -1.0;
+      for (int length = 2; length <= n; length <<= 1) {
+         int half = length >> 1;
+         int step = n / length;
+         for (int start = offset; start < offset + n; start += length) {
+            for (int k = 0; k < half; k++) {
+               double wr = cos_[k * step];
+               double wi = sign * sin_[k * step];
+               int a = start + k;
+               int b = a + half;
+               double tr = wr * re[b] - wi * im[b];
+               double ti = wr * im[b] + wi * re[b];
+               re[b] = (float) (re[a] - tr);
+               im[b] = (float) (im[a] - ti);
+               re[a] = (float) (re[a] + tr);
+               im[a] = (float) (im[a] + ti);
+            }
+         }
+      }
+   }
+   
+}
@@ -30,6 +30,7 @@ either expressed or implied, of the FreeBSD Project.
 package edu.ucsf.valelab.gaussianfit.data;
 
 import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.GeneratedMessage;
 import edu.ucsf.valelab.tsf.MMLocM;
 import edu.ucsf.valelab.tsf.TaggedSpotsProtos;
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
@@ -37,10 +38,10 @@ import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.EXTENSION;
 import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.getInstance;
 import edu.ucsf.valelab.gaussianfit.LittleEndianDataInputStream;
 import edu.ucsf.valelab.gaussianfit.utils.ReportingUtils;
-import ij.process.ImageProcessor;
 import java.awt.Cursor;
 import java.awt.FileDialog;
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -52,6 +53,7 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -87,7 +89,7 @@ public class LoadAndSave {
          ij.IJ.showStatus("Loading data..");
          caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 
-         List<SpotData> spotList = new ArrayList<SpotData>();
+         SpotStore spots = new SpotStore();
 
          float pixelSize = (float) 160.0; // how do we get this from the file?
 
@@ -160,12 +162,12 @@ public class LoadAndSave {
                   minZ = zc;
                }
 
-               SpotData gsd = new SpotData(null, 0, 0, i,
-                       0, nr, (int) xc, (int) yc);
-               gsd.setData(intensity, b, pixelSize * xc, pixelSize * yc, 0.0, w, ax, phi, c);
-               gsd.setZCenter(zc);
-               gsd.setOriginalPosition(x, y, z);
-               spotList.add(gsd);
+               int index = spots.add(0, 0, i, 0, nr, (int) xc, (int) yc);
+               spots.setData(index, intensity, b, pixelSize * xc, pixelSize * yc, w, ax, phi, c);
+               spots.setZCenter(index, zc);
+               spots.setValue(index, SpotData.Keys.ORIGINALX, x);
+               spots.setValue(index, SpotData.Keys.ORIGINALY, y);
+               spots.setValue(index, SpotData.Keys.ORIGINALZ, z);
                nr++;
             }
          }
@@ -177,7 +179,7 @@ public class LoadAndSave {
                  setColColorRef("").setWidth(256).setHeight(256).
                  setPixelSizeNm(pixelSize).setZStackStepSizeNm(0.0f).
                  setShape(3).setHalfSize(2).setNrFrames(1).setNrSlices(1).
-                 setNrPositions(1).setMaxNrSpots(nr).setSpotList(spotList).
+                 setNrPositions(1).setMaxNrSpots(nr).setSpotStore(spots).
                  setIsTrack(false).setCoordinate(DataCollectionForm.Coordinates.NM).
                  setHasZ(hasZ).setMinZ(minZ).setMaxZ(maxZ);
          DataCollectionForm.getInstance().addSpotData(builder);
@@ -352,7 +354,7 @@ public class LoadAndSave {
 
          caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 
-         FileInputStream fi = new FileInputStream(selectedFile);
+         InputStream fi = new FileInputStream(selectedFile);
          DataInputStream di = new DataInputStream(fi);
 
          // the new file format has an initial 0, then the offset (in long)
@@ -372,6 +374,8 @@ public class LoadAndSave {
             fi = new FileInputStream(selectedFile);
             fi.skip(12); // size of int + size of long
          }
+         // spots are read one small message at a time
+         fi = new BufferedInputStream(fi, 1 << 16);
          ExtensionRegistry registry = ExtensionRegistry.newInstance();
          int appId = psl.getApplicationId();
          if (appId == MMAPPID) {
@@ -404,31 +408,31 @@ public class LoadAndSave {
          double maxZ = Double.NEGATIVE_INFINITY;
          double minZ = Double.POSITIVE_INFINITY;
 
-         ArrayList<SpotData> spotList = new ArrayList<SpotData>();
+         SpotStore spots = new SpotStore();
          TaggedSpotsProtos.Spot pSpot;
          while (fi.available() > 0 && (expectedSpots == 0 || maxNrSpots < expectedSpots)) {
 
             pSpot = TaggedSpotsProtos.Spot.parseDelimitedFrom(fi, registry);
 
-            SpotData gSpot = new SpotData((ImageProcessor) null, pSpot.getChannel(),
-                    pSpot.getSlice(), pSpot.getFrame(), pSpot.getPos(),
-                    pSpot.getMolecule(), pSpot.getXPosition(), pSpot.getYPosition());
-            gSpot.setData(pSpot.getIntensity(), pSpot.getBackground(), pSpot.getX(),
-                    pSpot.getY(), 0.0, pSpot.getWidth(), pSpot.getA(), pSpot.getTheta(),
-                    pSpot.getXPrecision());
+            int index = spots.add(pSpot.getChannel(), pSpot.getSlice(), 
+                    pSpot.getFrame(), pSpot.getPos(), pSpot.getMolecule(), 
+                    pSpot.getXPosition(), pSpot.getYPosition());
+            spots.setData(index, pSpot.getIntensity(), pSpot.getBackground(), 
+                    pSpot.getX(), pSpot.getY(), pSpot.getWidth(), pSpot.getA(), 
+                    pSpot.getTheta(), pSpot.getXPrecision());
             if (appId == MMAPPID) {
-               gSpot.addKeyValue(SpotData.Keys.APERTUREINTENSITY, 
+               spots.setValue(index, SpotData.Keys.APERTUREINTENSITY, 
                        pSpot.getExtension(MMLocM.intensityAperture));
-               gSpot.addKeyValue(SpotData.Keys.APERTUREBACKGROUND, 
+               spots.setValue(index, SpotData.Keys.APERTUREBACKGROUND, 
                        pSpot.getExtension(MMLocM.intensityBackground));
-               gSpot.addKeyValue(SpotData.Keys.INTENSITYRATIO, 
+               spots.setValue(index, SpotData.Keys.INTENSITYRATIO, 
                        pSpot.getExtension(MMLocM.intensityRatio));
-               gSpot.addKeyValue(SpotData.Keys.MSIGMA, 
+               spots.setValue(index, SpotData.Keys.MSIGMA, 
                        pSpot.getExtension(MMLocM.mSigma));
             }
             if (pSpot.hasZ()) {
                double zc = pSpot.getZ();
-               gSpot.setZCenter(zc);
+               spots.setZCenter(index, zc);
                hasZ = true;
                if (zc > maxZ) {
                   maxZ = zc;
@@ -441,9 +445,8 @@ public class LoadAndSave {
             if ((esf > 0) && ((maxNrSpots % esf) == 0)) {
                ij.IJ.showProgress((double) maxNrSpots / (double) expectedSpots);
             }
-
-            spotList.add(gSpot);
          }
+         fi.close();
 
          RowData.Builder builder = new RowData.Builder();
          builder.setName(name).setTitle(title).setWidth(width).setHeight(height).
@@ -451,7 +454,7 @@ public class LoadAndSave {
                  setHalfSize(halfSize).setNrChannels(nrChannels).
                  setNrFrames(nrFrames).setNrSlices(nrSlices).
                  setNrPositions(nrPositions).setMaxNrSpots(maxNrSpots).
-                 setSpotList(spotList).setIsTrack(isTrack).
+                 setSpotStore(spots).setIsTrack(isTrack).
                  setCoordinate(DataCollectionForm.Coordinates.NM).
                  setHasZ(hasZ).setMinZ(minZ).setMaxZ(maxZ);
          DataCollectionForm.getInstance().addSpotData(builder);
@@ -460,6 +463,8 @@ public class LoadAndSave {
          JOptionPane.showMessageDialog(getInstance(), "File not found");
       } catch (IOException ex) {
          JOptionPane.showMessageDialog(getInstance(), "Error while reading file");
+      } catch (OutOfMemoryError ome) {
+         JOptionPane.showMessageDialog(getInstance(), "Out Of Memory");
       } finally {
          caller.setCursor(Cursor.getDefaultCursor());
          ij.IJ.showStatus("");
@@ -513,7 +518,7 @@ public class LoadAndSave {
                     setFilepath(rowData[rowNr].title_).
                     setNrPixelsX(rowData[rowNr].width_).
                     setNrPixelsY(rowData[rowNr].height_).
-                    setNrSpots(rowData[rowNr].spotList_.size()).
+                    setNrSpots(rowData[rowNr].spotStore_.size()).
                     setPixelSize(rowData[rowNr].pixelSizeNm_).
                     setBoxSize(rowData[rowNr].halfSize_ * 2).
                     setNrChannels(rowData[rowNr].nrChannels_).
@@ -549,57 +554,56 @@ public class LoadAndSave {
                   String tmpName = nameParts[nameParts.length - 1];
                   fo = new FileOutputStream(new File(fdir + File.separator + tmpName + EXTENSION));
                }
+               // spots are written as many small messages
+               BufferedOutputStream bo = new BufferedOutputStream(fo, 1 << 16);
                // write space for magic nr and offset to spotList
                for (int i = 0; i < 12; i++) {
-                  fo.write(0);
+                  bo.write(0);
                }
 
-               int counter = 0;
-               for (SpotData gd : rowData[rowNr].spotList_) {
+               SpotStore spots = rowData[rowNr].spotStore_;
+               boolean hasZ = rowData[rowNr].hasZ_;
+               TaggedSpotsProtos.Spot.Builder spotBuilder = TaggedSpotsProtos.Spot.newBuilder();
+               for (int counter = 0; counter < spots.size(); counter++) {
 
                   if ((counter % 1000) == 0) {
                      ij.IJ.showStatus("Saving spotData...");
-                     ij.IJ.showProgress(counter, rowData[rowNr].spotList_.size());
+                     ij.IJ.showProgress(counter, spots.size());
                   }
 
-                  if (gd != null) {
-                     TaggedSpotsProtos.Spot.Builder spotBuilder = TaggedSpotsProtos.Spot.newBuilder();
-                     // TODO: precede all these calls with check for presence of member
-                     // or be OK with default values?
-                     spotBuilder.setMolecule(counter).
-                             setFrame(gd.getFrame()).
-                             setChannel(gd.getChannel()).
-                             setPos(gd.getPosition()).
-                             setSlice(gd.getSlice()).
-                             setX((float) gd.getXCenter()).
-                             setY((float) gd.getYCenter()).
-                             setIntensity((float) gd.getIntensity()).
-                             setBackground((float) gd.getBackground()).
-                             setXPosition(gd.getX()).
-                             setYPosition(gd.getY()).
-                             setWidth((float) gd.getWidth()).
-                             setA((float) gd.getA()).
-                             setTheta((float) gd.getTheta()).
-                             setXPrecision((float) gd.getSigma()).
-                             setExtension(MMLocM.intensityAperture, 
-                                  gd.getValue(SpotData.Keys.APERTUREINTENSITY).floatValue()).
-                             setExtension(MMLocM.intensityBackground, 
-                                  gd.getValue(SpotData.Keys.APERTUREBACKGROUND).floatValue()).
-                             setExtension(MMLocM.intensityRatio, 
-                                  gd.getValue(SpotData.Keys.INTENSITYRATIO).floatValue()).
-                             setExtension(MMLocM.mSigma, 
-                                  gd.getValue(SpotData.Keys.MSIGMA).floatValue());
-                     if (rowData[rowNr].hasZ_) {
-                        spotBuilder.setZ((float) gd.getZCenter());
-                     }
-
-                     TaggedSpotsProtos.Spot spot = spotBuilder.build();
-                     
-                     // write message size and message
-                     spot.writeDelimitedTo(fo);
-                     counter++;
+                  spotBuilder.clear();
+                  spotBuilder.setMolecule(counter).
+                          setFrame(spots.getFrame(counter)).
+                          setChannel(spots.getChannel(counter)).
+                          setPos(spots.getPosition(counter)).
+                          setSlice(spots.getSlice(counter)).
+                          setX((float) spots.getXCenter(counter)).
+                          setY((float) spots.getYCenter(counter)).
+                          setIntensity((float) spots.getIntensity(counter)).
+                          setBackground((float) spots.getBackground(counter)).
+                          setXPosition(spots.getX(counter)).
+                          setYPosition(spots.getY(counter)).
+                          setWidth((float) spots.getWidth(counter)).
+                          setA((float) spots.getA(counter)).
+                          setTheta((float) spots.getTheta(counter)).
+                          setXPrecision((float) spots.getSigma(counter));
+                  // spots that do not have these values are saved without them
+                  setExtension(spotBuilder, MMLocM.intensityAperture, 
+                          spots.getValue(counter, SpotData.Keys.APERTUREINTENSITY));
+                  setExtension(spotBuilder, MMLocM.intensityBackground, 
+                          spots.getValue(counter, SpotData.Keys.APERTUREBACKGROUND));
+                  setExtension(spotBuilder, MMLocM.intensityRatio, 
+                          spots.getValue(counter, SpotData.Keys.INTENSITYRATIO));
+                  setExtension(spotBuilder, MMLocM.mSigma, 
+                          spots.getValue(counter, SpotData.Keys.MSIGMA));
+                  if (hasZ) {
+                     spotBuilder.setZ((float) spots.getZCenter(counter));
                   }
+
+                  // write message size and message
+                  spotBuilder.build().writeDelimitedTo(bo);
                }
+               bo.flush();
 
                FileChannel fc = fo.getChannel();
                long offset = fc.position();
@@ -628,6 +632,14 @@ public class LoadAndSave {
       return dir;
    }
    
+   private static void setExtension(TaggedSpotsProtos.Spot.Builder builder,
+           GeneratedMessage.GeneratedExtension<TaggedSpotsProtos.Spot, Float> extension,
+           double value) {
+      if (!Double.isNaN(value)) {
+         builder.setExtension(extension, (float) value);
+      }
+   }
+   
    /**
     * Save data set as a text file
     *
@@ -65,6 +65,7 @@ public class RowData {
       private int nrPositions_ = 1;
       private long maxNrSpots_;
       private List<SpotData> spotList_;
+      private SpotStore spotStore_;
       private ArrayList<Double> timePoints_;
       private boolean isTrack_;
       private Coordinates coordinate_ = Coordinates.NM;
@@ -151,8 +152,28 @@ public class RowData {
          return this;
       }
 
+      /**
+       * Sets the spots as a list.  They will be copied into a SpotStore.
+       * Replaces spots set earlier with setSpotList or setSpotStore.
+       * @param spotList
+       * @return 
+       */
       public Builder setSpotList(List<SpotData> spotList) {
          spotList_ = spotList;
+         spotStore_ = null;
+         return this;
+      }
+
+      /**
+       * Sets the spots as a SpotStore, which will be used as is, and should
+       * not be modified afterwards.  Replaces spots set earlier with 
+       * setSpotList or setSpotStore.
+       * @param spotStore
+       * @return 
+       */
+      public Builder setSpotStore(SpotStore spotStore) {
+         spotStore_ = spotStore;
+         spotList_ = null;
          return this;
       }
 
@@ -188,9 +209,10 @@ public class RowData {
 
    }
 
+   // The spots of this row.  Code going through all spots should use
+   // spotStore_ directly; spotList_ creates a SpotData for every access.
+   public final SpotStore spotStore_;
    public final List<SpotData> spotList_;
-   private Map<Integer, List<SpotData>> frameIndexSpotList_;
-   private Map<ImageIndex, List<SpotData>> indexedSpotList_;
    public final ArrayList<Double> timePoints_;
    private String name_;             // name as it appears in the DataCollection table
    public final String title_;      // ImagePlus title of the image
@@ -237,7 +259,12 @@ public class RowData {
       nrSlices_ = b.nrSlices_;
       nrPositions_ = b.nrPositions_;
       maxNrSpots_ = b.maxNrSpots_;
-      spotList_ = new ArrayList<SpotData>(b.spotList_);
+      if (b.spotStore_ != null) {
+         spotStore_ = b.spotStore_;
+      } else {
+         spotStore_ = SpotStore.fromList(b.spotList_);
+      }
+      spotList_ = spotStore_.asList();
       if (b.timePoints_ != null) {
          timePoints_ = new ArrayList<Double>(b.timePoints_);
       } else {
@@ -261,13 +288,11 @@ public class RowData {
          stdX = stdPoint.x;
          stdY = stdPoint.y;
          std = Math.sqrt(stdX * stdX + stdY * stdY);
-         for (SpotData spot : spotList_) {
-            nrPhotons += spot.getIntensity();
-         }
          List<Integer> channelList = new ArrayList<Integer>();
-         for (SpotData spot : spotList_) {
-            if (!channelList.contains(spot.getChannel()) ) {
-               channelList.add(spot.getChannel());
+         for (int i = 0; i < spotStore_.size(); i++) {
+            nrPhotons += spotStore_.getIntensity(i);
+            if (!channelList.contains(spotStore_.getChannel(i)) ) {
+               channelList.add(spotStore_.getChannel(i));
             }
          }
          for (Integer i : channelList) {
@@ -293,58 +318,54 @@ public class RowData {
               setShape(shape_).setHalfSize(halfSize_).setNrChannels(nrChannels_).
               setNrFrames(nrFrames_).setNrSlices(nrSlices_).
               setNrPositions(nrPositions_).setMaxNrSpots(maxNrSpots_).
-              setSpotList(spotList_).setTimePoints(timePoints_).
+              setSpotStore(spotStore_).setTimePoints(timePoints_).
               setIsTrack(isTrack_).setCoordinate(coordinate_).setHasZ(hasZ_).
               setMinZ(minZ_).setMaxZ(maxZ_);
       return builder;
    }
    
    /**
-    * Populates the list frameIndexSpotList which gives access to spots by frame
+    * Builds the indexes of the spot store, which give access to spots by 
+    * frame and by image.  Only needed to control when the work is done; 
+    * the indexes are otherwise built when first used.
     */
    public void index() {
-      boolean useFrames = nrFrames_ > nrSlices_;
-      int nr = nrSlices_;
-      if (useFrames) {
-         nr = nrFrames_;
-      }
-
-      frameIndexSpotList_ = new HashMap<Integer, List<SpotData>>(nr);
-      indexedSpotList_ = new HashMap<ImageIndex, List<SpotData>>();
-
-      for (SpotData spot : spotList_) {
-         int frameIndex = spot.getSlice();
-         if (useFrames) {
-            frameIndex = spot.getFrame();
-         }
-         if (frameIndexSpotList_.get(frameIndex) == null) {
-            frameIndexSpotList_.put(frameIndex, new ArrayList<SpotData>());
-         }
-         frameIndexSpotList_.get(frameIndex).add(spot);
-
-         ImageIndex ii = new ImageIndex(spot.getFrame(), spot.getSlice(),
-                 spot.getChannel(), spot.getPosition());
-         if (indexedSpotList_.get(ii) == null) {
-            indexedSpotList_.put(ii, new ArrayList<SpotData>());
-         }
-         indexedSpotList_.get(ii).add(spot);
-      }
+      spotStore_.getIndicesByFrame(nrFrames_ > nrSlices_);
+      spotStore_.getIndices(1, 1, 1, 1);
    }
    
+   /**
+    * Returns spots by frame (or by slice, when there are more slices than 
+    * frames).  The lists are views of the spot store that create a SpotData
+    * for every access.  For large datasets, use 
+    * spotStore_.getIndicesByFrame() instead.
+    * 
+    * @return map from frame (or slice) to the spots it contains
+    */
    public Map<Integer, List<SpotData>> getSpotListIndexedByFrame () {
-      if (frameIndexSpotList_ == null) {
-         index();
-      }
-      return frameIndexSpotList_;
+      Map<Integer, int[]> indices = 
+              spotStore_.getIndicesByFrame(nrFrames_ > nrSlices_);
+      Map<Integer, List<SpotData>> result = 
+              new HashMap<Integer, List<SpotData>>(indices.size() * 2);
+      for (Map.Entry<Integer, int[]> entry : indices.entrySet()) {
+         result.put(entry.getKey(), spotStore_.asList(entry.getValue()));
+      }
+      return result;
    }
            
-
+   /**
+    * Returns the spots found in the given image.  Every call returns new
+    * SpotData objects, but within the returned list, the same object is 
+    * returned for the same spot.
+    * 
+    * @return spots in this image, or null if there are none
+    */
    public List<SpotData> get(int frame, int slice, int channel, int position) {
-      ImageIndex ii = new ImageIndex(frame, slice, channel, position);
-      if (indexedSpotList_ == null) {
-         index();
+      int[] indices = spotStore_.getIndices(frame, slice, channel, position);
+      if (indices == null) {
+         return null;
       }
-      return indexedSpotList_.get(ii);
+      return new ArrayList<SpotData>(spotStore_.asList(indices));
    }
 
    /**
@@ -359,10 +380,10 @@ public class RowData {
     * @return desired spot or null if not found
     */
    public SpotData get(int frame, int channel, double xPos, double yPos) {
-      for (SpotData spot : spotList_) {
-         if (spot.getFrame() == frame && spot.getChannel() == channel
-                 && spot.getXCenter() == xPos && spot.getYCenter() == yPos) {
-            return spot;
+      for (int i = 0; i < spotStore_.size(); i++) {
+         if (spotStore_.getFrame(i) == frame && spotStore_.getChannel(i) == channel
+                 && spotStore_.getXCenter(i) == xPos && spotStore_.getYCenter(i) == yPos) {
+            return spotStore_.getSpot(i);
          }
       }
 
@@ -0,0 +1,195 @@
+/*
+Author: Nico Stuurman
+
+Copyright (c) 2017, Regents of the University of California
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies,
+either expressed or implied, of the FreeBSD Project.
+ */
+
+package edu.ucsf.valelab.gaussianfit.data;
+
+/**
+ * Groups the spots of a SpotStore in square bins by their (x, y) position,
+ * so that the spots in a region can be found without going through the
+ * whole store.
+ *
+ * As with the other indexes of the store, this costs one int per spot: the
+ * spot indices are sorted by bin, and binStarts_ holds where each bin
+ * starts.  Spots without a valid position are not indexed.
+ *
+ * Obtain an index with SpotStore.getSpatialIndex(); it should be treated as
+ * stale once the store is changed.
+ *
+ * @author nico
+ */
+public class SpatialIndex {
+   // Keeps the number of bins sane when a few spots are far off
+   private static final int MAX_BINS_PER_AXIS = 4096;
+
+   private final double binSizeNm_;
+   private final double minX_;
+   private final double minY_;
+   private final int nrBinsX_;
+   private final int nrBinsY_;
+   private final int[] binStarts_;
+   private final int[] spotIndices_;
+   private final double maxSigma_;
+
+   SpatialIndex(SpotStore store, double binSizeNm) {
+      int nrSpots = store.size();
+      double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+      double maxSigma = 0.0;
+      for (int i = 0; i < nrSpots; i++) {
+         double x = store.getXCenter(i);
+         double y = store.getYCenter(i);
+         if (isValid(x, y)) {
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+            // Math.max does not ignore NaN
+            double sigma = store.getSigma(i);
+            if (sigma > maxSigma) {
+               maxSigma = sigma;
+            }
+         }
+      }
+      if (minX > maxX) {
+         // no spots with a position
+         minX = maxX = minY = maxY = 0.0;
+      }
+      minX_ = minX;
+      minY_ = minY;
+      maxSigma_ = maxSigma;
+      double range = Math.max(maxX - minX, maxY - minY);
+      double size = Math.max(binSizeNm, range / MAX_BINS_PER_AXIS);
+      // also catches a pixel size of 0
+      binSizeNm_ = size > 0.0 ? size : 1.0;
+      nrBinsX_ = Math.min(MAX_BINS_PER_AXIS, (int) ((maxX - minX) / binSizeNm_) + 1);
+      nrBinsY_ = Math.min(MAX_BINS_PER_AXIS, (int) ((maxY - minY) / binSizeNm_) + 1);
+
+      // Two passes, as in SpotStore.buildIndex(): count the spots per bin,
+      // then put each spot in its place.
+      binStarts_ = new int[nrBinsX_ * nrBinsY_ + 1];
+      int nrIndexed = 0;
+      for (int i = 0; i < nrSpots; i++) {
+         double x = store.getXCenter(i);
+         double y = store.getYCenter(i);
+         if (isValid(x, y)) {
+            binStarts_[getBin(x, y) + 1]++;
+            nrIndexed++;
+         }
+      }
+      for (int b = 1; b < binStarts_.length; b++) {
+         binStarts_[b] += binStarts_[b - 1];
+      }
+      int[] next = new int[nrBinsX_ * nrBinsY_];
+      System.arraycopy(binStarts_, 0, next, 0, next.length);
+      spotIndices_ = new int[nrIndexed];
+      for (int i = 0; i < nrSpots; i++) {
+         double x = store.getXCenter(i);
+         double y = store.getYCenter(i);
+         if (isValid(x, y)) {
+            spotIndices_[next[getBin(x, y)]++] = i;
+         }
+      }
+   }
+
+   private static boolean isValid(double x, double y) {
+      return !Double.isNaN(x) && !Double.isNaN(y) &&
+              !Double.isInfinite(x) && !Double.isInfinite(y);
+   }
+
+   private int getBin(double x, double y) {
+      return getBinY(y) * nrBinsX_ + getBinX(x);
+   }
+
+   /**
+    * @return size of the bins, which is larger than requested when the spots
+    * are spread out so far that there would be too many bins
+    */
+   public double getBinSizeNm() {
+      return binSizeNm_;
+   }
+
+   public int getNrBinsX() {
+      return nrBinsX_;
+   }
+
+   public int getNrBinsY() {
+      return nrBinsY_;
+   }
+
+   /**
+    * @param x - position in nm
+    * @return column of bins containing x, clamped to the bins that exist
+    */
+   public int getBinX(double x) {
+      return clamp((int) Math.floor((x - minX_) / binSizeNm_), nrBinsX_);
+   }
+
+   /**
+    * @param y - position in nm
+    * @return row of bins containing y, clamped to the bins that exist
+    */
+   public int getBinY(double y) {
+      return clamp((int) Math.floor((y - minY_) / binSizeNm_), nrBinsY_);
+   }
+
+   private static int clamp(int bin, int nrBins) {
+      return bin < 0 ? 0 : (bin >= nrBins ? nrBins - 1 : bin);
+   }
+
+   /**
+    * The spots in bin (binX, binY) are getSpotIndices()[getBinStart(binX, binY)]
+    * up to (not including) getSpotIndices()[getBinEnd(binX, binY)].  Spots in
+    * the bins of one row follow each other, so a range of bins in a row is
+    * a single range of spot indices.
+    */
+   public int getBinStart(int binX, int binY) {
+      return binStarts_[binY * nrBinsX_ + binX];
+   }
+
+   public int getBinEnd(int binX, int binY) {
+      return binStarts_[binY * nrBinsX_ + binX + 1];
+   }
+
+   /**
+    * @return indices into the store, grouped by bin.  Do not modify.
+    */
+   public int[] getSpotIndices() {
+      return spotIndices_;
+   }
+
+   /**
+    * @return largest sigma of the indexed spots, which tells how far beyond
+    * its bin a rendered spot can reach
+    */
+   public double getMaxSigma() {
+      return maxSigma_;
+   }
+}
@@ -73,6 +73,10 @@ public class SpotData implements PointData {
       public static final String STDDEVX = "stdDevX";
       // Std. Deviation of Y value in track or group
       public static final String STDDEVY = "stdDevY";
+      // original position before correction, as stored in .bin files
+      public static final String ORIGINALX = "x (orig.)";
+      public static final String ORIGINALY = "y (orig.)";
+      public static final String ORIGINALZ = "z (orig.)";
    }
 
    // lock to avoid clashes during access to image data
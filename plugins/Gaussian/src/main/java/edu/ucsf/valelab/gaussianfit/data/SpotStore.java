@@ -0,0 +1,767 @@
+/*
+Author: Nico Stuurman
+
+Copyright (c) 2013-2017, Regents of the University of California
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies,
+either expressed or implied, of the FreeBSD Project.
+ */
+
+package edu.ucsf.valelab.gaussianfit.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Columnar storage for localizations.
+ * 
+ * Every field of SpotData is kept in its own column of primitives (an
+ * int or double per spot), rather than as one object per spot, so that a
+ * spot costs about 80 bytes instead of several hundred, and so that
+ * operations over whole datasets (rendering, drift correction) can run 
+ * without creating any objects.  Columns grow in chunks, so appending never
+ * copies existing data.  Key/value pairs of SpotData (see SpotData.Keys) 
+ * become extra columns, with NaN for spots that do not have the key.
+ * 
+ * Stores can be written to a binary file, and such a file can be memory 
+ * mapped, giving a read-only store that does not use the Java heap at all.
+ * 
+ * Spots are addressed by their index in the store. Stores are not thread 
+ * safe; to fill a store from multiple threads, give each thread its own 
+ * store and combine them with addAll().
+ * 
+ * @author nico
+ */
+public class SpotStore {
+   private static final int CHUNK_BITS = 16;
+   private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+   private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+   private static final int FILE_MAGIC = 0x4D4D4C43; // "MMLC"
+   private static final int FILE_VERSION = 1;
+
+   /**
+    * Growable column of ints, stored in chunks of CHUNK_SIZE.
+    */
+   private static final class IntColumn {
+      private final List<IntBuffer> chunks_ = new ArrayList<IntBuffer>();
+
+      int get(int index) {
+         return chunks_.get(index >>> CHUNK_BITS).get(index & CHUNK_MASK);
+      }
+
+      void set(int index, int value) {
+         chunks_.get(index >>> CHUNK_BITS).put(index & CHUNK_MASK, value);
+      }
+
+      void ensureCapacity(int size) {
+         while (chunks_.size() * (long) CHUNK_SIZE < size) {
+            chunks_.add(IntBuffer.allocate(CHUNK_SIZE));
+         }
+      }
+   }
+
+   /**
+    * Growable column of doubles, stored in chunks of CHUNK_SIZE.  New 
+    * entries have the given fill value.
+    */
+   private static final class DoubleColumn {
+      private final List<DoubleBuffer> chunks_ = new ArrayList<DoubleBuffer>();
+      private final double fill_;
+
+      DoubleColumn(double fill) {
+         fill_ = fill;
+      }
+
+      double get(int index) {
+         return chunks_.get(index >>> CHUNK_BITS).get(index & CHUNK_MASK);
+      }
+
+      void set(int index, double value) {
+         chunks_.get(index >>> CHUNK_BITS).put(index & CHUNK_MASK, value);
+      }
+
+      void ensureCapacity(int size) {
+         while (chunks_.size() * (long) CHUNK_SIZE < size) {
+            double[] values = new double[CHUNK_SIZE];
+            if (fill_ != 0.0) {
+               java.util.Arrays.fill(values, fill_);
+            }
+            chunks_.add(DoubleBuffer.wrap(values));
+         }
+      }
+   }
+
+   // Order of the columns, also used in the binary file
+   private static final int FRAME = 0;
+   private static final int SLICE = 1;
+   private static final int CHANNEL = 2;
+   private static final int POSITION = 3;
+   private static final int NR = 4;
+   private static final int X = 5;
+   private static final int Y = 6;
+   private static final int NR_INT_COLUMNS = 7;
+
+   private static final int INTENSITY = 0;
+   private static final int BACKGROUND = 1;
+   private static final int XCENTER = 2;
+   private static final int YCENTER = 3;
+   private static final int ZCENTER = 4;
+   private static final int WIDTH = 5;
+   private static final int A = 6;
+   private static final int THETA = 7;
+   private static final int SIGMA = 8;
+   private static final int NR_DOUBLE_COLUMNS = 9;
+
+   private final IntColumn[] ints_ = new IntColumn[NR_INT_COLUMNS];
+   private final DoubleColumn[] doubles_ = new DoubleColumn[NR_DOUBLE_COLUMNS];
+   private final Map<String, DoubleColumn> keyValues_ = 
+           new LinkedHashMap<String, DoubleColumn>();
+   private final boolean readOnly_;
+   private int size_ = 0;
+
+   // Indexes, built when first needed, and rebuilt when spots were added
+   private Map<IndexKey, int[]> imageIndex_;
+   private int imageIndexSize_ = -1;
+   private Map<Integer, int[]> frameIndex_;
+   private int frameIndexSize_ = -1;
+   private boolean frameIndexUsesFrames_;
+   // Spatial index, rebuilt when spots were added or their positions changed
+   private SpatialIndex spatialIndex_;
+   private double spatialIndexBinSizeNm_;
+   private int spatialIndexVersion_ = -1;
+   private int positionsVersion_ = 0;
+
+   public SpotStore() {
+      this(false);
+   }
+
+   private SpotStore(boolean readOnly) {
+      readOnly_ = readOnly;
+      for (int i = 0; i < NR_INT_COLUMNS; i++) {
+         ints_[i] = new IntColumn();
+      }
+      for (int i = 0; i < NR_DOUBLE_COLUMNS; i++) {
+         doubles_[i] = new DoubleColumn(0.0);
+      }
+   }
+
+   /**
+    * Creates a store holding the given spots
+    * @param spots
+    * @return new store
+    */
+   public static SpotStore fromList(List<SpotData> spots) {
+      SpotStore store = new SpotStore();
+      for (SpotData spot : spots) {
+         store.add(spot);
+      }
+      return store;
+   }
+
+   public int size() {
+      return size_;
+   }
+
+   public boolean isReadOnly() {
+      return readOnly_;
+   }
+
+   /**
+    * Appends a spot with the given image location.  Other fields are 0, and
+    * can be set with setData() and setZCenter().
+    * 
+    * @return index of the new spot
+    */
+   public int add(int channel, int slice, int frame, int position, int nr, 
+           int x, int y) {
+      checkWritable();
+      int index = size_;
+      grow(index + 1);
+      ints_[FRAME].set(index, frame);
+      ints_[SLICE].set(index, slice);
+      ints_[CHANNEL].set(index, channel);
+      ints_[POSITION].set(index, position);
+      ints_[NR].set(index, nr);
+      ints_[X].set(index, x);
+      ints_[Y].set(index, y);
+      size_++;
+      positionsVersion_++;
+      return index;
+   }
+
+   /**
+    * Appends a copy of the given spot, including its key/value pairs.  
+    * The ImageProcessor of the spot is not stored.
+    * 
+    * @param spot
+    * @return index of the new spot
+    */
+   public int add(SpotData spot) {
+      int index = add(spot.getChannel(), spot.getSlice(), spot.getFrame(),
+              spot.getPosition(), spot.getNr(), spot.getX(), spot.getY());
+      setData(index, spot.getIntensity(), spot.getBackground(), 
+              spot.getXCenter(), spot.getYCenter(), spot.getWidth(), 
+              spot.getA(), spot.getTheta(), spot.getSigma());
+      setZCenter(index, spot.getZCenter());
+      for (String key : spot.getKeys()) {
+         setValue(index, key, spot.getValue(key));
+      }
+      return index;
+   }
+
+   /**
+    * Appends all spots of another store
+    * @param other
+    */
+   public void addAll(SpotStore other) {
+      checkWritable();
+      int offset = size_;
+      grow(offset + other.size_);
+      for (int c = 0; c < NR_INT_COLUMNS; c++) {
+         for (int i = 0; i < other.size_; i++) {
+            ints_[c].set(offset + i, other.ints_[c].get(i));
+         }
+      }
+      for (int c = 0; c < NR_DOUBLE_COLUMNS; c++) {
+         for (int i = 0; i < other.size_; i++) {
+            doubles_[c].set(offset + i, other.doubles_[c].get(i));
+         }
+      }
+      for (Map.Entry<String, DoubleColumn> entry : other.keyValues_.entrySet()) {
+         DoubleColumn column = getOrCreateKeyColumn(entry.getKey(), 
+                 offset + other.size_);
+         for (int i = 0; i < other.size_; i++) {
+            column.set(offset + i, entry.getValue().get(i));
+         }
+      }
+      size_ += other.size_;
+      positionsVersion_++;
+   }
+
+   /**
+    * @return a writable, heap-based copy of this store
+    */
+   public SpotStore copy() {
+      SpotStore copy = new SpotStore();
+      copy.addAll(this);
+      return copy;
+   }
+
+   /**
+    * Sets the fit results for a spot, as SpotData.setData() does.
+    */
+   public void setData(int index, double intensity, double background, 
+           double xCenter, double yCenter, double width, double a, 
+           double theta, double sigma) {
+      checkWritable();
+      doubles_[INTENSITY].set(index, intensity);
+      doubles_[BACKGROUND].set(index, background);
+      doubles_[XCENTER].set(index, xCenter);
+      doubles_[YCENTER].set(index, yCenter);
+      doubles_[WIDTH].set(index, width);
+      doubles_[A].set(index, a);
+      doubles_[THETA].set(index, theta);
+      doubles_[SIGMA].set(index, sigma);
+      positionsVersion_++;
+   }
+
+   public int getFrame(int index) {
+      return ints_[FRAME].get(index);
+   }
+   public int getSlice(int index) {
+      return ints_[SLICE].get(index);
+   }
+   public int getChannel(int index) {
+      return ints_[CHANNEL].get(index);
+   }
+   public int getPosition(int index) {
+      return ints_[POSITION].get(index);
+   }
+   public int getNr(int index) {
+      return ints_[NR].get(index);
+   }
+   public int getX(int index) {
+      return ints_[X].get(index);
+   }
+   public int getY(int index) {
+      return ints_[Y].get(index);
+   }
+   public double getIntensity(int index) {
+      return doubles_[INTENSITY].get(index);
+   }
+   public double getBackground(int index) {
+      return doubles_[BACKGROUND].get(index);
+   }
+   public double getXCenter(int index) {
+      return doubles_[XCENTER].get(index);
+   }
+   public void setXCenter(int index, double x) {
+      checkWritable();
+      doubles_[XCENTER].set(index, x);
+      positionsVersion_++;
+   }
+   public double getYCenter(int index) {
+      return doubles_[YCENTER].get(index);
+   }
+   public void setYCenter(int index, double y) {
+      checkWritable();
+      doubles_[YCENTER].set(index, y);
+      positionsVersion_++;
+   }
+   /**
+    * Moves a spot, as setXCenter() and setYCenter() do, but without marking
+    * the positions as changed.  Several threads may call this at once, as
+    * long as each has its own range of spots; call positionsChanged() once
+    * they are all done.
+    */
+   public void moveCenter(int index, double x, double y) {
+      checkWritable();
+      doubles_[XCENTER].set(index, x);
+      doubles_[YCENTER].set(index, y);
+   }
+   /**
+    * Marks the positions as changed after moveCenter(), so that the spatial
+    * index is rebuilt.
+    */
+   public synchronized void positionsChanged() {
+      positionsVersion_++;
+   }
+   public double getZCenter(int index) {
+      return doubles_[ZCENTER].get(index);
+   }
+   public void setZCenter(int index, double z) {
+      checkWritable();
+      doubles_[ZCENTER].set(index, z);
+   }
+   public double getWidth(int index) {
+      return doubles_[WIDTH].get(index);
+   }
+   public double getA(int index) {
+      return doubles_[A].get(index);
+   }
+   public double getTheta(int index) {
+      return doubles_[THETA].get(index);
+   }
+   public double getSigma(int index) {
+      return doubles_[SIGMA].get(index);
+   }
+
+   /**
+    * @return keys for which at least one spot may have a value
+    */
+   public String[] getKeys() {
+      return keyValues_.keySet().toArray(new String[keyValues_.size()]);
+   }
+
+   public boolean hasKey(int index, String key) {
+      return !Double.isNaN(getValue(index, key));
+   }
+
+   /**
+    * @return value for the given key, or NaN if the spot does not have it
+    */
+   public double getValue(int index, String key) {
+      DoubleColumn column = keyValues_.get(key);
+      if (column == null) {
+         return Double.NaN;
+      }
+      return column.get(index);
+   }
+
+   public void setValue(int index, String key, double value) {
+      checkWritable();
+      getOrCreateKeyColumn(key, size_).set(index, value);
+   }
+
+   /**
+    * Creates a SpotData object for the given spot.  Changes to the returned
+    * object are not reflected in the store.
+    * 
+    * @param index
+    * @return new SpotData
+    */
+   public SpotData getSpot(int index) {
+      SpotData spot = new SpotData(null, getChannel(index), getSlice(index),
+              getFrame(index), getPosition(index), getNr(index), getX(index),
+              getY(index));
+      spot.setData(getIntensity(index), getBackground(index), 
+              getXCenter(index), getYCenter(index), 0.0, getWidth(index), 
+              getA(index), getTheta(index), getSigma(index));
+      spot.setZCenter(getZCenter(index));
+      for (Map.Entry<String, DoubleColumn> entry : keyValues_.entrySet()) {
+         double value = entry.getValue().get(index);
+         if (!Double.isNaN(value)) {
+            spot.addKeyValue(entry.getKey(), value);
+         }
+      }
+      return spot;
+   }
+
+   /**
+    * Read-only List view of the store, for code that works with SpotData.
+    * Every call to get() creates a new SpotData object, so this is not the
+    * way to go through large datasets.
+    * 
+    * @return List backed by this store
+    */
+   public List<SpotData> asList() {
+      return new SpotList(null);
+   }
+
+   /**
+    * As asList(), but only containing the spots with the given indices
+    */
+   public List<SpotData> asList(int[] indices) {
+      return new SpotList(indices);
+   }
+
+   private class SpotList extends AbstractList<SpotData> implements RandomAccess {
+      private final int[] indices_;
+
+      SpotList(int[] indices) {
+         indices_ = indices;
+      }
+
+      @Override
+      public SpotData get(int i) {
+         if (indices_ != null) {
+            return getSpot(indices_[i]);
+         }
+         if (i < 0 || i >= size_) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size_);
+         }
+         return getSpot(i);
+      }
+
+      @Override
+      public int size() {
+         return indices_ != null ? indices_.length : size_;
+      }
+   }
+
+   /**
+    * Returns the indices of all spots found in the given image, in the 
+    * order in which they were added.
+    * 
+    * @return indices, or null if there are no spots in this image
+    */
+   public synchronized int[] getIndices(int frame, int slice, int channel, 
+           int position) {
+      if (imageIndexSize_ != size_) {
+         imageIndex_ = buildIndex(true, true);
+         imageIndexSize_ = size_;
+      }
+      return imageIndex_.get(new IndexKey(frame, slice, channel, position));
+   }
+
+   /**
+    * Returns the indices of all spots, grouped by frame, or by slice.
+    * 
+    * @param useFrames - if true, group by frame, otherwise by slice
+    * @return map from frame (or slice) to indices of the spots in it
+    */
+   public synchronized Map<Integer, int[]> getIndicesByFrame(boolean useFrames) {
+      if (frameIndexSize_ != size_ || frameIndexUsesFrames_ != useFrames) {
+         Map<IndexKey, int[]> index = buildIndex(useFrames, !useFrames);
+         frameIndex_ = new HashMap<Integer, int[]>(index.size() * 2);
+         for (Map.Entry<IndexKey, int[]> entry : index.entrySet()) {
+            IndexKey key = entry.getKey();
+            frameIndex_.put(useFrames ? key.frame_ : key.slice_, entry.getValue());
+         }
+         frameIndexSize_ = size_;
+         frameIndexUsesFrames_ = useFrames;
+      }
+      return frameIndex_;
+   }
+
+   /**
+    * Returns an index of the spots by position, with bins of (at least) the
+    * given size.  The index is kept until spots are added or moved.
+    * 
+    * @param binSizeNm - size of the bins, in nm
+    * @return spatial index of the store
+    */
+   public synchronized SpatialIndex getSpatialIndex(double binSizeNm) {
+      if (spatialIndexVersion_ != positionsVersion_ || 
+              spatialIndexBinSizeNm_ != binSizeNm) {
+         spatialIndex_ = new SpatialIndex(this, binSizeNm);
+         spatialIndexBinSizeNm_ = binSizeNm;
+         spatialIndexVersion_ = positionsVersion_;
+      }
+      return spatialIndex_;
+   }
+
+   /**
+    * Mutable key for the indexes, so that building an index does not need
+    * an object per spot.
+    */
+   private static final class IndexKey {
+      int frame_;
+      int slice_;
+      int channel_;
+      int position_;
+
+      IndexKey(int frame, int slice, int channel, int position) {
+         frame_ = frame;
+         slice_ = slice;
+         channel_ = channel;
+         position_ = position;
+      }
+
+      @Override
+      public boolean equals(Object other) {
+         if (!(other instanceof IndexKey)) {
+            return false;
+         }
+         IndexKey k = (IndexKey) other;
+         return k.frame_ == frame_ && k.slice_ == slice_ && 
+                 k.channel_ == channel_ && k.position_ == position_;
+      }
+
+      @Override
+      public int hashCode() {
+         return ((frame_ * 31 + slice_) * 31 + channel_) * 31 + position_;
+      }
+   }
+
+   /**
+    * Groups the spots by frame and/or slice (and, when both are used, by
+    * channel and position).  Two passes: count the spots per group, then
+    * fill arrays of exactly the right size, so that the index costs one int
+    * per spot.
+    */
+   private Map<IndexKey, int[]> buildIndex(boolean useFrames, boolean useSlices) {
+      boolean full = useFrames && useSlices;
+      IndexKey probe = new IndexKey(0, 0, 0, 0);
+      Map<IndexKey, int[]> counts = new HashMap<IndexKey, int[]>();
+      for (int i = 0; i < size_; i++) {
+         setKey(probe, i, useFrames, useSlices, full);
+         int[] count = counts.get(probe);
+         if (count == null) {
+            counts.put(new IndexKey(probe.frame_, probe.slice_, 
+                    probe.channel_, probe.position_), new int[] {1});
+         } else {
+            count[0]++;
+         }
+      }
+      Map<IndexKey, int[]> index = new HashMap<IndexKey, int[]>(counts.size() * 2);
+      for (Map.Entry<IndexKey, int[]> entry : counts.entrySet()) {
+         index.put(entry.getKey(), new int[entry.getValue()[0]]);
+         entry.getValue()[0] = 0;
+      }
+      for (int i = 0; i < size_; i++) {
+         setKey(probe, i, useFrames, useSlices, full);
+         int[] count = counts.get(probe);
+         index.get(probe)[count[0]++] = i;
+      }
+      return index;
+   }
+
+   private void setKey(IndexKey key, int i, boolean useFrames, 
+           boolean useSlices, boolean full) {
+      key.frame_ = useFrames ? getFrame(i) : 0;
+      key.slice_ = useSlices ? getSlice(i) : 0;
+      key.channel_ = full ? getChannel(i) : 0;
+      key.position_ = full ? getPosition(i) : 0;
+   }
+
+   /**
+    * Writes the store to a file that can be read back with map().  Columns
+    * are written one after the other, so that each can be mapped as a 
+    * whole.
+    * 
+    * @param file
+    * @throws IOException 
+    */
+   public void write(File file) throws IOException {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+              new FileOutputStream(file), 1 << 16));
+      try {
+         out.writeInt(FILE_MAGIC);
+         out.writeInt(FILE_VERSION);
+         out.writeInt(size_);
+         out.writeInt(keyValues_.size());
+         for (String key : keyValues_.keySet()) {
+            out.writeUTF(key);
+         }
+         for (IntColumn column : ints_) {
+            for (int i = 0; i < size_; i++) {
+               out.writeInt(column.get(i));
+            }
+         }
+         for (DoubleColumn column : doubles_) {
+            for (int i = 0; i < size_; i++) {
+               out.writeDouble(column.get(i));
+            }
+         }
+         for (DoubleColumn column : keyValues_.values()) {
+            for (int i = 0; i < size_; i++) {
+               out.writeDouble(column.get(i));
+            }
+         }
+      } finally {
+         out.close();
+      }
+   }
+
+   /**
+    * Memory maps a file written by write().  The returned store is read-only
+    * (use copy() to get a writable one) and keeps the file open until the 
+    * store is garbage collected.
+    * 
+    * @param file
+    * @return read-only store backed by the file
+    * @throws IOException if the file can not be read or is not a spot store
+    */
+   public static SpotStore map(File file) throws IOException {
+      SpotStore store = new SpotStore(true);
+      List<String> keys = new ArrayList<String>();
+      long offset;
+      FileInputStream fileIn = new FileInputStream(file);
+      DataInputStream in = new DataInputStream(fileIn);
+      try {
+         if (in.readInt() != FILE_MAGIC) {
+            throw new IOException(file.getName() + " is not a spot store file");
+         }
+         int version = in.readInt();
+         if (version != FILE_VERSION) {
+            throw new IOException("Unsupported spot store version " + version);
+         }
+         store.size_ = in.readInt();
+         int nrKeys = in.readInt();
+         for (int i = 0; i < nrKeys; i++) {
+            keys.add(in.readUTF());
+         }
+         // the stream is not buffered, so this is where the header ends
+         offset = fileIn.getChannel().position();
+      } finally {
+         in.close();
+      }
+
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         FileChannel channel = raf.getChannel();
+         int size = store.size_;
+         for (IntColumn column : store.ints_) {
+            for (ByteBuffer chunk : mapColumn(channel, offset, size, 4)) {
+               column.chunks_.add(chunk.asIntBuffer());
+            }
+            offset += 4L * size;
+         }
+         List<DoubleColumn> doubleColumns = new ArrayList<DoubleColumn>();
+         for (DoubleColumn column : store.doubles_) {
+            doubleColumns.add(column);
+         }
+         for (String key : keys) {
+            DoubleColumn column = new DoubleColumn(Double.NaN);
+            store.keyValues_.put(key, column);
+            doubleColumns.add(column);
+         }
+         for (DoubleColumn column : doubleColumns) {
+            for (ByteBuffer chunk : mapColumn(channel, offset, size, 8)) {
+               column.chunks_.add(chunk.asDoubleBuffer());
+            }
+            offset += 8L * size;
+         }
+      } finally {
+         // mappings stay valid after the channel is closed
+         raf.close();
+      }
+      return store;
+   }
+
+   /**
+    * Maps a column and splits it into chunks of CHUNK_SIZE elements.  A
+    * single mapping can not exceed 2GB, so very long columns are mapped in
+    * several pieces.
+    */
+   private static List<ByteBuffer> mapColumn(FileChannel channel, long offset,
+           int size, int elementSize) throws IOException {
+      List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+      int chunksPerMapping = Integer.MAX_VALUE / (CHUNK_SIZE * elementSize);
+      int nrChunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+      for (int first = 0; first < nrChunks; first += chunksPerMapping) {
+         int last = Math.min(nrChunks, first + chunksPerMapping);
+         long start = (long) first * CHUNK_SIZE;
+         long end = Math.min(size, (long) last * CHUNK_SIZE);
+         ByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY,
+                 offset + start * elementSize, (end - start) * elementSize);
+         for (int c = first; c < last; c++) {
+            mapping.limit((int) (Math.min(end, (long) (c + 1) * CHUNK_SIZE) 
+                    - start) * elementSize);
+            mapping.position((int) ((long) c * CHUNK_SIZE - start) * elementSize);
+            chunks.add(mapping.slice());
+         }
+      }
+      return chunks;
+   }
+
+   private DoubleColumn getOrCreateKeyColumn(String key, int size) {
+      DoubleColumn column = keyValues_.get(key);
+      if (column == null) {
+         column = new DoubleColumn(Double.NaN);
+         keyValues_.put(key, column);
+      }
+      column.ensureCapacity(size);
+      return column;
+   }
+
+   private void grow(int size) {
+      for (IntColumn column : ints_) {
+         column.ensureCapacity(size);
+      }
+      for (DoubleColumn column : doubles_) {
+         column.ensureCapacity(size);
+      }
+      for (DoubleColumn column : keyValues_.values()) {
+         column.ensureCapacity(size);
+      }
+   }
+
+   private void checkWritable() {
+      if (readOnly_) {
+         throw new UnsupportedOperationException("This spot store is read-only");
+      }
+   }
+
+}
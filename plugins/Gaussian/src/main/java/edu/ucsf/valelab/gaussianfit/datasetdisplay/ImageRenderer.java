@@ -33,8 +33,8 @@ either expressed or implied, of the FreeBSD Project.
 package edu.ucsf.valelab.gaussianfit.datasetdisplay;
 
 import edu.ucsf.valelab.gaussianfit.datasettransformations.SpotDataFilter;
-import edu.ucsf.valelab.gaussianfit.data.SpotData;
-import edu.ucsf.valelab.gaussianfit.utils.GaussianUtils;
+import edu.ucsf.valelab.gaussianfit.data.SpatialIndex;
+import edu.ucsf.valelab.gaussianfit.data.SpotStore;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
 import ij.ImageStack;
 import ij.process.ColorProcessor;
@@ -46,14 +46,74 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Renders localization data as images.
+ * 
+ * The rendered image is divided in tiles that are rendered in parallel. 
+ * Every tile owns its part of the output pixels, so tiles need no locking,
+ * and every tile only looks at the spots near it, using the spatial index 
+ * of the SpotStore (which is built once, and kept until the data change).
+ * Rendering a small rectangle of a large data set therefore only touches 
+ * the spots in and around that rectangle.
  *
  * @author Nico Stuurman
  */
 public class ImageRenderer {
-    private final int[][] iceLut_ = new int[256][];
-    static int[][] zLut_ = new int[256][]; 
+   // Width and height (in rendered pixels) of the tiles that are rendered
+   // in parallel
+   private static final int TILE_SIZE = 256;
+   
+   private static int[][] zLut_;
+   private static ExecutorService renderPool_;
+   
+   /**
+    * Is told about the progress of a render, and can cancel it
+    */
+   public interface RenderListener {
+      /**
+       * Called (on the rendering thread) whenever a tile is done
+       * @param nrDone - number of tiles rendered so far
+       * @param nrTiles - total number of tiles
+       */
+      void tilesRendered(int nrDone, int nrTiles);
+      
+      /**
+       * @return true if the render should be abandoned
+       */
+      boolean isCanceled();
+   }
+   
+   /**
+    * Shows progress in the ImageJ progress bar, and cancels when the user 
+    * presses Escape.
+    * @return new listener
+    */
+   public static RenderListener ijProgressListener() {
+      ij.IJ.resetEscape();
+      return new RenderListener() {
+         @Override
+         public void tilesRendered(int nrDone, int nrTiles) {
+            ij.IJ.showProgress(nrDone, nrTiles);
+         }
+
+         @Override
+         public boolean isCanceled() {
+            return ij.IJ.escapePressed();
+         }
+      };
+   }
       
    /**
     * Renders spotdata using various renderModes
@@ -63,108 +123,128 @@ public class ImageRenderer {
     * @param magnification  - factor x original size
     * @param rect - roi in the magnified image that should be rendered
     * @param sf
-    * @return 
+    * @return rendered image, or null if the user canceled
     */
    public static ImageProcessor renderData(final RowData rowData,
            final int method, final double magnification, Rectangle rect, 
            final SpotDataFilter sf) {
+      return renderData(rowData, method, magnification, rect, sf, 
+              ijProgressListener());
+   }
+   
+   /**
+    * As above, reporting progress to the given listener
+    * 
+    * @param listener - told about progress, and asked whether to continue
+    * @return rendered image, or null if the listener canceled the render
+    */
+   public static ImageProcessor renderData(final RowData rowData,
+           final int method, final double magnification, Rectangle rect, 
+           final SpotDataFilter sf, final RenderListener listener) {
 
       ImageProcessor ip = null;
 
-      // downside of using statics is that we have to read this everytime we render
-      // it may be better to put luts in their own singleton class
-      if (rowData.hasZ_) {
-         readLut("icelut.txt");
-      }
-
-      //int mag = 1 << renderSize;
-
       if (rect == null) {
          rect = new Rectangle(0, 0, (int) (rowData.width_ * magnification),
                  (int) (rowData.height_ * magnification));
       }
+      final Rectangle r = rect;
       final double renderedPixelInNm = rowData.pixelSizeNm_ / magnification;
       final int width = rect.width;
       final int height = rect.height;
       final int fullWidth = (int) (rowData.width_ * magnification);
       final int fullHeight = (int) (rowData.height_ * magnification);
-      int endx = rect.x + rect.width;
-      int endy = rect.y + rect.height;
+      final int endx = rect.x + rect.width;
+      final int endy = rect.y + rect.height;
       final int size = width * height;
-      double factor = magnification / rowData.pixelSizeNm_;
-
+      final double factor = magnification / rowData.pixelSizeNm_;
+      final SpotStore spots = rowData.spotStore_;
+      final SpatialIndex index = spots.getSpatialIndex(rowData.pixelSizeNm_);
 
       try {
          if (method == 0) {
             if (!rowData.hasZ_) {
-               ip = new ShortProcessor(width, height);
-               short pixels[] = new short[size];
-               ip.setPixels(pixels);
-               for (SpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     if (x > rect.x && x < endx && y > rect.y && y < endy) {
-                        x -= rect.x;
-                        y -= rect.y;
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           if (pixels[index] != -1) {
-                              pixels[index] += 1;
+               final short[] pixels = new short[size];
+               boolean done = renderTiles(width, height, listener, new TileRenderer() {
+                  @Override
+                  void render(int tx0, int ty0, int tx1, int ty1) {
+                     SpotRange range = new SpotRange(index, r, factor, 
+                             tx0, ty0, tx1, ty1, 1.0 / factor);
+                     while (range.next()) {
+                        int n = range.spot();
+                        int x = (int) (factor * spots.getXCenter(n));
+                        int y = (int) (factor * spots.getYCenter(n));
+                        if (x > r.x && x < endx && y > r.y && y < endy) {
+                           x -= r.x;
+                           y -= r.y;
+                           if (x >= tx0 && x < tx1 && y >= ty0 && y < ty1 
+                                   && sf.filter(spots, n)) {
+                              int i = (y * width) + x;
+                              if (pixels[i] != -1) {
+                                 pixels[i] += 1;
+                              }
                            }
                         }
                      }
                   }
+               });
+               if (!done) {
+                  return null;
                }
+               ip = new ShortProcessor(width, height, pixels, null);
             } else if (rowData.hasZ_) {
-               ShortProcessor[] sp = new ShortProcessor[3];
-               short[][] pixels = new short[3][size];
-               for (int i = 0; i < 3; i++) {
-                  sp[i] = new ShortProcessor(width, height);
-                  sp[i].setPixels(pixels[i]);
-               }
-               double spread = rowData.maxZ_ - rowData.minZ_;
-               for (SpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     if (x > rect.x && x < endx && y > rect.y && y < endy) {
-                        x -= rect.x;
-                        y -= rect.y;
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           int zIndex = (int) (256 * (spot.getZCenter() - rowData.minZ_) / spread);
-                           if (zIndex < 0) {
-                              zIndex = 0;
-                           }
-                           if (zIndex > 255) {
-                              zIndex = 255;
-                           }
-                           for (int i = 0; i < 3; i++) {
-                              pixels[i][index] += zLut_[zIndex][i];
+               final int[][] zLut = getZLut();
+               final short[][] pixels = new short[3][size];
+               final double spread = rowData.maxZ_ - rowData.minZ_;
+               boolean done = renderTiles(width, height, listener, new TileRenderer() {
+                  @Override
+                  void render(int tx0, int ty0, int tx1, int ty1) {
+                     SpotRange range = new SpotRange(index, r, factor, 
+                             tx0, ty0, tx1, ty1, 1.0 / factor);
+                     while (range.next()) {
+                        int n = range.spot();
+                        int x = (int) (factor * spots.getXCenter(n));
+                        int y = (int) (factor * spots.getYCenter(n));
+                        if (x > r.x && x < endx && y > r.y && y < endy) {
+                           x -= r.x;
+                           y -= r.y;
+                           if (x >= tx0 && x < tx1 && y >= ty0 && y < ty1 
+                                   && sf.filter(spots, n)) {
+                              int i = (y * width) + x;
+                              int zIndex = (int) (256 * (spots.getZCenter(n) - rowData.minZ_) / spread);
+                              if (zIndex < 0) {
+                                 zIndex = 0;
+                              }
+                              if (zIndex > 255) {
+                                 zIndex = 255;
+                              }
+                              for (int c = 0; c < 3; c++) {
+                                 pixels[c][i] += zLut[zIndex][c];
+                              }
                            }
                         }
                      }
                   }
+               });
+               if (!done) {
+                  return null;
                }
-               // we have 3 ShortProcessors.  Combine into a color image:
-               ColorProcessor cp = new ColorProcessor(width, height);
-               byte[][] colorPixels = new byte[3][];
-               for (int i = 0; i < 3; i++) {
-                  colorPixels[i] = new byte[size];
-               }
-               //ip.setPixels(colorPixels);
-               double max = sp[0].getMax();
-               for (int i = 1; i < 3; i++) {
-                  if (sp[i].getMax() > max) {
-                     max = sp[i].getMax();
+               // Combine the 3 channels into a color image, scaled to the 
+               // brightest channel
+               int max = 0;
+               for (int c = 0; c < 3; c++) {
+                  for (int p = 0; p < size; p++) {
+                     max = Math.max(max, pixels[c][p] & 0xffff);
                   }
                }
-               for (int p = 0; p < size; p++) {
-                  for (int i = 0; i < 3; i++) {
-                     colorPixels[i][p] = (byte) (256.0 * pixels[i][p] / max);
+               ColorProcessor cp = new ColorProcessor(width, height);
+               byte[][] colorPixels = new byte[3][size];
+               if (max > 0) {
+                  for (int c = 0; c < 3; c++) {
+                     for (int p = 0; p < size; p++) {
+                        colorPixels[c][p] = (byte) (256.0 * (pixels[c][p] & 0xffff) / max);
+                     }
                   }
-
                }
                cp.setRGB(colorPixels[0], colorPixels[1], colorPixels[2]);
                ip = cp;
@@ -172,110 +252,110 @@ public class ImageRenderer {
 
          } else if (method == 1 || method == 2) {  // Gaussian and normalized Gaussian
 
-
             // determines whether gaussians should be normalized by their total intensity
-            boolean normalize = false;
-            if (method == 2) {
-               normalize = true;
-            }
-
-            ip = new FloatProcessor(width, height);
-            float pixels[] = new float[size];
-            ip.setPixels(pixels);
+            final boolean normalize = method == 2;
+            final float[] pixels = new float[size];
+            final AtomicInteger spotsUsed = new AtomicInteger(0);
+            // spots reach at most 2 sigma (or 2 pixels) from their center
+            final double reachNm = 2 * index.getMaxSigma() + 3 * renderedPixelInNm;
 
             ij.IJ.showStatus("Rendering Image...");
-            int updateQuantum = rowData.spotList_.size() / 100;
-            int counter = 0;
-            int spotsUsed = 0;
-            for (SpotData spot : rowData.spotList_) {
-               if (counter % updateQuantum == 0) {
-                  ij.IJ.showProgress(counter, rowData.spotList_.size());
-               }
-
-
-               if (sf.filter(spot)) {
-
-
-                  // cover 3 * precision
-                  int halfWidth = (int) (2 * spot.getSigma() / renderedPixelInNm);
-                  if (halfWidth == 0) {
-                     halfWidth = 2;
-                  }
-
-                  /*
-                   * A *  exp(-((x-xc)^2+(y-yc)^2)/(2 sigy^2))+b
-                   * A = params[INT]  (amplitude)
-                   * b = params[BGR]  (background)
-                   * xc = params[XC]
-                   * yc = params[YC]
-                   * sig = params[S]
-                   * 
-                   */
-                  int xc = (int) (factor * spot.getXCenter());
-                  int yc = (int) (factor * spot.getYCenter());
-                  //int xc = (int) Math.round(spot.getXCenter() / renderedPixelInNm);
-                  //int yc = (int) Math.round(spot.getYCenter() / renderedPixelInNm);
-
-
-                  if (xc > rect.x + halfWidth && xc < endx - halfWidth
-                          && yc > rect.y + halfWidth && yc < endy - halfWidth) {
-
-                     if (xc > halfWidth && xc < (fullWidth - halfWidth)
-                             && yc > halfWidth && yc < (fullHeight - halfWidth)) {
-                        counter++;
-                        spotsUsed++;
-                        double totalInt = 0.0;
-                        int xStart = xc - halfWidth;
-                        int xEnd = xc + halfWidth;
-                        int yStart = yc - halfWidth;
-                        int yEnd = yc + halfWidth;
-                        float[][] boxPixels = new float[xEnd - xStart][yEnd - yStart];
-                        for (int x = xStart; x < xEnd; x++) {
-                           for (int y = yStart; y < yEnd; y++) {
-                              double[] parms = {1.0, 0.0,
-                                 spot.getXCenter() / renderedPixelInNm,
-                                 spot.getYCenter() / renderedPixelInNm,
-                                 spot.getSigma() / renderedPixelInNm};
-                              double val = GaussianUtils.gaussian(parms, x, y);
-                              totalInt += val;
-                              if (normalize) {
-                                 boxPixels[x - xStart][y - yStart] = (float) val;
-                              } else {
-                                 ip.setf(x, y, ip.getf(x, y) + (float) val);
-                              }
-                           }
+            boolean done = renderTiles(width, height, listener, new TileRenderer() {
+               @Override
+               void render(int tx0, int ty0, int tx1, int ty1) {
+                  // values of the Gaussian along x and y.  It is separable,
+                  // so this needs 2 exp() calls per row or column of the
+                  // box rather than one per pixel
+                  double[] xValues = new double[16];
+                  double[] yValues = new double[16];
+                  int gx0 = r.x + tx0;
+                  int gy0 = r.y + ty0;
+                  int gx1 = r.x + tx1;
+                  int gy1 = r.y + ty1;
+                  SpotRange range = new SpotRange(index, r, factor, 
+                          tx0, ty0, tx1, ty1, reachNm);
+                  while (range.next()) {
+                     int n = range.spot();
+                     // cover 2 * sigma
+                     int halfWidth = (int) (2 * spots.getSigma(n) / renderedPixelInNm);
+                     if (halfWidth == 0) {
+                        halfWidth = 2;
+                     }
+                     int xc = (int) (factor * spots.getXCenter(n));
+                     int yc = (int) (factor * spots.getYCenter(n));
+                     // only spots that fit in the full image are drawn, also
+                     // when they are only partly inside the rectangle
+                     if (!(xc > halfWidth && xc < (fullWidth - halfWidth)
+                             && yc > halfWidth && yc < (fullHeight - halfWidth))) {
+                        continue;
+                     }
+                     int xStart = xc - halfWidth;
+                     int xEnd = xc + halfWidth;
+                     int yStart = yc - halfWidth;
+                     int yEnd = yc + halfWidth;
+                     int x0 = Math.max(xStart, gx0);
+                     int x1 = Math.min(xEnd, gx1);
+                     int y0 = Math.max(yStart, gy0);
+                     int y1 = Math.min(yEnd, gy1);
+                     if (x0 >= x1 || y0 >= y1 || !sf.filter(spots, n)) {
+                        continue;
+                     }
+                     if (xc >= gx0 && xc < gx1 && yc >= gy0 && yc < gy1) {
+                        spotsUsed.incrementAndGet();
+                     }
+                     /*
+                      * exp(-((x-xc)^2+(y-yc)^2)/(2 sig^2)), as in 
+                      * GaussianUtils.gaussian() with amplitude 1 and no 
+                      * background
+                      */
+                     double xCenter = spots.getXCenter(n) / renderedPixelInNm;
+                     double yCenter = spots.getYCenter(n) / renderedPixelInNm;
+                     double sigma = spots.getSigma(n) / renderedPixelInNm;
+                     double twoSigmaSquared = 2 * sigma * sigma;
+                     int boxSize = 2 * halfWidth;
+                     if (xValues.length < boxSize) {
+                        xValues = new double[boxSize];
+                        yValues = new double[boxSize];
+                     }
+                     double xSum = 0.0;
+                     double ySum = 0.0;
+                     for (int i = 0; i < boxSize; i++) {
+                        double dx = xStart + i - xCenter;
+                        double dy = yStart + i - yCenter;
+                        xValues[i] = Math.exp(-(dx * dx) / twoSigmaSquared);
+                        yValues[i] = Math.exp(-(dy * dy) / twoSigmaSquared);
+                        xSum += xValues[i];
+                        ySum += yValues[i];
+                     }
+                     double scale = 1.0;
+                     if (normalize) {
+                        // normalize by the total of the whole box, not just
+                        // the part in this tile
+                        double totalInt = xSum * ySum;
+                        if (!(totalInt > 0)) {
+                           continue;
                         }
-                        // normalize if requested
-                        if (normalize && totalInt > 0) {
-                           for (int x = xStart; x < xEnd; x++) {
-                              for (int y = yStart; y < yEnd; y++) {
-                                 boxPixels[x - xStart][y - yStart] /= totalInt;
-                                 if (boxPixels[x - xStart][y - yStart] != boxPixels[x - xStart][y - yStart]) {
-                                    System.out.println("<0");
-                                 }
-                              }
-                           }
-                           // now add to the image
-                           for (int x = xStart; x < xEnd; x++) {
-                              for (int y = yStart; y < yEnd; y++) {
-                                 try {
-                                    ip.setf(x - rect.x, y - rect.y,
-                                            ip.getf(x - rect.x, y - rect.y) + boxPixels[x - xStart][y - yStart]);
-                                 } catch (Exception ex) {
-                                    System.out.println("Exception");
-                                 }
-                              }
-                           }
+                        scale = 1.0 / totalInt;
+                     }
+                     for (int y = y0; y < y1; y++) {
+                        double yValue = scale * yValues[y - yStart];
+                        int offset = (y - r.y) * width - r.x;
+                        for (int x = x0; x < x1; x++) {
+                           pixels[offset + x] += (float) (yValue * xValues[x - xStart]);
                         }
-
                      }
                   }
                }
+            });
+            if (!done) {
+               ij.IJ.showProgress(1.0);
+               ij.IJ.showStatus("Rendering canceled");
+               return null;
             }
+            ip = new FloatProcessor(width, height, pixels, null);
 
-
-            ij.IJ.showProgress(1);
-            ij.IJ.showStatus("Rendered image using " + spotsUsed + " spots.");
+            ij.IJ.showProgress(1.0);
+            ij.IJ.showStatus("Rendered image using " + spotsUsed.get() + " spots.");
 
          }
       } catch (java.lang.OutOfMemoryError ome) {
@@ -283,18 +363,9 @@ public class ImageRenderer {
          ij.IJ.showMessage("Out of Memory", "Not enought memory to draw image at this resolution");
       }
 
-
-
       if (ip != null) {
          ip.resetMinAndMax();
       }
-      /*
-         sp = new ImagePlus(title, ip);
-         DisplayUtils.AutoStretch(sp);
-         DisplayUtils.SetCalibration(sp, (float) (rowData.pixelSizeNm_ / magnification));
-      }
-      
-       */
 
       return ip;    
    }
@@ -308,75 +379,244 @@ public class ImageRenderer {
     * @param magnification  - factor x original size
     * @param rect - roi in the magnified image that should be rendered
     * @param sf
-    * @return 
+    * @return rendered stack, or null if the user canceled
     */
    public static ImageStack renderData3D(final RowData rowData,
            final int method, final double magnification, Rectangle rect, 
            final SpotDataFilter sf) {
+      return renderData3D(rowData, method, magnification, rect, sf, 
+              ijProgressListener());
+   }
    
-      
-      //int mag = 1 << renderSize;
+   /**
+    * As above, reporting progress to the given listener
+    * 
+    * @param listener - told about progress, and asked whether to continue
+    * @return rendered stack, or null if the listener canceled the render
+    */
+   public static ImageStack renderData3D(final RowData rowData,
+           final int method, final double magnification, Rectangle rect, 
+           final SpotDataFilter sf, final RenderListener listener) {
 
       if (rect == null) {
          rect = new Rectangle(0, 0, (int) (rowData.width_ * magnification),
                  (int) (rowData.height_ * magnification));
       }
+      final Rectangle r = rect;
       final double renderedPixelInNm = rowData.pixelSizeNm_ / magnification;
       final int width = rect.width;
       final int height = rect.height;
-      final int fullWidth = (int) (rowData.width_ * magnification);
-      final int fullHeight = (int) (rowData.height_ * magnification);
       double tmp =  1000.0 * (rowData.maxZ_ - rowData.minZ_ ) / (2* renderedPixelInNm);
       final int nrZs = (int) tmp;
-      int endx = rect.x + rect.width;
-      int endy = rect.y + rect.height;
+      final int endx = rect.x + rect.width;
+      final int endy = rect.y + rect.height;
       final int size = width * height;
-      double factor = magnification / rowData.pixelSizeNm_;
+      final double factor = magnification / rowData.pixelSizeNm_;
+      final SpotStore spots = rowData.spotStore_;
 
       ImageStack is = new ImageStack(width, height);
-      ImageProcessor[] ip = new ImageProcessor[nrZs];
       
       if (method == 0) {
-         
-         short pixels[][] = new short[nrZs][size];
-         for (int i = 0; i < nrZs; i++) {
-            ip[i] = new ShortProcessor(width, height);
-            ip[i].setPixels(pixels[i]);
-            is.addSlice(ip[i]);
-         }
-
-         for (SpotData spot : rowData.spotList_) {
-            if (sf.filter(spot)) {
-               int x = (int) (factor * spot.getXCenter());
-               int y = (int) (factor * spot.getYCenter());
-               int z = (int) (factor * (spot.getZCenter() - rowData.minZ_) * 500.0);
-               if (x > rect.x && x < endx && y > rect.y && y < endy) {
-                  x -= rect.x;
-                  y -= rect.y;
-                  int index = (y * width) + x;
-                  if (index < size && index > 0 && z < nrZs && z > 0) {
-                     if (pixels[z][index] != -1) {
-                        pixels[z][index] += 1;
+         final SpatialIndex index = spots.getSpatialIndex(rowData.pixelSizeNm_);
+         final short[][] pixels = new short[nrZs][size];
+         boolean done = renderTiles(width, height, listener, new TileRenderer() {
+            @Override
+            void render(int tx0, int ty0, int tx1, int ty1) {
+               SpotRange range = new SpotRange(index, r, factor, 
+                       tx0, ty0, tx1, ty1, 1.0 / factor);
+               while (range.next()) {
+                  int n = range.spot();
+                  int x = (int) (factor * spots.getXCenter(n));
+                  int y = (int) (factor * spots.getYCenter(n));
+                  if (x > r.x && x < endx && y > r.y && y < endy) {
+                     x -= r.x;
+                     y -= r.y;
+                     if (x >= tx0 && x < tx1 && y >= ty0 && y < ty1) {
+                        int z = (int) (factor * (spots.getZCenter(n) - rowData.minZ_) * 500.0);
+                        if (z < nrZs && z > 0 && sf.filter(spots, n)) {
+                           int i = (y * width) + x;
+                           if (pixels[z][i] != -1) {
+                              pixels[z][i] += 1;
+                           }
+                        }
                      }
                   }
                }
             }
+         });
+         if (!done) {
+            return null;
+         }
+         for (int i = 0; i < nrZs; i++) {
+            is.addSlice(new ShortProcessor(width, height, pixels[i], null));
          }
       }
- 
       
       return is;
    }
+   
+   /**
+    * Renders one tile, given by its bounds in the rendered image: 
+    * x from tx0 up to tx1, and y from ty0 up to ty1.  Should only write
+    * to the output pixels of that tile.
+    */
+   private abstract static class TileRenderer {
+      abstract void render(int tx0, int ty0, int tx1, int ty1);
+   }
+   
+   /**
+    * Goes through the spots in the bins overlapping a tile, extended by 
+    * a margin (in nm) so that it includes all spots that may draw into it.
+    */
+   private static final class SpotRange {
+      private final SpatialIndex index_;
+      private final int[] spotIndices_;
+      private final int binX0_;
+      private final int binX1_;
+      private final int binY1_;
+      private int binY_;
+      private int next_;
+      private int end_;
+      
+      SpotRange(SpatialIndex index, Rectangle rect, double factor, 
+              int tx0, int ty0, int tx1, int ty1, double marginNm) {
+         index_ = index;
+         spotIndices_ = index.getSpotIndices();
+         binX0_ = index.getBinX((rect.x + tx0) / factor - marginNm);
+         binX1_ = index.getBinX((rect.x + tx1) / factor + marginNm);
+         binY_ = index.getBinY((rect.y + ty0) / factor - marginNm) - 1;
+         binY1_ = index.getBinY((rect.y + ty1) / factor + marginNm);
+         next_ = end_ = 0;
+      }
+      
+      /**
+       * Moves to the next spot
+       * @return false when there are no more spots
+       */
+      boolean next() {
+         while (next_ + 1 >= end_) {
+            if (binY_ >= binY1_) {
+               return false;
+            }
+            // bins of one row are contiguous in the index
+            binY_++;
+            next_ = index_.getBinStart(binX0_, binY_) - 1;
+            end_ = index_.getBinEnd(binX1_, binY_);
+            if (next_ + 1 < end_) {
+               break;
+            }
+         }
+         next_++;
+         return true;
+      }
+      
+      /**
+       * @return index in the store of the current spot
+       */
+      int spot() {
+         return spotIndices_[next_];
+      }
+   }
+   
+   private static synchronized ExecutorService getRenderPool() {
+      if (renderPool_ == null) {
+         renderPool_ = Executors.newFixedThreadPool(
+                 Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Gaussian renderer");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return renderPool_;
+   }
+   
+   /**
+    * Renders all tiles of a width x height image on the render pool, 
+    * and waits for them to finish.
+    * 
+    * @return false if the listener canceled the render
+    */
+   private static boolean renderTiles(int width, int height, 
+           RenderListener listener, final TileRenderer renderer) {
+      CompletionService<Void> completion = 
+              new ExecutorCompletionService<Void>(getRenderPool());
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int ty = 0; ty < height; ty += TILE_SIZE) {
+         for (int tx = 0; tx < width; tx += TILE_SIZE) {
+            final int tx0 = tx;
+            final int ty0 = ty;
+            final int tx1 = Math.min(width, tx + TILE_SIZE);
+            final int ty1 = Math.min(height, ty + TILE_SIZE);
+            futures.add(completion.submit(new Callable<Void>() {
+               @Override
+               public Void call() {
+                  renderer.render(tx0, ty0, tx1, ty1);
+                  return null;
+               }
+            }));
+         }
+      }
+      try {
+         for (int done = 1; done <= futures.size(); done++) {
+            completion.take().get();
+            listener.tilesRendered(done, futures.size());
+            if (listener.isCanceled()) {
+               for (Future<Void> future : futures) {
+                  future.cancel(false);
+               }
+               return false;
+            }
+         }
+      } catch (InterruptedException ie) {
+         for (Future<Void> future : futures) {
+            future.cancel(true);
+         }
+         Thread.currentThread().interrupt();
+         return false;
+      } catch (ExecutionException ee) {
+         for (Future<Void> future : futures) {
+            future.cancel(false);
+         }
+         Throwable cause = ee.getCause();
+         if (cause instanceof Error) {
+            throw (Error) cause;
+         }
+         if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+         }
+         throw new RuntimeException(cause);
+      }
+      return true;
+   }
+
+   /**
+    * @return the lut used to color spots by their z position, read from 
+    * icelut.txt the first time it is needed
+    */
+   static synchronized int[][] getZLut() {
+      if (zLut_ == null) {
+         zLut_ = readLut("icelut.txt");
+      }
+      return zLut_;
+   }
 
    /**
     * Reads a file enclosed in this jar that is created by copying the output of
     * the List command in ImageJ (Image>Color>ShowLut).
     * @param lutName - name of file containing Lut data
+    * @return lut, with entries that are missing from the file set to black
     */
-   static private void readLut(String lutName) {
+   static private int[][] readLut(String lutName) {
+      int[][] lut = new int[256][];
+      for (int i = 0; i < lut.length; i++) {
+         lut[i] = new int[] {0, 0, 0};
+      }
       InputStream fin = ImageRenderer.class.getResourceAsStream(lutName);
       if (fin == null) {
-         return;
+         return lut;
       }
       BufferedReader br = new BufferedReader(new InputStreamReader(fin));
       String line;
@@ -384,18 +624,23 @@ public class ImageRenderer {
          while ((line = br.readLine()) != null) {
             String[] tokens = line.split("\t");
             int index = Integer.parseInt(tokens[0]);
-            if (index < zLut_.length) {
-               zLut_[index] = new int[]{Integer.parseInt(tokens[1]),
+            if (index < lut.length) {
+               lut[index] = new int[]{Integer.parseInt(tokens[1]),
                   Integer.parseInt(tokens[2]),
                   Integer.parseInt(tokens[3])};
             }
          }
       } catch (IOException ioex) {
          System.out.println("IOException" + ioex.getMessage());
+      } finally {
+         try {
+            br.close();
+         } catch (IOException ioex) {
+            // nothing to be done
+         }
       }
+      return lut;
    }
    
    
 }
-  
-  
\ No newline at end of file
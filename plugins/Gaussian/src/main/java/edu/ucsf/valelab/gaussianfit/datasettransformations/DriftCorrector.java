@@ -30,37 +30,40 @@ either expressed or implied, of the FreeBSD Project.
 package edu.ucsf.valelab.gaussianfit.datasettransformations;
 
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import edu.ucsf.valelab.gaussianfit.algorithm.DriftCorrelator;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
-import edu.ucsf.valelab.gaussianfit.algorithm.JitterDetector;
-import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.getInstance;
+import edu.ucsf.valelab.gaussianfit.data.SpotStore;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
-import ij.process.ByteProcessor;
-import ij.process.ImageProcessor;
 import java.awt.Point;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import javax.swing.JOptionPane;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
+ * Corrects localization data for drift of the sample.
+ * 
+ * The spots are divided in windows of consecutive frames.  The scattergram
+ * of each window is cross-correlated (by FFT) with that of the first window,
+ * on all processors, to find the drift of each window.  The drift at each
+ * frame is interpolated between the centers of the windows, and subtracted
+ * from the spots in one (parallel) pass over the data.
  *
  * @author nico
  */
 public class DriftCorrector {
-
-   // storage of stage movement data
-   class StageMovementData {
-
-      Point2D.Double pos_;
-      Point frameRange_;
-
-      StageMovementData(Point2D.Double pos, Point frameRange) {
-         pos_ = pos;
-         frameRange_ = frameRange;
-      }
-   }
+   
+   // largest drift (in scattergram pixels) that will be found
+   private static final int SEARCH_RADIUS = 16;
    
    /**
     * Creates a new data set that is corrected for motion blur
@@ -80,306 +83,28 @@ public class DriftCorrector {
          return;
       }
       
-           
       ij.IJ.showStatus("Executing jitter correction");
       
       Runnable doWorkRunnable = new Runnable() {
          
          @Override
          public void run() {
-            
-            int mag = (int) (rowData.pixelSizeNm_ / 40.0);
-            while (mag % 2 != 0)
-               mag += 1;
-                        
-            int width = mag * rowData.width_;
-            int height = mag * rowData.height_;                        
-            
-            int size = width * height;
-            
-            
-             // TODO: add 0 padding to deal with aberrant image sizes
-            if ( (width != height) || ( (width & (width - 1)) != 0) ) {
-               JOptionPane.showMessageDialog(getInstance(), 
-                 "Magnified image is not a square with a size that is a power of 2");
-               ij.IJ.showStatus(" ");
-               return;
-            }
-
             // TODO: what if we should go through nrSlices instead of nrFrames?
-            boolean useSlices = false;
-            int nrOfTests = rowData.nrFrames_ / framesToCombine;
-            if (nrOfTests == 0) {
-               useSlices = true;
-               nrOfTests = rowData.nrSlices_ / framesToCombine;
-               if (rowData.nrSlices_ % framesToCombine > 0) {
-                  nrOfTests++;
-               }
-            } else {
-               if (rowData.nrFrames_ % framesToCombine > 0) {
-                  nrOfTests++;
-               }
-            }
-
-            // storage of stage movement data
-            class StageMovementData {
-               
-               Point2D.Double pos_;
-               Point frameRange_;
-               
-               StageMovementData(Point2D.Double pos, Point frameRange) {
-                  pos_ = pos;
-                  frameRange_ = frameRange;
-               }
-            }
-            ArrayList<StageMovementData> stagePos = new ArrayList<StageMovementData>();
+            boolean useSlices = rowData.nrFrames_ / framesToCombine == 0;
             
-            try {
-               // make imageprocessors for all the images that we will generate
-               ImageProcessor[] ip = new ImageProcessor[nrOfTests];
-               byte[][] pixels = new byte[nrOfTests][width * height];
-               
-               for (int i = 0; i < nrOfTests; i++) {
-                  ip[i] = new ByteProcessor(width, height);
-                  ip[i].setPixels(pixels[i]);
-               }
-               
-               double factor = (double) mag / rowData.pixelSizeNm_;
-
-               // make 2D scattergrams of all pixelData
-               for (SpotData spot : rowData.spotList_) {
-                  int j;
-                  if (useSlices) {
-                     j = (spot.getSlice() - 1) / framesToCombine;
-                  } else {
-                     j = (spot.getFrame() - 1) / framesToCombine;
-                  }
-                  int x = (int) (factor * spot.getXCenter());
-                  int y = (int) (factor * spot.getYCenter());
-                  int index = (y * width) + x;
-                  if (index < size && index > 0) {
-                     if (pixels[j][index] != -1) {
-                        pixels[j][index] += 1;
-                     }
-                  }
-                  
+            // First try to copy the time points
+            ArrayList<Double> timePoints = null;
+            if (rowData.timePoints_ != null) {
+               timePoints = new ArrayList<Double>();
+               int tp = framesToCombine;
+               while (tp < rowData.timePoints_.size()) {
+                  timePoints.add(rowData.timePoints_.get(tp));
+                  tp += framesToCombine;
                }
-               
-               JitterDetector jd = new JitterDetector(ip[0]);
-               
-               Point2D.Double fp = new Point2D.Double(0.0, 0.0);
-               Point2D.Double com = new Point2D.Double(0.0, 0.0);
-               
-               jd.getJitter(ip[0], fp);
-               
-               for (int i = 1; i < ip.length; i++) {
-                  ij.IJ.showStatus("Executing jitter correction..." + i);
-                  ij.IJ.showProgress(i, ip.length);
-                  int spotCount = 0;
-                  for (int j=0; j < ip[i].getPixelCount(); j++) 
-                     spotCount += ip[i].get(j);
-                  
-                  jd.getJitter(ip[i], com);
-                  double x = (fp.x - com.x) / factor;
-                  double y = (fp.y - com.y) / factor;
-                  if (rowData.timePoints_ != null) {
-                     rowData.timePoints_.get(i);
-                  }
-                  stagePos.add(new StageMovementData(new Point2D.Double(x, y),
-                          new Point(i * framesToCombine, ((i + 1) * framesToCombine - 1))));
-                  System.out.println("i: " + i + " nSpots: " + spotCount + " X: " + x + " Y: " + y);
-               }
-               
-            } catch (OutOfMemoryError ex) {
-               // not enough memory to allocate all images in one go
-               // we need to cycle through all gaussian spots cycle by cycle
-
-               double factor = (double) mag / rowData.pixelSizeNm_;
-               
-               ImageProcessor ipRef = new ByteProcessor(width, height);
-               byte[] pixelsRef = new byte[width * height];
-               ipRef.setPixels(pixelsRef);
-
-
-               // take the first image as reference
-               for (SpotData spot : rowData.spotList_) {
-                  int j;
-                  if (useSlices) {
-                     j = (spot.getSlice() - 1) / framesToCombine;
-                  } else {
-                     j = (spot.getFrame() - 1) / framesToCombine;
-                  }
-                  if (j == 0) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     int index = (y * width) + x;
-                     if (index < size && index > 0) {
-                        if (pixelsRef[index] != -1) {
-                           pixelsRef[index] += 1;
-                        }
-                     }
-                  }
-               }
-               
-               JitterDetector jd = new JitterDetector(ipRef);
-               
-               Point2D.Double fp = new Point2D.Double(0.0, 0.0);
-               jd.getJitter(ipRef, fp);
-               
-               Point2D.Double com = new Point2D.Double(0.0, 0.0);
-               ImageProcessor ipTest = new ByteProcessor(width, height);
-               byte[] pixelsTest = new byte[width * height];
-               ipTest.setPixels(pixelsTest);
-               
-               for (int i = 1; i < nrOfTests; i++) {
-                  ij.IJ.showStatus("Executing jitter correction..." + i);
-                  ij.IJ.showProgress(i, nrOfTests);
-                  for (int p = 0; p < size; p++) {
-                     ipTest.set(p, 0);
-                  }
-                  
-                  for (SpotData spot : rowData.spotList_) {
-                     int j;
-                     if (useSlices) {
-                        j = (spot.getSlice() - 1) / framesToCombine;
-                     } else {
-                        j = (spot.getFrame() - 1) / framesToCombine;
-                     }
-                     if (j == i) {
-                        int x = (int) (factor * spot.getXCenter());
-                        int y = (int) (factor * spot.getYCenter());
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           if (pixelsTest[index] != -1) {
-                              pixelsTest[index] += 1;
-                           }
-                        }
-                     }
-                  }
-                  
-                  jd.getJitter(ipTest, com);
-                  double x = (fp.x - com.x) / factor;
-                  double y = (fp.y - com.y) / factor;
-                  double timePoint = i;
-                  if (rowData.timePoints_ != null) {
-                     rowData.timePoints_.get(i);
-                  }
-                  stagePos.add(new StageMovementData(new Point2D.Double(x, y),
-                          new Point(i * framesToCombine, ((i + 1) * framesToCombine - 1))));
-                  System.out.println("X: " + x + " Y: " + y);
-               }
-               
             }
             
-            try {
-               // Assemble stage movement data into a track
-               List<SpotData> stageMovementData = new ArrayList<SpotData>();
-               SpotData sm = new SpotData(null, 1, 1, 1, 1, 1, 1, 1);
-               sm.setData(0, 0, 0, 0, 0.0, 0, 0, 0, 0);
-               stageMovementData.add(sm);
-               
-               // calculate moving average for stageposition
-               ArrayList<StageMovementData> stagePosMA = new ArrayList<StageMovementData>();
-               int windowSize = 5;
-               for (int i = 0; i < stagePos.size() - windowSize; i++) {
-                  Point2D.Double avg = new Point2D.Double(0.0, 0.0);
-                  for (int j = 0; j < windowSize; j++) {
-                     avg.x += stagePos.get(i + j).pos_.x;
-                     avg.y += stagePos.get(i + j).pos_.y;
-                  }
-                  avg.x /= windowSize;
-                  avg.y /= windowSize;
-                  
-                  stagePosMA.add(new StageMovementData(avg, stagePos.get(i).frameRange_));
-               }
-               
-               
-               for (int i = 0; i < stagePosMA.size(); i++) {
-                  StageMovementData smd = stagePosMA.get(i);
-                  SpotData s =
-                          new SpotData(null, 1, 1, i + 2, 1, 1, 1, 1);
-                  s.setData(0, 0, smd.pos_.x, smd.pos_.y, 0.0, 0, 0, 0, 0);                  
-                  stageMovementData.add(s);
-               }
-
-               // Add stage movement data to overview window
-               // First try to copy the time points
-               ArrayList<Double> timePoints = null;
-               if (rowData.timePoints_ != null) {
-                  timePoints = new ArrayList<Double>();
-                  int tp = framesToCombine;
-                  while (tp < rowData.timePoints_.size()) {
-                     timePoints.add(rowData.timePoints_.get(tp));
-                     tp += framesToCombine;
-                  }
-               }
-               
-               RowData.Builder builder = rowData.copy();
-               builder.setName(rowData.getName() + "-Jitter").
-                       setNrFrames(stageMovementData.size()).
-                       setMaxNrSpots(stageMovementData.size()).
-                       setSpotList(stageMovementData).setTimePoints(timePoints).
-                       setIsTrack(true).setHasZ(false).setMinZ(0.0).setMaxZ(0.0);
-               DataCollectionForm.getInstance().addSpotData(builder);
-                            
-               ij.IJ.showStatus("Assembling jitter corrected dataset...");
-               ij.IJ.showProgress(1);
-               
-               List<SpotData> correctedData = new ArrayList<SpotData>();
-               Iterator it = rowData.spotList_.iterator();
-               
-               int testNr = 0;
-               StageMovementData smd = stagePosMA.get(0);
-               int counter = 0;
-               while (it.hasNext()) {
-                  counter++;
-                  SpotData gs = (SpotData) it.next();
-                  int test;
-                  if (useSlices) {
-                     test = gs.getSlice();
-                  } else {
-                     test = gs.getFrame();
-                  }
-                  if (test != testNr) {
-                     testNr = test - 1;
-                  }
-                  boolean found = false;
-                  if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-                     found = true;
-                  }
-                  if (!found) {
-                     for (int i = 0; i < stagePosMA.size() && !found; i++) {
-                        smd = stagePosMA.get(i);
-                        if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-                           found = true;
-                        }
-                     }
-                  }
-                  if (found) {
-                     Point2D.Double point = new Point2D.Double(gs.getXCenter() - smd.pos_.x,
-                             gs.getYCenter() - smd.pos_.y);
-                     SpotData gsn = new SpotData(gs);
-                     gsn.setXCenter(point.x);
-                     gsn.setYCenter(point.y);
-                     correctedData.add(gsn);
-                  } else {
-                     correctedData.add(gs);
-                  }
-                  
-                  
-               }
-               
-               // Add transformed data to data overview window
-               builder = rowData.copy();
-               builder.setName(rowData.getName() + "-Jitter-Correct").
-                       setSpotList(correctedData);
-               DataCollectionForm.getInstance().addSpotData(builder);
-               
-               ij.IJ.showStatus("Finished jitter correction");
-            } catch (OutOfMemoryError oom) {
-              System.gc();
-              ij.IJ.error("Out of Memory");
-            }
+            correct(rowData, useSlices, framesToCombine, Integer.MAX_VALUE, 
+                    5, timePoints, "-Jitter-Correct");
          }
       };
 
@@ -389,226 +114,327 @@ public class DriftCorrector {
 
    
    /**
-    * I do not remember what the difference is with the other unjitter method...
+    * As unJitter, but the windows end after a maximum number of frames 
+    * or spots, whichever comes first, and the drift is not smoothed.
     * @param rowData
     * @param maxFrames
     * @param maxSpots 
     */
    public void unJitter2(final RowData rowData, int maxFrames, int maxSpots) {
 
-      // TODO: instead of a fixed number of frames, go for a certain number of spots
-      // Number of frames could be limited as well
-      final int maxNrFrames = maxFrames;
-      final int maxNrSpots = maxSpots;
-
       if (rowData.spotList_.size() <= 1) {
          return;
       }
       
       ij.IJ.showStatus("Executing jitter correction");
-
+      
+      // TODO: what if we should go through nrSlices instead of nrFrames?
+      boolean useSlices = rowData.nrFrames_ <= 1;
+      
+      correct(rowData, useSlices, maxFrames, maxSpots, 1, null, 
+              "-Jitter-Corrected");
+   }
+   
+   /**
+    * Measures the drift, and adds the drift track and the corrected data to 
+    * the data overview window
+    * 
+    * @param smoothing - number of windows in the moving average of the drift
+    * @param timePoints - time points of the drift track, may be null
+    * @param suffix - added to the name of the corrected data set
+    */
+   private static void correct(RowData rowData, boolean useSlices, 
+           int maxFrames, int maxSpots, int smoothing, 
+           ArrayList<Double> timePoints, String suffix) {
+      final SpotStore spots = rowData.spotStore_;
+      
       int mag = (int) (rowData.pixelSizeNm_ / 40.0);
       while (mag % 2 != 0) {
          mag += 1;
       }
-
-      int width = mag * rowData.width_;
-      int height = mag * rowData.height_;
-
-      int size = width * height;
-
-      // TODO: add 0 padding to deal with aberrant image sizes
-      if ((width != height) || ((width & (width - 1)) != 0)) {
-         JOptionPane.showMessageDialog(DataCollectionForm.getInstance(),
-                 "Magnified image is not a square with a size that is a power of 2");
-         ij.IJ.showStatus(" ");
-         return;
-      }
-
-      // TODO: what if we should go through nrSlices instead of nrFrames?
-      boolean useSlices = false;
-      //int nrOfTests = rowData.nrFrames_ / framesToCombine;
-      if (rowData.nrFrames_ <= 1) {
-         useSlices = true;
-      }
-      final int nrImages = useSlices ? rowData.nrSlices_ : rowData.nrFrames_;
-
-      ArrayList<StageMovementData> stagePos = new ArrayList<StageMovementData>();
-
       double factor = (double) mag / rowData.pixelSizeNm_;
-           
-      // Assemble the reference image (the first one)
-      ImageProcessor ipRef = new ByteProcessor(width, height);
-      byte[] pixelsRef = new byte[width * height];
-      ipRef.setPixels(pixelsRef);
-
+      DriftCorrelator correlator = new DriftCorrelator(spots, factor, 
+              mag * rowData.width_, mag * rowData.height_, SEARCH_RADIUS);
       
-      Map<Integer, List<SpotData>> frameIndexSpotList = 
-              rowData.getSpotListIndexedByFrame();
-
-      int spotNr = 0;
-      int frameNr = 0;
-      while (spotNr < maxNrSpots && frameNr < maxNrFrames && frameNr < nrImages) {
-         List<SpotData> frameSpots = frameIndexSpotList.get(frameNr);
-         if (frameSpots != null) {
-            for (SpotData spot: frameSpots) {
-               int x = (int) (factor * spot.getXCenter());
-               int y = (int) (factor * spot.getYCenter());
-               int index = (y * width) + x;
-               if (index < size && index > 0) {
-                  if (pixelsRef[index] != -1) {
-                     pixelsRef[index] += 1;
-                  }
-               }
-               spotNr++;
-            }
-         }
-         frameNr++;
+      List<Point> frameRanges = new ArrayList<Point>();
+      List<int[]> windows = makeWindows(spots.getIndicesByFrame(!useSlices),
+              maxFrames, maxSpots, frameRanges);
+      if (windows.size() < 2) {
+         ij.IJ.showStatus("Not enough frames for jitter correction");
+         return;
       }
-
-      JitterDetector jd = new JitterDetector(ipRef);
-
-      Point2D.Double fp = new Point2D.Double(0.0, 0.0);
-      jd.getJitter(ipRef, fp);
-
       
-      // Assemble images for all subsequent frames and calculate cross-correlation with the first image
-      Point2D.Double com = new Point2D.Double(0.0, 0.0);
-      ImageProcessor ipTest = new ByteProcessor(width, height);
-      byte[] pixelsTest = new byte[width * height];
-      ipTest.setPixels(pixelsTest);
-
-      int estimatedNrTests;
-      int testNr = 1;
-
-      while (frameNr < nrImages) {
-         estimatedNrTests = nrImages / (frameNr / testNr) + 1;
-         ij.IJ.showStatus("Executing jitter correction..." + testNr
-                 + "/" + estimatedNrTests);
-         ij.IJ.showProgress(testNr, estimatedNrTests);
-         for (int p = 0; p < size; p++) {
-            ipTest.set(p, 0);
-         }
-
-         int tmpFrameNr = 0;
-         spotNr = 0;
-
-         while (spotNr < maxNrSpots && tmpFrameNr < maxNrFrames && frameNr < nrImages) {
-            List<SpotData> frameSpots = frameIndexSpotList.get(frameNr); 
-            if (frameSpots != null) {
-               for (SpotData spot : frameSpots) {
-                  int x = (int) (factor * spot.getXCenter());
-                  int y = (int) (factor * spot.getYCenter());
-                  int index = (y * width) + x;
-                  if (index < size && index > 0) {
-                     if (pixelsTest[index] != -1) {
-                        pixelsTest[index] += 1;
-                     }
-                  }
-                  spotNr++;
-               }
-            }
-            tmpFrameNr++;
-            frameNr++;
-         }
-
-         jd.getJitter(ipTest, com);
-         double x = (fp.x - com.x) / factor;
-         double y = (fp.y - com.y) / factor;
-         if (rowData.timePoints_ != null) {
-            rowData.timePoints_.get(frameNr);
+      ExecutorService executor = Executors.newFixedThreadPool(
+              nrThreads(correlator.getBytesPerCorrelation()), new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Drift correction thread");
+            t.setDaemon(true);
+            return t;
          }
-         stagePos.add(new StageMovementData(new Point2D.Double(x, y),
-                 new Point(frameNr - tmpFrameNr, frameNr - 1)));
-         System.out.println("X: " + x + " Y: " + y);
-         testNr++;
-      }
-
-
-      // Assemble stage movement data into a track
+      });
       try {
+         Point2D.Double[] drift = measureDrift(executor, correlator, windows);
+         if (drift == null) {
+            return;
+         }
+         drift = movingAverage(drift, smoothing);
+         
+         // Assemble stage movement data into a track
          List<SpotData> stageMovementData = new ArrayList<SpotData>();
-         SpotData sm = new SpotData(null, 1, 1, 1, 1, 1, 1, 1);
-         sm.setData(0, 0, 0, 0, 0.0, 0, 0, 0, 0);
-         stageMovementData.add(sm);
-
-         //stagePos = movingAverage(stagePos, 5);
-
-         for (int i = 0; i < stagePos.size(); i++) {
-            StageMovementData smd = stagePos.get(i);
-            SpotData s =
-                    new SpotData(null, 1, 1, i + 2, 1, 1, 1, 1);
-            s.setData(0, 0, smd.pos_.x, smd.pos_.y, 0.0, 0, 0, 0, 0);
-            stageMovementData.add(s);
+         for (int i = 0; i < drift.length; i++) {
+            if (drift[i] != null) {
+               SpotData s = new SpotData(null, 1, 1, i + 1, 1, 1, 1, 1);
+               s.setData(0, 0, drift[i].x, drift[i].y, 0.0, 0, 0, 0, 0);
+               stageMovementData.add(s);
+            }
          }
 
-
          // Add stage movement data to overview window
-         
          RowData.Builder builder = rowData.copy();
          builder.setName(rowData.getName() + "-Jitter").
                  setNrFrames(stageMovementData.size()).
                  setMaxNrSpots(stageMovementData.size()).
-                 setSpotList(stageMovementData).
-                 setIsTrack(true).setHasZ(false).setMinZ(0).setMaxZ(0);
-
+                 setSpotList(stageMovementData).setTimePoints(timePoints).
+                 setIsTrack(true).setHasZ(false).setMinZ(0.0).setMaxZ(0.0);
          DataCollectionForm.getInstance().addSpotData(builder);
-         
+
          ij.IJ.showStatus("Assembling jitter corrected dataset...");
          ij.IJ.showProgress(1);
 
-         List<SpotData> correctedData = new ArrayList<SpotData>();
-         Iterator it = rowData.spotList_.iterator();
-
-         testNr = 0;
-         StageMovementData smd = stagePos.get(0);
-         while (it.hasNext()) {
-            SpotData gs = (SpotData) it.next();
-            int test;
-            if (useSlices) {
-               test = gs.getSlice();
-            } else {
-               test = gs.getFrame();
-            }
-            if (test != testNr) {
-               testNr = test - 1;
-            }
-            boolean found = false;
-            if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-               found = true;
-            }
-            if (!found) {
-               for (int i = 0; i < stagePos.size() && !found; i++) {
-                  smd = stagePos.get(i);
-                  if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-                     found = true;
-                  }
-               }
-            }
-            if (found) {
-               Point2D.Double point = new Point2D.Double(gs.getXCenter() - smd.pos_.x,
-                       gs.getYCenter() - smd.pos_.y);
-               SpotData gsn = new SpotData(gs);
-               gsn.setXCenter(point.x);
-               gsn.setYCenter(point.y);
-               correctedData.add(gsn);
-            } else {
-               correctedData.add(gs);
-            }
-         }
+         SpotStore correctedData = spots.copy();
+         subtractDrift(executor, correctedData, useSlices, frameRanges, drift);
 
          // Add transformed data to data overview window
          builder = rowData.copy();
-         builder.setName(rowData.getName() + "-Jitter-Corrected").setSpotList(correctedData);
+         builder.setName(rowData.getName() + suffix).
+                 setSpotStore(correctedData);
          DataCollectionForm.getInstance().addSpotData(builder);
 
          ij.IJ.showStatus("Finished jitter correction");
       } catch (OutOfMemoryError oom) {
          System.gc();
          ij.IJ.error("Out of Memory");
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         ij.IJ.showStatus("Jitter correction interrupted");
+      } finally {
+         executor.shutdownNow();
       }
    }
-
    
+   /**
+    * Groups the spots in windows of consecutive frames.  A window ends when it
+    * has maxFrames frames, or at least maxSpots spots.
+    * 
+    * @param frameIndex - spot indices by frame (or slice)
+    * @param frameRanges - receives the first and last frame of each window
+    * @return spot indices of each window
+    */
+   private static List<int[]> makeWindows(Map<Integer, int[]> frameIndex,
+           int maxFrames, int maxSpots, List<Point> frameRanges) {
+      List<int[]> windows = new ArrayList<int[]>();
+      if (frameIndex.isEmpty()) {
+         return windows;
+      }
+      int firstFrame = Collections.min(frameIndex.keySet());
+      int lastFrame = Collections.max(frameIndex.keySet());
+      int frameNr = firstFrame;
+      while (frameNr <= lastFrame) {
+         int windowStart = frameNr;
+         int nrSpots = 0;
+         List<int[]> parts = new ArrayList<int[]>();
+         while (nrSpots < maxSpots && frameNr - windowStart < maxFrames 
+                 && frameNr <= lastFrame) {
+            int[] frameSpots = frameIndex.get(frameNr);
+            if (frameSpots != null) {
+               parts.add(frameSpots);
+               nrSpots += frameSpots.length;
+            }
+            frameNr++;
+         }
+         int[] window = new int[nrSpots];
+         int offset = 0;
+         for (int[] part : parts) {
+            System.arraycopy(part, 0, window, offset, part.length);
+            offset += part.length;
+         }
+         windows.add(window);
+         frameRanges.add(new Point(windowStart, frameNr - 1));
+      }
+      return windows;
+   }
+   
+   /**
+    * Cross-correlates each window with the first one
+    * 
+    * @return drift of each window in nm, null for windows without spots, or
+    * null when the user pressed Escape
+    */
+   private static Point2D.Double[] measureDrift(ExecutorService executor,
+           final DriftCorrelator correlator, List<int[]> windows) 
+           throws InterruptedException {
+      correlator.setReference(windows.get(0));
+      Point2D.Double[] drift = new Point2D.Double[windows.size()];
+      drift[0] = new Point2D.Double(0.0, 0.0);
+      
+      CompletionService<Integer> completion = 
+              new ExecutorCompletionService<Integer>(executor);
+      final Point2D.Double[] results = drift;
+      for (int i = 1; i < windows.size(); i++) {
+         final int windowNr = i;
+         final int[] window = windows.get(i);
+         completion.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+               results[windowNr] = correlator.getDrift(window);
+               return windowNr;
+            }
+         });
+      }
+      ij.IJ.resetEscape();
+      int nrTests = windows.size() - 1;
+      for (int done = 1; done <= nrTests; done++) {
+         try {
+            completion.take().get();
+         } catch (ExecutionException ee) {
+            rethrow(ee);
+         }
+         ij.IJ.showStatus("Executing jitter correction..." + done + "/" + nrTests);
+         ij.IJ.showProgress(done, nrTests);
+         if (ij.IJ.escapePressed()) {
+            ij.IJ.showStatus("Jitter correction canceled");
+            return null;
+         }
+      }
+      return drift;
+   }
+   
+   /**
+    * Averages the drift of each window with that of its neighbours
+    * 
+    * @param drift - drift per window, null for windows without spots
+    * @param windowSize - number of windows to average, 1 does nothing
+    */
+   private static Point2D.Double[] movingAverage(Point2D.Double[] drift, 
+           int windowSize) {
+      if (windowSize <= 1) {
+         return drift;
+      }
+      Point2D.Double[] result = new Point2D.Double[drift.length];
+      for (int i = 0; i < drift.length; i++) {
+         if (drift[i] == null) {
+            continue;
+         }
+         Point2D.Double avg = new Point2D.Double(0.0, 0.0);
+         int n = 0;
+         for (int j = i - windowSize / 2; j < i - windowSize / 2 + windowSize; j++) {
+            if (j >= 0 && j < drift.length && drift[j] != null) {
+               avg.x += drift[j].x;
+               avg.y += drift[j].y;
+               n++;
+            }
+         }
+         avg.x /= n;
+         avg.y /= n;
+         result[i] = avg;
+      }
+      return result;
+   }
+   
+   /**
+    * Subtracts the drift from all spots.  The drift of each frame is 
+    * interpolated linearly between the centers of the windows around it.
+    */
+   private static void subtractDrift(ExecutorService executor, 
+           final SpotStore store, final boolean useSlices, 
+           List<Point> frameRanges, Point2D.Double[] drift) 
+           throws InterruptedException {
+      List<Double> centers = new ArrayList<Double>();
+      List<Point2D.Double> known = new ArrayList<Point2D.Double>();
+      for (int i = 0; i < drift.length; i++) {
+         if (drift[i] != null) {
+            Point range = frameRanges.get(i);
+            centers.add(0.5 * (range.x + range.y));
+            known.add(drift[i]);
+         }
+      }
+      
+      // drift for each frame
+      final int firstFrame = frameRanges.get(0).x;
+      int nrFrames = frameRanges.get(frameRanges.size() - 1).y - firstFrame + 1;
+      final double[] dx = new double[nrFrames];
+      final double[] dy = new double[nrFrames];
+      int segment = 0;
+      for (int f = 0; f < nrFrames; f++) {
+         double frame = firstFrame + f;
+         while (segment < centers.size() - 1 && centers.get(segment + 1) <= frame) {
+            segment++;
+         }
+         Point2D.Double start = known.get(segment);
+         if (frame <= centers.get(segment) || segment == centers.size() - 1) {
+            dx[f] = start.x;
+            dy[f] = start.y;
+         } else {
+            Point2D.Double end = known.get(segment + 1);
+            double fraction = (frame - centers.get(segment)) / 
+                    (centers.get(segment + 1) - centers.get(segment));
+            dx[f] = start.x + fraction * (end.x - start.x);
+            dy[f] = start.y + fraction * (end.y - start.y);
+         }
+      }
+      
+      // Every task owns a range of spots
+      int nrSpots = store.size();
+      int nrTasks = 4 * Runtime.getRuntime().availableProcessors();
+      int chunk = nrSpots / nrTasks + 1;
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int start = 0; start < nrSpots; start += chunk) {
+         final int from = start;
+         final int to = Math.min(nrSpots, start + chunk);
+         futures.add(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+               for (int n = from; n < to; n++) {
+                  int f = (useSlices ? store.getSlice(n) : store.getFrame(n)) 
+                          - firstFrame;
+                  f = Math.max(0, Math.min(dx.length - 1, f));
+                  store.moveCenter(n, store.getXCenter(n) - dx[f],
+                          store.getYCenter(n) - dy[f]);
+               }
+            }
+         }));
+      }
+      for (Future<?> future : futures) {
+         try {
+            future.get();
+         } catch (ExecutionException ee) {
+            rethrow(ee);
+         }
+      }
+      store.positionsChanged();
+   }
+   
+   private static void rethrow(ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof Error) {
+         throw (Error) cause;
+      }
+      if (cause instanceof RuntimeException) {
+         throw (RuntimeException) cause;
+      }
+      throw new RuntimeException(cause);
+   }
+   
+   /**
+    * @return number of correlations to run at once, limited by the 
+    * processors and by the memory each of them needs
+    */
+   private static int nrThreads(long bytesPerCorrelation) {
+      Runtime rt = Runtime.getRuntime();
+      long available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+      long fits = available / (2 * bytesPerCorrelation);
+      return (int) Math.max(1, Math.min(rt.availableProcessors(), fits));
+   }
 
-}
\ No newline at end of file
+}
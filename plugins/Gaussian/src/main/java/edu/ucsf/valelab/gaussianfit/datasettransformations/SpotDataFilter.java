@@ -30,6 +30,7 @@ either expressed or implied, of the FreeBSD Project.
 package edu.ucsf.valelab.gaussianfit.datasettransformations;
 
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.data.SpotStore;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -115,6 +116,35 @@ public class SpotDataFilter {
       return true;
    }
    
-   
+   /**
+    * As filter(SpotData), for a spot in a SpotStore
+    * 
+    * @param store - store holding the spot
+    * @param index - index of the spot in the store
+    * @return true if spot is acceptable
+    */
+   public boolean filter (SpotStore store, int index) {
+      if (useSigma_) {
+         double sigma = store.getSigma(index);
+         if (sigma < sigmaMin_ || sigma > sigmaMax_)
+            return false;
+      }
+      if (useIntensity_) {
+         double intensity = store.getIntensity(index);
+         if (intensity < intensityMin_ || intensity > intensityMax_)
+            return false;
+      }
+      for (Map.Entry<String, Extremes> entry : itemFilter_.entrySet()) {
+         double value = store.getValue(index, entry.getKey());
+         // as above, spots without the key are not filtered
+         if (!Double.isNaN(value)) {
+            if (value < entry.getValue().minimum_ || value > entry.getValue().maximum_) {
+               return false;
+            }
+         }
+      }
+      
+      return true;
+   }
    
 }
@@ -40,10 +40,10 @@ package edu.ucsf.valelab.gaussianfit.fitmanagement;
 
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
 import edu.ucsf.valelab.gaussianfit.algorithm.FindLocalMaxima;
-import edu.ucsf.valelab.gaussianfit.utils.ProgressThread;
 import edu.ucsf.valelab.gaussianfit.data.GaussianInfo;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.data.SpotStore;
 import edu.ucsf.valelab.gaussianfit.fitting.ZCalibrator;
 import ij.IJ;
 import ij.ImagePlus;
@@ -54,17 +54,12 @@ import java.awt.Polygon;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.concurrent.LinkedBlockingQueue;
 import edu.ucsf.valelab.gaussianfit.utils.ReportingUtils;
 import ij.ImageStack;
 import ij.plugin.HyperStackConverter;
 import ij.process.ShortProcessor;
-import java.util.List;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 import org.micromanager.Studio;
 import org.micromanager.data.Coords;
 import org.micromanager.data.Coords.CoordsBuilder;
@@ -78,7 +73,8 @@ import org.micromanager.display.DisplayWindow;
 public class FitAllThread extends GaussianInfo implements Runnable  {
    double[] params0_;
    double[] steps_ = new double[5];
-   GaussianFitStackThread[] gfsThreads_;
+   private volatile SpotFitEngine engine_;
+   private SpotStore results_;
    private volatile Thread t_ = null;
    private static boolean running_ = false;
    private final FindLocalMaxima.FilterType preFilterType_;
@@ -117,12 +113,9 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
    } 
 
    public synchronized void stop() {
-      if (gfsThreads_ != null) {
-         for (GaussianFitStackThread gfsThread : gfsThreads_) {
-            if (gfsThread != null) {
-               gfsThread.stop();
-            }
-         }
+      SpotFitEngine engine = engine_;
+      if (engine != null) {
+         engine.stop();
       }
       t_ = null;
       running_ = false;
@@ -132,8 +125,8 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
       return running_;
    }
 
-   public synchronized List<SpotData> getResults() {
-      return resultList_;
+   public synchronized SpotStore getResults() {
+      return results_;
    }
    
    public synchronized void showDataWindow(boolean flag) {
@@ -143,9 +136,8 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
    @Override
    public void run() {
 
-      // List with spot positions found through the Find Maxima command
-      sourceList_ = new LinkedBlockingQueue<SpotData>();
-      resultList_ = Collections.synchronizedList(new ArrayList<SpotData>());
+      // Fitted spots from all positions
+      results_ = new SpotStore();
 
       // take the active ImageJ image
       ImagePlus siPlus;
@@ -233,7 +225,7 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
       long endTime = System.nanoTime();
 
       // Add data to data overview window
-      if (resultList_.size() < 1) {
+      if (results_.size() < 1) {
          ReportingUtils.showError("No spots found");
          running_ = false;
          return;
@@ -241,15 +233,15 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
       
       DataCollectionForm dcForm = DataCollectionForm.getInstance();
 
-      double zMax = resultList_.get(0).getZCenter();
+      double zMax = results_.getZCenter(0);
       if (zMax < 0.0) {
          zMax = 0.0;
       }
       double zMin = zMax;
       ZCalibrator zc = DataCollectionForm.zc_;
       if (zc != null) {
-         for (SpotData spot : resultList_) {
-            double zTmp = spot.getZCenter();
+         for (int i = 0; i < results_.size(); i++) {
+            double zTmp = results_.getZCenter(i);
             if (zMax < zTmp) {
                zMax = zTmp;
             }
@@ -279,7 +271,7 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
               setShape(super.getShape()).setHalfSize(super.getHalfBoxSize()).
               setNrChannels(nrChannels).setNrFrames(nrFrames).
               setNrSlices(nrSlices).setNrPositions(nrPositions).
-              setMaxNrSpots(resultList_.size()).setSpotList(resultList_).
+              setMaxNrSpots(results_.size()).setSpotStore(results_).
               setTimePoints(timePoints).setIsTrack(false).
               setCoordinate(DataCollectionForm.Coordinates.NM).
               setHasZ(DataCollectionForm.zc_.hasFitFunctions()).
@@ -292,11 +284,11 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
 
       // report duration of analysis
       double took = (endTime - startTime) / 1E9;
-      double rate = resultList_.size() / took;
+      double rate = results_.size() / took;
       DecimalFormat df2 = new DecimalFormat("#.##");
       DecimalFormat df0 = new DecimalFormat("#");
       studio_.alerts().postAlert("Spot analysis results", FitAllThread.class, 
-              "Analyzed " + resultList_.size() + " spots in " + df2.format(took)
+              "Analyzed " + results_.size() + " spots in " + df2.format(took)
               + " seconds (" + df0.format(rate) + " spots/sec.)");
 
       running_ = false;
@@ -304,16 +296,11 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
 
    @SuppressWarnings("unchecked")
    private int analyzeImagePlus(ImagePlus siPlus, int position, Roi originalRoi) {
-      int halfSize = super.getHalfBoxSize();
       int nrSpots = 0;
-      // Start up IJ.Prefs.getThreads() threads for gaussian fitting
-      gfsThreads_ = new GaussianFitStackThread[nrThreads_];
-      Future<?>[] futures = new Future<?>[nrThreads_];
-      for (int i = 0; i < nrThreads_; i++) {
-         gfsThreads_[i] = new GaussianFitStackThread(sourceList_, resultList_, siPlus);
-         gfsThreads_[i].copy(this);
-         futures[i] = threadPool_.submit(gfsThreads_[i]);
-      }
+      // Start up IJ.Prefs.getThreads() workers for gaussian fitting
+      SpotFitEngine engine = new SpotFitEngine(this, nrThreads_, threadPool_);
+      engine_ = engine;
+      DecimalFormat df0 = new DecimalFormat("#");
       int shownChannel = siPlus.getChannel();
       int shownSlice = siPlus.getSlice();
       int shownFrame = siPlus.getFrame();
@@ -343,19 +330,9 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
                      if (!running_) {
                         break;
                      }
-                     // to avoid making a gigantic sourceList and running out of memory
-                     // sleep a bit when the sourcesize gets too big
-                     // once we have very fast multi-core computers, this constant can be increased
-                     if (sourceList_.size() > 100000) {
-                        try {
-                           Thread.sleep(1000);
-                        } catch (InterruptedException ex) {
-                           // not sure what to do
-                        }
-                     }
-
                      imageCount++;
-                     ij.IJ.showStatus("Processing image " + imageCount);
+                     ij.IJ.showStatus("Processing image " + imageCount + " (" 
+                             + df0.format(engine.getSpotsPerSecond()) + " spots/sec.)");
 
                      ImageProcessor siProc = null;
                      Polygon p = new Polygon();
@@ -400,62 +377,54 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
 
                      Arrays.sort(sC, new SpotSortComparator());
 
-                     for (int j = 0; j < sC.length; j++) {
-                        // filter out spots too close to the edge
-                        if (sC[j][0] > halfSize && sC[j][0] < siPlus.getWidth() - halfSize
-                                && sC[j][1] > halfSize && sC[j][1] < siPlus.getHeight() - halfSize) {
-                           ImageProcessor sp = SpotData.getSpotProcessor(siProc,
-                                   halfSize, sC[j][0], sC[j][1]);
-                           if (sp == null) {
-                              continue;
-                           }
-                           int channel = c;
-
-                           SpotData thisSpot = new SpotData(sp, channel, z, f,
-                                   position, j, sC[j][0], sC[j][1]);
-                           try {
-                              sourceList_.put(thisSpot);
-                           } catch (InterruptedException iex) {
-                              Thread.currentThread().interrupt();
-                              throw new RuntimeException("Unexpected interruption");
-                           }
+                     // The workers copy the spots straight out of the frame's
+                     // pixels.  For a regular stack this is the stack's own
+                     // array, which nobody modifies while we run; for virtual 
+                     // stacks each frame is a new array.
+                     short[] framePixels;
+                     if (siProc instanceof ShortProcessor) {
+                        framePixels = (short[]) siProc.getPixels();
+                     } else {
+                        framePixels = (short[]) siProc.convertToShort(false).getPixels();
+                     }
+                     try {
+                        if (!engine.submit(new SpotFitEngine.FrameSpots(framePixels,
+                                siProc.getWidth(), siProc.getHeight(), c, z, f,
+                                position, sC))) {
+                           running_ = false;
                         }
+                     } catch (InterruptedException iex) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Unexpected interruption");
                      }
                   }
                }
             }
          }
-         // start ProgresBar thread
-         ProgressThread pt = new ProgressThread(sourceList_);
-         pt.init();
-
 
       } catch (OutOfMemoryError ome) {
          ij.IJ.error("Out Of Memory");
       }
 
-      // Send working threads signal that we are done:
-      SpotData lastSpot = new SpotData(null, -1, 1, -1, -1, -1, -1, -1);
+      // Let the workers know that we are done, and report progress until
+      // they have fit all remaining spots
+      engine.noMoreFrames();
       try {
-         sourceList_.put(lastSpot);
+         while (!engine.awaitCompletion(1000)) {
+            ij.IJ.showStatus("Fitting remaining Gaussians... " 
+                    + engine.getNrSpotsFitted() + " spots (" 
+                    + df0.format(engine.getSpotsPerSecond()) + " spots/sec.)");
+         }
       } catch (InterruptedException iex) {
          Thread.currentThread().interrupt();
          throw new RuntimeException("Unexpected interruption");
       }
-
-      // wait for worker threads to finish
-      for (int i=0; i<nrThreads_; i++) {
-         try {
-            futures[i].get();
-            gfsThreads_[i] = null;
-         } catch (ExecutionException ie) {
-         } catch (InterruptedException ex) {
-         }
-      }
+      ij.IJ.showStatus("");
+      results_.addAll(engine.getResults());
+      engine_ = null;
 
       siPlus.setPosition(shownChannel, shownSlice, shownFrame);
        
-      sourceList_.clear();
       return nrSpots;
    }
    
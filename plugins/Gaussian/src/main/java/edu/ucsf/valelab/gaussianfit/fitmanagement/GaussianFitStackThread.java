@@ -36,47 +36,37 @@ import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
 import edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit;
 import edu.ucsf.valelab.gaussianfit.data.GaussianInfo;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.data.SpotStore;
 import edu.ucsf.valelab.gaussianfit.fitting.ZCalibrator;
-import ij.ImagePlus;
-import ij.process.ImageProcessor;
-import java.util.List;
-import java.util.concurrent.BlockingQueue;
+import ij.process.ShortProcessor;
 import edu.ucsf.valelab.gaussianfit.utils.ReportingUtils;
 
 
 /**
- *
+ * Fitting worker for the SpotFitEngine.  Fits all spots of the frames it 
+ * gets from the engine, re-using a single GaussianFit and a single pixel 
+ * buffer for all spots, and collects the results in its own store, so that 
+ * workers share nothing while fitting.
+ * 
  * @author nico
  */
 public class GaussianFitStackThread extends GaussianInfo implements Runnable {
 
-   Thread t_;
-   boolean stopNow_ = false;
+   private final SpotFitEngine engine_;
+   private final int index_;
+   private final SpotStore results_ = new SpotStore();
 
-   public GaussianFitStackThread(BlockingQueue<SpotData> sourceList,
-           List<SpotData> resultList, ImagePlus siPlus) {
-      siPlus_ = siPlus;
-      sourceList_ = sourceList;
-      resultList_ = resultList;
+   public GaussianFitStackThread(SpotFitEngine engine, int index) {
+      engine_ = engine;
+      index_ = index;
    }
 
-   public void listDone() {
-      stop_ = true;
-   }
-
-   public void init() {
-      stopNow_ = false;
-      t_ = new Thread(this);
-      t_.start();
-   }
-
-   public void stop() {
-      stopNow_ = true;
-   }
-
-   public void join() throws InterruptedException {
-      if (t_ != null)
-         t_.join();
+   /**
+    * Only valid once the engine reports that all workers are done.
+    * @return spots fit by this worker that passed the filters
+    */
+   public SpotStore getResults() {
+      return results_;
    }
 
    @Override
@@ -84,48 +74,61 @@ public class GaussianFitStackThread extends GaussianInfo implements Runnable {
       GaussianFit gs_ = new GaussianFit(super.getShape(), super.getFitMode(),
             super.getUseFixedWidth(), super.getFixedWidthNm() / super.getPixelSize() / 2);
       ZCalibrator zc = DataCollectionForm.zc_;
-
-      while (!stopNow_) {
-         SpotData spot;
-         synchronized (GFSLOCK) {
+      int halfSize = super.getHalfBoxSize();
+      int boxSize = 2 * halfSize;
+      // the spot is copied into this buffer, which is handed to the fitter
+      ShortProcessor ip = new ShortProcessor(boxSize, boxSize);
+      short[] boxPixels = (short[]) ip.getPixels();
+
+      try {
+         SpotFitEngine.FrameSpots frame;
+         while ((frame = engine_.nextFrame(index_)) != null) {
             try {
-               spot = sourceList_.take();
-               // Look for signal that we are done, add back to queue if found
-               if (spot.getFrame() == -1) {
-                  sourceList_.add(spot);
-                  return;
+               int nrFitted = 0;
+               for (int j = 0; j < frame.spots_.length && !engine_.shouldStop(); j++) {
+                  int x = frame.spots_[j][0];
+                  int y = frame.spots_[j][1];
+                  // filter out spots too close to the edge
+                  if (!(x > halfSize && x < frame.width_ - halfSize
+                          && y > halfSize && y < frame.height_ - halfSize)) {
+                     continue;
+                  }
+                  for (int row = 0; row < boxSize; row++) {
+                     System.arraycopy(frame.pixels_, 
+                             (y - halfSize + row) * frame.width_ + x - halfSize, 
+                             boxPixels, row * boxSize, boxSize);
+                  }
+                  SpotData spot = new SpotData(ip, frame.channel_, frame.slice_, 
+                          frame.frame_, frame.position_, j, x, y);
+                  GaussianFit.Data fitResult = gs_.dogaussianfit(ip, maxIterations_);
+                  // Note that the copy constructor will not copy pixel data, 
+                  // so the scratch buffer is not referenced by the result
+                  SpotData spotData = SpotDataConverter.convert(spot, fitResult, this, zc);
+                  nrFitted++;
+
+                  if ( fitResult.getParms().length > 1 &&
+                          (!useWidthFilter_ || 
+                          (spotData.getWidth() > widthMin_ && spotData.getWidth() < widthMax_))
+                          && (!useNrPhotonsFilter_ || 
+                          (spotData.getIntensity() > nrPhotonsMin_ && spotData.getIntensity() < nrPhotonsMax_))) {
+                     results_.add(spotData);
+                  }
                }
-            } catch (InterruptedException iExp) {
-               ij.IJ.log("Thread interruped  " + Thread.currentThread().getName());
-               return;
-            }
-         }
-
-         try {
-            // Note: the implementation will try to return a cached version of the ImageProcessor
-            ImageProcessor ip = spot.getSpotProcessor(siPlus_, super.getHalfBoxSize());
-            GaussianFit.Data fitResult = gs_.dogaussianfit(ip, maxIterations_);
-            // Note that the copy constructor will not copy pixel data, so we loose 
-            // those when spot goes out of scope
-            SpotData spotData = SpotDataConverter.convert(spot, fitResult, this, zc);
-            
-            if ( fitResult.getParms().length > 1 &&
-                    (!useWidthFilter_ || 
-                    (spotData.getWidth() > widthMin_ && spotData.getWidth() < widthMax_))
-                    && (!useNrPhotonsFilter_ || 
-                    (spotData.getIntensity() > nrPhotonsMin_ && spotData.getIntensity() < nrPhotonsMax_))) {
-               resultList_.add(spotData);
+               engine_.spotsFitted(nrFitted);
+            } finally {
+               engine_.frameDone();
             }
-
-
-         } catch (Exception ex) {
-            ReportingUtils.logError(ex);
-            ReportingUtils.logError("Thread run out of memory  " + 
-                    Thread.currentThread().getName());
-            ReportingUtils.showError("Fitter out of memory.\n" +
-                    "Out of memory error");
-            return;
          }
+      } catch (InterruptedException iExp) {
+         ij.IJ.log("Thread interruped  " + Thread.currentThread().getName());
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+         ReportingUtils.logError("Thread run out of memory  " + 
+                 Thread.currentThread().getName());
+         ReportingUtils.showError("Fitter out of memory.\n" +
+                 "Out of memory error");
+      } finally {
+         engine_.workerDone();
       }
    }
 }
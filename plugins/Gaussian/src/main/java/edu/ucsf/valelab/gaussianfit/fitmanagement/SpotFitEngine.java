@@ -0,0 +1,253 @@
+/*
+Author: Nico Stuurman
+
+Copyright (c) 2013-2017, Regents of the University of California
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies,
+either expressed or implied, of the FreeBSD Project.
+ */
+
+package edu.ucsf.valelab.gaussianfit.fitmanagement;
+
+import edu.ucsf.valelab.gaussianfit.data.GaussianInfo;
+import edu.ucsf.valelab.gaussianfit.data.SpotStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Distributes the spots found in each frame over a set of fitting workers.
+ * 
+ * Work is handed out per frame rather than per spot, and every worker has 
+ * its own deque of frames.  Workers take frames from the head of their own 
+ * deque, and when that runs dry, steal from the tail of the other workers' 
+ * deques.  There is thus no single queue (or lock) that all workers contend 
+ * for.  Each worker keeps its own GaussianFit instance, pixel scratch buffer
+ * and result store; the results are merged once all frames have been fit.
+ * 
+ * @author nico
+ */
+public class SpotFitEngine {
+   // Maximum number of frames waiting to be fit, per worker.  This keeps
+   // memory use bounded when spot finding is faster than fitting.
+   private static final int MAX_PENDING_FRAMES_PER_WORKER = 16;
+   // How long an idle worker waits for new work before trying to steal
+   private static final long IDLE_WAIT_MS = 20;
+
+   /**
+    * The spots found in a single frame, together with that frame's pixels.
+    * Spots are {x, y} pairs, as produced by the maximum finder.
+    */
+   public static class FrameSpots {
+      final short[] pixels_;
+      final int width_;
+      final int height_;
+      final int channel_;
+      final int slice_;
+      final int frame_;
+      final int position_;
+      final int[][] spots_;
+
+      public FrameSpots(short[] pixels, int width, int height, int channel, 
+              int slice, int frame, int position, int[][] spots) {
+         pixels_ = pixels;
+         width_ = width;
+         height_ = height;
+         channel_ = channel;
+         slice_ = slice;
+         frame_ = frame;
+         position_ = position;
+         spots_ = spots;
+      }
+   }
+
+   private final List<LinkedBlockingDeque<FrameSpots>> deques_;
+   private final GaussianFitStackThread[] workers_;
+   private final CountDownLatch workersDone_;
+   private final Semaphore pendingFrames_;
+   private final AtomicLong nrFitted_ = new AtomicLong(0);
+   private volatile boolean noMoreFrames_ = false;
+   private volatile boolean stopNow_ = false;
+   private int nextDeque_ = 0;
+   private long startTimeNs_;
+
+   /**
+    * Starts the workers; they will wait for frames to be submitted.
+    * 
+    * @param settings - fit settings, copied into every worker
+    * @param nrWorkers - number of workers to start
+    * @param threadPool - executor to run the workers on, should have at least
+    *                      nrWorkers threads
+    */
+   public SpotFitEngine(GaussianInfo settings, int nrWorkers, 
+           ExecutorService threadPool) {
+      deques_ = new ArrayList<LinkedBlockingDeque<FrameSpots>>(nrWorkers);
+      for (int i = 0; i < nrWorkers; i++) {
+         deques_.add(new LinkedBlockingDeque<FrameSpots>());
+      }
+      pendingFrames_ = new Semaphore(MAX_PENDING_FRAMES_PER_WORKER * nrWorkers);
+      workers_ = new GaussianFitStackThread[nrWorkers];
+      workersDone_ = new CountDownLatch(nrWorkers);
+      startTimeNs_ = System.nanoTime();
+      for (int i = 0; i < nrWorkers; i++) {
+         workers_[i] = new GaussianFitStackThread(this, i);
+         workers_[i].copy(settings);
+         threadPool.submit(workers_[i]);
+      }
+   }
+
+   /**
+    * Hands the spots of one frame to the workers.  Blocks while too many 
+    * frames are waiting to be fit.
+    * 
+    * @param frameSpots
+    * @return false if the engine was stopped and the frame was not accepted
+    * @throws InterruptedException
+    */
+   public boolean submit(FrameSpots frameSpots) throws InterruptedException {
+      while (!pendingFrames_.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+         // give up when stopped, or when all workers died
+         if (stopNow_ || workersDone_.getCount() == 0) {
+            return false;
+         }
+      }
+      if (stopNow_) {
+         return false;
+      }
+      deques_.get(nextDeque_).addFirst(frameSpots);
+      nextDeque_ = (nextDeque_ + 1) % deques_.size();
+      return true;
+   }
+
+   /**
+    * Signals that all frames have been submitted.  Workers will exit once 
+    * they have fit everything that is left.
+    */
+   public void noMoreFrames() {
+      noMoreFrames_ = true;
+   }
+
+   /**
+    * Waits for the workers to exit, which they do after noMoreFrames() was 
+    * called and all frames were fit, or after stop() was called.
+    * 
+    * @param timeoutMs - maximum time to wait
+    * @return true if all workers exited
+    * @throws InterruptedException
+    */
+   public boolean awaitCompletion(long timeoutMs) throws InterruptedException {
+      return workersDone_.await(timeoutMs, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Only valid once awaitCompletion() returned true.
+    * 
+    * @return all fitted spots that passed the filters, from all workers
+    */
+   public SpotStore getResults() {
+      SpotStore results = new SpotStore();
+      for (GaussianFitStackThread worker : workers_) {
+         results.addAll(worker.getResults());
+      }
+      return results;
+   }
+
+   /**
+    * Asks the workers to stop as soon as they finish the spot they are 
+    * currently fitting.
+    */
+   public void stop() {
+      stopNow_ = true;
+   }
+
+   public long getNrSpotsFitted() {
+      return nrFitted_.get();
+   }
+
+   /**
+    * @return average number of spots fit per second since the engine started
+    */
+   public double getSpotsPerSecond() {
+      double elapsedS = (System.nanoTime() - startTimeNs_) / 1E9;
+      if (elapsedS <= 0.0) {
+         return 0.0;
+      }
+      return nrFitted_.get() / elapsedS;
+   }
+
+   boolean shouldStop() {
+      return stopNow_;
+   }
+
+   void spotsFitted(int nr) {
+      nrFitted_.addAndGet(nr);
+   }
+
+   void frameDone() {
+      pendingFrames_.release();
+   }
+
+   void workerDone() {
+      workersDone_.countDown();
+   }
+
+   /**
+    * Returns the next frame for the given worker: first from its own deque, 
+    * otherwise stolen from another worker.  Returns null once all frames 
+    * have been submitted and fit, or when the engine was stopped.
+    */
+   FrameSpots nextFrame(int workerIndex) throws InterruptedException {
+      LinkedBlockingDeque<FrameSpots> own = deques_.get(workerIndex);
+      while (!stopNow_) {
+         FrameSpots frame = own.pollFirst();
+         if (frame != null) {
+            return frame;
+         }
+         // Read the flag before looking for work, so that frames submitted
+         // before the flag was set are guaranteed to be seen below.
+         boolean noMoreFrames = noMoreFrames_;
+         for (int i = 1; i < deques_.size(); i++) {
+            frame = deques_.get((workerIndex + i) % deques_.size()).pollLast();
+            if (frame != null) {
+               return frame;
+            }
+         }
+         if (noMoreFrames) {
+            // a frame may have arrived in our own deque after we looked
+            return own.pollFirst();
+         }
+         frame = own.pollFirst(IDLE_WAIT_MS, TimeUnit.MILLISECONDS);
+         if (frame != null) {
+            return frame;
+         }
+      }
+      return null;
+   }
+}
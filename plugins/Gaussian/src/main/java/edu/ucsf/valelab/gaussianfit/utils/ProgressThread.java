@@ -1,77 +0,0 @@
-/* @author - Nico Stuurman,  2012
- * 
- * 
-Copyright (c) 2012-2017, Regents of the University of California
-All rights reserved.
-
-Redistribution and use in source and binary forms, with or without
-modification, are permitted provided that the following conditions are met:
-
-1. Redistributions of source code must retain the above copyright notice, this
-   list of conditions and the following disclaimer.
-2. Redistributions in binary form must reproduce the above copyright notice,
-   this list of conditions and the following disclaimer in the documentation
-   and/or other materials provided with the distribution.
-
-THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
-ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
-WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
-DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
-ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
-(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
-LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
-ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
-(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
-SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
-
-The views and conclusions contained in the software and documentation are those
-of the authors and should not be interpreted as representing official policies,
-either expressed or implied, of the FreeBSD Project.
- */
-
-package edu.ucsf.valelab.gaussianfit.utils;
-
-
-import edu.ucsf.valelab.gaussianfit.data.SpotData;
-import java.util.concurrent.BlockingQueue;
-
-
-/**
- *
- * @author nico
- */
-public class ProgressThread  implements Runnable {
-
-   Thread t_;
-   BlockingQueue<SpotData> sourceList_;
-
-
-
-   public ProgressThread(BlockingQueue<SpotData> sourceList) {
-      sourceList_ = sourceList;
-   }
-
-   public void init() {
-      t_ = new Thread(this);
-      t_.start();
-   }
-
-   public void join() throws InterruptedException {
-      if (t_ != null)
-         t_.join();
-   }
-
-   
-   @Override
-   public void run() {
-      int maxNr = sourceList_.size();
-      int size = maxNr;
-      while (sourceList_ != null && size > 0) {
-         ij.IJ.wait(2000);
-         size = sourceList_.size();
-         ij.IJ.showStatus("Fitting remaining Gaussians...");
-         ij.IJ.showProgress(maxNr - size, maxNr);
-      }
-      ij.IJ.showStatus("");
-   }
-}
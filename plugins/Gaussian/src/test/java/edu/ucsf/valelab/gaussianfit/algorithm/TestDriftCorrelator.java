@@ -0,0 +1,71 @@
+package edu.ucsf.valelab.gaussianfit.algorithm;
+
+import edu.ucsf.valelab.gaussianfit.data.SpotStore;
+import java.awt.geom.Point2D;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author nico
+ */
+public class TestDriftCorrelator {
+   
+   @Test
+   public void testFFTRoundTrip() {
+      FFTPlan plan = new FFTPlan(8);
+      float[] re = new float[64];
+      float[] im = new float[64];
+      re[9] = 1.0f;
+      plan.transform2D(re, im, false);
+      // a single point transforms to a flat magnitude
+      for (int i = 0; i < 64; i++) {
+         Assert.assertEquals(1.0, Math.hypot(re[i], im[i]), 1.0e-5);
+      }
+      plan.transform2D(re, im, true);
+      for (int i = 0; i < 64; i++) {
+         Assert.assertEquals(i == 9 ? 1.0 : 0.0, re[i], 1.0e-5);
+         Assert.assertEquals(0.0, im[i], 1.0e-5);
+      }
+   }
+   
+   @Test
+   public void testDrift() {
+      // the same emitters, seen twice, the second time displaced
+      Random random = new Random(42);
+      SpotStore store = new SpotStore();
+      int nrEmitters = 500;
+      double driftX = 123.4;
+      double driftY = -56.7;
+      for (int frame = 1; frame <= 2; frame++) {
+         Random positions = new Random(7);
+         for (int i = 0; i < nrEmitters; i++) {
+            int n = store.add(1, 1, frame, 1, i, 0, 0);
+            double x = 1000.0 + 30000.0 * positions.nextDouble() 
+                    + 10.0 * random.nextGaussian();
+            double y = 1000.0 + 20000.0 * positions.nextDouble()
+                    + 10.0 * random.nextGaussian();
+            if (frame == 2) {
+               x += driftX;
+               y += driftY;
+            }
+            store.setData(n, 1000, 10, x, y, 200, 1, 0, 10);
+         }
+      }
+      int[] first = new int[nrEmitters];
+      int[] second = new int[nrEmitters];
+      for (int i = 0; i < nrEmitters; i++) {
+         first[i] = i;
+         second[i] = nrEmitters + i;
+      }
+      // 40 nm pixels, image that is not a power of 2, nor square
+      DriftCorrelator correlator = new DriftCorrelator(store, 1.0 / 40.0, 
+              900, 600, 16);
+      correlator.setReference(first);
+      Point2D.Double drift = correlator.getDrift(second);
+      Assert.assertEquals(driftX, drift.x, 10.0);
+      Assert.assertEquals(driftY, drift.y, 10.0);
+      Assert.assertNull(correlator.getDrift(new int[0]));
+   }
+}
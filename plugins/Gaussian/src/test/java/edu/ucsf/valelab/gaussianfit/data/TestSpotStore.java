@@ -0,0 +1,128 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author nico
+ */
+public class TestSpotStore {
+   // more than one chunk of the store's columns
+   private static final int NR_SPOTS = 70000;
+
+   @Rule
+   public TemporaryFolder folder_ = new TemporaryFolder();
+
+   private static SpotStore makeStore(int nrSpots, int firstFrame) {
+      SpotStore store = new SpotStore();
+      for (int i = 0; i < nrSpots; i++) {
+         int n = store.add(i % 3, i % 5, firstFrame + i / 100, i % 2, i, 
+                 i % 512, i % 256);
+         store.setData(n, 1000.0 + i, 10.0, 0.5 * i, 0.25 * i, 200.0, 1.1, 
+                 0.0, 15.0);
+         store.setZCenter(n, -0.1 * i);
+      }
+      return store;
+   }
+
+   private static void assertSpot(SpotStore store, int index, int i, 
+           int firstFrame) {
+      Assert.assertEquals(i % 3, store.getChannel(index));
+      Assert.assertEquals(i % 5, store.getSlice(index));
+      Assert.assertEquals(firstFrame + i / 100, store.getFrame(index));
+      Assert.assertEquals(i % 2, store.getPosition(index));
+      Assert.assertEquals(i, store.getNr(index));
+      Assert.assertEquals(i % 512, store.getX(index));
+      Assert.assertEquals(i % 256, store.getY(index));
+      Assert.assertEquals(1000.0 + i, store.getIntensity(index), 0.0);
+      Assert.assertEquals(0.5 * i, store.getXCenter(index), 0.0);
+      Assert.assertEquals(0.25 * i, store.getYCenter(index), 0.0);
+      Assert.assertEquals(-0.1 * i, store.getZCenter(index), 0.0);
+      Assert.assertEquals(200.0, store.getWidth(index), 0.0);
+      Assert.assertEquals(15.0, store.getSigma(index), 0.0);
+   }
+
+   @Test
+   public void testWriteAndMap() throws IOException {
+      SpotStore store = makeStore(NR_SPOTS, 1);
+      store.setValue(3, SpotData.Keys.INTEGRALSIGMA, 42.0);
+      store.setValue(NR_SPOTS - 1, SpotData.Keys.INTEGRALSIGMA, 43.0);
+      File file = folder_.newFile("spots.bin");
+      store.write(file);
+
+      SpotStore mapped = SpotStore.map(file);
+      Assert.assertEquals(NR_SPOTS, mapped.size());
+      for (int i = 0; i < NR_SPOTS; i += 997) {
+         assertSpot(mapped, i, i, 1);
+      }
+      assertSpot(mapped, NR_SPOTS - 1, NR_SPOTS - 1, 1);
+      Assert.assertArrayEquals(store.getKeys(), mapped.getKeys());
+      Assert.assertEquals(42.0, mapped.getValue(3, 
+              SpotData.Keys.INTEGRALSIGMA), 0.0);
+      Assert.assertEquals(43.0, mapped.getValue(NR_SPOTS - 1, 
+              SpotData.Keys.INTEGRALSIGMA), 0.0);
+      Assert.assertFalse(mapped.hasKey(4, SpotData.Keys.INTEGRALSIGMA));
+   }
+
+   @Test
+   public void testAddAllAcrossChunks() {
+      SpotStore store = makeStore(60000, 1);
+      SpotStore other = makeStore(10000, 1000);
+      store.addAll(other);
+      Assert.assertEquals(70000, store.size());
+      for (int i = 59990; i < 60000; i++) {
+         assertSpot(store, i, i, 1);
+      }
+      // these end up on both sides of the chunk boundary at 65536
+      for (int i = 0; i < 10000; i++) {
+         assertSpot(store, 60000 + i, i, 1000);
+      }
+   }
+
+   @Test
+   public void testKeyColumns() {
+      SpotStore store = makeStore(10, 1);
+      store.setValue(2, SpotData.Keys.APERTUREINTENSITY, 5.0);
+      Assert.assertTrue(store.hasKey(2, SpotData.Keys.APERTUREINTENSITY));
+      Assert.assertFalse(store.hasKey(1, SpotData.Keys.APERTUREINTENSITY));
+      Assert.assertTrue(Double.isNaN(store.getValue(1, "no such key")));
+
+      // keys of either store come along with addAll, NaN where missing
+      SpotStore other = makeStore(NR_SPOTS, 1);
+      other.setValue(NR_SPOTS - 1, SpotData.Keys.MSIGMA, 7.0);
+      store.addAll(other);
+      Assert.assertEquals(5.0, store.getValue(2, 
+              SpotData.Keys.APERTUREINTENSITY), 0.0);
+      Assert.assertFalse(store.hasKey(10 + NR_SPOTS - 1, 
+              SpotData.Keys.APERTUREINTENSITY));
+      Assert.assertFalse(store.hasKey(2, SpotData.Keys.MSIGMA));
+      Assert.assertEquals(7.0, store.getValue(10 + NR_SPOTS - 1, 
+              SpotData.Keys.MSIGMA), 0.0);
+
+      // and are copied to SpotData, and back
+      SpotData spot = store.getSpot(2);
+      Assert.assertTrue(spot.hasKey(SpotData.Keys.APERTUREINTENSITY));
+      Assert.assertFalse(spot.hasKey(SpotData.Keys.MSIGMA));
+      SpotStore fromList = SpotStore.fromList(store.asList(new int[] {2}));
+      Assert.assertEquals(5.0, fromList.getValue(0, 
+              SpotData.Keys.APERTUREINTENSITY), 0.0);
+   }
+
+   @Test(expected = UnsupportedOperationException.class)
+   public void testMappedStoreIsReadOnly() throws IOException {
+      File file = folder_.newFile("spots.bin");
+      makeStore(10, 1).write(file);
+      SpotStore mapped = SpotStore.map(file);
+      Assert.assertTrue(mapped.isReadOnly());
+      // a copy can be changed
+      SpotStore copy = mapped.copy();
+      copy.setXCenter(0, 1.0);
+      Assert.assertEquals(1.0, copy.getXCenter(0), 0.0);
+      mapped.setXCenter(0, 1.0);
+   }
+}
@@ -0,0 +1,148 @@
+///////////////////////////////////////////////////////////////////////////////
+// AUTHOR:       Henry Pinkard, henry.pinkard@gmail.com
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package main.java.org.micromanager.plugins.magellan.acq;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of tiles that have already been read from disk,
+ * for all resolution levels of a MultiResMultipageTiffStorage. The tiles of
+ * all storages share one budget of a tenth of the heap, so that having
+ * several datasets open doesn't multiply it. Cached tiles are shared, so
+ * their pixels must never be modified.
+ */
+class DecodedTileCache {
+
+   private static final long MAX_BYTES = Runtime.getRuntime().maxMemory() / 10;
+
+   /**
+    * Tile of one storage's cache
+    */
+   private static class Key {
+
+      private final DecodedTileCache cache_;
+      private final String tile_;
+
+      Key(DecodedTileCache cache, String tile) {
+         cache_ = cache;
+         tile_ = tile;
+      }
+
+      @Override
+      public boolean equals(Object other) {
+         if (!(other instanceof Key)) {
+            return false;
+         }
+         Key key = (Key) other;
+         return cache_ == key.cache_ && tile_.equals(key.tile_);
+      }
+
+      @Override
+      public int hashCode() {
+         return 31 * System.identityHashCode(cache_) + tile_.hashCode();
+      }
+   }
+
+   //tiles of all caches, access ordered, so iteration starts at the least recently used tile
+   //guarded by tiles_, as is currentBytes_
+   private static final LinkedHashMap<Key, MagellanTaggedImage> tiles_ =
+           new LinkedHashMap<Key, MagellanTaggedImage>(64, 0.75f, true);
+   private static long currentBytes_ = 0;
+
+   static String key(int resIndex, int channel, int slice, int frame, int positionIndex) {
+      return resIndex + "_" + channel + "_" + slice + "_" + frame + "_" + positionIndex;
+   }
+
+   MagellanTaggedImage get(String key) {
+      synchronized (tiles_) {
+         return tiles_.get(new Key(this, key));
+      }
+   }
+
+   /**
+    * Add a tile that has just been written, replacing any older version
+    */
+   void put(String key, MagellanTaggedImage tile) {
+      synchronized (tiles_) {
+         Key k = new Key(this, key);
+         remove(k);
+         add(k, tile);
+      }
+   }
+
+   /**
+    * Add a tile that has been read from disk, unless a newer version was
+    * written while it was being read
+    */
+   void putIfAbsent(String key, MagellanTaggedImage tile) {
+      synchronized (tiles_) {
+         Key k = new Key(this, key);
+         if (!tiles_.containsKey(k)) {
+            add(k, tile);
+         }
+      }
+   }
+
+   /**
+    * Remove all tiles of this cache
+    */
+   void clear() {
+      synchronized (tiles_) {
+         Iterator<Map.Entry<Key, MagellanTaggedImage>> it = tiles_.entrySet().iterator();
+         while (it.hasNext()) {
+            Map.Entry<Key, MagellanTaggedImage> entry = it.next();
+            if (entry.getKey().cache_ == this) {
+               currentBytes_ -= sizeOf(entry.getValue());
+               it.remove();
+            }
+         }
+      }
+   }
+
+   private static void remove(Key key) {
+      MagellanTaggedImage old = tiles_.remove(key);
+      if (old != null) {
+         currentBytes_ -= sizeOf(old);
+      }
+   }
+
+   private static void add(Key key, MagellanTaggedImage tile) {
+      long size = sizeOf(tile);
+      if (size == 0 || size > MAX_BYTES) {
+         return;
+      }
+      tiles_.put(key, tile);
+      currentBytes_ += size;
+      Iterator<Map.Entry<Key, MagellanTaggedImage>> it = tiles_.entrySet().iterator();
+      while (currentBytes_ > MAX_BYTES && it.hasNext()) {
+         currentBytes_ -= sizeOf(it.next().getValue());
+         it.remove();
+      }
+   }
+
+   private static long sizeOf(MagellanTaggedImage tile) {
+      if (tile.pix instanceof byte[]) {
+         return ((byte[]) tile.pix).length;
+      } else if (tile.pix instanceof short[]) {
+         return 2L * ((short[]) tile.pix).length;
+      }
+      return 0;
+   }
+}
@@ -27,10 +27,20 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -67,12 +77,49 @@ public class MultiResMultipageTiffStorage {
    private boolean finished_;
    private String uniqueAcqName_;
    private int byteDepth_;
-   private TreeMap<Integer, Integer> backgroundPix_ = new TreeMap<Integer, Integer>(); //map of channel index to background pixel value
+   private Map<Integer, Integer> backgroundPix_ = new ConcurrentHashMap<Integer, Integer>(); //map of channel index to background pixel value
    private boolean estimateBackground_;
    private double pixelSizeXY_, pixelSizeZ_;
    private AffineTransform affine_;
    private BDVXMLWriter bdvXML_;
    private int currentTP_ = -1;
+   private static final Runnable NO_OP = new Runnable() {
+      @Override
+      public void run() {
+      }
+   };
+   //Lower resolution tiles are computed on these threads, so that writing full resolution
+   //tiles is not held up by downsampling
+   private final ExecutorService pyramidExecutor_ = Executors.newFixedThreadPool(
+           Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "Magellan pyramid downsampling thread");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+   //low resolution tiles waiting to be computed, by resolution index and label
+   private final HashMap<String, PendingTile> pendingTiles_ = new HashMap<String, PendingTile>();
+   private final LinkedList<FutureTask<Void>> pyramidWaiters_ = new LinkedList<FutureTask<Void>>(); //guarded by pendingTiles_
+   //Tiles recently read or written at every resolution, so that panning and zooming
+   //the display doesn't go back to disk for every repaint (one budget for all open datasets)
+   private final DecodedTileCache tileCache_ = new DecodedTileCache();
+   //Number of low resolution tiles written so far, so that getTile can tell whether the
+   //tile it read from storage may have been replaced while it was reading
+   private final AtomicLong lowResWrites_ = new AtomicLong();
+   //Tiles next to the one being displayed are read ahead of time on this thread
+   private final ExecutorService prefetchExecutor_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "Magellan tile prefetch thread");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+   private final LinkedList<TileRequest> prefetchQueue_ = new LinkedList<TileRequest>();
+   private boolean prefetchScheduled_ = false; //guarded by prefetchQueue_
+   private String prefetchViewport_; //guarded by prefetchQueue_
    
    /**
     * Constructor to load existing storage from disk
@@ -312,16 +359,18 @@ public class MultiResMultipageTiffStorage {
       JSONObject metadata = null;
       if (byteDepth_ == 1) {
          byte[] pix = new byte[width*height*depth];
+         byte[] slicePix = new byte[width*height];
          for (int z = zStart; z < zStart + depth; z++ ) {
-            MagellanTaggedImage image = getImageForDisplay(channel, z, frame, resIndex, xStart, yStart, width, height);
+            MagellanTaggedImage image = getImageForDisplay(channel, z, frame, resIndex, xStart, yStart, width, height, slicePix);
             metadata = image.tags;
             System.arraycopy(image.pix, 0, pix, (z-zStart)*(width*height), width*height);
          }
          return new MagellanTaggedImage(pix, metadata);
       } else {
          short[] pix = new short[width*height*depth];
+         short[] slicePix = new short[width*height];
          for (int z = zStart; z < zStart + depth; z++ ) {
-            MagellanTaggedImage image = getImageForDisplay(channel, z, frame, resIndex, xStart, yStart, width, height);
+            MagellanTaggedImage image = getImageForDisplay(channel, z, frame, resIndex, xStart, yStart, width, height, slicePix);
             metadata = image.tags;
             System.arraycopy(image.pix, 0, pix, (z-zStart)*(width*height), width*height);
          }
@@ -347,109 +396,207 @@ public class MultiResMultipageTiffStorage {
     */
    public MagellanTaggedImage getImageForDisplay(int channel, int slice, int frame, int dsIndex, long x, long y, 
            int width, int height) {
-      Object pixels;
+      Object pixels = byteDepth_ == 1 ? new byte[width * height] : new short[width * height];
+      return getImageForDisplay(channel, slice, frame, dsIndex, x, y, width, height, pixels);
+   }
+
+   /**
+    * As above, but copies the subimage into the supplied array, so callers that
+    * are done with the pixels before asking for the next subimage can reuse one array
+    *
+    * @param pixels byte[] or short[] (depending on the byte depth) of length width * height
+    */
+   public MagellanTaggedImage getImageForDisplay(int channel, int slice, int frame, int dsIndex, long x, long y, 
+           int width, int height, Object pixels) {
+      //areas with no tiles are shown as background
       if (byteDepth_ == 1) {
-         pixels = new byte[width * height]; 
-         if (backgroundPix_.containsKey(channel)) {
-            Arrays.fill((byte[]) pixels, (byte)getBackgroundPixelValue(channel));
-         }
-      } else {            
-         pixels = new short[width * height];      
-         if (backgroundPix_.containsKey(channel)) {
-            Arrays.fill((short[]) pixels, (short)getBackgroundPixelValue(channel));
-         }
+         Arrays.fill((byte[]) pixels, 0, width * height, (byte) getBackgroundPixelValue(channel));
+      } else {
+         Arrays.fill((short[]) pixels, 0, width * height, (short) getBackgroundPixelValue(channel));
       }
       //go line by line through one column of tiles at a time, then move to next column
       JSONObject topLeftMD = null;
       //first calculate how many columns and rows of tiles are relevant and the number of pixels
       //of each tile to copy into the returned image
-      long previousCol = tileIndexFromPixelIndex(x, true) - 1; //make it one less than the first col in loop
-      LinkedList<Integer> lineWidths = new LinkedList<Integer>();
-      for (long i = x; i < x + width; i++) { //Iterate through every column of pixels in the image to be returned
-         long colIndex = tileIndexFromPixelIndex(i, true);
-         if (colIndex != previousCol) {
-            lineWidths.add(0);
-         }
-         //Increment current width
-         lineWidths.add(lineWidths.removeLast() + 1);
-         previousCol = colIndex;
-      }
-      //do the same thing for rows
-      long previousRow = tileIndexFromPixelIndex(y, false) - 1; //one less than first row in loop?
-      LinkedList<Integer> lineHeights = new LinkedList<Integer>();
-      for (long i = y; i < y + height; i++) {
-         long rowIndex = tileIndexFromPixelIndex(i, false);
-         if (rowIndex != previousRow) {
-            lineHeights.add(0);
-         }
-         //add one to pixel count of current height
-         lineHeights.add(lineHeights.removeLast() + 1);
-         previousRow = rowIndex;
-      }
+      int[] lineWidths = tileSpans(x, width, true);
+      int[] lineHeights = tileSpans(y, height, false);
       //get starting row and column
       long rowStart = tileIndexFromPixelIndex(y, false);
       long colStart = tileIndexFromPixelIndex(x, true);
+      //account for overlaps when viewing full resolution tiles
+      int tileRowLength = dsIndex == 0 ? fullResTileWidthIncludingOverlap_ : tileWidth_;
+      int tileXOverlap = dsIndex == 0 ? xOverlap_ / 2 : 0;
+      int tileYOverlap = dsIndex == 0 ? yOverlap_ / 2 : 0;
       //xOffset and y offset are the distance from the top left of the display image into which 
       //we are copying data
       int xOffset = 0;
-      for (long col = colStart; col < colStart + lineWidths.size(); col++) {
+      for (int col = 0; col < lineWidths.length; col++) {
+         int tileXPix = pixelIndexInTile(x + xOffset, true) + tileXOverlap;
          int yOffset = 0;
-         for (long row = rowStart; row < rowStart + lineHeights.size(); row++) {
-            MagellanTaggedImage tile = null;          
-            if (dsIndex == 0) {
-               tile = fullResStorage_.getImage(channel, slice, frame, posManager_.getPositionIndexFromTilePosition(dsIndex, row, col));
-            } else {               
-               tile = lowResStorages_.get(dsIndex) == null ? null : 
-                       lowResStorages_.get(dsIndex).getImage(channel, slice, frame, posManager_.getPositionIndexFromTilePosition(dsIndex, row, col));
-            }
-            if (tile == null) {
-               yOffset += lineHeights.get((int)(row - rowStart)); //increment y offset so new tiles appear in correct position
-               continue; //If no data present for this tile go on to next one
-            } else if ( (tile.pix instanceof byte[] && ((byte[]) tile.pix).length == 0) ||
-                    (tile.pix instanceof short[] && ((short[]) tile.pix).length == 0))  {
-               //Somtimes an inability to read IFDs soon after they are written results in an image being read 
-               //with 0 length pixels. Can't figure out why this happens, but it is rare and will result at worst with
-               //a black flickering during acquisition
-               yOffset += lineHeights.get((int)(row - rowStart)); //increment y offset so new tiles appear in correct position
-               continue;
-            }
-            //take top left tile for metadata
-            if (topLeftMD == null) {
-               topLeftMD = tile.tags;
-            }
-            //Copy pixels into the image to be returned
-            //yOffset is how many rows from top of viewable area, y is top of image to top of area
-            for (int line = yOffset; line < lineHeights.get((int)(row - rowStart)) + yOffset; line++) {
-               int tileYPix = (int) ((y + line) % tileHeight_);
-               int tileXPix = (int) ((x + xOffset) % tileWidth_);                   
-               //make sure tile pixels are positive
-               while (tileXPix < 0) {
-                  tileXPix += tileWidth_;
-               }
-               while (tileYPix < 0) {
-                  tileYPix += tileHeight_;
+         for (int row = 0; row < lineHeights.length; row++) {
+            MagellanTaggedImage tile = getTile(channel, slice, frame, dsIndex, rowStart + row, colStart + col);
+            //If no data present for this tile go on to next one
+            if (tile != null && !hasNoPixels(tile)) {
+               //take top left tile for metadata
+               if (topLeftMD == null) {
+                  topLeftMD = tile.tags;
                }
+               //Copy pixels into the image to be returned
+               //yOffset is how many rows from top of viewable area, y is top of image to top of area
+               int tileYPix = pixelIndexInTile(y + yOffset, false) + tileYOverlap;
                try {
-                  if (dsIndex == 0) {
-                     //account for overlaps when viewing full resolution tiles
-                     tileYPix += yOverlap_ / 2;
-                     tileXPix += xOverlap_ / 2;
-                     System.arraycopy(tile.pix, tileYPix * fullResTileWidthIncludingOverlap_ + tileXPix, pixels, xOffset + width * line, lineWidths.get((int) (col - colStart)));                 
-                  } else {
-                     System.arraycopy(tile.pix, tileYPix * tileWidth_ + tileXPix, pixels, xOffset + width * line, lineWidths.get((int)(col - colStart)));
+                  for (int line = 0; line < lineHeights[row]; line++) {
+                     System.arraycopy(tile.pix, (tileYPix + line) * tileRowLength + tileXPix,
+                             pixels, xOffset + width * (yOffset + line), lineWidths[col]);
                   }
                } catch (Exception e) {
                   e.printStackTrace();
                   Log.log("Problem copying pixels");
                }
             }
-            yOffset += lineHeights.get((int)(row - rowStart));
-
+            yOffset += lineHeights[row];
          }
-         xOffset += lineWidths.get((int)(col - colStart));
+         xOffset += lineWidths[col];
       }
       return new MagellanTaggedImage(pixels, topLeftMD);
    }
+
+   /**
+    * @return the number of pixels in each successive tile covered by the span of
+    * length pixels starting at start
+    */
+   private int[] tileSpans(long start, int length, boolean xDirection) {
+      if (length <= 0) {
+         return new int[0];
+      }
+      int tileSize = xDirection ? tileWidth_ : tileHeight_;
+      long firstTile = tileIndexFromPixelIndex(start, xDirection);
+      long lastTile = tileIndexFromPixelIndex(start + length - 1, xDirection);
+      int[] spans = new int[(int) (lastTile - firstTile + 1)];
+      int remaining = length;
+      for (int i = 0; i < spans.length; i++) {
+         int available = i == 0 ? tileSize - pixelIndexInTile(start, xDirection) : tileSize;
+         spans[i] = Math.min(available, remaining);
+         remaining -= spans[i];
+      }
+      return spans;
+   }
+
+   private int pixelIndexInTile(long i, boolean xDirection) {
+      int tileSize = xDirection ? tileWidth_ : tileHeight_;
+      //make sure tile pixels are positive
+      int index = (int) (i % tileSize);
+      return index < 0 ? index + tileSize : index;
+   }
+
+   /**
+    * Somtimes an inability to read IFDs soon after they are written results in an image being read 
+    * with 0 length pixels. Can't figure out why this happens, but it is rare and will result at worst with
+    * a black flickering during acquisition
+    */
+   private static boolean hasNoPixels(MagellanTaggedImage tile) {
+      return (tile.pix instanceof byte[] && ((byte[]) tile.pix).length == 0) ||
+              (tile.pix instanceof short[] && ((short[]) tile.pix).length == 0);
+   }
+
+   /**
+    * @return the tile at the given grid position, from the tile cache if possible,
+    * or null if there is none
+    */
+   private MagellanTaggedImage getTile(int channel, int slice, int frame, int dsIndex, long row, long col) {
+      int positionIndex = posManager_.getPositionIndexFromTilePosition(dsIndex, row, col);
+      if (positionIndex < 0) {
+         return null;
+      }
+      String key = DecodedTileCache.key(dsIndex, channel, slice, frame, positionIndex);
+      MagellanTaggedImage tile = tileCache_.get(key);
+      if (tile != null) {
+         return tile;
+      }
+      TaggedImageStorageMultipageTiff storage = dsIndex == 0 ? fullResStorage_ : lowResStorages_.get(dsIndex);
+      if (storage == null) {
+         return null;
+      }
+      long writesBefore = lowResWrites_.get();
+      tile = storage.getImage(channel, slice, frame, positionIndex);
+      //Full resolution tiles never change once written. A low resolution tile may have been
+      //rewritten (and the new version cached and evicted again) while we were reading, in
+      //which case we must not cache what we read
+      if (tile != null && !hasNoPixels(tile) && (dsIndex == 0 || lowResWrites_.get() == writesBefore)) {
+         tileCache_.putIfAbsent(key, tile);
+      }
+      return tile;
+   }
+
+   /**
+    * Read the ring of tiles surrounding the given subimage into the tile cache on a
+    * background thread, so that they are ready if the display pans. Once the display
+    * moves, tiles queued for the previous subimage that haven't been read yet are forgotten
+    */
+   public void prefetchTilesAround(int channel, int slice, int frame, int dsIndex, long x, long y,
+           int width, int height) {
+      long rowStart = tileIndexFromPixelIndex(y, false) - 1;
+      long rowEnd = tileIndexFromPixelIndex(y + height - 1, false) + 1;
+      long colStart = tileIndexFromPixelIndex(x, true) - 1;
+      long colEnd = tileIndexFromPixelIndex(x + width - 1, true) + 1;
+      String viewport = dsIndex + "_" + x + "_" + y + "_" + width + "_" + height;
+      synchronized (prefetchQueue_) {
+         //the other channels of the same view are still wanted
+         if (!viewport.equals(prefetchViewport_)) {
+            prefetchQueue_.clear();
+            prefetchViewport_ = viewport;
+         }
+         for (long row = rowStart; row <= rowEnd; row++) {
+            for (long col = colStart; col <= colEnd; col++) {
+               if (row == rowStart || row == rowEnd || col == colStart || col == colEnd) {
+                  prefetchQueue_.add(new TileRequest(channel, slice, frame, dsIndex, row, col));
+               }
+            }
+         }
+         if (!prefetchScheduled_ && !prefetchExecutor_.isShutdown()) {
+            prefetchScheduled_ = true;
+            prefetchExecutor_.submit(new Runnable() {
+               @Override
+               public void run() {
+                  prefetchTiles();
+               }
+            });
+         }
+      }
+   }
+
+   private void prefetchTiles() {
+      while (true) {
+         TileRequest request;
+         synchronized (prefetchQueue_) {
+            request = prefetchQueue_.poll();
+            if (request == null) {
+               prefetchScheduled_ = false;
+               return;
+            }
+         }
+         try {
+            getTile(request.channel_, request.slice_, request.frame_, request.dsIndex_, request.row_, request.col_);
+         } catch (Exception e) {
+            Log.log("Couldn't prefetch tile");
+            Log.log(e);
+         }
+      }
+   }
+
+   private static class TileRequest {
+      final int channel_, slice_, frame_, dsIndex_;
+      final long row_, col_;
+
+      TileRequest(int channel, int slice, int frame, int dsIndex, long row, long col) {
+         channel_ = channel;
+         slice_ = slice;
+         frame_ = frame;
+         dsIndex_ = dsIndex;
+         row_ = row;
+         col_ = col;
+      }
+   }
    
    /**
     * Called before any images have been added to initialize the resolution to the specifiec zoom level
@@ -474,181 +621,332 @@ public class MultiResMultipageTiffStorage {
             //nothing to downsample
             return false;
          }
-         //create a null pointer in lower res storages to signal addToLoResStorage function
+         //create a null pointer in lower res storages to signal the pyramid builder
          //to continue downsampling to this level
          lowResStorages_.put(1 + lowResStorages_.keySet().size(), null);
          //update position manager to reflect addition of new resolution level
          posManager_.updateLowerResolutionNodes(lowResStorages_.keySet().size());
          String aLabel = fullResStorage_.imageKeys().iterator().next();
          int[] indices = MD.getIndices(aLabel);
-         MagellanTaggedImage anImage = fullResStorage_.getImage(indices[0], indices[1], indices[2], indices[3]);         
-         addToLowResStorage(anImage, 0, indices[3]);
-         return true;
+         addToLowResStorage(0, indices[0], indices[1], indices[2], indices[3], null, null);
       }
+      //the caller is about to display the new level, so it has to be complete
+      awaitPyramid();
+      return true;
    }
-   
-   private void addToLowResStorage(MagellanTaggedImage img, int previousResIndex, int fullResPositionIndex) {
-      //Read indices
-      int channel = MD.getChannelIndex(img.tags);
-      int slice = MD.getSliceIndex(img.tags);
-      int frame = MD.getFrameIndex(img.tags);
 
-      if (estimateBackground_) {
-         readBackgroundPixelValue(channel, img); //find a background pixel value in the first image
+   /**
+    * @return Future that completes once all low resolution tiles reflect the
+    * full resolution tiles added so far
+    */
+   public Future<?> getPyramidUpToDateFuture() {
+      synchronized (pendingTiles_) {
+         FutureTask<Void> future = new FutureTask<Void>(NO_OP, null);
+         if (pendingTiles_.isEmpty()) {
+            future.run();
+         } else {
+            pyramidWaiters_.add(future);
+         }
+         return future;
       }
-      Object previousLevelPix = img.pix;
-      int resolutionIndex = previousResIndex + 1;
-      
-      //Auto downsample until max number of tiles in either direction is less than the highest dsFactor
-      //or keep going until lowest user created resolution exists
-      while (lowResStorages_.containsKey(resolutionIndex) ||
-              (posManager_.getNumRows() >= Math.pow(2, resolutionIndex) || posManager_.getNumCols() >= Math.pow(2, resolutionIndex)) ) {
+   }
 
+   private void awaitPyramid() {
+      try {
+         getPyramidUpToDateFuture().get();
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException ex) {
+         Log.log(ex);
+      }
+   }
+
+   /**
+    * Queue the tile at the given resolution level for downsampling into the
+    * next lower resolution, creating that level first if needed. 
+    * @param pix pixels of the tile, or null to read them from storage when
+    * the downsampling happens
+    */
+   private void addToLowResStorage(int previousResIndex, int channel, int slice, int frame,
+           int previousLevelPositionIndex, Object pix, JSONObject tags) {
+      int resolutionIndex = previousResIndex + 1;
+      synchronized (this) {
+         //Auto downsample until max number of tiles in either direction is less than the highest dsFactor
+         //or keep going until lowest user created resolution exists
+         if (!lowResStorages_.containsKey(resolutionIndex) &&
+                 posManager_.getNumRows() < Math.pow(2, resolutionIndex) && posManager_.getNumCols() < Math.pow(2, resolutionIndex)) {
+            return;
+         }
          //See if storage level exists
-         if (!lowResStorages_.containsKey(resolutionIndex) || lowResStorages_.get(resolutionIndex) == null) {
+         if (lowResStorages_.get(resolutionIndex) == null) {
             createDownsampledStorage(resolutionIndex);
-            //add all tiles from existing resolution levels to this new one            
-            TaggedImageStorageMultipageTiff previousLevelStorage;
-            if (resolutionIndex == 1) {
-               previousLevelStorage = fullResStorage_;
-            } else {
-               previousLevelStorage = lowResStorages_.get(resolutionIndex - 1);
-            }            
-            Set<String> imageKeys = previousLevelStorage.imageKeys();
-            for (String key : imageKeys) {
-               String[] indices = key.split("_");
-               MagellanTaggedImage ti = previousLevelStorage.getImage(Integer.parseInt(indices[0]), Integer.parseInt(indices[1]),
-                       Integer.parseInt(indices[2]), Integer.parseInt(indices[3]));
-               addToLowResStorage(ti, resolutionIndex - 1, posManager_.getFullResPositionIndex(Integer.parseInt(indices[3]), resolutionIndex - 1)); 
+            //add all tiles from the previous resolution level to this new one, the tile
+            //that got us here included. Tiles still being computed at the previous level
+            //will be added when they are done
+            TaggedImageStorageMultipageTiff previousLevelStorage = previousResIndex == 0 ? 
+                    fullResStorage_ : lowResStorages_.get(previousResIndex);
+            for (String key : previousLevelStorage.imageKeys()) {
+               int[] indices = MD.getIndices(key);
+               queueDownsampling(resolutionIndex, indices[0], indices[1], indices[2], indices[3], null, null);
             }
-            return; //this will include the higher res tile intially added, so can return here and
-            //not worry about having to add it again
          }
-         //Create pixels or get appropriate pixels to add to
-         MagellanTaggedImage existingImage = lowResStorages_.get(resolutionIndex).getImage(channel, slice, frame,
-                 posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));
-         Object currentLevelPix;
-         if (existingImage == null) {
-            currentLevelPix = byteDepth_ == 1 ? new byte[tileWidth_ * tileHeight_] : new short[tileWidth_ * tileHeight_];
-            //fill in with background pixel value
-            if (byteDepth_ == 1) {
-               Arrays.fill((byte[]) currentLevelPix, (byte) getBackgroundPixelValue(channel));
-            } else {
-               Arrays.fill((short[]) currentLevelPix, (short) getBackgroundPixelValue(channel));
-            }
-         } else {
-            currentLevelPix = existingImage.pix; 
-         }     
+      }
+      queueDownsampling(resolutionIndex, channel, slice, frame, previousLevelPositionIndex, pix, tags);
+   }
 
-         
-         //Determine which position in 2x2 this tile sits in
-         int xPos = (int) Math.abs((posManager_.getGridCol(fullResPositionIndex, resolutionIndex - 1) % 2));
-         int yPos = (int) Math.abs((posManager_.getGridRow(fullResPositionIndex, resolutionIndex - 1) % 2));
-         //Add one if top or left so border pixels from an odd length image gets added in
-         for (int x = 0; x < tileWidth_; x += 2) { //iterate over previous res level pixels
-            for (int y = 0; y < tileHeight_; y += 2) {
-               //average a square of 4 pixels from previous level
-               //edges: if odd number of pixels in tile, round to determine which
-               //tiles pixels make it to next res level
-               int count = 1; //count is number of pixels (out of 4) used to create a pixel at this level
-               //these are the indices of pixels at the previous res level, which are offset
-               //when moving from res level 0 to one as we throw away the overlapped image edges
-               int pixelX, pixelY, previousLevelWidth, previousLevelHeight; 
-               if ( resolutionIndex == 1 ) {                  
-                  //add offsets to account for overlap pixels at resolution level 0
-                  pixelX = x + xOverlap_ / 2;
-                  pixelY = y + yOverlap_ /2;
-                  previousLevelWidth = fullResTileWidthIncludingOverlap_;
-                  previousLevelHeight = fullResTileHeightIncludingOverlap_;
-               } else {
-                  pixelX = x;
-                  pixelY = y;
-                  previousLevelWidth = tileWidth_;
-                  previousLevelHeight = tileHeight_;
+   private void queueDownsampling(int resolutionIndex, int channel, int slice, int frame,
+           int previousLevelPositionIndex, Object pix, JSONObject tags) {
+      int fullResPositionIndex = resolutionIndex == 1 ? previousLevelPositionIndex :
+              posManager_.getFullResPositionIndex(previousLevelPositionIndex, resolutionIndex - 1);
+      int positionIndex = posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex);
+      String key = resolutionIndex + "_" + MD.generateLabel(channel, slice, frame, positionIndex);
+      TileUpdate update = new TileUpdate(previousLevelPositionIndex, fullResPositionIndex, pix, tags);
+      synchronized (pendingTiles_) {
+         PendingTile tile = pendingTiles_.get(key);
+         if (tile == null) {
+            tile = new PendingTile(key, resolutionIndex, channel, slice, frame, positionIndex, fullResPositionIndex);
+            pendingTiles_.put(key, tile);
+            pyramidExecutor_.submit(tile);
+         }
+         //coalesce with updates already waiting for the same low res tile
+         tile.updates_.add(update);
+      }
+   }
 
-               }
-               
-               //always take top left pixel, maybe take others depending on whether at image edge
-               int sum = 0;
-               if (byteDepth_ == 1) {
-                  sum += ((byte[])previousLevelPix)[pixelY * previousLevelWidth + pixelX] & 0xff;                  
-               } else {
-                  sum += ((short[])previousLevelPix)[pixelY * previousLevelWidth + pixelX] & 0xffff;
-               }
-               //pixel index can be different from index in tile at resolution level 0 if there is nonzero overlap
-               if (x < previousLevelWidth - 1 && y < previousLevelHeight - 1) { //if not bottom right corner, add three more pix
-                  count += 3;
-                  if (byteDepth_ == 1) {
-                     sum += (((byte[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX + 1] & 0xff)
-                             + (((byte[]) previousLevelPix)[pixelY * previousLevelWidth + pixelX + 1] & 0xff)
-                             + (((byte[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX] & 0xff);
-                  } else {
-                     sum += (((short[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX + 1] & 0xffff)
-                             + (((short[]) previousLevelPix)[pixelY * previousLevelWidth + pixelX + 1] & 0xffff)
-                             + (((short[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX] & 0xffff);
-                  }
-               } else if (x < previousLevelWidth - 1) { //if not right edge, add two more pix
-                  count++;
-                  if (byteDepth_ == 1) {
-                     sum += ((byte[]) previousLevelPix)[pixelY * previousLevelWidth + pixelX + 1] & 0xff;
-                  } else {
-                     sum += ((short[]) previousLevelPix)[pixelY * previousLevelWidth + pixelX + 1] & 0xffff;
-                  }
-               } else if (y < previousLevelHeight - 1) { // if not bottom edge, add two more pix
-                  count++;
-                  if (byteDepth_ == 1) {
-                     sum += ((byte[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX] & 0xff;
-                  } else {
-                     sum += ((short[]) previousLevelPix)[(pixelY + 1) * previousLevelWidth + pixelX] & 0xffff;
-                  }
-               } else {
-                  //it is the bottom right corner, no more pix to add
-               }
-               //add averaged pixel into appropriate quadrant of current res level
-               //if full res tile has an odd number of pix, the last one gets chopped off
-               //to make it fit into tile containers
-               try {
-                  int index = ((y + yPos * tileHeight_)/2) * tileWidth_ + (x + xPos * tileWidth_)/2;
-                  if (byteDepth_ == 1) {
-                     ((byte[])currentLevelPix)[index] = (byte) (sum / count);
-                  } else {
-                     ((short[])currentLevelPix)[index] = (short) (sum / count);
+   /**
+    * A change to one quadrant of a low resolution tile
+    */
+   private static class TileUpdate {
+      final int previousLevelPositionIndex_, fullResPositionIndex_;
+      final Object pix_;
+      final JSONObject tags_;
+
+      TileUpdate(int previousLevelPositionIndex, int fullResPositionIndex, Object pix, JSONObject tags) {
+         previousLevelPositionIndex_ = previousLevelPositionIndex;
+         fullResPositionIndex_ = fullResPositionIndex;
+         pix_ = pix;
+         tags_ = tags;
+      }
+   }
+
+   /**
+    * A low resolution tile with downsampling queued. Only one thread works on
+    * a given tile at a time, and updates that arrive while it does are
+    * applied in the next pass before the tile is written again.
+    */
+   private class PendingTile implements Runnable {
+      final String key_;
+      final int resolutionIndex_, channel_, slice_, frame_, positionIndex_, fullResPositionIndex_;
+      LinkedList<TileUpdate> updates_ = new LinkedList<TileUpdate>(); //guarded by pendingTiles_
+
+      PendingTile(String key, int resolutionIndex, int channel, int slice, int frame,
+              int positionIndex, int fullResPositionIndex) {
+         key_ = key;
+         resolutionIndex_ = resolutionIndex;
+         channel_ = channel;
+         slice_ = slice;
+         frame_ = frame;
+         positionIndex_ = positionIndex;
+         fullResPositionIndex_ = fullResPositionIndex;
+      }
+
+      @Override
+      public void run() {
+         while (true) {
+            LinkedList<TileUpdate> updates;
+            synchronized (pendingTiles_) {
+               if (updates_.isEmpty()) {
+                  pendingTiles_.remove(key_);
+                  if (pendingTiles_.isEmpty()) {
+                     for (FutureTask<Void> waiter : pyramidWaiters_) {
+                        waiter.run();
+                     }
+                     pyramidWaiters_.clear();
                   }
-               } catch (Exception e) {
-                  Log.log("Couldn't copy pixels to lower resolution");
-                  e.printStackTrace();
                   return;
                }
+               updates = updates_;
+               updates_ = new LinkedList<TileUpdate>();
+            }
+            try {
+               downsample(this, updates);
+            } catch (Exception e) {
+               Log.log("Couldn't create lower resolution tile");
+               Log.log(e);
             }
          }
-         
-         //store this tile in the storage class correspondign to this resolution
-         try {
-            if (existingImage == null) {     //Image doesn't yet exist at this level, so add it
-               //create a copy of tags so tags from a different res level arent inadverntanly modified
-               // while waiting for being written to disk
-               JSONObject tags = new JSONObject(img.tags.toString());
-               //modify tags to reflect image size, and correct position index
-               MD.setWidth(tags, tileWidth_);
-               MD.setHeight(tags, tileHeight_);
-               long gridRow = posManager_.getGridRow(fullResPositionIndex, resolutionIndex);
-               long gridCol = posManager_.getGridCol(fullResPositionIndex, resolutionIndex);
-               MD.setPositionName(tags, "Grid_" + gridRow + "_" + gridCol);
-               MD.setPositionIndex(tags, posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));  
-               lowResStorages_.get(resolutionIndex).putImage(new MagellanTaggedImage(currentLevelPix, tags));
-            } else {
-               //Image already exists, only overwrite pixels to include new tiles
-               lowResStorages_.get(resolutionIndex).overwritePixels(currentLevelPix,
-                       channel, slice, frame, posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));
+      }
+   }
+
+   private void downsample(PendingTile tile, LinkedList<TileUpdate> updates) throws JSONException, IOException {
+      int resolutionIndex = tile.resolutionIndex_;
+      TaggedImageStorageMultipageTiff storage, previousLevelStorage;
+      synchronized (this) {
+         storage = lowResStorages_.get(resolutionIndex);
+         previousLevelStorage = resolutionIndex == 1 ? fullResStorage_ : lowResStorages_.get(resolutionIndex - 1);
+      }
+      //Create pixels or copy the newest existing ones. These come from storage rather than the
+      //tile cache, since storage returns the version that is waiting to be written, if there
+      //is one, whereas a display thread may have put an older version in the cache
+      String cacheKey = DecodedTileCache.key(resolutionIndex, tile.channel_, tile.slice_, tile.frame_, tile.positionIndex_);
+      MagellanTaggedImage existingImage = storage.getImage(tile.channel_, tile.slice_, tile.frame_, tile.positionIndex_);
+      Object currentLevelPix;
+      if (existingImage == null) {
+         currentLevelPix = byteDepth_ == 1 ? new byte[tileWidth_ * tileHeight_] : new short[tileWidth_ * tileHeight_];
+         //fill in with background pixel value
+         if (byteDepth_ == 1) {
+            Arrays.fill((byte[]) currentLevelPix, (byte) getBackgroundPixelValue(tile.channel_));
+         } else {
+            Arrays.fill((short[]) currentLevelPix, (short) getBackgroundPixelValue(tile.channel_));
+         }
+      } else if (byteDepth_ == 1) {
+         currentLevelPix = ((byte[]) existingImage.pix).clone();
+      } else {
+         currentLevelPix = ((short[]) existingImage.pix).clone();
+      }
+      //at resolution level 0 the overlapped image edges are thrown away
+      int previousLevelWidth = resolutionIndex == 1 ? fullResTileWidthIncludingOverlap_ : tileWidth_;
+      int previousLevelHeight = resolutionIndex == 1 ? fullResTileHeightIncludingOverlap_ : tileHeight_;
+      int xOffset = resolutionIndex == 1 ? xOverlap_ / 2 : 0;
+      int yOffset = resolutionIndex == 1 ? yOverlap_ / 2 : 0;
+      JSONObject tags = null;
+      for (TileUpdate update : updates) {
+         Object previousLevelPix = update.pix_;
+         JSONObject previousLevelTags = update.tags_;
+         if (previousLevelPix == null) {
+            MagellanTaggedImage previousLevelImage = previousLevelStorage.getImage(tile.channel_, tile.slice_, 
+                    tile.frame_, update.previousLevelPositionIndex_);
+            if (previousLevelImage == null) {
+               continue;
             }
-         } catch (Exception e) {
-            e.printStackTrace();
-            Log.log("Couldnt modify tags for lower resolution level");
+            previousLevelPix = previousLevelImage.pix;
+            previousLevelTags = previousLevelImage.tags;
+         }
+         if (previousLevelPix instanceof byte[] ? ((byte[]) previousLevelPix).length == 0 :
+                 ((short[]) previousLevelPix).length == 0) {
+            //see getImageForDisplay
+            continue;
+         }
+         tags = previousLevelTags;
+         //Determine which position in 2x2 this tile sits in
+         int xPos = (int) Math.abs((posManager_.getGridCol(update.fullResPositionIndex_, resolutionIndex - 1) % 2));
+         int yPos = (int) Math.abs((posManager_.getGridRow(update.fullResPositionIndex_, resolutionIndex - 1) % 2));
+         if (byteDepth_ == 1) {
+            downsample((byte[]) previousLevelPix, previousLevelWidth, previousLevelHeight, xOffset, yOffset, 
+                    (byte[]) currentLevelPix, xPos, yPos);
+         } else {
+            downsample((short[]) previousLevelPix, previousLevelWidth, previousLevelHeight, xOffset, yOffset, 
+                    (short[]) currentLevelPix, xPos, yPos);
          }
+      }
+      if (tags == null) {
+         //nothing to add
+         return;
+      }
 
-         //go on to next level of downsampling
-         previousLevelPix = currentLevelPix;
-         resolutionIndex++;
+      //store this tile in the storage class correspondign to this resolution
+      if (existingImage == null) {     //Image doesn't yet exist at this level, so add it
+         //create a copy of tags so tags from a different res level arent inadverntanly modified
+         // while waiting for being written to disk
+         tags = new JSONObject(tags.toString());
+         //modify tags to reflect image size, and correct position index
+         MD.setWidth(tags, tileWidth_);
+         MD.setHeight(tags, tileHeight_);
+         long gridRow = posManager_.getGridRow(tile.fullResPositionIndex_, resolutionIndex);
+         long gridCol = posManager_.getGridCol(tile.fullResPositionIndex_, resolutionIndex);
+         MD.setPositionName(tags, "Grid_" + gridRow + "_" + gridCol);
+         MD.setPositionIndex(tags, tile.positionIndex_);
+         synchronized (storage) {
+            storage.putImage(new MagellanTaggedImage(currentLevelPix, tags));
+         }
+      } else {
+         //Image already exists, only overwrite pixels to include new tiles. Storage keeps
+         //returning these pixels until they are on disk
+         tags = existingImage.tags;
+         synchronized (storage) {
+            storage.overwritePixels(currentLevelPix, tile.channel_, tile.slice_, tile.frame_, tile.positionIndex_);
+         }
+      }
+      //currentLevelPix is never modified from here on, so it can be shared with the display.
+      //Count the write before caching it, so that getTile doesn't cache an older version it
+      //read before the write
+      lowResWrites_.incrementAndGet();
+      tileCache_.put(cacheKey, new MagellanTaggedImage(currentLevelPix, tags));
+      //go on to next level of downsampling
+      addToLowResStorage(resolutionIndex, tile.channel_, tile.slice_, tile.frame_, tile.positionIndex_, 
+              currentLevelPix, tags);
+   }
+
+   /**
+    * Average 2x2 squares of pixels of a tile into its quadrant of a tile at
+    * the next lower resolution. If the previous level has an odd number of
+    * pixels, the edge pixels are averaged with their remaining neighbours
+    * @param xPos 0 for left quadrant, 1 for right
+    * @param yPos 0 for top quadrant, 1 for bottom
+    */
+   private void downsample(byte[] previousLevelPix, int previousLevelWidth, int previousLevelHeight,
+           int xOffset, int yOffset, byte[] currentLevelPix, int xPos, int yPos) {
+      //columns for which the pixel to the right is inside the previous level tile
+      int pairedWidth = Math.min(tileWidth_, previousLevelWidth - xOffset - 1);
+      for (int y = 0; y < tileHeight_; y += 2) {
+         int row = (y + yOffset) * previousLevelWidth + xOffset;
+         int nextRow = y + yOffset < previousLevelHeight - 1 ? row + previousLevelWidth : -1;
+         int currentRow = ((y + yPos * tileHeight_) / 2) * tileWidth_;
+         int currentCol = xPos * tileWidth_;
+         int x = 0;
+         if (nextRow >= 0) {
+            for (; x < pairedWidth; x += 2) {
+               int sum = (previousLevelPix[row + x] & 0xff) + (previousLevelPix[row + x + 1] & 0xff)
+                       + (previousLevelPix[nextRow + x] & 0xff) + (previousLevelPix[nextRow + x + 1] & 0xff);
+               currentLevelPix[currentRow + (x + currentCol) / 2] = (byte) (sum >> 2);
+            }
+            for (; x < tileWidth_; x += 2) {
+               int sum = (previousLevelPix[row + x] & 0xff) + (previousLevelPix[nextRow + x] & 0xff);
+               currentLevelPix[currentRow + (x + currentCol) / 2] = (byte) (sum >> 1);
+            }
+         } else {
+            for (; x < pairedWidth; x += 2) {
+               int sum = (previousLevelPix[row + x] & 0xff) + (previousLevelPix[row + x + 1] & 0xff);
+               currentLevelPix[currentRow + (x + currentCol) / 2] = (byte) (sum >> 1);
+            }
+            for (; x < tileWidth_; x += 2) {
+               currentLevelPix[currentRow + (x + currentCol) / 2] = previousLevelPix[row + x];
+            }
+         }
+      }
+   }
+
+   /**
+    * As above, for 16 bit pixels
+    */
+   private void downsample(short[] previousLevelPix, int previousLevelWidth, int previousLevelHeight,
+           int xOffset, int yOffset, short[] currentLevelPix, int xPos, int yPos) {
+      int pairedWidth = Math.min(tileWidth_, previousLevelWidth - xOffset - 1);
+      for (int y = 0; y < tileHeight_; y += 2) {
+         int row = (y + yOffset) * previousLevelWidth + xOffset;
+         int nextRow = y + yOffset < previousLevelHeight - 1 ? row + previousLevelWidth : -1;
+         int currentRow = ((y + yPos * tileHeight_) / 2) * tileWidth_;
+         int currentCol = xPos * tileWidth_;
+         int x = 0;
+         if (nextRow >= 0) {
+            for (; x < pairedWidth; x += 2) {
+               int sum = (previousLevelPix[row + x] & 0xffff) + (previousLevelPix[row + x + 1] & 0xffff)
+                       + (previousLevelPix[nextRow + x] & 0xffff) + (previousLevelPix[nextRow + x + 1] & 0xffff);
+               currentLevelPix[currentRow + (x + currentCol) / 2] = (short) (sum >> 2);
+            }
+            for (; x < tileWidth_; x += 2) {
+               int sum = (previousLevelPix[row + x] & 0xffff) + (previousLevelPix[nextRow + x] & 0xffff);
+               currentLevelPix[currentRow + (x + currentCol) / 2] = (short) (sum >> 1);
+            }
+         } else {
+            for (; x < pairedWidth; x += 2) {
+               int sum = (previousLevelPix[row + x] & 0xffff) + (previousLevelPix[row + x + 1] & 0xffff);
+               currentLevelPix[currentRow + (x + currentCol) / 2] = (short) (sum >> 1);
+            }
+            for (; x < tileWidth_; x += 2) {
+               currentLevelPix[currentRow + (x + currentCol) / 2] = previousLevelPix[row + x];
+            }
+         }
       }
    }
 
@@ -674,15 +972,25 @@ public class MultiResMultipageTiffStorage {
 
    public void putImage(MagellanTaggedImage MagellanTaggedImage)  {
       try {
+         int channel = MD.getChannelIndex(MagellanTaggedImage.tags);
          synchronized (this) {            
             //write to full res storage as normal (i.e. with overlap pixels present)
             fullResStorage_.putImage(MagellanTaggedImage);
-            addToLowResStorage(MagellanTaggedImage, 0, MD.getPositionIndex(MagellanTaggedImage.tags));
+            tileCache_.put(DecodedTileCache.key(0, channel, MD.getSliceIndex(MagellanTaggedImage.tags),
+                    MD.getFrameIndex(MagellanTaggedImage.tags), MD.getPositionIndex(MagellanTaggedImage.tags)),
+                    MagellanTaggedImage);
+            if (estimateBackground_) {
+               readBackgroundPixelValue(channel, MagellanTaggedImage); //find a background pixel value in the first image
+            }
             if (currentTP_ < MD.getFrameIndex(MagellanTaggedImage.tags)) {
                bdvXML_.addTP();
                currentTP_ = MD.getFrameIndex(MagellanTaggedImage.tags);
             }
          }
+         //lower resolutions are computed on the pyramid threads
+         addToLowResStorage(0, channel, MD.getSliceIndex(MagellanTaggedImage.tags),
+                 MD.getFrameIndex(MagellanTaggedImage.tags), MD.getPositionIndex(MagellanTaggedImage.tags),
+                 MagellanTaggedImage.pix, MagellanTaggedImage.tags);
       } catch (IOException ex) {
          Log.log(ex.toString());
       } 
@@ -717,6 +1025,7 @@ public class MultiResMultipageTiffStorage {
       } catch (IOException ex) {
          Log.log("Couldn't close BDV XML");
       }
+      awaitPyramid();
       fullResStorage_.finished();
       for (TaggedImageStorageMultipageTiff s : lowResStorages_.values()) {
          if (s != null) {
@@ -761,6 +1070,9 @@ public class MultiResMultipageTiffStorage {
                   throw new RuntimeException("closing thread interrupted");
                }
             }
+            pyramidExecutor_.shutdown();
+            prefetchExecutor_.shutdownNow();
+            tileCache_.clear();
             fullResStorage_.close();
             for (TaggedImageStorageMultipageTiff s : lowResStorages_.values()) {
                s.close();
@@ -71,7 +71,8 @@ public final class TaggedImageStorageMultipageTiff   {
    private HashMap<Integer, FileSet> fileSets_;
    
    //Map of image labels to file 
-   private HashMap<String, MultipageTiffReader> tiffReadersByLabel_;
+   // concurrent because labels are also read while images are being written
+   private ConcurrentHashMap<String, MultipageTiffReader> tiffReadersByLabel_;
 
    /*
     * Constructor that doesn't make reference to MMStudio so it can be used independently of MM GUI
@@ -83,7 +84,7 @@ public final class TaggedImageStorageMultipageTiff   {
 
       newDataSet_ = newDataSet;
       directory_ = dir;
-      tiffReadersByLabel_ = new HashMap<String, MultipageTiffReader>();
+      tiffReadersByLabel_ = new ConcurrentHashMap<String, MultipageTiffReader>();
       setSummaryMetadata(summaryMetadata);
 
       if (!newDataSet_) {       
@@ -212,10 +213,36 @@ public final class TaggedImageStorageMultipageTiff   {
     * so that low res stitched images can be written tile by tile
     * Not used by the MagellanTaggedImageStorage API, but can be useful for special applicaitons
     * of this class (e.g. Navigator plugin)
+    * The caller must not modify pix afterwards
     */
-   public void overwritePixels(Object pix, int channel, int slice, int frame, int position) throws IOException {
+   public void overwritePixels(final Object pix, final int channel, final int slice, final int frame,
+           final int position) throws IOException {
       //asumes only one position
-      fileSets_.get(position).overwritePixels(pix, channel, slice, frame, position); 
+      final FileSet fileSet = fileSets_.get(position);
+      if (writingExecutor_ == null) {
+         fileSet.overwritePixels(pix, channel, slice, frame, position);
+         return;
+      }
+      // The pixels of the image may still be waiting to be written, so overwrite them on the
+      // writing thread after that, and until then return the new pixels from getImage()
+      final String label = MD.generateLabel(channel, slice, frame, position);
+      MagellanTaggedImage previous = getImage(channel, slice, frame, position);
+      if (previous == null) {
+         return;
+      }
+      final MagellanTaggedImage image = new MagellanTaggedImage(pix, previous.tags);
+      writePendingImages_.put(label, image);
+      writingExecutor_.submit(new Runnable() {
+         @Override public void run() {
+            try {
+               fileSet.overwritePixels(pix, channel, slice, frame, position);
+            } catch (IOException ex) {
+               Log.log("Couldn't overwrite pixels");
+               Log.log(ex);
+            }
+            writePendingImages_.remove(label, image);
+         }
+      });
    }
 
    public void putImage(MagellanTaggedImage MagellanTaggedImage) throws IOException {
@@ -234,10 +261,12 @@ public final class TaggedImageStorageMultipageTiff   {
       // ListenableFuture.
       // Also note that the image will be dropped if the writing fails due to
       // any error. This is acceptable for disk-backed storage.
-      writePendingImages_.put(label, MagellanTaggedImage);
+      final MagellanTaggedImage pendingImage = MagellanTaggedImage;
+      writePendingImages_.put(label, pendingImage);
       writingExecutor_.submit(new Runnable() {
          @Override public void run() {
-            writePendingImages_.remove(label);
+            // leave pixels that were overwritten in the meantime
+            writePendingImages_.remove(label, pendingImage);
          }
       });
    }
@@ -367,8 +396,8 @@ public final class TaggedImageStorageMultipageTiff   {
          // try {
             boolean slicesFirst = summaryMetadata_.optBoolean("SlicesFirst", true);
             boolean timeFirst = false;
-            HashMap<String, MultipageTiffReader> oldImageMap = tiffReadersByLabel_;
-            tiffReadersByLabel_ = new HashMap<String, MultipageTiffReader>();
+            ConcurrentHashMap<String, MultipageTiffReader> oldImageMap = tiffReadersByLabel_;
+            tiffReadersByLabel_ = new ConcurrentHashMap<String, MultipageTiffReader>();
             if (showProgress) {
                ProgressBar progressBar = new ProgressBar("Building image location map", 0, oldImageMap.keySet().size());
                progressBar.setProgress(0);
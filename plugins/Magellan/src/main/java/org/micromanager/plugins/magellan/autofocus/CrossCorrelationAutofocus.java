@@ -189,18 +189,20 @@ public class CrossCorrelationAutofocus {
     */
    private static ImageStack createAFStack(FixedAreaAcquisition acq, int timeIndex, int channelIndex, int width, int height, int dsIndex) {
       ImageStack stack = new ImageStack(width, height);
+      //each slice is converted to float before the next is read, so one buffer will do
+      Object buffer = acq.getStorage().getByteDepth() == 1 ? new byte[width * height] : new short[width * height];
       //get background pixel value
       for (int slice = acq.getMinSliceIndex(); slice < acq.getMinSliceIndex() + acq.getNumSlices(); slice++) {
          //add as int
          float[] pix32;
          if (Magellan.getCore().getBytesPerPixel() == 1) {
-            byte[] pix = (byte[]) acq.getStorage().getImageForDisplay(channelIndex, slice, timeIndex, dsIndex, 0, 0, width, height).pix;
+            byte[] pix = (byte[]) acq.getStorage().getImageForDisplay(channelIndex, slice, timeIndex, dsIndex, 0, 0, width, height, buffer).pix;
             pix32 = new float[pix.length];
             for (int i = 0; i < pix.length; i++) {
                pix32[i] = pix[i] & 0xff;
             }
          } else {
-            short[] pix = (short[]) acq.getStorage().getImageForDisplay(channelIndex, slice, timeIndex, dsIndex, 0, 0, width, height).pix;
+            short[] pix = (short[]) acq.getStorage().getImageForDisplay(channelIndex, slice, timeIndex, dsIndex, 0, 0, width, height, buffer).pix;
             pix32 = new float[pix.length];
             for (int i = 0; i < pix.length; i++) {
                pix32[i] = pix[i] & 0xffff;
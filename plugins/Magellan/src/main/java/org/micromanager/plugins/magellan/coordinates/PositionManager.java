@@ -145,7 +145,7 @@ public class PositionManager {
     * @param resIndex - res index corresponding to the low res position
     * @return position index of full res child of node or -1 if doesn't exist (which shouldn't ever happen)
     */
-   public int getFullResPositionIndex(int lowResPositionIndex, int resIndex) {
+   public synchronized int getFullResPositionIndex(int lowResPositionIndex, int resIndex) {
       for (MultiResPositionNode node : positionNodes_.get(resIndex)) {
          if (node.positionIndex == lowResPositionIndex) {
             while (node.child != null) {
@@ -208,7 +208,7 @@ public class PositionManager {
     * @param colIndex
     * @return position index given res level or -1 if it doesn't exist
     */
-   public int getPositionIndexFromTilePosition(int dsIndex, long rowIndex, long colIndex) {
+   public synchronized int getPositionIndexFromTilePosition(int dsIndex, long rowIndex, long colIndex) {
       MultiResPositionNode nodeToFind = findExisitngNode(dsIndex, rowIndex, colIndex);
       if (nodeToFind != null) {
          return nodeToFind.positionIndex;
@@ -341,7 +341,7 @@ public class PositionManager {
       updateLowerResolutionNodes(lowestResLevel);
    }
 
-   public void updateLowerResolutionNodes(int lowestResLevel) {
+   public synchronized void updateLowerResolutionNodes(int lowestResLevel) {
       try {
          //Go through all base resolution positions and make a list of their multiResNodes, creating nodes when neccessary
          MultiResPositionNode[] fullResNodes = getFullResNodes();
@@ -397,8 +397,12 @@ public class ZoomableVirtualStack extends AcquisitionVirtualStack {
          slice += disp_.getStorage().getMinSliceIndexOpenedDataset();
       }
 
-      return multiResStorage_.getImageForDisplay(channel, slice, frame, resolutionIndex_,
+      MagellanTaggedImage image = multiResStorage_.getImageForDisplay(channel, slice, frame, resolutionIndex_,
               xView_, yView_, displayImageWidth_, displayImageHeight_);
+      //read the surrounding tiles ahead of time so that panning doesn't wait on the disk
+      multiResStorage_.prefetchTilesAround(channel, slice, frame, resolutionIndex_,
+              xView_, yView_, displayImageWidth_, displayImageHeight_);
+      return image;
    }
    
 }
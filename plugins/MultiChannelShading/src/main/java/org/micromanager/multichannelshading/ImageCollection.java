@@ -77,7 +77,9 @@ public class ImageCollection {
       return background_.get(BASEIMAGE);
    }
    
-   public ImagePlusInfo getBackground(int binning, Rectangle roi) 
+   // Synchronized as it may be called from multiple processing threads,
+   // and updates our cache of derived images.
+   public synchronized ImagePlusInfo getBackground(int binning, Rectangle roi) 
            throws ShadingException {
       String key = makeKey(binning, roi);
       if (background_.containsKey(key)) {
@@ -201,8 +203,8 @@ public class ImageCollection {
       flatFields_.remove(preset);
    }
 
-   public ImagePlusInfo getFlatField(String preset, int binning, Rectangle roi)
-           throws ShadingException {
+   public synchronized ImagePlusInfo getFlatField(String preset, int binning,
+           Rectangle roi) throws ShadingException {
       String key = makeKey(binning, roi);
       if (flatFields_.get(preset).containsKey(key)) {
          return flatFields_.get(preset).get(key);
@@ -70,6 +70,21 @@ public class ShadingProcessor extends Processor {
    }
 
 
+   /**
+    * Each image is corrected independently, using only the (read-only)
+    * background and flatfield images, so images can be processed in
+    * parallel.
+    */
+   @Override
+   public int getMaxThreads() {
+      return Runtime.getRuntime().availableProcessors();
+   }
+
+   @Override
+   public int getQueueDepth() {
+      return 2 * getMaxThreads();
+   }
+
    // Classes used to classify alerts in the processImage function below
    private class Not8or16BitClass {}
    private class NoBinningInfoClass {}
@@ -59,7 +59,8 @@ public class SaverConfigurator extends MMFrame implements ProcessorConfigurator
 
       panel.add(new JLabel("Save format: "), "split 2");
       String[] formats = new String[] {SaverPlugin.RAM,
-         SaverPlugin.MULTIPAGE_TIFF, SaverPlugin.SINGLEPLANE_TIFF_SERIES};
+         SaverPlugin.MULTIPAGE_TIFF, SaverPlugin.SINGLEPLANE_TIFF_SERIES,
+         SaverPlugin.CHUNKED};
       saveFormat_ = new JComboBox(formats);
       saveFormat_.setSelectedItem(
             settings.getString("format", getPreferredSaveFormat()));
@@ -39,6 +39,7 @@ public class SaverPlugin implements ProcessorPlugin, SciJavaPlugin {
 
    public static String SINGLEPLANE_TIFF_SERIES = "Separate Image Files";
    public static String MULTIPAGE_TIFF = "Image Stack File";
+   public static String CHUNKED = "Compressed Chunked Files";
    public static String RAM = "RAM only";
 
    @Override
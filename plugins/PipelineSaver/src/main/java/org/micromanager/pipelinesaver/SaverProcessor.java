@@ -53,6 +53,9 @@ public class SaverProcessor extends Processor {
          else if (format.equals(SaverPlugin.SINGLEPLANE_TIFF_SERIES)) {
             store_ = studio.data().createSinglePlaneTIFFSeriesDatastore(savePath_);
          }
+         else if (format.equals(SaverPlugin.CHUNKED)) {
+            store_ = studio.data().createChunkedDatastore(savePath_);
+         }
          else if (format.equals(SaverPlugin.RAM)) {
             store_ = studio.data().createRAMDatastore();
          }
@@ -73,7 +73,11 @@ public class Hub {
       int type = controller_.getImageType();
       tileDimensions_ = controller_.getTileDimensions();
 
-      cache_ = new MultiTileCache(numZoomLevels_, tileDimensions_);
+      long memoryBudgetMB = app_.profile().getInt(MultiTileCache.class,
+            MultiTileCache.MEMORY_BUDGET_MB,
+            MultiTileCache.DEFAULT_MEMORY_BUDGET_MB);
+      cache_ = new MultiTileCache(numZoomLevels_, tileDimensions_,
+            memoryBudgetMB * 1024 * 1024);
 
       blackImg_ = ImageUtils.makeProcessor(type, tileDimensions_.width, tileDimensions_.height);
 
@@ -180,6 +184,9 @@ public class Hub {
          configDialog_.dispose();
       }
       stop();
+      if (cache_ != null) {
+         cache_.close();
+      }
    }
 
    // Methods called when the view changes:
@@ -683,7 +690,13 @@ public class Hub {
          if (!cache_.hasImage(tileIndex)) {
             app_.getSnapLiveManager().setLiveMode(false);
             final ImageProcessor img = controller_.grabImageAtMapPosition(mapPosition);
-            cache_.addImage(tileIndex, img);
+            // Redraw once the tile has reached the lower zoom levels too.
+            cache_.addImage(tileIndex, img, new Runnable() {
+               @Override
+               public void run() {
+                  SwingUtilities.invokeLater(new GUIUpdater(tileIndex));
+               }
+            });
          }
       }
 
@@ -1,14 +1,11 @@
 package org.micromanager.slideexplorer;
 
 import java.awt.Point;
-import java.io.File;
-import java.util.Random;
+import java.io.IOException;
 
-import ij.IJ;
-import ij.ImagePlus;
-import ij.io.FileSaver;
 import ij.process.ImageProcessor;
 import org.micromanager.internal.utils.ImageUtils;
+import org.micromanager.internal.utils.ReportingUtils;
 
 public class MultiTile {
 
@@ -16,99 +13,124 @@ public class MultiTile {
     int type_;
     int width_;
     int height_;
-    String fileName_ = null;
-    boolean cached_ = false;
-    String tmpDirectory_ = "/tmp";
-
-    MultiTile(int type, int width, int height) {
+    // The cache we belong to, and our index in it.
+    final MultiTileCache cache_;
+    final Point3D index_;
+    // Where our pixels are kept while we are not in memory. Taken from the
+    // cache the first time we are dropped, since the cache only creates its
+    // store once it sees the first image; if it still has none, we stay in
+    // memory.
+    TileStore store_ = null;
+    // Slot in the store holding our pixels, or -1 if they have never been
+    // stored.
+    int slot_ = -1;
+    // True if proc_ has changed since it was last stored.
+    boolean dirty_ = false;
+
+    MultiTile(MultiTileCache cache, Point3D index, int type, int width, int height) {
+        cache_ = cache;
+        index_ = index;
         type_ = type;
         width_ = width;
         height_ = height;
     }
 
-    public synchronized ImageProcessor getImage() {
-        getImageReady();
-        return proc_;
+    public ImageProcessor getImage() {
+        ImageProcessor proc;
+        boolean loaded;
+        synchronized (this) {
+            loaded = getImageReady();
+            proc = proc_;
+        }
+        if (loaded) {
+            cache_.tileLoaded(index_, this);
+        }
+        return proc;
     }
 
-    public synchronized void getImageReady() {
+    /*
+     * Bring our pixels into memory. Returns true if they were not there
+     * already, in which case the caller must tell the cache (after releasing
+     * our lock) so that the memory is accounted for.
+     */
+    private synchronized boolean getImageReady() {
+        boolean loaded = false;
         if (proc_ == null) {
-            if (cached_ == false) {
+            if (slot_ < 0) {
                 createCleanImage();
             } else {
-                loadFromCache();
+                proc_ = store_.read(slot_);
             }
+            loaded = true;
         }
         proc_.setInterpolationMethod(ImageProcessor.BILINEAR);
+        return loaded;
     }
 
-    public synchronized void setImage(ImageProcessor proc) {
-        getImageReady();
-        proc_.insert(proc, 0, 0);
+    public void setImage(ImageProcessor proc) {
+        boolean loaded;
+        synchronized (this) {
+            loaded = getImageReady();
+            proc_.insert(proc, 0, 0);
+            dirty_ = true;
+        }
+        if (loaded) {
+            cache_.tileLoaded(index_, this);
+        }
     }
 
     private void createCleanImage() {
         proc_ = ImageUtils.makeProcessor(type_, width_, height_);
     }
 
-    public synchronized void insertQuadrantImage(Point quad, ImageProcessor inProc) {
+    public void insertQuadrantImage(Point quad, ImageProcessor inProc) {
         // TODO: rewrite this as a fast algorithm. Should require only a single copy.
-        getImageReady();
         inProc.setInterpolationMethod(ImageProcessor.BILINEAR);
         ImageProcessor inProcSmall = inProc.resize(width_ / 2, height_ / 2);
-        proc_.insert(inProcSmall, quad.x * width_ / 2, quad.y * height_ / 2);
-        cached_ = false;
-    }
-
-    public synchronized void dropFromMemory() {
-        if (!cached_) {
-            cacheOnDisk();
+        boolean loaded;
+        synchronized (this) {
+            loaded = getImageReady();
+            proc_.insert(inProcSmall, quad.x * width_ / 2, quad.y * height_ / 2);
+            dirty_ = true;
         }
-
-        proc_ = null;
-    }
-
-    private void cacheOnDisk() {
-        if (proc_ != null) {
-            ImagePlus imgp = new ImagePlus("", proc_);
-            FileSaver fs = new FileSaver(imgp);
-            if (fileName_ == null) {
-                fileName_ = tmpDirectory_ + "/" + Math.abs(randLong()) + ".tif";
-            }
-            fs.saveAsTiff(fileName_);
-            cached_ = true;
+        if (loaded) {
+            cache_.tileLoaded(index_, this);
         }
     }
 
-    private void loadFromCache() {
-        ImagePlus imgp = IJ.openImage(fileName_);
-        if (imgp != null) {
-            proc_ = imgp.getProcessor();
-        } else { // Somehow the image got lost.
-            proc_ = null;
-            cached_ = false;
-            getImageReady();
+    /*
+     * Move our pixels out of memory, writing them to the store if they have
+     * changed. Returns false if the pixels had to be kept in memory, because
+     * there is no store or writing to it failed.
+     */
+    public synchronized boolean dropFromMemory() {
+        if (proc_ == null) {
+            return true;
+        }
+        if (dirty_) {
+            if (store_ == null) {
+                store_ = cache_.getStore();
+                if (store_ == null) {
+                    return false;
+                }
+            }
+            try {
+                if (slot_ < 0) {
+                    slot_ = store_.allocateSlot();
+                }
+                store_.write(slot_, proc_);
+                dirty_ = false;
+            } catch (IOException e) {
+                // Keep the pixels in memory rather than lose them.
+                ReportingUtils.logError(e, "Unable to store SlideExplorer tile");
+                return false;
+            }
         }
+        proc_ = null;
+        return true;
     }
 
     public String toString() {
         return "Tile";
     }
-    private static Random rand = null;
-
-    public static long randLong() {
-        if (rand == null) {
-            rand = new Random();
-        }
-        return rand.nextLong();
-    }
-
-    public void wipeFromDisk() {
-        if (fileName_ != null) {
-            File file = new File(fileName_);
-            if (file.exists()) {
-                file.delete();
-            }
-        }
-    }
 }
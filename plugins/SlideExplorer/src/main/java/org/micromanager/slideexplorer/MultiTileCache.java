@@ -4,39 +4,109 @@ import ij.process.ImageProcessor;
 
 import java.awt.Dimension;
 import java.awt.Point;
-import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.micromanager.internal.utils.ImageUtils;
+import org.micromanager.internal.utils.ReportingUtils;
 
+/*
+ * Holds the multitiles at every zoom level. Tiles are kept in memory up to a
+ * memory budget, beyond which the least recently used tiles (at any zoom
+ * level) are moved to a TileStore. New images are propagated to the lower
+ * zoom levels on a background thread, so that acquisition does not wait for
+ * downsampling.
+ */
 public class MultiTileCache {
+	// Profile key for the memory budget, in MB.
+	public static final String MEMORY_BUDGET_MB = "memory budget in MB for tiles";
+	public static final int DEFAULT_MEMORY_BUDGET_MB = 256;
 	
 	protected int minZoomLevel_;
 	protected int width_ = 0;
 	protected int height_ = 0;
 	private int type_ = -1;
+	private final long memoryBudget_;
+	// Memory used by each tile's pixels; assume the largest pixel type until
+	// we know the actual one.
+	private long tileBytes_;
+	private volatile TileStore store_ = null;
 	
 	protected Hashtable<Point3D,MultiTile> allTiles_ = new Hashtable<Point3D,MultiTile>();
-	protected Hashtable<Integer,Point3D> currentTiles_ = new Hashtable<Integer, Point3D>();
+	// Tiles that have pixels in memory, least recently used first. Tiles add
+	// themselves (via tileLoaded()) whenever they bring their pixels into
+	// memory.
+	protected LinkedHashMap<Point3D,MultiTile> residentTiles_ = new LinkedHashMap<Point3D,MultiTile>(16, 0.75f, true);
+	private final ExecutorService propagationExecutor_;
 	
 	public MultiTileCache(int zoomLevels, Dimension tileDimensions) {
+		this(zoomLevels, tileDimensions, DEFAULT_MEMORY_BUDGET_MB * 1024L * 1024L);
+	}
+	
+	public MultiTileCache(int zoomLevels, Dimension tileDimensions, long memoryBudget) {
 		minZoomLevel_ = -zoomLevels+1;
 		width_ = tileDimensions.width;
 		height_ = tileDimensions.height;
-
-        File tmpDir = new File("/tmp");
-        if(!tmpDir.exists())
-                tmpDir.mkdir();
+		memoryBudget_ = memoryBudget;
+		tileBytes_ = (long) width_ * height_ * 4;
+		propagationExecutor_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "SlideExplorer tile propagation");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 	}
 	
-	public void addImage(Point idx, ImageProcessor proc) {
-		if (type_ == -1) {
-			type_ = ImageUtils.getImageProcessorType(proc);
+	/*
+	 * Add a newly-acquired tile. onPropagated, if not null, is run (on the
+	 * propagation thread) once the lower zoom levels include the new tile.
+	 */
+	public void addImage(final Point idx, ImageProcessor proc, final Runnable onPropagated) {
+		synchronized (this) {
+			if (type_ == -1) {
+				type_ = ImageUtils.getImageProcessorType(proc);
+				// RGB processors have a bit depth of 24 but use 4 bytes.
+				tileBytes_ = (long) width_ * height_ * ((proc.getBitDepth() + 7) / 8);
+				if (proc.getBitDepth() == 24) {
+					tileBytes_ = (long) width_ * height_ * 4;
+				}
+				try {
+					store_ = new TileStore(type_, width_, height_);
+				} catch (IOException e) {
+					ReportingUtils.logError(e, "Unable to create SlideExplorer tile store; all tiles will be kept in memory");
+				}
+			}
 		}
 		
-		MultiTile tile = getTile(idx);
+		final MultiTile tile = getTile(idx);
 		tile.setImage(proc);
-		propagateTile(idx, tile);
+		propagationExecutor_.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					propagateTile(idx, tile);
+				} catch (Exception e) {
+					ReportingUtils.logError(e, "Error propagating SlideExplorer tile");
+				}
+				if (onPropagated != null) {
+					onPropagated.run();
+				}
+			}
+		});
+	}
+	
+	public void addImage(Point idx, ImageProcessor proc) {
+		addImage(idx, proc, null);
 	}
 	
 	public ImageProcessor getImage(Point3D multiTileIndex) {
@@ -76,22 +146,60 @@ public class MultiTileCache {
 	}
 	
 	protected synchronized MultiTile getMultiTile(Point3D idx) {
-
-		if (currentTiles_.containsKey(idx.k)) {
-			Point3D currentTile = currentTiles_.get(idx.k);
-			if (!currentTile.equals(idx)) {
-				allTiles_.get(currentTile).dropFromMemory();
-				currentTiles_.remove(currentTile.k);
+		MultiTile tile = allTiles_.get(idx);
+		if (tile == null) {
+			tile = new MultiTile(this, idx, type_, width_, height_);
+			allTiles_.put(idx, tile);
+		}
+		// Mark as recently used, if resident.
+		residentTiles_.get(idx);
+		return tile;
+	}
+	
+	/*
+	 * The store for tiles that are dropped from memory, or null if we have
+	 * not seen an image yet (or could not create one).
+	 */
+	TileStore getStore() {
+		return store_;
+	}
+	
+	/*
+	 * Called by a tile after it has brought its pixels into memory. Must not
+	 * be called with the tile's lock held, as we may drop other tiles.
+	 */
+	void tileLoaded(Point3D idx, MultiTile tile) {
+		ArrayList<MultiTile> toDrop = new ArrayList<MultiTile>();
+		synchronized (this) {
+			// Ignore tiles discarded by clear().
+			if (allTiles_.get(idx) != tile) {
+				return;
+			}
+			residentTiles_.put(idx, tile);
+			Iterator<Map.Entry<Point3D,MultiTile>> iter = residentTiles_.entrySet().iterator();
+			while (residentTiles_.size() > 1 && residentTiles_.size() * tileBytes_ > memoryBudget_) {
+				toDrop.add(iter.next().getValue());
+				iter.remove();
 			}
 		}
-
-		currentTiles_.put(idx.k, idx);
-		if (! allTiles_.containsKey(idx)) {
-			MultiTile tile = new MultiTile(type_, width_, height_);
-			allTiles_.put(idx, tile);
-			return tile;
-		} else {
-			return allTiles_.get(idx);
+		// Drop outside our lock, so that writing to the store does not hold
+		// up other users of the cache. A tile that is used again after it is
+		// dropped just reloads and re-adds itself.
+		for (MultiTile dropped : toDrop) {
+			if (!dropped.dropFromMemory()) {
+				keepResident(dropped);
+			}
+		}
+	}
+	
+	/*
+	 * Count a tile that could not be dropped, and so still has its pixels in
+	 * memory, against our budget again.
+	 */
+	private synchronized void keepResident(MultiTile tile) {
+		// Ignore tiles discarded by clear().
+		if (allTiles_.get(tile.index_) == tile) {
+			residentTiles_.put(tile.index_, tile);
 		}
 	}
 		
@@ -107,14 +215,41 @@ public class MultiTileCache {
 		return new Point3D(i,j,k);
 	}
 
+	/*
+	 * Wait for pending propagation, then discard all tiles.
+	 */
 	public void clear() {
-		for (MultiTile multiTile:allTiles_.values()) {
-			multiTile.wipeFromDisk();
+		try {
+			propagationExecutor_.submit(new Runnable() {
+				@Override
+				public void run() {}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			ReportingUtils.logError(e);
+		}
+		synchronized (this) {
+			residentTiles_.clear();
+			allTiles_.clear();
+			if (store_ != null) {
+				store_.clear();
+			}
 		}
-        currentTiles_.clear();
-        allTiles_.clear();
 	}
 	
-	
+	/*
+	 * Discard all tiles and delete the tile store.
+	 */
+	public void close() {
+		clear();
+		propagationExecutor_.shutdown();
+		synchronized (this) {
+			if (store_ != null) {
+				store_.close();
+				store_ = null;
+			}
+		}
+	}
 
 }
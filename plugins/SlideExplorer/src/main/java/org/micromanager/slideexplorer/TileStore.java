@@ -0,0 +1,143 @@
+package org.micromanager.slideexplorer;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import org.micromanager.internal.utils.ImageUtils;
+import org.micromanager.internal.utils.ReportingUtils;
+
+/*
+ * Holds the pixels of multitiles that have been dropped from memory, in a
+ * single memory-mapped temporary file divided into fixed-size slots (one per
+ * tile). The file is deleted when the store is closed.
+ */
+public class TileStore {
+    // Size of each memory-mapped region of the file.
+    private static final long SEGMENT_SIZE = 256L * 1024 * 1024;
+
+    private final int type_;
+    private final int width_;
+    private final int height_;
+    private final int slotBytes_;
+    private final int slotsPerSegment_;
+    private final File file_;
+    private final RandomAccessFile raFile_;
+    private final ArrayList<MappedByteBuffer> segments_ = new ArrayList<MappedByteBuffer>();
+    private final LinkedList<Integer> freeSlots_ = new LinkedList<Integer>();
+    private int numSlots_ = 0;
+
+    public TileStore(int type, int width, int height) throws IOException {
+        type_ = type;
+        width_ = width;
+        height_ = height;
+        slotBytes_ = width * height * getBytesPerPixel(type);
+        slotsPerSegment_ = (int) Math.max(1, SEGMENT_SIZE / slotBytes_);
+        file_ = File.createTempFile("slideexplorer", ".tiles");
+        file_.deleteOnExit();
+        raFile_ = new RandomAccessFile(file_, "rw");
+    }
+
+    private static int getBytesPerPixel(int type) {
+        switch (type) {
+            case ImagePlus.GRAY8:
+                return 1;
+            case ImagePlus.GRAY16:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    /*
+     * Reserve a slot for a tile, growing the file if necessary.
+     */
+    public synchronized int allocateSlot() throws IOException {
+        if (!freeSlots_.isEmpty()) {
+            return freeSlots_.removeFirst();
+        }
+        if (numSlots_ == segments_.size() * slotsPerSegment_) {
+            long start = (long) segments_.size() * slotsPerSegment_ * slotBytes_;
+            long size = (long) slotsPerSegment_ * slotBytes_;
+            raFile_.setLength(start + size);
+            segments_.add(raFile_.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, start, size));
+        }
+        return numSlots_++;
+    }
+
+    /*
+     * Return a buffer covering exactly the given slot.
+     */
+    private synchronized ByteBuffer getSlotBuffer(int slot) {
+        ByteBuffer buffer = segments_.get(slot / slotsPerSegment_).duplicate();
+        int offset = (slot % slotsPerSegment_) * slotBytes_;
+        buffer.position(offset);
+        buffer.limit(offset + slotBytes_);
+        return buffer.slice().order(ByteOrder.nativeOrder());
+    }
+
+    public void write(int slot, ImageProcessor proc) {
+        ByteBuffer buffer = getSlotBuffer(slot);
+        Object pixels = proc.getPixels();
+        if (pixels instanceof byte[]) {
+            buffer.put((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            buffer.asShortBuffer().put((short[]) pixels);
+        } else if (pixels instanceof int[]) {
+            buffer.asIntBuffer().put((int[]) pixels);
+        } else if (pixels instanceof float[]) {
+            buffer.asFloatBuffer().put((float[]) pixels);
+        }
+    }
+
+    public ImageProcessor read(int slot) {
+        ByteBuffer buffer = getSlotBuffer(slot);
+        ImageProcessor proc = ImageUtils.makeProcessor(type_, width_, height_);
+        Object pixels = proc.getPixels();
+        if (pixels instanceof byte[]) {
+            buffer.get((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            buffer.asShortBuffer().get((short[]) pixels);
+        } else if (pixels instanceof int[]) {
+            buffer.asIntBuffer().get((int[]) pixels);
+        } else if (pixels instanceof float[]) {
+            buffer.asFloatBuffer().get((float[]) pixels);
+        }
+        return proc;
+    }
+
+    /*
+     * Make every slot available for reuse.
+     */
+    public synchronized void clear() {
+        freeSlots_.clear();
+        for (int i = 0; i < numSlots_; ++i) {
+            freeSlots_.add(i);
+        }
+    }
+
+    public synchronized void close() {
+        segments_.clear();
+        freeSlots_.clear();
+        numSlots_ = 0;
+        try {
+            raFile_.close();
+        } catch (IOException e) {
+            ReportingUtils.logError(e, "Error closing " + file_);
+        }
+        // Existing mappings keep the space in use until they are garbage
+        // collected; on some systems this means the delete will fail, in which
+        // case deleteOnExit() takes care of it.
+        file_.delete();
+    }
+}